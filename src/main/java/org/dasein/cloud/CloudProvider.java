@@ -29,6 +29,8 @@ import org.dasein.cloud.platform.PlatformServices;
 import org.dasein.cloud.storage.StorageServices;
 import org.dasein.cloud.util.NamingConstraints;
 import org.dasein.cloud.util.ResourceNamespace;
+import org.dasein.cloud.util.TagMatcher;
+import org.dasein.cloud.util.requester.DaseinHttpClientPool;
 import org.dasein.util.CalendarWrapper;
 
 import javax.annotation.Nonnull;
@@ -74,50 +76,22 @@ public abstract class CloudProvider {
         return name.substring(idx + 1);
     }
 
+    /**
+     * Matches the tags, name, and description of a resource against tag criteria. Criteria on <code>Name</code> and
+     * <code>Description</code> match case-insensitively against either the resource name or description or the tag
+     * of that name. Filters that check many resources against the same criteria should compile them once into a
+     * {@link TagMatcher} instead.
+     * @param currentValues the tags of the resource
+     * @param name the name of the resource
+     * @param description the description of the resource
+     * @param valuesToMatch the tag values to match by tag name
+     * @return true if the resource matches all criteria
+     */
     static public boolean matchesTags(@Nonnull Map<String, ?> currentValues, @Nonnull String name, @Nonnull String description, @Nullable Map<String, String> valuesToMatch) {
-        if (valuesToMatch != null && !valuesToMatch.isEmpty()) {
-            name = name.toLowerCase();
-            description = description.toLowerCase();
-            for (Map.Entry<String, String> entry : valuesToMatch.entrySet()) {
-                String v = (entry.getValue() == null ? null : entry.getValue().toLowerCase());
-                Object t = currentValues.get(entry.getKey());
-
-                if (entry.getKey().equals("Name")) {
-
-                    if (v != null) {
-                        String n = name.toLowerCase();
-
-                        if (n.contains(v) || (t != null && t.toString().toLowerCase().contains(v))) {
-                            continue;
-                        }
-                    }
-                    return false;
-                }
-                if (entry.getKey().equals("Description")) {
-                    if (v != null) {
-                        String d = description.toLowerCase();
-
-                        if (d.contains(v) || (t != null && t.toString().toLowerCase().contains(v))) {
-                            continue;
-                        }
-                    }
-                    return false;
-                }
-                if (t == null && v == null) {
-                    continue;
-                }
-                if (t == null) {
-                    return false;
-                }
-                if (v == null) {
-                    return false;
-                }
-                if (!t.toString().contains(v)) {
-                    return false;
-                }
-            }
+        if (valuesToMatch == null || valuesToMatch.isEmpty()) {
+            return true;
         }
-        return true;
+        return new TagMatcher(valuesToMatch).matches(currentValues, name, description);
     }
 
     private CloudProvider computeCloudProvider;
@@ -446,5 +420,6 @@ public abstract class CloudProvider {
             storageCloudProvider.close();
             storageCloudProvider = null;
         }
+        DaseinHttpClientPool.release(this);
     }
 }
@@ -33,27 +33,25 @@ import org.dasein.util.CalendarWrapper;
 import org.dasein.util.Jiterator;
 import org.dasein.util.JiteratorPopulator;
 import org.dasein.util.PopulatorThread;
-import org.dasein.util.uom.storage.Gigabyte;
-import org.dasein.util.uom.storage.Megabyte;
-import org.dasein.util.uom.storage.Storage;
-import org.dasein.util.uom.time.Day;
 import org.dasein.util.uom.time.TimePeriod;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Default implementation of virtual machine support for clouds with very little support.
@@ -61,6 +59,12 @@ import java.util.concurrent.Future;
  *
  * @author George Reese
  * @version 2013.04
+ * @version 2014.11 bounded, completion-driven launchMany
+ * @version 2014.11 batch launch SPI
+ * @version 2014.11 indexed product catalog
+ * @version 2014.11 shared state watcher for stop and reboot
+ * @version 2014.11 indexed virtual machine lookups
+ * @version 2014.11 default bulk status and status changes
  * @since 2013.04
  */
 public abstract class AbstractVMSupport<T extends CloudProvider> implements VirtualMachineSupport {
@@ -188,6 +192,9 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
     public @Nullable VirtualMachineProduct getProduct( @Nonnull String productId ) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.getProduct");
         try {
+            if( isProductCatalogInUse() ) {
+                return getProductCatalog().getProduct(productId, getContext().getRegionId(), getCapabilities().listSupportedArchitectures());
+            }
             for( Architecture architecture : getCapabilities().listSupportedArchitectures() ) {
                 for( VirtualMachineProduct prd : listProducts(architecture) ) {
                     if( productId.equals(prd.getProviderProductId()) ) {
@@ -219,14 +226,91 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
         }
     }
 
+    /**
+     * The name of the custom context property holding the number of seconds for which the default
+     * {@link #getVirtualMachine(String)} answers from the most recent listing of the account's virtual machines. The
+     * {@link VirtualMachineIndex} is disabled by default (a value of 0), because only the default stop, reboot,
+     * terminate and tagging methods invalidate it; set this only for drivers that call
+     * {@link #invalidateVirtualMachine(String)} from every operation they implement that changes a virtual machine.
+     */
+    static public final String VM_INDEX_TIMEOUT = "vmIndexTimeout";
+
     @Override
     public @Nullable VirtualMachine getVirtualMachine( @Nonnull String vmId ) throws InternalException, CloudException {
-        for( VirtualMachine vm : listVirtualMachines(null) ) {
-            if( vm.getProviderVirtualMachineId().equals(vmId) ) {
+        VirtualMachineIndex index = getVirtualMachineIndex();
+
+        if( index == null ) {
+            for( VirtualMachine vm : listVirtualMachines(null) ) {
+                if( vm.getProviderVirtualMachineId().equals(vmId) ) {
+                    return vm;
+                }
+            }
+            return null;
+        }
+        VirtualMachineIndex.Snapshot snapshot = index.getSnapshot();
+
+        if( snapshot != null ) {
+            VirtualMachine vm = snapshot.getVirtualMachine(vmId);
+
+            if( vm != null ) {
                 return vm;
             }
         }
-        return null;
+        long generation = index.getGeneration();
+        List<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+        VirtualMachine found = null;
+
+        for( VirtualMachine vm : listVirtualMachines(null) ) {
+            if( found == null && vm.getProviderVirtualMachineId().equals(vmId) ) {
+                found = vm;
+            }
+            vms.add(vm);
+        }
+        index.update(vms, generation, getVirtualMachineIndexTimeout());
+        return found;
+    }
+
+    /**
+     * Removes a virtual machine from the {@link VirtualMachineIndex} after an operation that changes it, so that the
+     * next call to {@link #getVirtualMachine(String)} fetches it from the cloud. The default stop, reboot, terminate
+     * and tagging methods call this for you; implementations should call it from their own operations that change
+     * virtual machines.
+     * @param vmId the ID of the virtual machine that has changed
+     */
+    protected void invalidateVirtualMachine( @Nonnull String vmId ) {
+        ProviderContext ctx = getProvider().getContext();
+
+        if( ctx != null ) {
+            VirtualMachineIndex.getInstance(ctx).invalidate(vmId);
+        }
+    }
+
+    private @Nullable VirtualMachineIndex getVirtualMachineIndex() {
+        ProviderContext ctx = getProvider().getContext();
+
+        if( ctx == null || getVirtualMachineIndexTimeout() < 1L ) {
+            return null;
+        }
+        return VirtualMachineIndex.getInstance(ctx);
+    }
+
+    private long getVirtualMachineIndexTimeout() {
+        ProviderContext ctx = getProvider().getContext();
+        long seconds = 0L;
+
+        if( ctx != null ) {
+            String value = ctx.getCustomProperties().getProperty(VM_INDEX_TIMEOUT);
+
+            if( value != null ) {
+                try {
+                    seconds = Math.max(0L, Long.parseLong(value.trim()));
+                }
+                catch( NumberFormatException ignore ) {
+                    // use the default
+                }
+            }
+        }
+        return seconds * 1000L;
     }
 
     @Override
@@ -311,11 +395,37 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
         return getCapabilities().isUserDataSupported();
     }
 
-    static private final ExecutorService launchPool = Executors.newCachedThreadPool();
+    /**
+     * The name of the custom context property holding the highest number of launches <code>launchMany()</code> runs at
+     * once for a single cloud account (default 10).
+     */
+    static public final String LAUNCH_CONCURRENCY = "launchConcurrency";
+
+    static private final int LAUNCH_THREADS = Math.max(1, Integer.getInteger("dasein.launchThreads", 32));
+
+    static private final ThreadPoolExecutor launchPool = new ThreadPoolExecutor(LAUNCH_THREADS, LAUNCH_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "VM Launch " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private final ConcurrentHashMap<String,Semaphore> launchPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    static private final ConcurrentHashMap<Class<?>,Boolean> catalogImplementations = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    static {
+        launchPool.allowCoreThreadTimeOut(true);
+    }
 
     /**
-     * Launches a virtual machine asynchronously from a cached thread pool. All errors are pulled out from the
-     * the {@link java.util.concurrent.Future} result.
+     * Launches a virtual machine asynchronously from a shared pool of at most <code>dasein.launchThreads</code> (a
+     * system property, default 32) threads. All errors are pulled out from the the {@link java.util.concurrent.Future} result.
      *
      * @param withLaunchOptions the launch options to use in launching the virtual machine
      * @return the unique ID of the launched virtual machine
@@ -329,6 +439,37 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
         });
     }
 
+    private @Nonnull Semaphore getLaunchPermits() {
+        ProviderContext ctx = getProvider().getContext();
+
+        if( ctx == null ) {
+            return new Semaphore(10);
+        }
+        String key = ctx.getCloud().getEndpoint() + "/" + ctx.getAccountNumber();
+        Semaphore permits = launchPermits.get(key);
+
+        if( permits == null ) {
+            int concurrency = 10;
+            String value = ctx.getCustomProperties().getProperty(LAUNCH_CONCURRENCY);
+
+            if( value != null ) {
+                try {
+                    concurrency = Math.max(1, Integer.parseInt(value.trim()));
+                }
+                catch( NumberFormatException ignore ) {
+                    // use the default
+                }
+            }
+            permits = new Semaphore(concurrency);
+            Semaphore p = launchPermits.putIfAbsent(key, permits);
+
+            if( p != null ) {
+                permits = p;
+            }
+        }
+        return permits;
+    }
+
     // the default implementation does parallel launches and throws an exception only if it is unable to launch any virtual machines
     @Override
     public @Nonnull Iterable<String> launchMany( final @Nonnull VMLaunchOptions withLaunchOptions, final @Nonnegative int count ) throws CloudException, InternalException {
@@ -338,66 +479,216 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
         if( count == 1 ) {
             return Collections.singleton(launch(withLaunchOptions).getProviderVirtualMachineId());
         }
-        final List<Future<String>> results = new ArrayList<Future<String>>();
-        MachineImage image = null;
+        final MachineImage image = getLaunchImage(withLaunchOptions);
+        final List<VMLaunchOptions> instances = getLaunchInstances(withLaunchOptions, image, count);
+        final Iterable<VMLaunchResult> batch = launchBatchIfSupported(withLaunchOptions, image, instances);
+
+        PopulatorThread<String> populator = new PopulatorThread<String>(new JiteratorPopulator<String>() {
+            @Override
+            public void populate( final @Nonnull Jiterator<String> iterator ) throws Exception {
+                final Exception[] exception = new Exception[1];
+                final boolean[] loaded = new boolean[1];
+                LaunchListener listener = new LaunchListener() {
+                    @Override
+                    public void launched( @Nonnull VMLaunchResult result ) {
+                        if( result.isSuccessful() ) {
+                            iterator.push(result.getProviderVirtualMachineId());
+                            loaded[0] = true;
+                        }
+                        else {
+                            exception[0] = result.getError();
+                        }
+                    }
+                };
+
+                if( batch != null ) {
+                    for( VMLaunchResult result : batch ) {
+                        listener.launched(result);
+                    }
+                }
+                else {
+                    launchInParallel(image, instances, listener);
+                }
+                if( exception[0] != null && !loaded[0] ) {
+                    throw exception[0];
+                }
+            }
+        });
+
+        populator.populate();
+        return populator.getResult();
+    }
+
+    /**
+     * Launches several virtual machines from the same options, reporting the outcome for each of them. The instances
+     * are given host and friendly names numbered from 1 (see {@link NamingConstraints#incrementName(String, int)}).
+     * When the driver supports launching several virtual machines in one request (see
+     * {@link #launchBatch(VMLaunchOptions, MachineImage, List)}), the instances are launched that way; otherwise they
+     * are launched in parallel through {@link #launch(VMLaunchOptions, MachineImage)}, subject to the
+     * <code>launchConcurrency</code> limit for the account, and results are returned in the order the launches
+     * complete. Unlike {@link #launchMany(VMLaunchOptions, int)}, individual failures are reported in the results
+     * rather than swallowed.
+     * @param withLaunchOptions the options shared by all instances
+     * @param count the number of virtual machines to launch
+     * @return the outcome of each launch
+     * @throws CloudException an error occurred with the cloud provider before any launches were attempted
+     * @throws InternalException an error occurred within Dasein Cloud before any launches were attempted
+     */
+    public @Nonnull Iterable<VMLaunchResult> launchManyWithResults( final @Nonnull VMLaunchOptions withLaunchOptions, final @Nonnegative int count ) throws CloudException, InternalException {
+        if( count < 1 ) {
+            throw new InternalException("Invalid attempt to launch less than 1 virtual machine (requested " + count + ").");
+        }
+        final MachineImage image = getLaunchImage(withLaunchOptions);
+        final List<VMLaunchOptions> instances = getLaunchInstances(withLaunchOptions, image, count);
+        Iterable<VMLaunchResult> batch = launchBatchIfSupported(withLaunchOptions, image, instances);
 
+        if( batch != null ) {
+            return batch;
+        }
+        PopulatorThread<VMLaunchResult> populator = new PopulatorThread<VMLaunchResult>(new JiteratorPopulator<VMLaunchResult>() {
+            @Override
+            public void populate( final @Nonnull Jiterator<VMLaunchResult> iterator ) throws Exception {
+                launchInParallel(image, instances, new LaunchListener() {
+                    @Override
+                    public void launched( @Nonnull VMLaunchResult result ) {
+                        iterator.push(result);
+                    }
+                });
+            }
+        });
+
+        populator.populate();
+        return populator.getResult();
+    }
+
+    /**
+     * Receives the outcome of each launch made by {@link #launchInParallel(MachineImage, List, LaunchListener)} as it
+     * completes.
+     */
+    static private interface LaunchListener {
+        public void launched( @Nonnull VMLaunchResult result );
+    }
+
+    private @Nullable MachineImage getLaunchImage( @Nonnull VMLaunchOptions withLaunchOptions ) throws CloudException, InternalException {
         ComputeServices services = getProvider().getComputeServices();
 
         if( services != null ) {
             MachineImageSupport support = services.getImageSupport();
 
             if( support != null ) {
-                image = support.getImage(withLaunchOptions.getMachineImageId());
+                return support.getImage(withLaunchOptions.getMachineImageId());
             }
         }
+        return null;
+    }
+
+    private @Nonnull List<VMLaunchOptions> getLaunchInstances( @Nonnull VMLaunchOptions withLaunchOptions, @Nullable MachineImage image, int count ) {
         NamingConstraints c = NamingConstraints.getHostNameInstance(image == null || image.getPlatform().equals(Platform.UNKNOWN) || image.getPlatform().equals(Platform.WINDOWS));
         String baseHost = c.convertToValidName(withLaunchOptions.getHostName(), Locale.US);
 
         if( baseHost == null ) {
             baseHost = withLaunchOptions.getHostName();
         }
+        List<VMLaunchOptions> instances = new ArrayList<VMLaunchOptions>();
+
         for( int i = 1; i <= count; i++ ) {
             String hostName = c.incrementName(baseHost, i);
             String friendlyName = withLaunchOptions.getFriendlyName() + "-" + i;
-            VMLaunchOptions options = withLaunchOptions.copy(hostName == null ? withLaunchOptions.getHostName() + "-" + i : hostName, friendlyName);
 
-            results.add(launchAsync(options));
+            instances.add(withLaunchOptions.copy(hostName == null ? withLaunchOptions.getHostName() + "-" + i : hostName, friendlyName));
         }
+        return Collections.unmodifiableList(instances);
+    }
 
-        PopulatorThread<String> populator = new PopulatorThread<String>(new JiteratorPopulator<String>() {
-            @Override
-            public void populate( @Nonnull Jiterator<String> iterator ) throws Exception {
-                List<Future<String>> original = results;
-                List<Future<String>> copy = new ArrayList<Future<String>>();
-                Exception exception = null;
-                boolean loaded = false;
-
-                while( !original.isEmpty() ) {
-                    for( Future<String> result : original ) {
-                        if( result.isDone() ) {
-                            try {
-                                iterator.push(result.get());
-                                loaded = true;
-                            } catch( Exception e ) {
-                                exception = e;
-                            }
-                        }
-                        else {
-                            copy.add(result);
-                        }
-                    }
-                    original = copy;
-                    // copy has to be a new list else we'll get into concurrently modified list state
-                    copy = new ArrayList<Future<String>>();
-                }
-                if( exception != null && !loaded ) {
-                    throw exception;
-                }
+    private @Nullable Iterable<VMLaunchResult> launchBatchIfSupported( @Nonnull VMLaunchOptions withLaunchOptions, @Nullable MachineImage image, @Nonnull List<VMLaunchOptions> instances ) throws CloudException, InternalException {
+        try {
+            return launchBatch(withLaunchOptions, image, instances);
+        }
+        catch( OperationNotSupportedException ignore ) {
+            // fall back to parallel launches
+            return null;
+        }
+    }
+
+    /**
+     * Launches the specified instances in parallel, handing each launch to the pool as a permit for this account
+     * frees up and reporting the outcomes to the listener, on the calling thread, in the order they complete.
+     */
+    private void launchInParallel( @Nullable MachineImage image, @Nonnull List<VMLaunchOptions> instances, @Nonnull LaunchListener listener ) throws InterruptedException, ExecutionException {
+        final LinkedList<VMLaunchOptions> pending = new LinkedList<VMLaunchOptions>(instances);
+        final Semaphore permits = getLaunchPermits();
+        ExecutorCompletionService<VMLaunchResult> completion = new ExecutorCompletionService<VMLaunchResult>(launchPool);
+        int inFlight = 0;
+        int index = 0;
+
+        while( !pending.isEmpty() || inFlight > 0 ) {
+            if( inFlight == 0 ) {
+                permits.acquire();
+                submitLaunch(completion, ++index, pending.removeFirst(), image, permits);
+                inFlight++;
             }
-        });
+            while( !pending.isEmpty() && permits.tryAcquire() ) {
+                submitLaunch(completion, ++index, pending.removeFirst(), image, permits);
+                inFlight++;
+            }
+            listener.launched(completion.take().get());
+            inFlight--;
+        }
+    }
 
-        populator.populate();
-        return populator.getResult();
+    /**
+     * Launches several virtual machines in as few requests to the cloud as possible. Drivers for clouds that can
+     * launch multiple instances in a single call should override this method; the default returns <code>null</code>
+     * so that the instances are launched one at a time in parallel instead. Implementations may return the results
+     * as a list once the request completes, or lazily through a {@link PopulatorThread} as the instances are
+     * identified. The outcome for every instance must be reported, including instances the cloud refused to launch.
+     * @param withLaunchOptions the options shared by all instances, as passed by the caller
+     * @param image the machine image being launched, if it could be looked up, so that it need not be looked up again
+     * @param instances the options for each instance, with its host and friendly names; the instance at position
+     *                  <code>i</code> in the list has index <code>i+1</code> in the results
+     * @return the outcome of each launch, or <code>null</code> if the driver cannot launch these instances together
+     * @throws CloudException an error occurred with the cloud provider before any instances were launched
+     * @throws InternalException an error occurred within Dasein Cloud before any instances were launched
+     */
+    protected @Nullable Iterable<VMLaunchResult> launchBatch( @Nonnull VMLaunchOptions withLaunchOptions, @Nullable MachineImage image, @Nonnull List<VMLaunchOptions> instances ) throws CloudException, InternalException {
+        return null;
+    }
+
+    /**
+     * Launches one of several virtual machines being launched in parallel from the same machine image. The default
+     * calls {@link #launch(VMLaunchOptions)}; drivers whose launches look up the machine image should override this
+     * method to use the image looked up once for all instances instead.
+     * @param withLaunchOptions the options for this instance
+     * @param image the machine image being launched, or <code>null</code> if it could not be looked up
+     * @return the launched virtual machine
+     * @throws CloudException an error occurred with the cloud provider launching the virtual machine
+     * @throws InternalException an error occurred within Dasein Cloud launching the virtual machine
+     */
+    protected @Nonnull VirtualMachine launch( @Nonnull VMLaunchOptions withLaunchOptions, @Nullable MachineImage image ) throws CloudException, InternalException {
+        return launch(withLaunchOptions);
+    }
+
+    private void submitLaunch( @Nonnull ExecutorCompletionService<VMLaunchResult> completion, final int index, final @Nonnull VMLaunchOptions options, final @Nullable MachineImage image, final @Nonnull Semaphore permits ) {
+        try {
+            completion.submit(new Callable<VMLaunchResult>() {
+                @Override
+                public VMLaunchResult call() {
+                    try {
+                        return VMLaunchResult.getSuccess(index, launch(options, image).getProviderVirtualMachineId());
+                    }
+                    catch( Exception e ) {
+                        return VMLaunchResult.getFailure(index, e);
+                    }
+                    finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        catch( RuntimeException e ) {
+            permits.release();
+            throw e;
+        }
     }
 
     @Override
@@ -572,16 +863,13 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
      *          the source iterable
      */
     private void mergeProductLists(List<VirtualMachineProduct> to, Iterable<VirtualMachineProduct> from) {
-        List<VirtualMachineProduct> copy = new ArrayList<VirtualMachineProduct>(to);
+        Set<String> ids = new HashSet<String>();
+
+        for( VirtualMachineProduct productTo : to ) {
+            ids.add(productTo.getProviderProductId().toLowerCase());
+        }
         for( VirtualMachineProduct productFrom : from ) {
-            boolean found = false;
-            for( VirtualMachineProduct productTo : copy ) {
-                if( productTo.getProviderProductId().equalsIgnoreCase(productFrom.getProviderProductId()) ) {
-                    found = true;
-                    break;
-                }
-            }
-            if( !found ) {
+            if( ids.add(productFrom.getProviderProductId().toLowerCase()) ) {
                 to.add(productFrom);
             }
         }
@@ -596,131 +884,17 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
     public @Nonnull Iterable<VirtualMachineProduct> listProducts( @Nullable VirtualMachineProductFilterOptions options, @Nullable Architecture architecture ) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.listProducts");
         try {
-            String cacheName = "productsALL";
-            if( architecture != null ) {
-                cacheName = "products" + architecture.name();
-            }
-            Cache<VirtualMachineProduct> cache = Cache.getInstance(getProvider(), cacheName, VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-            Iterable<VirtualMachineProduct> products = cache.get(getContext());
+            List<VirtualMachineProduct> products = getProductCatalog().getProducts(architecture, getContext().getRegionId());
 
-            if( products != null ) {
+            if( options == null ) {
                 return products;
             }
             List<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
 
-            try {
-                String resource = getVMProductsResource();
-                InputStream input = AbstractVMSupport.class.getResourceAsStream(resource);
-
-                if( input == null ) {
-                    input = AbstractVMSupport.class.getResourceAsStream("/org/dasein/cloud/std/vmproducts.json");
-                }
-                if( input == null ) {
-                    return Collections.emptyList();
-                }
-                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-                StringBuilder json = new StringBuilder();
-                String line;
-
-                while( ( line = reader.readLine() ) != null ) {
-                    json.append(line);
-                    json.append("\n");
-                }
-                JSONArray arr = new JSONArray(json.toString());
-                JSONObject toCache = null;
-
-                for( int i = 0; i < arr.length(); i++ ) {
-                    JSONObject productSet = arr.getJSONObject(i);
-                    String cloud, provider;
-
-                    if( productSet.has("cloud") ) {
-                        cloud = productSet.getString("cloud");
-                    }
-                    else {
-                        continue;
-                    }
-                    if( productSet.has("provider") ) {
-                        provider = productSet.getString("provider");
-                    }
-                    else {
-                        continue;
-                    }
-                    if( !productSet.has("products") ) {
-                        continue;
-                    }
-                    if( toCache == null || ( provider.equals("default") && cloud.equals("default") ) ) {
-                        toCache = productSet;
-                    }
-                    if( provider.equalsIgnoreCase(getProvider().getProviderName()) && cloud.equalsIgnoreCase(getProvider().getCloudName()) ) {
-                        toCache = productSet;
-                        break;
-                    }
-                }
-                if( toCache == null ) {
-                    return Collections.emptyList();
+            for( VirtualMachineProduct prd : products ) {
+                if( options.matches(prd) ) {
+                    list.add(prd);
                 }
-                JSONArray plist = toCache.getJSONArray("products");
-
-                for( int i = 0; i < plist.length(); i++ ) {
-                    JSONObject product = plist.getJSONObject(i);
-                    boolean supported = false;
-
-                    // If architecture is specified, check if product matches
-                    if( architecture != null && product.has("architectures") ) {
-                        JSONArray architectures = product.getJSONArray("architectures");
-
-                        for( int j = 0; j < architectures.length(); j++ ) {
-                            String a = architectures.getString(j);
-
-                            if( architecture.name().equals(a) ) {
-                                supported = true;
-                                break;
-                            }
-                        }
-                        if( !supported ) {
-                            continue;
-                        }
-                    }
-                    else {
-                        // No architecture specified, flip the flag - all architectures allowed
-                        supported = true;
-                    }
-
-                    if( product.has("excludesRegions") ) {
-                        JSONArray regions = product.getJSONArray("excludesRegions");
-
-                        for( int j = 0; j < regions.length(); j++ ) {
-                            String r = regions.getString(j);
-
-                            if( r.equals(getContext().getRegionId()) ) {
-                                supported = false;
-                                break;
-                            }
-                        }
-                    }
-                    if( !supported ) {
-                        continue;
-                    }
-                    VirtualMachineProduct prd = toProduct(product);
-
-                    if( prd != null ) {
-                        if( options != null) {
-                            // Filter supplied, add matches only.
-                            if( options.matches(prd) ) {
-                                list.add(prd);
-                            }
-                        }
-                        else {
-                            // No filter supplied, add all survived.
-                            list.add(prd);
-                        }
-                    }
-                }
-                cache.put(getContext(), list);
-            } catch( IOException e ) {
-                throw new InternalException(e);
-            } catch( JSONException e ) {
-                throw new InternalException(e);
             }
             return list;
         } finally {
@@ -728,6 +902,31 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
         }
     }
 
+    private @Nonnull VMProductCatalog getProductCatalog() throws InternalException, CloudException {
+        return VMProductCatalog.getInstance(getVMProductsResource(), getProvider().getProviderName(), getProvider().getCloudName());
+    }
+
+    /**
+     * Indicates whether the products for this implementation come from the vmproducts resource, in which case they can
+     * be looked up by ID directly in the product catalog.
+     * @return true if {@link #listProducts(VirtualMachineProductFilterOptions, Architecture)} has not been over-ridden
+     */
+    private boolean isProductCatalogInUse() {
+        Class<?> cls = getClass();
+        Boolean inUse = catalogImplementations.get(cls);
+
+        if( inUse == null ) {
+            try {
+                inUse = AbstractVMSupport.class.equals(cls.getMethod("listProducts", VirtualMachineProductFilterOptions.class, Architecture.class).getDeclaringClass());
+            }
+            catch( NoSuchMethodException e ) {
+                inUse = false;
+            }
+            catalogImplementations.put(cls, inUse);
+        }
+        return inUse;
+    }
+
     @Override
     public Iterable<SpotPriceHistory> listSpotPriceHistories( SpotPriceHistoryFilterOptions options ) throws CloudException, InternalException {
         throw new OperationNotSupportedException("Spot Instances are not supported for " + getProvider().getCloudName());
@@ -756,7 +955,7 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
     public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
         List<ResourceStatus> status = new ArrayList<ResourceStatus>();
 
-        for( VirtualMachine vm : listVirtualMachines() ) {
+        for( VirtualMachine vm : listVirtualMachines(null) ) {
             status.add(new ResourceStatus(vm.getProviderVirtualMachineId(), vm.getCurrentState()));
         }
         return status;
@@ -769,16 +968,24 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
 
     @Override
     public @Nonnull Iterable<VirtualMachine> listVirtualMachines( @Nullable VMFilterOptions options ) throws InternalException, CloudException {
-        if( options == null ) {
+        VirtualMachineIndex index = getVirtualMachineIndex();
+
+        if( options == null && index == null ) {
             return listVirtualMachines();
         }
+        long generation = (index == null ? 0L : index.getGeneration());
+        List<VirtualMachine> all = new ArrayList<VirtualMachine>();
         List<VirtualMachine> vms = new ArrayList<VirtualMachine>();
 
         for( VirtualMachine vm : listVirtualMachines() ) {
-            if( options.matches(vm) ) {
+            all.add(vm);
+            if( options == null || options.matches(vm) ) {
                 vms.add(vm);
             }
         }
+        if( index != null ) {
+            index.update(all, generation, getVirtualMachineIndexTimeout());
+        }
         return vms;
     }
 
@@ -795,21 +1002,17 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
             throw new CloudException("No such virtual machine: " + vmId);
         }
         stop(vmId);
-        long timeout = System.currentTimeMillis() + ( CalendarWrapper.MINUTE * 5L );
-
-        while( timeout > System.currentTimeMillis() ) {
-            try {
-                vm = getVirtualMachine(vmId);
-            } catch( Throwable ignore ) {
-            }
-            if( vm == null ) {
-                return;
-            }
-            if( vm.getCurrentState().equals(VmState.STOPPED) ) {
+        try {
+            if( VmState.STOPPED.equals(waitForState(vmId, CalendarWrapper.MINUTE * 5L, VmState.STOPPED)) ) {
                 start(vmId);
-                return;
             }
         }
+        catch( TimeoutException ignore ) {
+            // never stopped, so there is nothing to start
+        }
+        finally {
+            invalidateVirtualMachine(vmId);
+        }
     }
 
     @Override
@@ -825,26 +1028,50 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
     @Override
     public final void stop( @Nonnull String vmId ) throws InternalException, CloudException {
         stop(vmId, false);
+        invalidateVirtualMachine(vmId);
+        try {
+            waitForState(vmId, CalendarWrapper.MINUTE * 5L, VmState.TERMINATED, VmState.STOPPED);
+            return;
+        }
+        catch( TimeoutException ignore ) {
+            // fall through to force the stop
+        }
+        stop(vmId, true);
+        invalidateVirtualMachine(vmId);
+    }
 
-        long timeout = System.currentTimeMillis() + ( CalendarWrapper.MINUTE * 5L );
-
-        while( timeout > System.currentTimeMillis() ) {
-            try {
-                Thread.sleep(10000L);
-            } catch( InterruptedException ignore ) {
-            }
-            try {
-                VirtualMachine vm = getVirtualMachine(vmId);
+    /**
+     * Waits for a virtual machine to reach one of the target states. Waits for all virtual machines in the current
+     * region are served by a shared {@link VmStateWatcher}, so callers waiting on many virtual machines at once do not
+     * each poll the cloud.
+     * @param vmId the virtual machine to wait for
+     * @param timeout the maximum time in milliseconds to wait
+     * @param targets the states being waited for
+     * @return the state reached, or <code>null</code> if the virtual machine no longer exists or the wait was interrupted
+     * @throws TimeoutException the virtual machine did not reach a target state in time
+     * @throws CloudException an error occurred with the cloud provider establishing the context
+     */
+    protected @Nullable VmState waitForState( @Nonnull String vmId, @Nonnegative long timeout, @Nonnull VmState ... targets ) throws TimeoutException, CloudException {
+        Future<VmState> state = VmStateWatcher.getInstance(getContext()).watch(this, vmId, targets);
 
-                if( vm == null || VmState.TERMINATED.equals(vm.getCurrentState()) || VmState.STOPPED.equals(vm.getCurrentState()) ) {
-                    return;
-                }
-            } catch( Throwable ignore ) {
-                // ignore
-            }
+        try {
+            return state.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch( TimeoutException e ) {
+            state.cancel(false);
+            throw e;
+        }
+        catch( InterruptedException e ) {
+            state.cancel(false);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch( CancellationException e ) {
+            return null;
+        }
+        catch( ExecutionException e ) {
+            return null;
         }
-
-        stop(vmId, true);
     }
 
     @Override
@@ -905,7 +1132,12 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
 
     @Override
     public void terminate( @Nonnull String vmId ) throws CloudException, InternalException {
-        terminate(vmId, null);
+        try {
+            terminate(vmId, null);
+        }
+        finally {
+            invalidateVirtualMachine(vmId);
+        }
     }
 
     @Override
@@ -922,6 +1154,7 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
     public void updateTags( @Nonnull String[] vmIds, @Nonnull Tag... tags ) throws CloudException, InternalException {
         for( String id : vmIds ) {
             updateTags(id, tags);
+            invalidateVirtualMachine(id);
         }
     }
 
@@ -934,6 +1167,7 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
     public void removeTags( @Nonnull String[] vmIds, @Nonnull Tag... tags ) throws CloudException, InternalException {
         for( String id : vmIds ) {
             removeTags(id, tags);
+            invalidateVirtualMachine(id);
         }
     }
 
@@ -952,6 +1186,7 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
             }
 
             updateTags(id, tags);
+            invalidateVirtualMachine(id);
         }
     }
 
@@ -960,71 +1195,73 @@ public abstract class AbstractVMSupport<T extends CloudProvider> implements Virt
         return new String[0];
     }
 
-    private @Nullable VirtualMachineProduct toProduct( @Nonnull JSONObject json ) throws InternalException {
-        VirtualMachineProduct prd = new VirtualMachineProduct();
+    @Override
+    public @Nullable Iterable<VirtualMachineStatus> getVMStatus( @Nullable String... vmIds ) throws InternalException, CloudException {
+        VmStatusFilterOptions options = VmStatusFilterOptions.getInstance();
 
-        try {
-            if( json.has("id") ) {
-                prd.setProviderProductId(json.getString("id"));
-            }
-            else {
-                return null;
-            }
-            if( json.has("name") ) {
-                prd.setName(json.getString("name"));
-            }
-            else {
-                prd.setName(prd.getProviderProductId());
-            }
-            if( json.has("description") ) {
-                prd.setDescription(json.getString("description"));
-            }
-            else {
-                prd.setDescription(prd.getName());
-            }
-            if( json.has("cpuCount") ) {
-                prd.setCpuCount(json.getInt("cpuCount"));
-            }
-            else {
-                prd.setCpuCount(1);
-            }
-            if( json.has("rootVolumeSizeInGb") ) {
-                prd.setRootVolumeSize(new Storage<Gigabyte>(json.getInt("rootVolumeSizeInGb"), Storage.GIGABYTE));
-            }
-            else {
-                prd.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-            }
-            if( json.has("ramSizeInMb") ) {
-                prd.setRamSize(new Storage<Megabyte>(json.getInt("ramSizeInMb"), Storage.MEGABYTE));
-            }
-            else {
-                prd.setRamSize(new Storage<Megabyte>(512, Storage.MEGABYTE));
+        if( vmIds != null && vmIds.length > 0 ) {
+            options.withVmIds(vmIds);
+        }
+        return getVMStatus(options);
+    }
+
+    @Override
+    public @Nullable Iterable<VirtualMachineStatus> getVMStatus( @Nullable VmStatusFilterOptions filterOptions ) throws InternalException, CloudException {
+        Set<String> ids = null;
+        Set<VmStatus> statuses = null;
+
+        if( filterOptions != null && filterOptions.getVmIds() != null && filterOptions.getVmIds().length > 0 ) {
+            ids = new HashSet<String>(Arrays.asList(filterOptions.getVmIds()));
+        }
+        if( filterOptions != null && filterOptions.getVmStatuses() != null && !filterOptions.getVmStatuses().isEmpty() ) {
+            statuses = filterOptions.getVmStatuses();
+        }
+        // matching any criterion only differs from matching all of them when both criteria are set
+        boolean matchesAny = (ids != null && statuses != null && filterOptions.isMatchesAny());
+        List<VirtualMachineStatus> list = new ArrayList<VirtualMachineStatus>();
+
+        for( VirtualMachine vm : listVirtualMachines(null) ) {
+            boolean idMatches = (ids == null || ids.contains(vm.getProviderVirtualMachineId()));
+
+            if( !idMatches && !matchesAny ) {
+                continue;
             }
-            if( json.has("standardHourlyRates") ) {
-                JSONArray rates = json.getJSONArray("standardHourlyRates");
+            VirtualMachineStatus status = new VirtualMachineStatus();
 
-                for( int i = 0; i < rates.length(); i++ ) {
-                    JSONObject rate = rates.getJSONObject(i);
+            status.setProviderVirtualMachineId(vm.getProviderVirtualMachineId());
+            status.setProviderVmStatus(vm.getProviderVmStatus() == null ? VmStatus.STATUS_UNAVAILABLE : vm.getProviderVmStatus());
+            status.setProviderHostStatus(vm.getProviderHostStatus() == null ? VmStatus.STATUS_UNAVAILABLE : vm.getProviderHostStatus());
 
-                    if( rate.has("rate") ) {
-                        prd.setStandardHourlyRate(( float ) rate.getDouble("rate"));
-                    }
-                }
+            boolean statusMatches = (statuses == null || statuses.contains(status.getProviderVmStatus()) || statuses.contains(status.getProviderHostStatus()));
+
+            if( matchesAny ? (idMatches || statusMatches) : statusMatches ) {
+                list.add(status);
             }
-        } catch( JSONException e ) {
-            throw new InternalException(e);
         }
-        return prd;
+        return list;
     }
 
-    @Override
-    public @Nullable Iterable<VirtualMachineStatus> getVMStatus( @Nullable String... vmIds ) throws InternalException, CloudException {
-        throw new OperationNotSupportedException("Virtual Machine Status is not currently implemented for " + getProvider().getCloudName());
-    }
-
-    @Override
-    public @Nullable Iterable<VirtualMachineStatus> getVMStatus( @Nullable VmStatusFilterOptions filterOptions ) throws InternalException, CloudException {
-        throw new OperationNotSupportedException("Virtual Machine Status is not currently implemented for " + getProvider().getCloudName());
+    /**
+     * Lists the virtual machines in the current region whose state has changed since an earlier call to this method.
+     * The changes are computed from {@link #listVirtualMachineStatus()}, so implementations that provide a cheap
+     * status listing get cheap change tracking as well. Only the most recent tokens for a region of an account are
+     * remembered, 4 by default (see the system property <code>dasein.vmStateTracker.tokens</code>), and they are
+     * shared by every caller in that region. An unknown, evicted or <code>null</code> token results in a full listing,
+     * so more callers than that polling one region at once will push out each other's tokens and get full listings
+     * every time unless the limit is raised.
+     * @param sinceToken the token from the previous changes, or <code>null</code> for a full listing
+     * @return the virtual machines whose state has changed or which have gone away, with a token for the next call
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred with the cloud provider
+     */
+    public @Nonnull VirtualMachineStatusChanges listVirtualMachineStatusChanges( @Nullable String sinceToken ) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.listVirtualMachineStatusChanges");
+        try {
+            return VmStateTracker.getInstance(getContext()).getChanges(sinceToken, listVirtualMachineStatus());
+        }
+        finally {
+            APITrace.end();
+        }
     }
 
 }
@@ -19,11 +19,12 @@
 
 package org.dasein.cloud.compute;
 
-import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.util.TagMatcher;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * Options for filtering machine images when querying the cloud provider. <b>Note:</b> How searching handles account numbers is
@@ -32,6 +33,7 @@ import java.util.Map;
  * @author Cameron Stokes
  * @version 2013.04 initial version
  * @version 2013.04 renamed to ImageFilterOptions to be consistent with multi-image type naming
+ * @version 2014.11 compiled regex and tag criteria
  * @since 2013.04
  */
 public class ImageFilterOptions {
@@ -120,6 +122,9 @@ public class ImageFilterOptions {
     private Map<String,String> tags;
     private boolean            withAllRegions = false;
 
+    private volatile Pattern    pattern;
+    private volatile TagMatcher tagMatcher;
+
     private ImageFilterOptions(@Nullable ImageClass cls, boolean matchesAny) {
         imageClass = cls;
         this.matchesAny = matchesAny;
@@ -219,7 +224,8 @@ public class ImageFilterOptions {
     }
 
     /**
-     * Matches an image against the criteria in this set of filter options.
+     * Matches an image against the criteria in this set of filter options. The regular expression and tag criteria
+     * are compiled on first use and reused until they are changed, and the cheapest criteria are checked first.
      * @param image the image to test
      * @return true if the image matches all criteria
      */
@@ -264,18 +270,29 @@ public class ImageFilterOptions {
                 return true;
             }
         }
+        if( tags != null && !tags.isEmpty() ) {
+            if( !getTagMatcher().matches(image.getTags(), image.getName(), image.getDescription()) ) {
+                if( !matchesAny ) {
+                    return false;
+                }
+            }
+            else if( matchesAny ) {
+                return true;
+            }
+        }
         if( regex != null ) {
-            boolean matches = (image.getName().matches(regex) || image.getDescription().matches(regex));
+            Pattern p = getPattern();
+            boolean matches = (p.matcher(image.getName()).matches() || p.matcher(image.getDescription()).matches());
 
             if (!matches) {
-                matches = image.getProviderMachineImageId().matches(regex);
+                matches = p.matcher(image.getProviderMachineImageId()).matches();
             }
 
             if( !matches ) {
                 for( Map.Entry<String,String> tag : image.getTags().entrySet() ) {
                     String value = tag.getValue();
 
-                    if( value != null && value.matches(regex) ) {
+                    if( value != null && p.matcher(value).matches() ) {
                         matches = true;
                         break;
                     }
@@ -288,19 +305,29 @@ public class ImageFilterOptions {
                 return true;
             }
         }
-        if( tags != null && !tags.isEmpty() ) {
-            if( !CloudProvider.matchesTags(image.getTags(), image.getName(), image.getDescription(), tags) ) {
-                if( !matchesAny ) {
-                    return false;
-                }
-            }
-            else if( matchesAny ) {
-                return true;
-            }
-        }
         return !matchesAny;
     }
 
+    private @Nonnull Pattern getPattern() {
+        Pattern p = pattern;
+
+        if( p == null ) {
+            p = Pattern.compile(regex);
+            pattern = p;
+        }
+        return p;
+    }
+
+    private @Nonnull TagMatcher getTagMatcher() {
+        TagMatcher m = tagMatcher;
+
+        if( m == null ) {
+            m = new TagMatcher(tags);
+            tagMatcher = m;
+        }
+        return m;
+    }
+
     /**
      * Indicates that the criteria associated with this filter must match all set criteria.
      * @return this
@@ -327,6 +354,7 @@ public class ImageFilterOptions {
      */
     public @Nonnull ImageFilterOptions matchingRegex(@Nonnull String regex) {
         this.regex = regex;
+        this.pattern = null;
         return this;
     }
 
@@ -382,6 +410,7 @@ public class ImageFilterOptions {
      */
     public @Nonnull ImageFilterOptions withTags(@Nonnull Map<String, String> tags) {
         this.tags = tags;
+        this.tagMatcher = null;
         return this;
     }
 
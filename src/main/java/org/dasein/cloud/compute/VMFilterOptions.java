@@ -19,12 +19,13 @@
 
 package org.dasein.cloud.compute;
 
-import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.util.TagMatcher;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.EnumSet;
 import java.util.Map;
+import java.util.regex.Pattern;
 import java.util.Set;
 
 /**
@@ -35,6 +36,7 @@ import java.util.Set;
  *
  * @author Cameron Stokes
  * @version 2013.04 initial version
+ * @version 2014.11 compiled regex and tag criteria
  * @since 2013.04
  */
 public class VMFilterOptions {
@@ -46,6 +48,9 @@ public class VMFilterOptions {
     private VirtualMachineLifecycle[] lifecycles;
     private String                    spotRequestId;
 
+    private volatile Pattern          pattern;
+    private volatile TagMatcher       tagMatcher;
+
     /**
      * Constructs an empty set of filtering options that will force match against any VM by default.
      *
@@ -159,23 +164,20 @@ public class VMFilterOptions {
     }
 
     /**
-     * Matches a virtual machine against the criteria in this set of filter options.
+     * Matches a virtual machine against the criteria in this set of filter options. The regular expression and tag
+     * criteria are compiled on first use and reused until they are changed, and the cheapest criteria are checked
+     * first.
      *
      * @param vm the virtual machine to test
      * @return true if the VM matches all criteria
      */
     public boolean matches( @Nonnull VirtualMachine vm ) {
-        if( regex != null ) {
-            boolean matches = ( vm.getName().matches(regex) || vm.getDescription().matches(regex) );
-
-            if( !matches ) {
-                for( Map.Entry<String, String> tag : vm.getTags().entrySet() ) {
-                    String value = tag.getValue();
-
-                    if( value != null && value.matches(regex) ) {
-                        matches = true;
-                        break;
-                    }
+        if( lifecycles != null && lifecycles.length > 0 ) {
+            boolean matches = false;
+            for( VirtualMachineLifecycle lc : lifecycles ) {
+                if( lc.equals(vm.getLifecycle()) ) {
+                    matches = true;
+                    break;
                 }
             }
             if( !matches && !matchesAny ) {
@@ -185,8 +187,17 @@ public class VMFilterOptions {
                 return true;
             }
         }
+        if( spotRequestId != null ) {
+            boolean matches = spotRequestId.equals(vm.getSpotRequestId());
+            if( !matches && !matchesAny ) {
+                return false;
+            }
+            else if( matches && matchesAny ) {
+                return true;
+            }
+        }
         if( tags != null && !tags.isEmpty() ) {
-            if( !CloudProvider.matchesTags(vm.getTags(), vm.getName(), vm.getDescription(), tags) ) {
+            if( !getTagMatcher().matches(vm.getTags(), vm.getName(), vm.getDescription()) ) {
                 if( !matchesAny ) {
                     return false;
                 }
@@ -195,12 +206,18 @@ public class VMFilterOptions {
                 return true;
             }
         }
-        if( lifecycles != null && lifecycles.length > 0 ) {
-            boolean matches = false;
-            for( VirtualMachineLifecycle lc : lifecycles ) {
-                if( lc.equals(vm.getLifecycle()) ) {
-                    matches = true;
-                    break;
+        if( regex != null ) {
+            Pattern p = getPattern();
+            boolean matches = ( p.matcher(vm.getName()).matches() || p.matcher(vm.getDescription()).matches() );
+
+            if( !matches ) {
+                for( Map.Entry<String, String> tag : vm.getTags().entrySet() ) {
+                    String value = tag.getValue();
+
+                    if( value != null && p.matcher(value).matches() ) {
+                        matches = true;
+                        break;
+                    }
                 }
             }
             if( !matches && !matchesAny ) {
@@ -210,18 +227,29 @@ public class VMFilterOptions {
                 return true;
             }
         }
-        if( spotRequestId != null ) {
-            boolean matches = spotRequestId.equals(vm.getSpotRequestId());
-            if( !matches && !matchesAny ) {
-                return false;
-            }
-            else if( matches && matchesAny ) {
-                return true;
-            }
-        }
         return !matchesAny;
     }
 
+    private @Nonnull Pattern getPattern() {
+        Pattern p = pattern;
+
+        if( p == null ) {
+            p = Pattern.compile(regex);
+            pattern = p;
+        }
+        return p;
+    }
+
+    private @Nonnull TagMatcher getTagMatcher() {
+        TagMatcher m = tagMatcher;
+
+        if( m == null ) {
+            m = new TagMatcher(tags);
+            tagMatcher = m;
+        }
+        return m;
+    }
+
     /**
      * Indicates that the criteria associated with this filter must match all set criteria.
      *
@@ -251,6 +279,7 @@ public class VMFilterOptions {
      */
     public @Nonnull VMFilterOptions matchingRegex( @Nonnull String regex ) {
         this.regex = regex;
+        this.pattern = null;
         return this;
     }
 
@@ -262,6 +291,7 @@ public class VMFilterOptions {
      */
     public @Nonnull VMFilterOptions withTags( @Nonnull Map<String, String> tags ) {
         this.tags = tags;
+        this.tagMatcher = null;
         return this;
     }
 
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The outcome of launching one of several virtual machines requested together through
+ * {@link AbstractVMSupport#launchManyWithResults(VMLaunchOptions, int)}. Each result identifies the instance by its
+ * 1-based index, which is the number used to derive its host and friendly names, and holds either the ID of the
+ * launched virtual machine or the error that prevented it from launching.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class VMLaunchResult {
+    /**
+     * Constructs the result of a failed launch.
+     * @param index the 1-based index of the instance
+     * @param error the reason the instance failed to launch
+     * @return the result
+     */
+    static public @Nonnull VMLaunchResult getFailure(@Nonnegative int index, @Nonnull Exception error) {
+        return new VMLaunchResult(index, null, error);
+    }
+
+    /**
+     * Constructs the result of a successful launch.
+     * @param index the 1-based index of the instance
+     * @param providerVirtualMachineId the ID of the launched virtual machine
+     * @return the result
+     */
+    static public @Nonnull VMLaunchResult getSuccess(@Nonnegative int index, @Nonnull String providerVirtualMachineId) {
+        return new VMLaunchResult(index, providerVirtualMachineId, null);
+    }
+
+    private final Exception error;
+    private final int       index;
+    private final String    providerVirtualMachineId;
+
+    private VMLaunchResult(int index, @Nullable String providerVirtualMachineId, @Nullable Exception error) {
+        this.index = index;
+        this.providerVirtualMachineId = providerVirtualMachineId;
+        this.error = error;
+    }
+
+    /**
+     * @return the reason the instance failed to launch, <code>null</code> if it launched
+     */
+    public @Nullable Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return the 1-based index of the instance among those requested together
+     */
+    public @Nonnegative int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the ID of the launched virtual machine, <code>null</code> if it failed to launch
+     */
+    public @Nullable String getProviderVirtualMachineId() {
+        return providerVirtualMachineId;
+    }
+
+    /**
+     * @return true if the instance launched
+     */
+    public boolean isSuccessful() {
+        return (error == null);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "#" + index + " " + (error == null ? providerVirtualMachineId : "failed: " + error.getMessage());
+    }
+}
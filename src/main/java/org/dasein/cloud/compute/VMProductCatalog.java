@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.dasein.cloud.InternalException;
+import org.dasein.util.uom.storage.Gigabyte;
+import org.dasein.util.uom.storage.Megabyte;
+import org.dasein.util.uom.storage.Storage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The virtual machine products defined for a provider and cloud in a vmproducts JSON resource (see
+ * {@link AbstractVMSupport#getVMProductsResource()}). Each resource is read and parsed once per provider and cloud and
+ * the resulting catalog is shared by all {@link AbstractVMSupport} instances, whatever their context. Products are
+ * indexed by ID, and the products for an architecture in a region are computed once and reused. The products in a
+ * catalog are shared and must not be modified.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+final class VMProductCatalog {
+    static private final String DEFAULT_RESOURCE = "/org/dasein/cloud/std/vmproducts.json";
+    static private final String ALL              = "*";
+
+    static private final ConcurrentHashMap<String,VMProductCatalog> catalogs = new ConcurrentHashMap<String, VMProductCatalog>();
+
+    static private final class Entry {
+        final VirtualMachineProduct product;
+        final Set<String>           architectures;
+        final Set<String>           excludedRegions;
+
+        Entry(@Nonnull VirtualMachineProduct product, @Nullable Set<String> architectures, @Nonnull Set<String> excludedRegions) {
+            this.product = product;
+            this.architectures = architectures;
+            this.excludedRegions = excludedRegions;
+        }
+
+        boolean isAvailable(@Nullable String architecture, @Nullable String regionId) {
+            if( architecture != null && architectures != null && !architectures.contains(architecture) ) {
+                return false;
+            }
+            return (regionId == null || !excludedRegions.contains(regionId));
+        }
+    }
+
+    /**
+     * Provides the catalog for the specified provider and cloud, reading it from the specified resource the first time
+     * it is requested.
+     * @param resource the location of the vmproducts JSON resource, falling back to the products bundled with
+     *                 dasein-cloud-core if there is no such resource
+     * @param providerName the name of the provider whose products are wanted
+     * @param cloudName the name of the cloud whose products are wanted
+     * @return the catalog
+     * @throws InternalException the resource could not be read or parsed
+     */
+    static @Nonnull VMProductCatalog getInstance(@Nonnull String resource, @Nonnull String providerName, @Nonnull String cloudName) throws InternalException {
+        String key = resource + "|" + providerName.toLowerCase() + "|" + cloudName.toLowerCase();
+        VMProductCatalog catalog = catalogs.get(key);
+
+        if( catalog == null ) {
+            catalog = new VMProductCatalog(load(resource, providerName, cloudName));
+            VMProductCatalog c = catalogs.putIfAbsent(key, catalog);
+
+            if( c != null ) {
+                catalog = c;
+            }
+        }
+        return catalog;
+    }
+
+    static private @Nonnull List<Entry> load(@Nonnull String resource, @Nonnull String providerName, @Nonnull String cloudName) throws InternalException {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        try {
+            InputStream input = AbstractVMSupport.class.getResourceAsStream(resource);
+
+            if( input == null ) {
+                input = AbstractVMSupport.class.getResourceAsStream(DEFAULT_RESOURCE);
+            }
+            if( input == null ) {
+                return entries;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            StringBuilder json = new StringBuilder();
+            String line;
+
+            try {
+                while( ( line = reader.readLine() ) != null ) {
+                    json.append(line);
+                    json.append("\n");
+                }
+            }
+            finally {
+                reader.close();
+            }
+            JSONArray arr = new JSONArray(json.toString());
+            JSONObject toCache = null;
+
+            for( int i = 0; i < arr.length(); i++ ) {
+                JSONObject productSet = arr.getJSONObject(i);
+                String cloud, provider;
+
+                if( productSet.has("cloud") ) {
+                    cloud = productSet.getString("cloud");
+                }
+                else {
+                    continue;
+                }
+                if( productSet.has("provider") ) {
+                    provider = productSet.getString("provider");
+                }
+                else {
+                    continue;
+                }
+                if( !productSet.has("products") ) {
+                    continue;
+                }
+                if( toCache == null || ( provider.equals("default") && cloud.equals("default") ) ) {
+                    toCache = productSet;
+                }
+                if( provider.equalsIgnoreCase(providerName) && cloud.equalsIgnoreCase(cloudName) ) {
+                    toCache = productSet;
+                    break;
+                }
+            }
+            if( toCache == null ) {
+                return entries;
+            }
+            JSONArray plist = toCache.getJSONArray("products");
+
+            for( int i = 0; i < plist.length(); i++ ) {
+                JSONObject product = plist.getJSONObject(i);
+                VirtualMachineProduct prd = toProduct(product);
+
+                if( prd == null ) {
+                    continue;
+                }
+                Set<String> architectures = null;
+                Set<String> excludedRegions = new HashSet<String>();
+
+                if( product.has("architectures") ) {
+                    JSONArray list = product.getJSONArray("architectures");
+
+                    architectures = new HashSet<String>();
+                    for( int j = 0; j < list.length(); j++ ) {
+                        architectures.add(list.getString(j));
+                    }
+                }
+                if( product.has("excludesRegions") ) {
+                    JSONArray list = product.getJSONArray("excludesRegions");
+
+                    for( int j = 0; j < list.length(); j++ ) {
+                        excludedRegions.add(list.getString(j));
+                    }
+                }
+                entries.add(new Entry(prd, architectures, excludedRegions));
+            }
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        catch( JSONException e ) {
+            throw new InternalException(e);
+        }
+        return entries;
+    }
+
+    static private @Nullable VirtualMachineProduct toProduct( @Nonnull JSONObject json ) throws InternalException {
+        VirtualMachineProduct prd = new VirtualMachineProduct();
+
+        try {
+            if( json.has("id") ) {
+                prd.setProviderProductId(json.getString("id"));
+            }
+            else {
+                return null;
+            }
+            if( json.has("name") ) {
+                prd.setName(json.getString("name"));
+            }
+            else {
+                prd.setName(prd.getProviderProductId());
+            }
+            if( json.has("description") ) {
+                prd.setDescription(json.getString("description"));
+            }
+            else {
+                prd.setDescription(prd.getName());
+            }
+            if( json.has("cpuCount") ) {
+                prd.setCpuCount(json.getInt("cpuCount"));
+            }
+            else {
+                prd.setCpuCount(1);
+            }
+            if( json.has("rootVolumeSizeInGb") ) {
+                prd.setRootVolumeSize(new Storage<Gigabyte>(json.getInt("rootVolumeSizeInGb"), Storage.GIGABYTE));
+            }
+            else {
+                prd.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+            }
+            if( json.has("ramSizeInMb") ) {
+                prd.setRamSize(new Storage<Megabyte>(json.getInt("ramSizeInMb"), Storage.MEGABYTE));
+            }
+            else {
+                prd.setRamSize(new Storage<Megabyte>(512, Storage.MEGABYTE));
+            }
+            if( json.has("standardHourlyRates") ) {
+                JSONArray rates = json.getJSONArray("standardHourlyRates");
+
+                for( int i = 0; i < rates.length(); i++ ) {
+                    JSONObject rate = rates.getJSONObject(i);
+
+                    if( rate.has("rate") ) {
+                        prd.setStandardHourlyRate(( float ) rate.getDouble("rate"));
+                    }
+                }
+            }
+        } catch( JSONException e ) {
+            throw new InternalException(e);
+        }
+        return prd;
+    }
+
+    private final Map<String,Entry>                                   byId;
+    private final List<Entry>                                         entries;
+    private final ConcurrentHashMap<String,List<VirtualMachineProduct>> views = new ConcurrentHashMap<String, List<VirtualMachineProduct>>();
+
+    private VMProductCatalog(@Nonnull List<Entry> entries) {
+        Map<String,Entry> index = new HashMap<String, Entry>();
+
+        for( Entry entry : entries ) {
+            String id = entry.product.getProviderProductId();
+
+            if( !index.containsKey(id) ) {
+                index.put(id, entry);
+            }
+        }
+        this.entries = entries;
+        this.byId = index;
+    }
+
+    /**
+     * Looks up a product by its ID.
+     * @param productId the ID of the product
+     * @param regionId the region in which the product is wanted
+     * @param architectures the architectures supported by the cloud, one of which the product must support
+     * @return the product, or <code>null</code> if there is no such product available in the region for any of the architectures
+     */
+    @Nullable VirtualMachineProduct getProduct(@Nonnull String productId, @Nullable String regionId, @Nonnull Iterable<Architecture> architectures) {
+        Entry entry = byId.get(productId);
+
+        if( entry == null ) {
+            return null;
+        }
+        for( Architecture architecture : architectures ) {
+            if( entry.isAvailable(architecture.name(), regionId) ) {
+                return entry.product;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the products available for an architecture in a region.
+     * @param architecture the architecture, or <code>null</code> for products of all architectures
+     * @param regionId the region, or <code>null</code> to ignore regional exclusions
+     * @return the products available in the order they are defined in the resource
+     */
+    @Nonnull List<VirtualMachineProduct> getProducts(@Nullable Architecture architecture, @Nullable String regionId) {
+        String a = (architecture == null ? null : architecture.name());
+        String key = (a == null ? ALL : a) + "/" + regionId;
+        List<VirtualMachineProduct> products = views.get(key);
+
+        if( products == null ) {
+            List<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
+
+            for( Entry entry : entries ) {
+                if( entry.isAvailable(a, regionId) ) {
+                    list.add(entry.product);
+                }
+            }
+            products = Collections.unmodifiableList(list);
+            views.putIfAbsent(key, products);
+        }
+        return products;
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A short-lived, in-memory index of the virtual machines in a region of a cloud account, built from the results of
+ * listing them. The index lets {@link AbstractVMSupport#getVirtualMachine(String)} find a virtual machine without
+ * listing the whole account again. Virtual machines that are not in the index are always looked up in the cloud, so
+ * newly launched virtual machines are never hidden by the index. Operations that change a virtual machine should
+ * {@link #invalidate(String)} it. The index is only used when the <code>vmIndexTimeout</code> context property is set
+ * (see {@link AbstractVMSupport#VM_INDEX_TIMEOUT}).
+ * <p>
+ * Listings that started before an invalidation are not used to rebuild the index, so that they cannot restore state
+ * which an operation has since changed. To do this, callers read {@link #getGeneration()} before listing and pass
+ * it to {@link #update(Iterable, long, long)}.
+ * </p>
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public final class VirtualMachineIndex {
+    static private final ConcurrentHashMap<String,VirtualMachineIndex> indexes = new ConcurrentHashMap<String, VirtualMachineIndex>();
+
+    /**
+     * Provides the index for the cloud account and region of the specified context.
+     * @param ctx the context whose virtual machines are indexed
+     * @return the index shared by all support instances in the context's region and account
+     */
+    static public @Nonnull VirtualMachineIndex getInstance(@Nonnull ProviderContext ctx) {
+        String key = ctx.getCloud().getEndpoint() + "/" + ctx.getAccountNumber() + "/" + ctx.getRegionId();
+        VirtualMachineIndex index = indexes.get(key);
+
+        if( index == null ) {
+            index = new VirtualMachineIndex();
+            VirtualMachineIndex i = indexes.putIfAbsent(key, index);
+
+            if( i != null ) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * A view of the index as of a single listing. Virtual machines invalidated since the listing are left out of the
+     * view without rebuilding it.
+     */
+    static public final class Snapshot {
+        private final Map<String,VirtualMachine>       byId;
+        private final Map<VmState,List<VirtualMachine>> byState;
+        private final Map<String,List<VirtualMachine>>  byTag;
+        private final Map<String,List<VirtualMachine>>  byVlan;
+        private final Set<String>                       invalidated = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final long                              expiration;
+
+        private Snapshot(@Nonnull Map<String,VirtualMachine> byId, long expiration) {
+            Map<VmState,List<VirtualMachine>> states = new HashMap<VmState, List<VirtualMachine>>();
+            Map<String,List<VirtualMachine>> tags = new HashMap<String, List<VirtualMachine>>();
+            Map<String,List<VirtualMachine>> vlans = new HashMap<String, List<VirtualMachine>>();
+
+            for( VirtualMachine vm : byId.values() ) {
+                if( vm.getCurrentState() != null ) {
+                    add(states, vm.getCurrentState(), vm);
+                }
+                for( String key : vm.getTags().keySet() ) {
+                    add(tags, key, vm);
+                }
+                if( vm.getProviderVlanId() != null ) {
+                    add(vlans, vm.getProviderVlanId(), vm);
+                }
+            }
+            this.byId = byId;
+            this.byState = states;
+            this.byTag = tags;
+            this.byVlan = vlans;
+            this.expiration = expiration;
+        }
+
+        static private <K> void add(@Nonnull Map<K,List<VirtualMachine>> index, @Nonnull K key, @Nonnull VirtualMachine vm) {
+            List<VirtualMachine> list = index.get(key);
+
+            if( list == null ) {
+                list = new ArrayList<VirtualMachine>();
+                index.put(key, list);
+            }
+            list.add(vm);
+        }
+
+        private @Nonnull Iterable<VirtualMachine> get(@Nonnull Map<?,List<VirtualMachine>> index, @Nonnull Object key) {
+            List<VirtualMachine> list = index.get(key);
+
+            if( list == null ) {
+                return Collections.emptyList();
+            }
+            return valid(list);
+        }
+
+        private @Nonnull Iterable<VirtualMachine> valid(@Nonnull Collection<VirtualMachine> vms) {
+            if( invalidated.isEmpty() ) {
+                return Collections.unmodifiableCollection(vms);
+            }
+            List<VirtualMachine> list = new ArrayList<VirtualMachine>(vms.size());
+
+            for( VirtualMachine vm : vms ) {
+                if( !invalidated.contains(vm.getProviderVirtualMachineId()) ) {
+                    list.add(vm);
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
+
+        /**
+         * @param vmId the ID of the virtual machine
+         * @return the indexed virtual machine, or <code>null</code> if it is not indexed and must be looked up in the cloud
+         */
+        public @Nullable VirtualMachine getVirtualMachine(@Nonnull String vmId) {
+            if( invalidated.contains(vmId) ) {
+                return null;
+            }
+            return byId.get(vmId);
+        }
+
+        /**
+         * @return all indexed virtual machines
+         */
+        public @Nonnull Iterable<VirtualMachine> listVirtualMachines() {
+            return valid(byId.values());
+        }
+
+        /**
+         * @param state the state of the virtual machines
+         * @return the indexed virtual machines that were in the specified state when listed
+         */
+        public @Nonnull Iterable<VirtualMachine> listVirtualMachines(@Nonnull VmState state) {
+            return get(byState, state);
+        }
+
+        /**
+         * @param tagKey the key of a tag
+         * @return the indexed virtual machines carrying a tag with the specified key
+         */
+        public @Nonnull Iterable<VirtualMachine> listVirtualMachinesWithTag(@Nonnull String tagKey) {
+            return get(byTag, tagKey);
+        }
+
+        /**
+         * @param vlanId the ID of a VLAN
+         * @return the indexed virtual machines in the specified VLAN
+         */
+        public @Nonnull Iterable<VirtualMachine> listVirtualMachinesInVlan(@Nonnull String vlanId) {
+            return get(byVlan, vlanId);
+        }
+    }
+
+    private final AtomicLong        generation = new AtomicLong(0L);
+    private volatile Snapshot       snapshot;
+
+    private VirtualMachineIndex() { }
+
+    /**
+     * @return the number of invalidations of this index so far
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return the current snapshot of the index, or <code>null</code> if there is none or it has expired
+     */
+    public @Nullable Snapshot getSnapshot() {
+        Snapshot s = snapshot;
+
+        if( s == null || s.expiration < System.currentTimeMillis() ) {
+            return null;
+        }
+        return s;
+    }
+
+    /**
+     * Rebuilds the index from a complete listing of the virtual machines in the region, unless the index has been
+     * invalidated since the listing began.
+     * @param vms the virtual machines listed
+     * @param listedGeneration the value of {@link #getGeneration()} before the listing began
+     * @param timeoutInMillis how long the new snapshot remains current
+     */
+    public void update(@Nonnull Iterable<VirtualMachine> vms, long listedGeneration, @Nonnegative long timeoutInMillis) {
+        Map<String,VirtualMachine> byId = new HashMap<String, VirtualMachine>();
+
+        for( VirtualMachine vm : vms ) {
+            if( vm.getProviderVirtualMachineId() != null ) {
+                byId.put(vm.getProviderVirtualMachineId(), vm);
+            }
+        }
+        Snapshot s = new Snapshot(byId, System.currentTimeMillis() + timeoutInMillis);
+
+        synchronized( generation ) {
+            if( generation.get() == listedGeneration ) {
+                snapshot = s;
+            }
+        }
+    }
+
+    /**
+     * Removes a virtual machine from the index so that it is next looked up in the cloud. The current snapshot is
+     * not rebuilt; the virtual machine is only marked as left out of it.
+     * @param vmId the ID of the virtual machine that has changed
+     */
+    public void invalidate(@Nonnull String vmId) {
+        synchronized( generation ) {
+            generation.incrementAndGet();
+            Snapshot s = snapshot;
+
+            if( s != null && s.byId.containsKey(vmId) ) {
+                s.invalidated.add(vmId);
+            }
+        }
+    }
+
+    /**
+     * Discards the whole index.
+     */
+    public void invalidate() {
+        synchronized( generation ) {
+            generation.incrementAndGet();
+            snapshot = null;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.dasein.cloud.ResourceStatus;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The virtual machines whose state has changed since an earlier call to
+ * {@link AbstractVMSupport#listVirtualMachineStatusChanges(String)}. Pass {@link #getToken()} to the next call to
+ * receive only the changes after this one. If the earlier token was not recognized, this is a full listing
+ * ({@link #isFullListing()}) and callers should replace, not update, what they know.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class VirtualMachineStatusChanges {
+    private final String                     token;
+    private final boolean                    fullListing;
+    private final Collection<ResourceStatus> changed;
+    private final Collection<String>         removed;
+
+    VirtualMachineStatusChanges(@Nonnull String token, boolean fullListing, @Nonnull Collection<ResourceStatus> changed, @Nonnull Collection<String> removed) {
+        this.token = token;
+        this.fullListing = fullListing;
+        this.changed = Collections.unmodifiableCollection(changed);
+        this.removed = Collections.unmodifiableCollection(removed);
+    }
+
+    /**
+     * @return the status of each virtual machine that is new or whose state has changed, or of every virtual machine for a full listing
+     */
+    public @Nonnull Collection<ResourceStatus> getChangedStatus() {
+        return changed;
+    }
+
+    /**
+     * @return the IDs of the virtual machines that no longer exist
+     */
+    public @Nonnull Collection<String> getRemovedVirtualMachineIds() {
+        return removed;
+    }
+
+    /**
+     * @return the token identifying the state as of these changes
+     */
+    public @Nonnull String getToken() {
+        return token;
+    }
+
+    /**
+     * @return true if the changes are a listing of all virtual machines rather than those changed since the token provided
+     */
+    public boolean isFullListing() {
+        return fullListing;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return (fullListing ? "full listing " : "") + changed + " removed " + removed + " [" + token + "]";
+    }
+}
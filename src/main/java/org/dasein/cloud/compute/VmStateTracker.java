@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the virtual machine states handed out with recent {@link VirtualMachineStatusChanges} tokens for a region
+ * of a cloud account so that later listings can be reduced to what changed. Only the most recent tokens are kept
+ * (the system property <code>dasein.vmStateTracker.tokens</code>, default 4); older tokens result in a full listing.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+final class VmStateTracker {
+    static private final int MAXIMUM_TOKENS = Math.max(1, Integer.getInteger("dasein.vmStateTracker.tokens", 4));
+
+    static private final ConcurrentHashMap<String,VmStateTracker> trackers = new ConcurrentHashMap<String, VmStateTracker>();
+
+    static @Nonnull VmStateTracker getInstance(@Nonnull ProviderContext ctx) {
+        String key = ctx.getCloud().getEndpoint() + "/" + ctx.getAccountNumber() + "/" + ctx.getRegionId();
+        VmStateTracker tracker = trackers.get(key);
+
+        if( tracker == null ) {
+            tracker = new VmStateTracker();
+            VmStateTracker t = trackers.putIfAbsent(key, tracker);
+
+            if( t != null ) {
+                tracker = t;
+            }
+        }
+        return tracker;
+    }
+
+    private final LinkedHashMap<String,Map<String,Object>> states = new LinkedHashMap<String, Map<String, Object>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Map<String,Object>> eldest) {
+            return size() > MAXIMUM_TOKENS;
+        }
+    };
+
+    private VmStateTracker() { }
+
+    /**
+     * Compares the current status of the virtual machines with their status as of the specified token.
+     * @param token the token from an earlier set of changes, or <code>null</code> for a full listing
+     * @param current the current status of all virtual machines in the region
+     * @return the changes since the token together with a new token for the current status
+     */
+    @Nonnull VirtualMachineStatusChanges getChanges(@Nullable String token, @Nonnull Iterable<ResourceStatus> current) {
+        Map<String,Object> now = new HashMap<String, Object>();
+        List<ResourceStatus> changed = new ArrayList<ResourceStatus>();
+        List<String> removed = new ArrayList<String>();
+        Map<String,Object> before;
+
+        synchronized( states ) {
+            before = (token == null ? null : states.get(token));
+        }
+        for( ResourceStatus status : current ) {
+            String id = status.getProviderResourceId();
+            // drivers may leave the state of a virtual machine unset
+            Object state = status.getResourceStatus();
+
+            now.put(id, state);
+            if( before == null || !before.containsKey(id) || (state == null ? before.get(id) != null : !state.equals(before.get(id))) ) {
+                changed.add(status);
+            }
+        }
+        if( before != null ) {
+            for( String id : before.keySet() ) {
+                if( !now.containsKey(id) ) {
+                    removed.add(id);
+                }
+            }
+        }
+        String next = UUID.randomUUID().toString();
+
+        synchronized( states ) {
+            states.put(next, now);
+        }
+        return new VirtualMachineStatusChanges(next, before == null, changed, removed);
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Waits for virtual machines in a region of a cloud account to reach target states. Rather than each waiter polling
+ * its own virtual machine, all outstanding waits for the region share a single sweep of
+ * {@link VirtualMachineSupport#listVirtualMachineStatus()}, so the number of API calls does not grow with the number
+ * of virtual machines being watched. Sweeps run every {@link #getMinimumInterval()} milliseconds while the watched
+ * virtual machines are changing and back off to {@link #getMaximumInterval()} while they are not. A sweep thread runs
+ * only while there is something to watch.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class VmStateWatcher {
+    static private final Logger logger = Logger.getLogger(VmStateWatcher.class);
+
+    static private final long MINIMUM_INTERVAL = Long.getLong("dasein.vmStateWatcher.minimumInterval", 2000L);
+    static private final long MAXIMUM_INTERVAL = Long.getLong("dasein.vmStateWatcher.maximumInterval", 20000L);
+
+    static private final ThreadPoolExecutor sweepPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "VM State Watcher " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private final ConcurrentHashMap<String,VmStateWatcher> watchers = new ConcurrentHashMap<String, VmStateWatcher>();
+
+    /**
+     * Provides the watcher for the cloud account and region of the specified context.
+     * @param ctx the context whose virtual machines are to be watched
+     * @return the watcher shared by all waits in the context's region and account
+     */
+    static public @Nonnull VmStateWatcher getInstance(@Nonnull ProviderContext ctx) {
+        String key = ctx.getCloud().getEndpoint() + "/" + ctx.getAccountNumber() + "/" + ctx.getRegionId();
+        VmStateWatcher watcher = watchers.get(key);
+
+        if( watcher == null ) {
+            watcher = new VmStateWatcher(MINIMUM_INTERVAL, MAXIMUM_INTERVAL);
+            VmStateWatcher w = watchers.putIfAbsent(key, watcher);
+
+            if( w != null ) {
+                watcher = w;
+            }
+        }
+        return watcher;
+    }
+
+    /**
+     * @param support a support whose status is to be listed
+     * @return false if the support's provider has been closed, so that listing with it can only fail
+     */
+    static private boolean isLive(@Nonnull VirtualMachineSupport support) {
+        if( support instanceof AbstractVMSupport ) {
+            return ((AbstractVMSupport<?>)support).getProvider().isConnected();
+        }
+        return true;
+    }
+
+    static private class Waiter implements Callable<VmState> {
+        final VirtualMachineSupport support;
+        final String                vmId;
+        final Set<VmState>          targets;
+        final FutureTask<VmState>   future;
+        volatile VmState            state;
+
+        Waiter(@Nonnull VirtualMachineSupport support, @Nonnull String vmId, @Nonnull Set<VmState> targets) {
+            this.support = support;
+            this.vmId = vmId;
+            this.targets = targets;
+            this.future = new FutureTask<VmState>(this);
+        }
+
+        @Override
+        public VmState call() {
+            return state;
+        }
+
+        void complete(@Nullable VmState state) {
+            this.state = state;
+            future.run();
+        }
+    }
+
+    private final long                       minimumInterval;
+    private final long                       maximumInterval;
+    private final Map<String,List<Waiter>>   waiters = new HashMap<String, List<Waiter>>();
+    private long                             interval;
+    private boolean                          sweeping;
+
+    VmStateWatcher(long minimumInterval, long maximumInterval) {
+        this.minimumInterval = Math.max(1L, minimumInterval);
+        this.maximumInterval = Math.max(this.minimumInterval, maximumInterval);
+        this.interval = this.minimumInterval;
+    }
+
+    /**
+     * @return the interval in milliseconds between sweeps while the watched virtual machines are changing state
+     */
+    public long getMinimumInterval() {
+        return minimumInterval;
+    }
+
+    /**
+     * @return the longest interval in milliseconds between sweeps while the watched virtual machines are not changing state
+     */
+    public long getMaximumInterval() {
+        return maximumInterval;
+    }
+
+    /**
+     * @return the number of virtual machines currently being watched
+     */
+    public int getWatchedCount() {
+        synchronized( waiters ) {
+            return waiters.size();
+        }
+    }
+
+    /**
+     * Waits for a virtual machine to reach one of the specified states. The returned future completes with the state
+     * reached, or with <code>null</code> if the virtual machine no longer exists. Cancel the future to stop waiting.
+     * The future is cancelled if the provider of the specified support is closed before the wait ends.
+     * @param support the support used to list virtual machine status in the watcher's region while this wait lasts
+     * @param vmId the virtual machine to watch
+     * @param targets the states being waited for
+     * @return a future for the state reached by the virtual machine
+     * @throws IllegalArgumentException no target states were specified
+     */
+    public @Nonnull Future<VmState> watch(@Nonnull VirtualMachineSupport support, @Nonnull String vmId, @Nonnull VmState ... targets) {
+        if( targets.length == 0 ) {
+            throw new IllegalArgumentException("No target states to wait for " + vmId);
+        }
+        Waiter waiter = new Waiter(support, vmId, EnumSet.copyOf(Arrays.asList(targets)));
+
+        synchronized( waiters ) {
+            List<Waiter> list = waiters.get(vmId);
+
+            if( list == null ) {
+                list = new ArrayList<Waiter>();
+                waiters.put(vmId, list);
+            }
+            list.add(waiter);
+            interval = minimumInterval;
+            if( !sweeping ) {
+                sweeping = true;
+                sweepPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sweep();
+                    }
+                });
+            }
+        }
+        return waiter.future;
+    }
+
+    private void sweep() {
+        while( true ) {
+            long sleep;
+
+            synchronized( waiters ) {
+                sleep = interval;
+            }
+            try {
+                Thread.sleep(sleep);
+            }
+            catch( InterruptedException e ) {
+                // the pool is shutting down, so wake anyone still waiting
+                synchronized( waiters ) {
+                    sweeping = false;
+                    for( List<Waiter> list : waiters.values() ) {
+                        for( Waiter waiter : list ) {
+                            waiter.future.cancel(false);
+                        }
+                    }
+                    waiters.clear();
+                }
+                return;
+            }
+            Collection<VirtualMachineSupport> supports;
+
+            synchronized( waiters ) {
+                prune();
+                if( waiters.isEmpty() ) {
+                    sweeping = false;
+                    return;
+                }
+                supports = getSupports();
+            }
+            Map<String,VmState> states = null;
+
+            // any waiter's support lists the whole region, so fall back to the next one if a listing fails
+            for( VirtualMachineSupport support : supports ) {
+                try {
+                    states = new HashMap<String, VmState>();
+                    for( ResourceStatus status : support.listVirtualMachineStatus() ) {
+                        Object s = status.getResourceStatus();
+
+                        states.put(status.getProviderResourceId(), s instanceof VmState ? (VmState)s : null);
+                    }
+                    break;
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to sweep virtual machine status: " + t.getMessage());
+                    states = null;
+                }
+            }
+            synchronized( waiters ) {
+                boolean changed = false;
+
+                if( states != null ) {
+                    for( Iterator<Map.Entry<String,List<Waiter>>> it = waiters.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<String,List<Waiter>> entry = it.next();
+                        boolean found = states.containsKey(entry.getKey());
+                        VmState state = states.get(entry.getKey());
+
+                        for( Iterator<Waiter> wit = entry.getValue().iterator(); wit.hasNext(); ) {
+                            Waiter waiter = wit.next();
+
+                            if( !found ) {
+                                waiter.complete(null);
+                                wit.remove();
+                                changed = true;
+                            }
+                            else if( state != null && waiter.targets.contains(state) ) {
+                                waiter.complete(state);
+                                wit.remove();
+                                changed = true;
+                            }
+                        }
+                        if( entry.getValue().isEmpty() ) {
+                            it.remove();
+                        }
+                    }
+                }
+                interval = (changed ? minimumInterval : Math.min(maximumInterval, interval * 2));
+            }
+        }
+    }
+
+    private @Nonnull Collection<VirtualMachineSupport> getSupports() {
+        Set<VirtualMachineSupport> supports = new LinkedHashSet<VirtualMachineSupport>();
+
+        for( List<Waiter> list : waiters.values() ) {
+            for( Waiter waiter : list ) {
+                supports.add(waiter.support);
+            }
+        }
+        return supports;
+    }
+
+    private void prune() {
+        for( Iterator<List<Waiter>> it = waiters.values().iterator(); it.hasNext(); ) {
+            List<Waiter> list = it.next();
+
+            for( Iterator<Waiter> wit = list.iterator(); wit.hasNext(); ) {
+                Waiter waiter = wit.next();
+
+                if( waiter.future.isCancelled() ) {
+                    wit.remove();
+                }
+                else if( !isLive(waiter.support) ) {
+                    // nobody is left to list status for this wait
+                    waiter.future.cancel(false);
+                    wit.remove();
+                }
+            }
+            if( list.isEmpty() ) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ import javax.annotation.Nullable;
  * <p>Created by George Reese: 11/17/12 9:55 AM</p>
  * @author George Reese
  * @version 2013.01 initial version (Issue #1)
+ * @version 2014.11 added latency percentiles
  * @since 2013.01
  */
 public class API implements APIMBean {
@@ -41,6 +42,16 @@ public class API implements APIMBean {
         return APITrace.listApis(provider, cloud);
     }
 
+    @Override
+    public long getApiLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String api, double percentile, int windowInMinutes) {
+        return APITrace.getAPILatency(provider, cloud, api, windowInMinutes).getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public long getApiMaximumLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String api, int windowInMinutes) {
+        return APITrace.getAPILatency(provider, cloud, api, windowInMinutes).getMaximum();
+    }
+
     @Override
     public long getCallCountByAccount(@Nonnull String provider, @Nonnull String cloud, @Nonnull String account) {
         return APITrace.getAPICount(provider, cloud, account);
@@ -81,6 +92,16 @@ public class API implements APIMBean {
         return APITrace.getOperationCount(provider, cloud, account, operation);
     }
 
+    @Override
+    public long getOperationLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String operation, double percentile, int windowInMinutes) {
+        return APITrace.getOperationLatency(provider, cloud, operation, windowInMinutes).getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public long getOperationMaximumLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String operation, int windowInMinutes) {
+        return APITrace.getOperationLatency(provider, cloud, operation, windowInMinutes).getMaximum();
+    }
+
     @Override
     public @Nonnull String[] getOperations(@Nonnull String provider, @Nonnull String cloud) {
         return APITrace.listOperations(provider, cloud);
@@ -46,6 +46,7 @@ import javax.annotation.Nullable;
  * <p>Created by George Reese: 11/17/12 9:55 AM</p>
  * @author George Reese
  * @version 2013.01 initial version (Issue #1)
+ * @version 2014.11 added latency percentiles
  * @since 2013.01
  */
 public interface APIMBean {
@@ -67,6 +68,30 @@ public interface APIMBean {
      */
     public @Nonnull String[] getApis(@Nonnull String provider, @Nonnull String cloud);
 
+    /**
+     * Provides a percentile of the latency of an API call across all accounts in a cloud over the most recent minutes.
+     * Only API calls traced within a Dasein Cloud operation and executed through the requesters in
+     * {@link org.dasein.cloud.util.requester} are timed, from sending the request until the response status and
+     * headers arrive; reading and parsing the response body is not included.
+     * @param provider the cloud provider
+     * @param cloud the name of the cloud
+     * @param api the API call whose latency is being fetched
+     * @param percentile the percentile between 0 and 100, such as 50, 90, or 99
+     * @param windowInMinutes the number of most recent minutes to cover, from 1 to 15
+     * @return the latency at the specified percentile, or 0 if no calls were timed in the window
+     */
+    public @Nonnegative long getApiLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String api, double percentile, int windowInMinutes);
+
+    /**
+     * Provides the highest latency of an API call across all accounts in a cloud over the most recent minutes.
+     * @param provider the cloud provider
+     * @param cloud the name of the cloud
+     * @param api the API call whose latency is being fetched
+     * @param windowInMinutes the number of most recent minutes to cover, from 1 to 15
+     * @return the highest latency, or 0 if no calls were timed in the window
+     */
+    public @Nonnegative long getApiMaximumLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String api, int windowInMinutes);
+
     /**
      * Provides the total number of API calls that have been made on behalf of the specified account. This method is
      * available with log4j set to INFO.
@@ -144,6 +169,29 @@ public interface APIMBean {
      */
     public @Nonnegative long getOperationInvocationCountInAccount(@Nonnull String provider, @Nonnull String cloud, @Nonnull String account, @Nonnull String operation);
 
+    /**
+     * Provides a percentile of the latency of a Dasein Cloud operation across all accounts in a cloud over the most
+     * recent minutes.
+     * @param provider the cloud provider
+     * @param cloud the name of the cloud
+     * @param operation the operation whose latency is being fetched
+     * @param percentile the percentile between 0 and 100, such as 50, 90, or 99
+     * @param windowInMinutes the number of most recent minutes to cover, from 1 to 15
+     * @return the latency at the specified percentile, or 0 if no invocations completed in the window
+     */
+    public @Nonnegative long getOperationLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String operation, double percentile, int windowInMinutes);
+
+    /**
+     * Provides the highest latency of a Dasein Cloud operation across all accounts in a cloud over the most recent
+     * minutes.
+     * @param provider the cloud provider
+     * @param cloud the name of the cloud
+     * @param operation the operation whose latency is being fetched
+     * @param windowInMinutes the number of most recent minutes to cover, from 1 to 15
+     * @return the highest latency, or 0 if no invocations completed in the window
+     */
+    public @Nonnegative long getOperationMaximumLatencyInNanoseconds(@Nonnull String provider, @Nonnull String cloud, @Nonnull String operation, int windowInMinutes);
+
     /**
      * A list of operations with at least one invocation in the target cloud.
      * @param provider the cloud provider
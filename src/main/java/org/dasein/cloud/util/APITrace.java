@@ -30,19 +30,45 @@ import javax.annotation.Nullable;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A tool for tracing the load your Dasein Cloud usage is placing on a cloud provider. This class is used by
  * {@link API} to provide JMX integration. In order for any API tracing to be functional, you must set the
  * log level for org.dasein.cloud.util.APITrace to TRACE, DEBUG, or INFO depending on the information you are seeking.
  * To turn it off, set the level to WARN or higher.
+ * <p>
+ * Each thread keeps its own stack of in-progress operations, so beginning and ending operations never touches shared
+ * state other than the counters, which are lock-free.
+ * </p>
+ * <p>
+ * Counters are kept in a provider, cloud, account tree whose nodes carry running totals, so counts at any level and
+ * the list of providers, clouds, accounts, APIs, and operations come straight from the tree rather than a scan of
+ * every key. Operations are counted by name without any request tracking ID.
+ * </p>
+ * <p>
+ * At DEBUG, the latency of each operation and of each API call made within an operation is recorded in a fixed-size
+ * histogram per cloud and name, readable as percentiles over a sliding window of recent minutes. Operation latency
+ * runs from {@link #begin(CloudProvider, String)} to {@link #end()}. API call latency is the time from sending an HTTP
+ * request to receiving its response status and headers, as measured by the requesters in
+ * {@link org.dasein.cloud.util.requester}; it is attributed to the most recent {@link #trace(CloudProvider, String)} of
+ * the operation that built the request and excludes reading and parsing the response body.
+ * </p>
  * <p>Created by George Reese: 11/16/12 7:20 PM</p>
  * @author George Reese
  * @version 2013.01 initial version (Issue #1)
+ * @version 2014.11 thread-confined operation stacks and lock-free counters
+ * @version 2014.11 hierarchical counters with rolled-up totals
+ * @version 2014.11 latency histograms
+ * @version 2014.11 API latency measured by the requesters
  * @since 2013.01
  */
 public class  APITrace {
@@ -54,20 +80,130 @@ public class  APITrace {
         public String name;
         public long startTimestamp = System.currentTimeMillis();
         public long endTimestamp = 0L;
+        public long startNanos = System.nanoTime();
+        public volatile String pendingCall;
         public int calls = 0;
         public CloudOperation currentChild;
         public ArrayList<CloudOperation> priorChildren;
         public ArrayList<String> apiCalls;
+        public AccountKey key;
+        public String operation;
+
+        public CloudOperation(@Nonnull String name, @Nonnull AccountKey key, @Nonnull String operation) {
+            this.name = name;
+            this.key = key;
+            this.operation = operation;
+        }
+    }
+
+    static private final int API_CALLS           = 0;
+    static private final int OPERATION_API_CALLS = 1;
+    static private final int OPERATIONS          = 2;
+    static private final int COUNTERS            = 3;
+
+    static private final int CLOUD = 2;
+
+    /**
+     * A provider, cloud, or account in the hierarchy of counters. Each node keeps running totals for everything
+     * beneath it so that a count at any level is a single read. Cloud and account nodes additionally count by API
+     * call or operation name, and cloud nodes keep latency histograms by API call and operation name.
+     */
+    static private final class CounterNode {
+        final CounterNode                                    parent;
+        final int                                            depth;
+        final ConcurrentHashMap<String,CounterNode>          children = new ConcurrentHashMap<String, CounterNode>();
+        final AtomicLongArray                                totals   = new AtomicLongArray(COUNTERS);
+        final ArrayList<ConcurrentHashMap<String,AtomicLong>> named;
+        final ConcurrentHashMap<String,LatencyHistogram>     apiLatency;
+        final ConcurrentHashMap<String,LatencyHistogram>     operationLatency;
+
+        CounterNode(@Nullable CounterNode parent) {
+            this.parent = parent;
+            this.depth = (parent == null ? 0 : parent.depth + 1);
+            if( depth == CLOUD ) {
+                apiLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+                operationLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+            }
+            else {
+                apiLatency = null;
+                operationLatency = null;
+            }
+            if( depth >= CLOUD ) {
+                named = new ArrayList<ConcurrentHashMap<String, AtomicLong>>(COUNTERS);
+                for( int i=0; i<COUNTERS; i++ ) {
+                    named.add(new ConcurrentHashMap<String, AtomicLong>());
+                }
+            }
+            else {
+                named = null;
+            }
+        }
+
+        @Nonnull CounterNode child(@Nonnull String name) {
+            CounterNode node = children.get(name);
+
+            if( node == null ) {
+                CounterNode n = children.putIfAbsent(name, node = new CounterNode(this));
+
+                if( n != null ) {
+                    node = n;
+                }
+            }
+            return node;
+        }
+    }
+
+    /**
+     * The provider, cloud, and account portion of a trace key with delimiters already escaped. The last key built
+     * by each thread is remembered so that repeated calls against the same context do not rebuild it.
+     */
+    static private final class AccountKey {
+        final WeakReference<ProviderContext> context;
+        final String                         providerName;
+        final String                         cloudName;
+        final String                         accountNumber;
+        final String                         prefix;
+
+        private volatile CounterNode account;
+
+        AccountKey(@Nullable ProviderContext context, @Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber) {
+            this.context = new WeakReference<ProviderContext>(context);
+            this.providerName = providerName;
+            this.cloudName = cloudName;
+            this.accountNumber = accountNumber;
+            this.prefix = escape(providerName) + DELIMITER + escape(cloudName) + DELIMITER + escape(accountNumber) + DELIMITER;
+        }
+
+        /**
+         * @return the counters for this account in the current tree, which changes whenever the counters are reset
+         */
+        @Nonnull CounterNode getAccount() {
+            CounterNode node = account;
+            CounterNode current = root;
+
+            if( node == null || node.parent.parent.parent != current ) {
+                node = current.child(escape(providerName)).child(escape(cloudName)).child(escape(accountNumber));
+                account = node;
+            }
+            return node;
+        }
 
-        public CloudOperation(@Nonnull String name) { this.name = name; }
+        boolean matches(@Nullable ProviderContext context, @Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber) {
+            return (this.context.get() == context && this.providerName.equals(providerName) && this.cloudName.equals(cloudName) && this.accountNumber.equals(accountNumber));
+        }
     }
 
-    static private final HashMap<String,Long>            apiCount       = new HashMap<String, Long>();
-    static private final HashMap<String,Long>            operationApis  = new HashMap<String, Long>();
-    static private final HashMap<String,Long>            operationCount = new HashMap<String, Long>();
-    static private final HashMap<String,CloudOperation>  operationTrace = new HashMap<String, CloudOperation>();
+    static private final ConcurrentHashMap<String,CloudOperation> operationTrace = new ConcurrentHashMap<String, CloudOperation>();
 
-    static private HashMap<Long,CloudOperation> operations = new HashMap<Long, CloudOperation>();
+    static private volatile CounterNode root = new CounterNode(null);
+
+    static private final ThreadLocal<AccountKey>                lastKey    = new ThreadLocal<AccountKey>();
+    static private final ThreadLocal<ArrayList<CloudOperation>> operations = new ThreadLocal<ArrayList<CloudOperation>>() {
+        @Override
+        protected ArrayList<CloudOperation> initialValue() {
+            return new ArrayList<CloudOperation>();
+        }
+    };
 
 
     static {
@@ -88,35 +224,24 @@ public class  APITrace {
         if( logger.isDebugEnabled() ) {
             try {
                 ProviderContext ctx = provider.getContext();
-                String accountNumber = getAccountNumber( ctx );
-                RequestTrackingStrategy strategy = ctx.getRequestTrackingStrategy();
-                String requestTracking = "";
-                if(strategy != null && strategy.getInAPITrace()){
-                    requestTracking = strategy.getRequestId() + DELIMITER;
-                }
+                RequestTrackingStrategy strategy = (ctx == null ? null : ctx.getRequestTrackingStrategy());
+                AccountKey key = getKey(provider);
+                String name;
 
-                operationName = provider.getProviderName().replaceAll(DELIMITER_REGEX, "_") + DELIMITER + provider.getCloudName().replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + requestTracking + operationName;
-                long thread = Thread.currentThread().getId();
-                CloudOperation operation = new CloudOperation(operationName);
-                CloudOperation current = operations.get(thread);
-
-                if( current == null ) {
-                    operations.put(thread, operation);
+                if( strategy != null && strategy.getInAPITrace() ) {
+                    name = key.prefix + strategy.getRequestId() + DELIMITER + operationName;
                 }
                 else {
-                    while( current.currentChild != null ) {
-                        current = current.currentChild;
-                    }
-                    current.currentChild = operation;
+                    name = key.prefix + operationName;
                 }
-                synchronized( operationCount ) {
-                    if( operationCount.containsKey(operationName) ) {
-                        operationCount.put(operationName,  operationCount.get(operationName) + 1);
-                    }
-                    else {
-                        operationCount.put(operationName, 1L);
-                    }
+                CloudOperation operation = new CloudOperation(name, key, operationName);
+                ArrayList<CloudOperation> stack = operations.get();
+
+                if( !stack.isEmpty() ) {
+                    stack.get(stack.size()-1).currentChild = operation;
                 }
+                stack.add(operation);
+                increment(key.getAccount(), OPERATIONS, operationName, 1L);
             }
             catch( Throwable t ) {
                 logger.warn("Error with API trace begin: " + t.getMessage());
@@ -124,6 +249,50 @@ public class  APITrace {
         }
     }
 
+    /**
+     * Identifies the API call most recently traced by the operation in progress on the calling thread, so that a
+     * requester built for that call can later report its latency with {@link #recordAPILatency(CloudProvider, String, long)}.
+     * @return the name of the API call, or <code>null</code> if there is no operation in progress or API latency is not being recorded
+     */
+    static public @Nullable String getCurrentAPICall() {
+        if( !logger.isDebugEnabled() ) {
+            return null;
+        }
+        ArrayList<CloudOperation> stack = operations.get();
+
+        return (stack.isEmpty() ? null : stack.get(stack.size()-1).pendingCall);
+    }
+
+    /**
+     * Records how long an API call took to respond.
+     * @param provider the provider that made the call
+     * @param apiCall the name of the API call, as returned by {@link #getCurrentAPICall()}
+     * @param nanos the time from sending the request to receiving the response headers, in nanoseconds
+     */
+    static public void recordAPILatency(@Nonnull CloudProvider provider, @Nonnull String apiCall, long nanos) {
+        if( logger.isDebugEnabled() ) {
+            try {
+                record(getKey(provider).getAccount().parent.apiLatency, apiCall, nanos);
+            }
+            catch( Throwable t ) {
+                logger.warn("Error with API trace latency: " + t.getMessage());
+            }
+        }
+    }
+
+    static private void record(@Nonnull ConcurrentHashMap<String,LatencyHistogram> latencies, @Nonnull String name, long nanos) {
+        LatencyHistogram histogram = latencies.get(name);
+
+        if( histogram == null ) {
+            LatencyHistogram h = latencies.putIfAbsent(name, histogram = new LatencyHistogram());
+
+            if( h != null ) {
+                histogram = h;
+            }
+        }
+        histogram.record(Math.max(0L, nanos));
+    }
+
     static private long count(CloudOperation operation) {
         long count = operation.calls;
 
@@ -138,29 +307,25 @@ public class  APITrace {
     static public void end() {
         if( logger.isDebugEnabled() ) {
             try {
-                long thread = Thread.currentThread().getId();
-                CloudOperation current = operations.get(thread);
+                ArrayList<CloudOperation> stack = operations.get();
 
-                if( current == null ) {
+                if( stack.isEmpty() ) {
                     return;
                 }
-                CloudOperation parent = null;
+                CloudOperation current = stack.remove(stack.size()-1);
+                long now = System.nanoTime();
 
-                while( current.currentChild != null ) {
-                    parent = current;
-                    current = current.currentChild;
-                }
                 current.endTimestamp = System.currentTimeMillis();
-                if( parent != null ) {
+                record(current.key.getAccount().parent.operationLatency, current.operation, now - current.startNanos);
+                if( !stack.isEmpty() ) {
+                    CloudOperation parent = stack.get(stack.size()-1);
+
                     if( parent.priorChildren == null ) {
                         parent.priorChildren = new ArrayList<CloudOperation>();
                     }
                     parent.priorChildren.add(current);
                     parent.currentChild = null;
                 }
-                else {
-                    operations.remove(thread);
-                }
                 log(current);
             }
             catch( Throwable t ) {
@@ -169,178 +334,160 @@ public class  APITrace {
         }
     }
 
-    static public long getAPICount() {
-        long count = 0L;
+    static private @Nonnull String escape(@Nonnull String value) {
+        return value.replace('.', '_');
+    }
 
-        synchronized( apiCount ) {
-            for( Map.Entry<String,Long> api : apiCount.entrySet() ) {
-                count += api.getValue();
-            }
-        }
-        return count;
+    static public long getAPICount() {
+        return getTotal(API_CALLS);
     }
 
     static public long getAPICount(@Nonnull String providerName) {
-        return getAPICountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(API_CALLS, providerName);
     }
 
     static public long getAPICount(@Nonnull String providerName, @Nonnull String cloudName) {
-        return getAPICountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(API_CALLS, providerName, cloudName);
     }
 
     static public long getAPICount(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber) {
-        return getAPICountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(API_CALLS, providerName, cloudName, accountNumber);
     }
 
     static public long getAPICount(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber, @Nonnull String apiCall) {
-        return getAPICountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + apiCall);
+        return getNamedCount(API_CALLS, apiCall, providerName, cloudName, accountNumber);
     }
 
     static public long getAPICountAcrossAccounts(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String apiCall) {
-        String prefix = providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER;
-        long count = 0L;
-
-        synchronized( apiCount ) {
-            for( Map.Entry<String,Long> api : apiCount.entrySet() ) {
-                if( api.getKey().startsWith(prefix) && api.getKey().endsWith(apiCall)) {
-                    count += api.getValue();
-                }
-            }
-        }
-        return count;
-    }
-
-    static private long getAPICountForPrefix(@Nonnull String prefix) {
-        long count = 0L;
-
-        synchronized( apiCount ) {
-            for( Map.Entry<String,Long> api : apiCount.entrySet() ) {
-                if( api.getKey().startsWith(prefix) ) {
-                    count += api.getValue();
-                }
-            }
-        }
-        return count;
+        return getNamedCount(API_CALLS, apiCall, providerName, cloudName);
     }
 
     static public long getAPICountForOperation() {
-        long count = 0L;
-
-        synchronized( operationApis ) {
-            for( Map.Entry<String,Long> api : operationApis.entrySet() ) {
-                count += api.getValue();
-            }
-        }
-        return count;
+        return getTotal(OPERATION_API_CALLS);
     }
 
     static public long getAPICountForOperation(@Nonnull String providerName) {
-        return getAPICountForPrefixForOperation(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(OPERATION_API_CALLS, providerName);
     }
 
     static public long getAPICountForOperation(@Nonnull String providerName, @Nonnull String cloudName) {
-        return getAPICountForPrefixForOperation(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(OPERATION_API_CALLS, providerName, cloudName);
     }
 
     static public long getAPICountForOperation(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber) {
-        return getAPICountForPrefixForOperation(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(OPERATION_API_CALLS, providerName, cloudName, accountNumber);
     }
 
     static public long getAPICountForOperation(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber, @Nonnull String operation) {
-        return getAPICountForPrefixForOperation(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + operation);
+        return getNamedCount(OPERATION_API_CALLS, operation, providerName, cloudName, accountNumber);
     }
 
     static public long getAPICountForOperationAcrossAccounts(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String operation) {
-        String prefix = providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER;
-        long count = 0L;
-
-        synchronized( operationApis ) {
-            for( Map.Entry<String,Long> api : operationApis.entrySet() ) {
-                if( api.getKey().startsWith(prefix) && api.getKey().endsWith(operation)) {
-                    count += api.getValue();
-                }
-            }
-        }
-        return count;
-    }
-
-    static private long getAPICountForPrefixForOperation(@Nonnull String prefix) {
-        long count = 0L;
-
-        synchronized( operationApis ) {
-            for( Map.Entry<String,Long> api : operationApis.entrySet() ) {
-                if( api.getKey().startsWith(prefix) ) {
-                    count += api.getValue();
-                }
-            }
-        }
-        return count;
+        return getNamedCount(OPERATION_API_CALLS, operation, providerName, cloudName);
     }
 
     static public long getOperationCount() {
-        long count = 0L;
-
-        synchronized( operationCount ) {
-            for( Map.Entry<String,Long> api : operationCount.entrySet() ) {
-                count += api.getValue();
-            }
-        }
-        return count;
+        return getTotal(OPERATIONS);
     }
 
     static public long getOperationCount(@Nonnull String providerName) {
-        return getOperationCountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(OPERATIONS, providerName);
     }
 
     static public long getOperationCount(@Nonnull String providerName, @Nonnull String cloudName) {
-        return getOperationCountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(OPERATIONS, providerName, cloudName);
     }
 
     static public long getOperationCount(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber) {
-        return getOperationCountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER);
+        return getTotal(OPERATIONS, providerName, cloudName, accountNumber);
     }
 
     static public long getOperationCount(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String accountNumber, @Nonnull String operation) {
-        return getOperationCountForPrefix(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + operation);
+        return getNamedCount(OPERATIONS, operation, providerName, cloudName, accountNumber);
     }
 
     static public long getOperationCountAcrossAccounts(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String operation) {
-        String prefix = providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER;
-        long count = 0L;
+        return getNamedCount(OPERATIONS, operation, providerName, cloudName);
+    }
 
-        synchronized( operationCount ) {
-            for( Map.Entry<String,Long> api : operationCount.entrySet() ) {
-                if( api.getKey().startsWith(prefix) && api.getKey().endsWith(operation)) {
-                    count += api.getValue();
-                }
-            }
+    /**
+     * Provides latency statistics for an API call over a sliding window. API call latencies are recorded only for
+     * calls traced from within an operation and executed through the requesters in
+     * {@link org.dasein.cloud.util.requester}, and require the log level to be set to DEBUG. They measure the time to
+     * the response headers, not the time spent reading and parsing the response.
+     * @param providerName the name of the provider
+     * @param cloudName the name of the cloud
+     * @param apiCall the API call whose latencies are being fetched
+     * @param windowInMinutes the number of most recent minutes to cover, from 1 to 15
+     * @return the latency statistics for the API call across all accounts in the cloud
+     */
+    static public @Nonnull LatencyStatistics getAPILatency(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String apiCall, int windowInMinutes) {
+        CounterNode node = find(providerName, cloudName);
+
+        return getLatency(node == null ? null : node.apiLatency, apiCall, windowInMinutes);
+    }
+
+    /**
+     * Provides latency statistics for an operation over a sliding window. Operation latencies require the log level to
+     * be set to DEBUG.
+     * @param providerName the name of the provider
+     * @param cloudName the name of the cloud
+     * @param operation the operation whose latencies are being fetched
+     * @param windowInMinutes the number of most recent minutes to cover, from 1 to 15
+     * @return the latency statistics for the operation across all accounts in the cloud
+     */
+    static public @Nonnull LatencyStatistics getOperationLatency(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String operation, int windowInMinutes) {
+        CounterNode node = find(providerName, cloudName);
+
+        return getLatency(node == null ? null : node.operationLatency, operation, windowInMinutes);
+    }
+
+    static private @Nonnull LatencyStatistics getLatency(@Nullable Map<String,LatencyHistogram> latencies, @Nonnull String name, int windowInMinutes) {
+        LatencyHistogram histogram = (latencies == null ? null : latencies.get(name));
+
+        if( histogram == null ) {
+            histogram = new LatencyHistogram();
         }
-        return count;
+        return histogram.getStatistics(windowInMinutes);
     }
 
-    static private long getOperationCountForPrefix(@Nonnull String prefix) {
-        long count = 0L;
+    static private @Nullable CounterNode find(@Nonnull String ... path) {
+        CounterNode node = root;
 
-        synchronized( operationCount ) {
-            for( Map.Entry<String,Long> api : operationCount.entrySet() ) {
-                if( api.getKey().startsWith(prefix) ) {
-                    count += api.getValue();
-                }
+        for( String name : path ) {
+            node = node.children.get(escape(name));
+            if( node == null ) {
+                return null;
             }
         }
-        return count;
+        return node;
+    }
+
+    static private long getNamedCount(int counter, @Nonnull String name, @Nonnull String ... path) {
+        CounterNode node = find(path);
+
+        if( node == null || node.named == null ) {
+            return 0L;
+        }
+        AtomicLong count = node.named.get(counter).get(name);
+
+        return (count == null ? 0L : count.get());
+    }
+
+    static private long getTotal(int counter, @Nonnull String ... path) {
+        CounterNode node = find(path);
+
+        return (node == null ? 0L : node.totals.get(counter));
     }
 
     static public @Nullable String getStackTrace(@Nonnull String providerName, @Nonnull String cloudName, @Nonnull String operationName) {
 
         CloudOperation operation = null;
 
-        synchronized( operationTrace ) {
-            for( Map.Entry<String,CloudOperation> entry : operationTrace.entrySet() ) {
-                if( entry.getKey().startsWith(providerName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + cloudName.replaceAll(DELIMITER_REGEX, "_") + DELIMITER) && entry.getKey().endsWith(DELIMITER + operationName) ) {
-                    operation = entry.getValue();
-                    break;
-                }
+        for( Map.Entry<String,CloudOperation> entry : operationTrace.entrySet() ) {
+            if( entry.getKey().startsWith(escape(providerName) + DELIMITER + escape(cloudName) + DELIMITER) && entry.getKey().endsWith(DELIMITER + operationName) ) {
+                operation = entry.getValue();
+                break;
             }
         }
         if( operation == null ) {
@@ -400,172 +547,141 @@ public class  APITrace {
     }
 
     static public String[] listAccounts(@Nonnull String provider, @Nonnull String cloud) {
-        provider = provider.replaceAll(DELIMITER_REGEX, "_");
-        cloud = cloud.replaceAll(DELIMITER_REGEX, "_");
-        TreeSet<String> list = new TreeSet<String>();
+        return listChildren(find(provider, cloud));
+    }
 
-        synchronized( apiCount ) {
-            for( String call : apiCount.keySet() ) {
-                String[] parts = call.split(DELIMITER_REGEX);
+    static public String[] listApis(@Nonnull String provider, @Nonnull String cloud) {
+        return listNames(find(provider, cloud), API_CALLS);
+    }
 
-                if( parts.length > 2 && parts[0].equals(provider) && parts[1].equals(cloud) ) {
-                    list.add(parts[2]);
-                }
-            }
-        }
-        return list.toArray(new String[list.size()]);
+    static public String[] listClouds(@Nonnull String provider) {
+        return listChildren(find(provider));
     }
 
-    static public String[] listApis(@Nonnull String provider, @Nonnull String cloud) {
-        provider = provider.replaceAll(DELIMITER_REGEX, "_");
-        cloud = cloud.replaceAll(DELIMITER_REGEX, "_");
-        TreeSet<String> list = new TreeSet<String>();
+    static public String[] listOperations(@Nonnull String provider, @Nonnull String cloud) {
+        return listNames(find(provider, cloud), OPERATIONS);
+    }
 
-        synchronized( apiCount ) {
-            for( String call : apiCount.keySet() ) {
-                String[] parts = call.split(DELIMITER_REGEX);
+    static public String[] listProviders() {
+        return listChildren(root);
+    }
 
-                if( parts.length > 3 && parts[0].equals(provider) && parts[1].equals(cloud) ) {
-                    if( parts.length == 4 ) {
-                        list.add(parts[3]);
-                    }
-                    else {
-                        StringBuilder tmp = new StringBuilder();
-
-                        for( int i=3; i<parts.length; i++ ) {
-                            tmp.append(parts[i]);
-                            if( i< parts.length-1 ) {
-                                tmp.append(DELIMITER);
-                            }
-                        }
-                        list.add(tmp.toString());
-                    }
+    static private @Nonnull String[] listChildren(@Nullable CounterNode node) {
+        TreeSet<String> list = new TreeSet<String>();
+
+        if( node != null ) {
+            for( Map.Entry<String,CounterNode> entry : node.children.entrySet() ) {
+                if( entry.getValue().totals.get(API_CALLS) > 0L ) {
+                    list.add(entry.getKey());
                 }
             }
         }
         return list.toArray(new String[list.size()]);
     }
 
-    static public String[] listClouds(@Nonnull String provider) {
-        provider = provider.replaceAll(DELIMITER_REGEX, "_");
-        TreeSet<String> list = new TreeSet<String>();
-
-        synchronized( apiCount ) {
-            for( String call : apiCount.keySet() ) {
-                String[] parts = call.split(DELIMITER_REGEX);
-
-                if( parts.length > 1 && parts[0].equals(provider) ) {
-                    list.add(parts[1]);
-                }
-            }
+    static private @Nonnull String[] listNames(@Nullable CounterNode node, int counter) {
+        if( node == null || node.named == null ) {
+            return new String[0];
         }
+        TreeSet<String> list = new TreeSet<String>(node.named.get(counter).keySet());
+
         return list.toArray(new String[list.size()]);
     }
 
-    static public String[] listOperations(@Nonnull String provider, @Nonnull String cloud) {
-        provider = provider.replaceAll(DELIMITER_REGEX, "_");
-        cloud = cloud.replaceAll(DELIMITER_REGEX, "_");
-        TreeSet<String> list = new TreeSet<String>();
+    static private void increment(@Nonnull ConcurrentHashMap<String,AtomicLong> counts, @Nonnull String key, long delta) {
+        AtomicLong count = counts.get(key);
 
-        synchronized( operationCount ) {
-            for( String call : operationCount.keySet() ) {
-                String[] parts = call.split(DELIMITER_REGEX);
+        if( count == null ) {
+            AtomicLong c = counts.putIfAbsent(key, count = new AtomicLong(0L));
 
-                if( parts.length > 3 && parts[0].equals(provider) && parts[1].equals(cloud) ) {
-                    if( parts.length == 4 ) {
-                        list.add(parts[3]);
-                    }
-                    else {
-                        StringBuilder tmp = new StringBuilder();
-
-                        for( int i=3; i<parts.length; i++ ) {
-                            tmp.append(parts[i]);
-                            if( i< parts.length-1 ) {
-                                tmp.append(DELIMITER);
-                            }
-                        }
-                        list.add(tmp.toString());
-                    }
-                }
+            if( c != null ) {
+                count = c;
             }
         }
-        return list.toArray(new String[list.size()]);
+        count.addAndGet(delta);
     }
 
-    static public String[] listProviders() {
-        TreeSet<String> providers = new TreeSet<String>();
+    /**
+     * Adds to a counter for the specified account and rolls the change up through its cloud and provider.
+     * @param account the account node being counted against
+     * @param counter the counter being incremented
+     * @param name the API call or operation being counted
+     * @param delta the amount to add
+     */
+    static private void increment(@Nonnull CounterNode account, int counter, @Nonnull String name, long delta) {
+        increment(account.named.get(counter), name, delta);
+        increment(account.parent.named.get(counter), name, delta);
+        for( CounterNode node = account; node != null; node = node.parent ) {
+            node.totals.addAndGet(counter, delta);
+        }
+    }
+
+    static private void log(CloudOperation operation) {
+        increment(operation.key.getAccount(), OPERATION_API_CALLS, operation.operation, count(operation));
+        if( logger.isTraceEnabled() ) {
+            operationTrace.put(operation.name, operation);
+        }
+    }
+
+    static private void report(@Nonnull String prefix, @Nonnull String title, int counter) {
+        TreeMap<String,Long> counts = new TreeMap<String, Long>();
 
-        synchronized( apiCount ) {
-            for( String call : apiCount.keySet() ) {
-                String[] parts = call.split(DELIMITER_REGEX);
+        for( Map.Entry<String,CounterNode> p : root.children.entrySet() ) {
+            for( Map.Entry<String,CounterNode> c : p.getValue().children.entrySet() ) {
+                for( Map.Entry<String,CounterNode> a : c.getValue().children.entrySet() ) {
+                    String key = p.getKey() + DELIMITER + c.getKey() + DELIMITER + a.getKey() + DELIMITER;
 
-                if( parts.length > 0 ) {
-                    providers.add(parts[0]);
+                    for( Map.Entry<String,AtomicLong> count : a.getValue().named.get(counter).entrySet() ) {
+                        counts.put(key + count.getKey(), count.getValue().get());
+                    }
                 }
             }
         }
-        return providers.toArray(new String[providers.size()]);
+        logger.debug(prefix + "-> " + title);
+        for( Map.Entry<String,Long> entry : counts.entrySet() ) {
+            logger.debug(prefix + "->\t" + entry.getKey() + " = " + entry.getValue());
+        }
     }
 
-    static private void log(CloudOperation operation) {
-        long count = count(operation);
+    static private void reportLatency(@Nonnull String prefix, @Nonnull String title, boolean operations) {
+        TreeMap<String,LatencyStatistics> latencies = new TreeMap<String, LatencyStatistics>();
 
-        synchronized( operationApis ) {
-            if( operationApis.containsKey(operation.name) ) {
-                operationApis.put(operation.name, operationApis.get(operation.name) + count);
-            }
-            else {
-                operationApis.put(operation.name, count);
+        for( Map.Entry<String,CounterNode> p : root.children.entrySet() ) {
+            for( Map.Entry<String,CounterNode> c : p.getValue().children.entrySet() ) {
+                CounterNode cloud = c.getValue();
+                String key = p.getKey() + DELIMITER + c.getKey() + DELIMITER;
+
+                for( Map.Entry<String,LatencyHistogram> entry : (operations ? cloud.operationLatency : cloud.apiLatency).entrySet() ) {
+                    latencies.put(key + entry.getKey(), entry.getValue().getStatistics(LatencyHistogram.MAXIMUM_WINDOW));
+                }
             }
         }
-        if( logger.isTraceEnabled() ) {
-            operationTrace.put(operation.name, operation);
+        logger.debug(prefix + "-> " + title);
+        for( Map.Entry<String,LatencyStatistics> entry : latencies.entrySet() ) {
+            logger.debug(prefix + "->\t" + entry.getKey() + " = " + entry.getValue());
         }
     }
 
     static public void report(@Nonnull String prefix) {
         logger.info("");
         if( logger.isInfoEnabled() ) {
-            synchronized( apiCount ) {
-                TreeSet<String> keys = new TreeSet<String>();
-
-                keys.addAll(apiCount.keySet());
-                logger.debug(prefix + "-> API calls: ");
-                for( String key : keys ) {
-                    logger.debug(prefix + "->\t" + key + " = " + apiCount.get(key));
-                }
-            }
+            report(prefix, "API calls: ", API_CALLS);
         }
         if( logger.isDebugEnabled() ) {
-            synchronized( operationCount ) {
-                TreeSet<String> keys = new TreeSet<String>();
-
-                keys.addAll(operationCount.keySet());
-                logger.debug(prefix + "-> Operation calls:");
-                for( String key : keys ) {
-                    logger.debug(prefix + "->\t" + key + " = " + operationCount.get(key));
-                }
-            }
-            synchronized( operationApis ) {
-                TreeSet<String> keys = new TreeSet<String>();
-
-                keys.addAll(operationApis.keySet());
-                logger.debug(prefix + "-> API calls by operation:");
-                for( String key : keys ) {
-                    logger.debug(prefix + "->\t" + key + " = " + operationApis.get(key));
-                }
-            }
+            report(prefix, "Operation calls:", OPERATIONS);
+            report(prefix, "API calls by operation:", OPERATION_API_CALLS);
+            reportLatency(prefix, "API latency (ns):", false);
+            reportLatency(prefix, "Operation latency (ns):", true);
         }
         if( logger.isTraceEnabled() ) {
-            synchronized( operationTrace ) {
-                TreeSet<String> keys = new TreeSet<String>();
+            TreeSet<String> keys = new TreeSet<String>(operationTrace.keySet());
 
-                keys.addAll(operationTrace.keySet());
-                logger.trace(prefix + "-> Stack trace:");
-                for( String key : keys ) {
-                    Map<String,Object> map = toJSON(operationTrace.get(key));
+            logger.trace(prefix + "-> Stack trace:");
+            for( String key : keys ) {
+                CloudOperation operation = operationTrace.get(key);
 
-                    logger.trace((new JSONObject(map)).toString());
+                if( operation != null ) {
+                    logger.trace((new JSONObject(toJSON(operation))).toString());
                     logger.trace("");
                 }
             }
@@ -573,50 +689,31 @@ public class  APITrace {
         logger.info("");
     }
 
+    /**
+     * Clears all counters and traces. Operations in progress on the calling thread are discarded; operations in
+     * progress on other threads complete normally and are counted once they end.
+     */
     static public void reset() {
-        synchronized( apiCount ) {
-            apiCount.clear();
-        }
-        synchronized( operationApis ) {
-            operationApis.clear();
-        }
-        synchronized( operationCount ) {
-            operationCount.clear();
-        }
-        synchronized( operationTrace ) {
-            operationTrace.clear();
-        }
-        operations.clear();
+        root = new CounterNode(null);
+        operationTrace.clear();
+        operations.remove();
     }
 
     static public void trace(@Nonnull CloudProvider provider,  @Nonnull String apiCall) {
         if( logger.isInfoEnabled() ) {
-            ProviderContext ctx = provider.getContext();
-            String accountNumber = getAccountNumber( ctx );
-            String callName = provider.getProviderName().replaceAll(DELIMITER_REGEX, "_") + DELIMITER + provider.getCloudName().replaceAll(DELIMITER_REGEX, "_") + DELIMITER + accountNumber.replaceAll(DELIMITER_REGEX, "_") + DELIMITER + apiCall;
-
             try {
                 CloudOperation current = null;
 
                 if( logger.isDebugEnabled() ) {
-                    long thread = Thread.currentThread().getId();
+                    ArrayList<CloudOperation> stack = operations.get();
 
-                    current = operations.get(thread);
-                    if( current != null ) {
-                        while( current.currentChild != null ) {
-                            current = current.currentChild;
-                        }
+                    if( !stack.isEmpty() ) {
+                        current = stack.get(stack.size()-1);
                         current.calls++;
+                        current.pendingCall = apiCall;
                     }
                 }
-                synchronized( apiCount ) {
-                    if( apiCount.containsKey(callName) ) {
-                        apiCount.put(callName, apiCount.get(callName) + 1);
-                    }
-                    else {
-                        apiCount.put(callName, 1L);
-                    }
-                }
+                increment(getKey(provider).getAccount(), API_CALLS, apiCall, 1L);
                 if( logger.isTraceEnabled() ) {
                     if( current != null ) {
                         if( current.apiCalls == null ) {
@@ -635,4 +732,18 @@ public class  APITrace {
     static public String getAccountNumber(@Nullable ProviderContext ctx) {
       return ((ctx == null || ctx.getAccountNumber() == null) ? "---" : ctx.getAccountNumber());
     }
+
+    static private @Nonnull AccountKey getKey(@Nonnull CloudProvider provider) {
+        ProviderContext ctx = provider.getContext();
+        String providerName = provider.getProviderName();
+        String cloudName = provider.getCloudName();
+        String accountNumber = getAccountNumber(ctx);
+        AccountKey key = lastKey.get();
+
+        if( key == null || !key.matches(ctx, providerName, cloudName, accountNumber) ) {
+            key = new AccountKey(ctx, providerName, cloudName, accountNumber);
+            lastKey.set(key);
+        }
+        return key;
+    }
 }
@@ -19,20 +19,20 @@
 
 package org.dasein.cloud.util;
 
+import org.dasein.cloud.CloudException;
 import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
-import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.time.Hour;
-import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.Second;
 import org.dasein.util.uom.time.TimePeriod;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implements efficient caching of non-changing resources so that you can minimize the number of API calls being made
@@ -41,7 +41,8 @@ import java.util.Set;
  * Thus, repeatedly calling the API to list regions is wildly inefficient. On the other hand, caching in a cross-cloud
  * API with classes that may support multiple accounts in multiple clouds. You also don't want to end up caching so
  * much stuff that you are eating up RAM. This cloud implements centralized caching so that you can minimize API calls
- * with efficient memory usage.
+ * with efficient memory usage. Reads never block; the amount of memory a cache may use can be bounded through
+ * {@link CacheOptions}.
  * <p>
  * Example:
  * </p>
@@ -57,124 +58,177 @@ import java.util.Set;
  *         return regions;
  *     }
  * </pre>
+ * <p>
+ * When several threads may miss on the same context at once, prefer {@link #getOrLoad(ProviderContext, CacheLoader)}
+ * so only one of them makes the API call.
+ * </p>
  * <p>Created by George Reese: 11/16/12 4:51 PM</p>
  * @author George Reese
  * @version 2013.01 initial version
+ * @version 2014.11 lock-free reads and size bounds
  * @since 2013.01
  */
 public final class Cache<T> {
-    static private final HashMap<String,Cache<?>> caches = new HashMap<String, Cache<?>>();
+    static private final CacheStore.Weigher<Iterable<?>> weigher = new CacheStore.Weigher<Iterable<?>>() {
+        @Override
+        public long getWeight(@Nonnull Iterable<?> list) {
+            // other iterables may be single-use, such as streamed responses, so they are never walked
+            if( list instanceof Collection ) {
+                return ((Collection<?>)list).size();
+            }
+            return 1L;
+        }
+    };
+
+    static private final ConcurrentHashMap<String,Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
 
     static public class CacheDelegate implements CacheMBean {
         @Override
         public void clear(@Nonnull String cacheName) {
-            Cache<?> c;
-
-            synchronized( caches ) {
-                if( caches.containsKey(cacheName) ) {
-                    //noinspection unchecked
-                    c = caches.get(cacheName);
-                }
-                else {
-                    return;
-                }
+            Cache<?> c = caches.get(cacheName);
+
+            if( c != null ) {
+                c.clear();
             }
-            c.clear();
         }
 
         @Override
         public @Nonnull String[] getCaches() {
-            Set<String> names;
+            Set<String> names = caches.keySet();
 
-            synchronized( caches ) {
-                names = caches.keySet();
-            }
             return names.toArray(new String[names.size()]);
         }
 
         @Override
         public @Nullable CacheLevel getCacheLevel(@Nonnull String cacheName) {
-            Cache<?> c;
-
-            synchronized( caches ) {
-                if( caches.containsKey(cacheName) ) {
-                    //noinspection unchecked
-                    c = caches.get(cacheName);
-                }
-                else {
-                    return null;
-                }
-            }
-            if( c.cloudCache != null ) {
-                return CacheLevel.CLOUD;
-            }
-            else if( c.cloudAccountCache != null ) {
-                return CacheLevel.CLOUD_ACCOUNT;
-            }
-            else if( c.regionCache != null ) {
-                return CacheLevel.REGION;
-            }
-            else if( c.regionAccountCache != null ) {
-                return CacheLevel.REGION_ACCOUNT;
+            Cache<?> c = caches.get(cacheName);
+
+            if( c == null ) {
+                return null;
             }
-            return null;
+            return c.store.getCacheLevel();
         }
 
         @Override
         public long getNextTimeout(@Nonnull String cacheName) {
-            Cache<?> c;
-
-            synchronized( caches ) {
-                if( caches.containsKey(cacheName) ) {
-                    //noinspection unchecked
-                    c = caches.get(cacheName);
-                }
-                else {
-                    return System.currentTimeMillis();
-                }
+            Cache<?> c = caches.get(cacheName);
+
+            if( c == null ) {
+                return System.currentTimeMillis();
             }
-            return (c.cacheStart + c.cacheTimeout.longValue());
+            return c.store.getNextTimeout();
         }
 
         @Override
         public long getTimeoutInSeconds(@Nonnull String cacheName) {
-            Cache<?> c;
-
-            synchronized( caches ) {
-                if( caches.containsKey(cacheName) ) {
-                    //noinspection unchecked
-                    c = caches.get(cacheName);
-                }
-                else {
-                    return 0L;
-                }
+            Cache<?> c = caches.get(cacheName);
+
+            if( c == null ) {
+                return 0L;
             }
-            return (c.cacheTimeout.longValue()/1000L);
+            return (c.store.getTimeout()/1000L);
         }
 
-        public void setTimeoutInSeconds(@Nonnull String cacheName, @Nonnegative long timeoutInSeconds) {
-            Cache<?> c;
-
-            synchronized( caches ) {
-                if( caches.containsKey(cacheName) ) {
-                    //noinspection unchecked
-                    c = caches.get(cacheName);
-                }
-                else {
-                    return;
-                }
+        @Override
+        public long getCollectedCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getCollectedCount());
+        }
+
+        @Override
+        public long getEntryCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getEntryCount());
+        }
+
+        @Override
+        public long getEstimatedWeight(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getEstimatedWeight());
+        }
+
+        @Override
+        public long getEvictionCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getEvictionCount());
+        }
+
+        @Override
+        public long getExpirationCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getExpirationCount());
+        }
+
+        @Override
+        public long getHitCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getHitCount());
+        }
+
+        @Override
+        public long getLoadCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getLoadCount());
+        }
+
+        @Override
+        public long getLoadFailureCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getLoadFailureCount());
+        }
+
+        @Override
+        public long getMissCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getMissCount());
+        }
+
+        @Override
+        public long getSizeEvictionCount(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getSizeEvictionCount());
+        }
+
+        @Override
+        public long getTotalLoadTimeInNanoseconds(@Nonnull String cacheName) {
+            CacheStatistics s = getStatistics(cacheName);
+
+            return (s == null ? 0L : s.getTotalLoadTimeInNanoseconds());
+        }
+
+        @Override
+        public void resetStatistics(@Nonnull String cacheName) {
+            Cache<?> c = caches.get(cacheName);
+
+            if( c != null ) {
+                c.store.resetStatistics();
             }
-            c.cacheTimeout = new TimePeriod<Millisecond>(timeoutInSeconds, TimePeriod.MILLISECOND);
         }
-    }
 
-    static private class CacheEntry<T> {
-        public long lastCacheClear;
-        public SoftReference<Iterable<T>> items;
-        public @Nonnull String toString() { return ((items == null) ? "--> empty <--" : items.toString()); }
-    }
+        public void setTimeoutInSeconds(@Nonnull String cacheName, @Nonnegative long timeoutInSeconds) {
+            Cache<?> c = caches.get(cacheName);
 
+            if( c != null ) {
+                c.store.setTimeout(new TimePeriod<Second>(timeoutInSeconds, TimePeriod.SECOND));
+            }
+        }
+
+        private @Nullable CacheStatistics getStatistics(@Nonnull String cacheName) {
+            Cache<?> c = caches.get(cacheName);
 
+            return (c == null ? null : c.store.getStatistics());
+        }
+    }
 
     /**
      * Provides access to a cache for items under the specified name.
@@ -200,62 +254,55 @@ public final class Cache<T> {
      * @return a cache containing the context-sensitive cached items
      */
     static public @Nonnull <X> Cache<X> getInstance(@Nonnull CloudProvider provider, @Nonnull String name, @Nonnull Class<X> typeClass, @Nonnull CacheLevel level, @Nonnegative TimePeriod<?> timeout) {
-        Cache<X> c;
+        return getInstance(provider, name, typeClass, level, timeout, CacheOptions.getInstance());
+    }
 
+    /**
+     * Provides access to a cache for items under the specified name.
+     * @param provider the cloud provider object governing the cache
+     * @param name the name of the cache
+     * @param typeClass the type of object being cached
+     * @param level the level at which these objects should be cached
+     * @param timeout the amount of time before the cache is automatically considered stale and forces you to reload from API
+     * @param options tuning options applied if the cache does not yet exist
+     * @param <X> the type of the object being cached
+     * @return a cache containing the context-sensitive cached items
+     */
+    static public @Nonnull <X> Cache<X> getInstance(@Nonnull CloudProvider provider, @Nonnull String name, @Nonnull Class<X> typeClass, @Nonnull CacheLevel level, @Nonnegative TimePeriod<?> timeout, @Nonnull CacheOptions options) {
         name = provider.getClass().getName() + "." + name;
-        synchronized( caches ) {
-            if( caches.containsKey(name) ) {
-                //noinspection unchecked
-                c = (Cache<X>)caches.get(name);
-            }
-            else {
-                c = new Cache<X>(level, timeout);
-                caches.put(name, c);
+        //noinspection unchecked
+        Cache<X> c = (Cache<X>)caches.get(name);
+
+        if( c == null ) {
+            c = new Cache<X>(name, level, timeout, options);
+            //noinspection unchecked
+            Cache<X> existing = (Cache<X>)caches.putIfAbsent(name, c);
+
+            if( existing != null ) {
+                c = existing;
             }
         }
         return c;
     }
 
-    private HashMap<String,CacheEntry<T>>                         cloudCache;
-    private HashMap<String,Map<String,CacheEntry<T>>>             cloudAccountCache;
-    private HashMap<String,Map<String,CacheEntry<T>>>             regionCache;
-    private HashMap<String,Map<String,Map<String,CacheEntry<T>>>> regionAccountCache;
-
-    private TimePeriod<Millisecond> cacheTimeout;
-    private long                    cacheStart;
-
-    private Cache() { }
+    private final CacheStore<Iterable<T>> store;
 
-    private Cache(CacheLevel level, TimePeriod<?> timeout) {
-        switch( level ) {
-            case CLOUD: cloudCache = new HashMap<String, CacheEntry<T>>(); break;
-            case CLOUD_ACCOUNT: cloudAccountCache = new HashMap<String, Map<String, CacheEntry<T>>>(); break;
-            case REGION: regionCache = new HashMap<String, Map<String, CacheEntry<T>>>(); break;
-            case REGION_ACCOUNT: regionAccountCache = new HashMap<String, Map<String, Map<String, CacheEntry<T>>>>(); break;
-        }
-        cacheTimeout = (TimePeriod<Millisecond>)timeout.convertTo(TimePeriod.MILLISECOND);
-        cacheStart = System.currentTimeMillis();
+    private Cache(String name, CacheLevel level, TimePeriod<?> timeout, CacheOptions options) {
+        store = new CacheStore<Iterable<T>>(name, level, timeout, options, weigher);
     }
 
     /**
      * Clears out the cache across the board, regardless of context.
      */
     public void clear() {
-        synchronized( this ) {
-            if( cloudCache != null ) {
-                cloudCache.clear();
-            }
-            else if( cloudAccountCache != null ) {
-                cloudAccountCache.clear();
-            }
-            else if( regionCache != null ) {
-                regionCache.clear();
-            }
-            else if( regionAccountCache != null ) {
-                regionAccountCache.clear();
-            }
-            cacheStart = System.currentTimeMillis();
-        }
+        store.clear();
+    }
+
+    /**
+     * @return a snapshot of the usage statistics for this cache
+     */
+    public @Nonnull CacheStatistics getStatistics() {
+        return store.getStatistics();
     }
 
     /**
@@ -266,51 +313,23 @@ public final class Cache<T> {
      * @return the items currently in the cache if any are currently cached
      */
     public @Nullable Iterable<T> get(@Nonnull ProviderContext ctx) {
-        synchronized( this ) {
-            if( System.currentTimeMillis() > (cacheStart + CalendarWrapper.DAY) ) {
-                clear();
-                return null;
-            }
-        }
-        CacheEntry<T> entry = null;
-        String endpoint = ctx.getCloud().getEndpoint();
-
-        if( cloudCache != null ) {
-            entry = cloudCache.get(endpoint);
-        }
-        else if( regionCache != null ) {
-            Map<String,CacheEntry<T>> map = regionCache.get(endpoint);
-
-            if( map != null ) {
-                entry = map.get(ctx.getRegionId());
-            }
-        }
-        else if( cloudAccountCache != null ) {
-            Map<String,CacheEntry<T>> map = cloudAccountCache.get(endpoint);
-
-            if( map != null ) {
-                entry = map.get(ctx.getAccountNumber());
-            }
-        }
-        else if( regionAccountCache != null ) {
-            Map<String,Map<String,CacheEntry<T>>> map = regionAccountCache.get(endpoint);
-
-            if( map != null ) {
-                Map<String,CacheEntry<T>> rmap = map.get(ctx.getRegionId());
+        return store.get(ctx);
+    }
 
-                if( rmap != null ) {
-                    entry = rmap.get(ctx.getAccountNumber());
-                }
-            }
-        }
-        if( entry == null ) {
-            return null;
-        }
-        if( entry.lastCacheClear + cacheTimeout.longValue() < System.currentTimeMillis() ) {
-            entry.items = null;
-            return null;
-        }
-        return entry.items.get();
+    /**
+     * Fetches the items currently cached for the context specified, loading them through the specified loader on a
+     * cache miss. If other threads are already loading items for the same context, this method waits for their
+     * load to complete and returns its result instead of loading the items again.
+     * If the cache was created with stale-while-revalidate or refresh-ahead {@link CacheOptions}, this method
+     * may return the cached value while reloading it in the background.
+     * @param ctx the context for the caching
+     * @param loader the loader to call on a cache miss
+     * @return the cached or newly loaded items, or <code>null</code> if the loader found nothing to cache
+     * @throws CloudException an error occurred with the cloud provider while loading the items
+     * @throws InternalException an error occurred within Dasein Cloud while loading the items
+     */
+    public @Nullable Iterable<T> getOrLoad(@Nonnull ProviderContext ctx, @Nonnull CacheLoader<Iterable<T>> loader) throws CloudException, InternalException {
+        return store.getOrLoad(ctx, loader);
     }
 
     /**
@@ -319,47 +338,6 @@ public final class Cache<T> {
      * @param list the items to be cached
      */
     public void put(@Nonnull ProviderContext ctx, @Nonnull Iterable<T> list) {
-        CacheEntry<T> entry = new CacheEntry<T>();
-        String endpoint = ctx.getCloud().getEndpoint();
-
-        entry.items = new SoftReference<Iterable<T>>(list);
-        entry.lastCacheClear = System.currentTimeMillis();
-        if( cloudCache != null ) {
-            cloudCache.put(endpoint, entry);
-        }
-        else if( regionCache != null ) {
-            Map<String,CacheEntry<T>> map = regionCache.get(endpoint);
-
-            if( map == null ) {
-                map = new HashMap<String, CacheEntry<T>>();
-                regionCache.put(endpoint, map);
-            }
-            map.put(ctx.getRegionId(), entry);
-        }
-        else if( cloudAccountCache != null ) {
-            Map<String,CacheEntry<T>> map = cloudAccountCache.get(endpoint);
-
-            if( map == null ) {
-                map = new HashMap<String, CacheEntry<T>>();
-                cloudAccountCache.put(endpoint, map);
-            }
-            map.put(ctx.getAccountNumber(), entry);
-        }
-        else if( regionAccountCache != null ) {
-            Map<String,Map<String,CacheEntry<T>>> map = regionAccountCache.get(endpoint);
-
-            if( map == null ) {
-                map = new HashMap<String, Map<String, CacheEntry<T>>>();
-                regionAccountCache.put(endpoint, map);
-            }
-
-            Map<String,CacheEntry<T>> rmap = map.get(ctx.getRegionId());
-
-            if( rmap == null ) {
-                rmap = new HashMap<String, CacheEntry<T>>();
-                map.put(ctx.getRegionId(), rmap);
-            }
-            rmap.put(ctx.getAccountNumber(), entry);
-        }
+        store.put(ctx, list);
     }
 }
@@ -0,0 +1,480 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * On-disk second tier for a {@link CacheStore}. Values are serialized and appended to a single file per cache
+ * together with the key and the time they were cached. The file is memory-mapped and indexed lazily the first
+ * time it is read, so a restarted process can serve its caches from disk instead of the cloud. Records are read
+ * back only when the in-memory tier has no value, either because the process restarted or because the garbage
+ * collector cleared the soft reference.
+ * <p>
+ * Record layout: key length (int), UTF-8 key, creation time (long), payload length (int), serialized payload.
+ * Later records for a key replace earlier ones; the file is compacted once superseded records make up most of it.
+ * </p>
+ * <p>
+ * Writes are queued and performed by a single background thread so that caching a value never waits on
+ * serialization or disk I/O; only the latest value queued for a key is written. Queued values are visible to reads
+ * straight away. Open files are flushed and closed by {@link #close()} or, failing that, when the JVM shuts down.
+ * Java offers no way to unmap a file, so on platforms that refuse to replace or truncate a mapped file (Windows)
+ * compaction and clearing may fail; the file then keeps working uncompacted and a warning is logged.
+ * </p>
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+final class CacheFile {
+    static private final Logger logger = Logger.getLogger(Cache.class);
+
+    static private final int  MAGIC          = 0x44434631; // DCF1
+    static private final int  HEADER_SIZE    = 4;
+    static private final long COMPACT_AFTER  = 1024L * 1024L;
+
+    static private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Cache File Writer");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private final Set<CacheFile> openFiles = new HashSet<CacheFile>();
+
+    static {
+        writer.allowCoreThreadTimeOut(true);
+        Runtime.getRuntime().addShutdownHook(new Thread("Cache File Shutdown") {
+            @Override
+            public void run() {
+                List<CacheFile> files;
+
+                synchronized( openFiles ) {
+                    files = new ArrayList<CacheFile>(openFiles);
+                }
+                for( CacheFile f : files ) {
+                    f.close();
+                }
+            }
+        });
+    }
+
+    static final class Stored {
+        final long   created;
+        final Object value;
+
+        Stored(long created, @Nonnull Object value) {
+            this.created = created;
+            this.value = value;
+        }
+    }
+
+    static private final class Record {
+        final long created;
+        final long offset;
+        final int  length;
+
+        Record(long created, long offset, int length) {
+            this.created = created;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File                                  file;
+    private final ConcurrentHashMap<String,Stored>      pending = new ConcurrentHashMap<String, Stored>();
+    private final AtomicBoolean                         flushScheduled = new AtomicBoolean(false);
+
+    private FileChannel         channel;
+    private Map<String,Record>  index;
+    private long                liveBytes;
+    private MappedByteBuffer    mapped;
+
+    CacheFile(@Nonnull File directory, @Nonnull String cacheName) {
+        this.file = new File(directory, cacheName.replaceAll("[^A-Za-z0-9._-]", "_") + ".cache");
+    }
+
+    synchronized void clear() {
+        pending.clear();
+        try {
+            open();
+            mapped = null;
+            channel.truncate(HEADER_SIZE);
+            index.clear();
+            liveBytes = 0L;
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to clear cache file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes any queued values and releases the file.
+     */
+    synchronized void close() {
+        flush();
+        release();
+        synchronized( openFiles ) {
+            openFiles.remove(this);
+        }
+    }
+
+    /**
+     * Writes the values queued by {@link #write(String, long, Object)}.
+     */
+    void flush() {
+        for( Map.Entry<String,Stored> entry : pending.entrySet() ) {
+            Stored stored = entry.getValue();
+
+            // the value stays visible in the queue until it can be read back from the file
+            append(entry.getKey(), stored);
+            pending.remove(entry.getKey(), stored);
+        }
+    }
+
+    private void release() {
+        if( channel != null ) {
+            try { channel.close(); }
+            catch( IOException ignore ) { /* ignore */ }
+            channel = null;
+            index = null;
+            mapped = null;
+        }
+    }
+
+    /**
+     * Reads the most recent value written for the specified key.
+     * @param key the cache key
+     * @param oldest the oldest acceptable creation time; older records are ignored
+     * @return the stored value with its creation time, or <code>null</code> if nothing usable is stored
+     */
+    @Nullable Stored read(@Nonnull String key, long oldest) {
+        Stored queued = pending.get(key);
+
+        if( queued != null ) {
+            return (queued.created < oldest ? null : queued);
+        }
+        return readStored(key, oldest);
+    }
+
+    private synchronized @Nullable Stored readStored(@Nonnull String key, long oldest) {
+        try {
+            open();
+            Record record = index.get(key);
+
+            if( record == null ) {
+                return null;
+            }
+            if( record.created < oldest ) {
+                remove(key, record);
+                return null;
+            }
+            ByteBuffer buffer;
+
+            if( mapped != null && record.offset + record.length <= mapped.capacity() ) {
+                buffer = mapped.duplicate();
+                buffer.position((int)record.offset);
+                buffer.limit((int)(record.offset + record.length));
+            }
+            else {
+                buffer = ByteBuffer.allocate(record.length);
+                while( buffer.hasRemaining() ) {
+                    if( channel.read(buffer, record.offset + buffer.position()) < 0 ) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                }
+                buffer.flip();
+            }
+            byte[] payload = new byte[record.length];
+
+            buffer.get(payload);
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+
+            try {
+                return new Stored(record.created, in.readObject());
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read " + key + " from cache file " + file + ": " + e.getMessage());
+            return null;
+        }
+        catch( ClassNotFoundException e ) {
+            logger.warn("Unable to read " + key + " from cache file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queues a value to be written in the background.
+     * @param key the cache key
+     * @param created the time the value was cached
+     * @param value the value to write
+     */
+    void write(@Nonnull String key, long created, @Nonnull Object value) {
+        pending.put(key, new Stored(created, value));
+        if( flushScheduled.compareAndSet(false, true) ) {
+            try {
+                writer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushScheduled.set(false);
+                        flush();
+                    }
+                });
+            }
+            catch( RejectedExecutionException e ) {
+                flushScheduled.set(false);
+                flush();
+            }
+        }
+    }
+
+    private void append(@Nonnull String key, @Nonnull Stored stored) {
+        byte[] payload;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+            out.writeObject(stored.value);
+            out.close();
+            payload = bytes.toByteArray();
+        }
+        catch( NotSerializableException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Not persisting " + key + " because it is not serializable: " + e.getMessage());
+            }
+            return;
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to serialize " + key + ": " + e.getMessage());
+            return;
+        }
+        append(key, stored, payload);
+    }
+
+    private synchronized void append(@Nonnull String key, @Nonnull Stored stored, @Nonnull byte[] payload) {
+        if( pending.get(key) != stored ) {
+            // cleared or replaced while being serialized
+            return;
+        }
+        long created = stored.created;
+
+        try {
+            open();
+            byte[] k = key.getBytes("utf-8");
+            ByteBuffer buffer = ByteBuffer.allocate(4 + k.length + 8 + 4 + payload.length);
+            long position = channel.size();
+
+            buffer.putInt(k.length).put(k).putLong(created).putInt(payload.length).put(payload);
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                channel.write(buffer, position + buffer.position());
+            }
+            Record old = index.put(key, new Record(created, position + 4 + k.length + 8 + 4, payload.length));
+
+            if( old != null ) {
+                liveBytes -= getRecordSize(k.length, old.length);
+            }
+            liveBytes += getRecordSize(k.length, payload.length);
+            if( channel.size() > COMPACT_AFTER && channel.size() > liveBytes * 2 ) {
+                compact();
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to write " + key + " to cache file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+
+        try {
+            FileChannel target = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = HEADER_SIZE;
+
+            raf.setLength(0L);
+            header.putInt(MAGIC).flip();
+            target.write(header, 0L);
+            for( Map.Entry<String,Record> entry : index.entrySet() ) {
+                Record record = entry.getValue();
+                byte[] k = entry.getKey().getBytes("utf-8");
+                ByteBuffer buffer = ByteBuffer.allocate(4 + k.length + 8 + 4 + record.length);
+
+                buffer.putInt(k.length).put(k).putLong(record.created).putInt(record.length);
+                while( buffer.hasRemaining() ) {
+                    if( channel.read(buffer, record.offset + buffer.position() - (4 + k.length + 8 + 4)) < 0 ) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                }
+                buffer.flip();
+                while( buffer.hasRemaining() ) {
+                    target.write(buffer, position + buffer.position());
+                }
+                position += buffer.limit();
+            }
+            target.force(false);
+        }
+        finally {
+            raf.close();
+        }
+        release();
+        if( !tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)) ) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            open();
+            throw new IOException("Unable to replace " + file + " with its compacted copy");
+        }
+        open();
+    }
+
+    private long getRecordSize(int keyLength, int payloadLength) {
+        return (4L + keyLength + 8L + 4L + payloadLength);
+    }
+
+    private void open() throws IOException {
+        if( channel != null ) {
+            return;
+        }
+        File directory = file.getParentFile();
+
+        if( directory != null && !directory.exists() && !directory.mkdirs() ) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        synchronized( openFiles ) {
+            openFiles.add(this);
+        }
+        index = new HashMap<String, Record>();
+        liveBytes = 0L;
+        if( channel.size() < HEADER_SIZE ) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            channel.truncate(0L);
+            header.putInt(MAGIC).flip();
+            channel.write(header, 0L);
+            return;
+        }
+        if( channel.size() > Integer.MAX_VALUE ) {
+            throw new IOException("Cache file " + file + " is too large to map");
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        if( mapped.getInt(0) != MAGIC ) {
+            logger.warn("Ignoring unrecognized cache file " + file);
+            mapped = null;
+            channel.truncate(0L);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            header.putInt(MAGIC).flip();
+            channel.write(header, 0L);
+            return;
+        }
+        int position = HEADER_SIZE;
+        int end = mapped.capacity();
+
+        while( position < end ) {
+            Record record = null;
+            String key = null;
+
+            if( end - position >= 4 ) {
+                int keyLength = mapped.getInt(position);
+
+                if( keyLength >= 0 && end - position - 4 - 8 - 4 >= keyLength ) {
+                    byte[] k = new byte[keyLength];
+                    ByteBuffer b = mapped.duplicate();
+
+                    b.position(position + 4);
+                    b.get(k);
+                    key = decode(k);
+
+                    long created = mapped.getLong(position + 4 + keyLength);
+                    int length = mapped.getInt(position + 4 + keyLength + 8);
+                    int offset = position + 4 + keyLength + 8 + 4;
+
+                    if( length >= 0 && offset + length <= end ) {
+                        record = new Record(created, offset, length);
+                    }
+                }
+            }
+            if( record == null || key == null ) {
+                logger.warn("Truncating incomplete record at " + position + " in cache file " + file);
+                mapped = null;
+                channel.truncate(position);
+                break;
+            }
+            Record old = index.put(key, record);
+
+            if( old != null ) {
+                liveBytes -= (record.offset - position) + old.length;
+            }
+            liveBytes += (record.offset - position) + record.length;
+            position = (int)(record.offset + record.length);
+        }
+    }
+
+    private void remove(@Nonnull String key, @Nonnull Record record) {
+        if( index.remove(key) != null ) {
+            try {
+                liveBytes -= getRecordSize(key.getBytes("utf-8").length, record.length);
+            }
+            catch( UnsupportedEncodingException ignore ) {
+                // utf-8 is always supported
+            }
+        }
+    }
+
+    private @Nonnull String decode(@Nonnull byte[] bytes) throws UnsupportedEncodingException {
+        return new String(bytes, "utf-8");
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Loads the value for a cache miss in {@link Cache#getOrLoad(ProviderContext, CacheLoader)} or
+ * {@link SingletonCache#getOrLoad(ProviderContext, CacheLoader)}. Only one loader runs at a time for any given
+ * cache key; concurrent callers missing on the same key wait for its result.
+ * @param <V> the type of value loaded
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public interface CacheLoader<V> {
+    /**
+     * Loads the value to be cached for the specified context, typically by calling the cloud provider.
+     * @param ctx the context for which the value is being loaded
+     * @return the loaded value or <code>null</code> if nothing should be cached
+     * @throws CloudException an error occurred with the cloud provider while loading the value
+     * @throws InternalException an error occurred within Dasein Cloud while loading the value
+     */
+    public @Nullable V load(@Nonnull ProviderContext ctx) throws CloudException, InternalException;
+}
@@ -36,9 +36,33 @@ public interface CacheMBean {
 
     public @Nonnull String[] getCaches();
 
+    public @Nonnegative long getCollectedCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getEntryCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getEstimatedWeight(@Nonnull String cacheName);
+
+    public @Nonnegative long getEvictionCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getExpirationCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getHitCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getLoadCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getLoadFailureCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getMissCount(@Nonnull String cacheName);
+
     public @Nonnegative long getNextTimeout(@Nonnull String cacheName);
 
+    public @Nonnegative long getSizeEvictionCount(@Nonnull String cacheName);
+
+    public @Nonnegative long getTotalLoadTimeInNanoseconds(@Nonnull String cacheName);
+
     public @Nonnegative long getTimeoutInSeconds(@Nonnull String cacheName);
 
+    public void resetStatistics(@Nonnull String cacheName);
+
     public void setTimeoutInSeconds(@Nonnull String cacheName, @Nonnegative long timeoutInSeconds);
 }
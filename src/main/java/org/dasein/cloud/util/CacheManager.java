@@ -25,10 +25,11 @@ import javax.annotation.Nullable;
 
 /**
  * Provides JMX access into cache management functionality. Through this bean, you can fetch a list of active caches, get
- * the meta-data around them, and clear them out.
+ * the meta-data around them, check how effective they are at saving API calls, and clear them out.
  * <p>Created by George Reese: 5/14/13 2:54 PM</p>
  * @author George Reese
  * @version 2013.07 (issue #58)
+ * @version 2014.11 added usage statistics
  * @since 2013.07
  */
 public class CacheManager implements CacheMBean {
@@ -66,6 +67,116 @@ public class CacheManager implements CacheMBean {
         return l;
     }
 
+    @Override
+    public long getCollectedCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getCollectedCount(cacheName);
+        }
+        return collections.getCollectedCount(cacheName);
+    }
+
+    @Override
+    public long getEntryCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getEntryCount(cacheName);
+        }
+        return collections.getEntryCount(cacheName);
+    }
+
+    @Override
+    public long getEstimatedWeight(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getEstimatedWeight(cacheName);
+        }
+        return collections.getEstimatedWeight(cacheName);
+    }
+
+    @Override
+    public long getEvictionCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getEvictionCount(cacheName);
+        }
+        return collections.getEvictionCount(cacheName);
+    }
+
+    @Override
+    public long getExpirationCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getExpirationCount(cacheName);
+        }
+        return collections.getExpirationCount(cacheName);
+    }
+
+    @Override
+    public long getHitCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getHitCount(cacheName);
+        }
+        return collections.getHitCount(cacheName);
+    }
+
+    @Override
+    public long getLoadCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getLoadCount(cacheName);
+        }
+        return collections.getLoadCount(cacheName);
+    }
+
+    @Override
+    public long getLoadFailureCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getLoadFailureCount(cacheName);
+        }
+        return collections.getLoadFailureCount(cacheName);
+    }
+
+    @Override
+    public long getMissCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getMissCount(cacheName);
+        }
+        return collections.getMissCount(cacheName);
+    }
+
+    @Override
+    public long getSizeEvictionCount(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getSizeEvictionCount(cacheName);
+        }
+        return collections.getSizeEvictionCount(cacheName);
+    }
+
+    @Override
+    public long getTotalLoadTimeInNanoseconds(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            return singletons.getTotalLoadTimeInNanoseconds(cacheName);
+        }
+        return collections.getTotalLoadTimeInNanoseconds(cacheName);
+    }
+
     @Override
     public long getNextTimeout(@Nonnull String cacheName) {
         CacheLevel l = collections.getCacheLevel(cacheName);
@@ -86,6 +197,18 @@ public class CacheManager implements CacheMBean {
         return collections.getTimeoutInSeconds(cacheName);
     }
 
+    @Override
+    public void resetStatistics(@Nonnull String cacheName) {
+        CacheLevel l = collections.getCacheLevel(cacheName);
+
+        if( l == null ) {
+            singletons.resetStatistics(cacheName);
+        }
+        else {
+            collections.resetStatistics(cacheName);
+        }
+    }
+
     @Override
     public void setTimeoutInSeconds(@Nonnull String cacheName, @Nonnegative long timeoutInSeconds) {
         CacheLevel l = collections.getCacheLevel(cacheName);
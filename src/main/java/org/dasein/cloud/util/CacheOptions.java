@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+
+/**
+ * Tuning options for a {@link Cache} or {@link SingletonCache}. By default, a cache is unbounded and relies on
+ * soft references and timeouts alone to release memory. Setting a maximum number of entries or a maximum weight
+ * causes the least recently used entries to be evicted once the bound is exceeded. The weight of an entry in a
+ * {@link Cache} is the number of items cached for that context; each entry in a {@link SingletonCache} weighs 1.
+ * <p>
+ * Caches read through <code>getOrLoad()</code> may additionally opt into background refreshes. With
+ * {@link #withStaleWhileRevalidate(TimePeriod)}, an expired value is still returned for up to the specified
+ * staleness while it is reloaded in the background. With {@link #withRefreshAhead(float)}, a value is reloaded
+ * in the background once it has lived for the specified fraction of the cache timeout, before it ever expires.
+ * After a background refresh fails, the next one for the same context waits at least a second, doubling with each
+ * further failure up to five minutes. Plain <code>get()</code> calls never return expired values.
+ * </p>
+ * <p>
+ * A cache may also be backed by files in a persistence directory with {@link #withPersistence(File)} so that its
+ * contents survive a restart. Cached values must be {@link java.io.Serializable} to be persisted; values that are not
+ * serializable are only cached in memory.
+ * </p>
+ * <p>
+ * Options only take effect when a cache is first created. Subsequent calls to <code>getInstance()</code> for
+ * the same cache name return the existing cache with its original options.
+ * </p>
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class CacheOptions {
+    /**
+     * Constructs a set of options for an unbounded cache.
+     * @return default cache options
+     */
+    static public @Nonnull CacheOptions getInstance() {
+        return new CacheOptions();
+    }
+
+    private int   maximumEntries;
+    private long  maximumStaleness;
+    private long  maximumWeight;
+    private File  persistenceDirectory;
+    private float refreshAhead;
+
+    private CacheOptions() { }
+
+    /**
+     * @return the maximum number of context entries the cache holds, 0 meaning no limit
+     */
+    public @Nonnegative int getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    /**
+     * @return the number of milliseconds past expiration during which a stale value may be served while it is refreshed
+     */
+    public @Nonnegative long getMaximumStaleness() {
+        return maximumStaleness;
+    }
+
+    /**
+     * @return the maximum total weight of all entries the cache holds, 0 meaning no limit
+     */
+    public @Nonnegative long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * @return the directory in which cache contents are persisted, <code>null</code> if they are kept only in memory
+     */
+    public @Nullable File getPersistenceDirectory() {
+        return persistenceDirectory;
+    }
+
+    /**
+     * @return the fraction of the cache timeout after which a value is refreshed in the background, 0 meaning never
+     */
+    public float getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Bounds the number of context entries (distinct endpoint/region/account combinations) held by the cache.
+     * @param maximumEntries the maximum number of entries, 0 for no limit
+     * @return this
+     */
+    public @Nonnull CacheOptions withMaximumEntries(@Nonnegative int maximumEntries) {
+        this.maximumEntries = Math.max(0, maximumEntries);
+        return this;
+    }
+
+    /**
+     * Bounds the total weight of the entries held by the cache. Entries are weighed only when a bound is set. For
+     * {@link Cache}, the weight of an entry is the size of its list if it is a {@link java.util.Collection}, or 1 for
+     * any other iterable, which is never iterated in case it can be read only once.
+     * @param maximumWeight the maximum total weight, 0 for no limit
+     * @return this
+     */
+    public @Nonnull CacheOptions withMaximumWeight(@Nonnegative long maximumWeight) {
+        this.maximumWeight = Math.max(0L, maximumWeight);
+        return this;
+    }
+
+    /**
+     * Persists cache contents to a file in the specified directory. Values are read back from the file, respecting the
+     * cache timeout, whenever they are not in memory, including after a restart. Each cache uses its own file, so
+     * several caches may share a directory, but the directory should not be shared by concurrently running processes.
+     * @param directory the directory holding the cache files
+     * @return this
+     */
+    public @Nonnull CacheOptions withPersistence(@Nonnull File directory) {
+        this.persistenceDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Refreshes values in the background once they have been cached for the specified fraction of the cache
+     * timeout. A value of 0.75 with a one hour timeout, for example, causes a <code>getOrLoad()</code> call 45 minutes
+     * after a value was cached to trigger a reload while still returning the cached value.
+     * @param fraction the fraction of the timeout, strictly between 0 and 1; 0 turns refresh-ahead off
+     * @return this
+     */
+    public @Nonnull CacheOptions withRefreshAhead(float fraction) {
+        if( fraction < 0f || fraction >= 1f ) {
+            throw new IllegalArgumentException("Refresh ahead fraction must be at least 0 and less than 1: " + fraction);
+        }
+        this.refreshAhead = fraction;
+        return this;
+    }
+
+    /**
+     * Allows <code>getOrLoad()</code> to return an expired value for up to the specified period past its expiration
+     * while the value is reloaded in the background.
+     * @param maximumStaleness how long past expiration a value may still be served
+     * @return this
+     */
+    public @Nonnull CacheOptions withStaleWhileRevalidate(@Nonnull TimePeriod<?> maximumStaleness) {
+        //noinspection unchecked
+        this.maximumStaleness = Math.max(0L, ((TimePeriod<Millisecond>)maximumStaleness.convertTo(TimePeriod.MILLISECOND)).longValue());
+        return this;
+    }
+}
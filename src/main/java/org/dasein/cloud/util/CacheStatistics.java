@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A point-in-time snapshot of the usage statistics for a {@link Cache} or {@link SingletonCache}. Counters are
+ * cumulative from the time the cache was created or its statistics were last reset.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class CacheStatistics {
+    private long collectedCount;
+    private long entryCount;
+    private long estimatedWeight;
+    private long expirationCount;
+    private long hitCount;
+    private long loadCount;
+    private long loadFailureCount;
+    private long missCount;
+    private long sizeEvictionCount;
+    private long totalLoadTimeInNanoseconds;
+
+    CacheStatistics(long hitCount, long missCount, long loadCount, long loadFailureCount, long totalLoadTimeInNanoseconds, long expirationCount, long sizeEvictionCount, long collectedCount, long entryCount, long estimatedWeight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadCount = loadCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeInNanoseconds = totalLoadTimeInNanoseconds;
+        this.expirationCount = expirationCount;
+        this.sizeEvictionCount = sizeEvictionCount;
+        this.collectedCount = collectedCount;
+        this.entryCount = entryCount;
+        this.estimatedWeight = estimatedWeight;
+    }
+
+    /**
+     * @return the number of entries dropped because the garbage collector cleared their soft reference
+     */
+    public @Nonnegative long getCollectedCount() {
+        return collectedCount;
+    }
+
+    /**
+     * @return the number of entries currently in the cache
+     */
+    public @Nonnegative long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the total weight of the entries currently in the cache, always 0 unless the cache has a weight bound
+     */
+    public @Nonnegative long getEstimatedWeight() {
+        return estimatedWeight;
+    }
+
+    /**
+     * @return the total number of entries removed for any reason other than an explicit clear
+     */
+    public @Nonnegative long getEvictionCount() {
+        return (expirationCount + sizeEvictionCount + collectedCount);
+    }
+
+    /**
+     * @return the number of entries dropped because they outlived the cache timeout
+     */
+    public @Nonnegative long getExpirationCount() {
+        return expirationCount;
+    }
+
+    /**
+     * @return the number of reads that found a cached value
+     */
+    public @Nonnegative long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the fraction of reads that found a cached value, or 0 if there have been no reads
+     */
+    public double getHitRate() {
+        long total = hitCount + missCount;
+
+        return (total == 0L ? 0d : ((double)hitCount)/total);
+    }
+
+    /**
+     * @return the number of successful loads through a {@link CacheLoader}
+     */
+    public @Nonnegative long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return the number of loads through a {@link CacheLoader} that threw an exception
+     */
+    public @Nonnegative long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return the number of reads that found no cached value
+     */
+    public @Nonnegative long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of entries evicted to honor the entry or weight bound of the cache
+     */
+    public @Nonnegative long getSizeEvictionCount() {
+        return sizeEvictionCount;
+    }
+
+    /**
+     * @return the total time spent in {@link CacheLoader} calls, successful or not
+     */
+    public @Nonnegative long getTotalLoadTimeInNanoseconds() {
+        return totalLoadTimeInNanoseconds;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "[hits=" + hitCount + ",misses=" + missCount + ",loads=" + loadCount + ",loadFailures=" + loadFailureCount +
+                ",loadNanos=" + totalLoadTimeInNanoseconds + ",expired=" + expirationCount + ",sizeEvicted=" + sizeEvictionCount +
+                ",collected=" + collectedCount + ",entries=" + entryCount + ",weight=" + estimatedWeight + "]";
+    }
+}
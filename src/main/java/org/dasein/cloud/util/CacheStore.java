@@ -0,0 +1,525 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.util.CalendarWrapper;
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage engine shared by {@link Cache} and {@link SingletonCache}. Entries live in a single concurrent map keyed
+ * by a flattened endpoint/region/account key whose parts depend on the {@link CacheLevel}, so reads never lock.
+ * Writers enforce the optional entry and weight bounds from {@link CacheOptions} by evicting the least recently
+ * used entries. Loads through {@link #getOrLoad(ProviderContext, CacheLoader)} are coalesced per key so that a
+ * cache miss results in a single call to the cloud no matter how many threads miss at once. When the options allow
+ * it, those loads may also serve a stale value while a small shared pool refreshes it in the background. When a
+ * persistence directory is configured, every value is also written to a {@link CacheFile} that is consulted
+ * whenever the in-memory map has no value for a key. Usage statistics are kept in {@link StripedCounter}s so that
+ * recording them does not add contention to reads.
+ * @param <V> the type of value stored for each context
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+final class CacheStore<V> {
+    static private final Logger logger = Logger.getLogger(Cache.class);
+
+    static private final char SEPARATOR = '\u0000';
+
+    static private final int REFRESH_THREADS    = 4;
+    static private final int REFRESH_QUEUE_SIZE = 256;
+
+    static private final long MINIMUM_REFRESH_BACKOFF = 1000L;
+    static private final long MAXIMUM_REFRESH_BACKOFF = 5L * 60000L;
+
+    static private final ThreadPoolExecutor refreshPool = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Cache Refresh " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        refreshPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Calculates the weight of a cached value for the purposes of the weight bound.
+     * @param <V> the type of value being weighed
+     */
+    static interface Weigher<V> {
+        @Nonnegative long getWeight(@Nonnull V value);
+    }
+
+    /**
+     * Delays the next background refresh of a key after a failed one, doubling the delay with each failure.
+     */
+    static final class RefreshBackoff {
+        final long delay;
+        final long retryAt;
+
+        RefreshBackoff(long delay, long now) {
+            this.delay = delay;
+            this.retryAt = now + delay;
+        }
+    }
+
+    static final class Entry<V> {
+        final String           key;
+        final SoftReference<V> value;
+        final long             created;
+        final long             weight;
+        volatile long          lastAccess;
+
+        Entry(@Nonnull String key, @Nonnull V value, @Nonnegative long weight, long created) {
+            this.key = key;
+            this.value = new SoftReference<V>(value);
+            this.weight = weight;
+            this.created = created;
+            this.lastAccess = System.nanoTime();
+        }
+
+        public @Nonnull String toString() { return key + "=" + value.get(); }
+    }
+
+    private final ConcurrentHashMap<String,Entry<V>>         entries = new ConcurrentHashMap<String, Entry<V>>();
+    private final Object                                     evictionLock = new Object();
+    private final CacheFile                                  file;
+    private final CacheLevel                                 level;
+    private final ConcurrentHashMap<String,FutureTask<V>>    loads = new ConcurrentHashMap<String, FutureTask<V>>();
+    private final ConcurrentHashMap<String,RefreshBackoff>   refreshBackoffs = new ConcurrentHashMap<String, RefreshBackoff>();
+    private final int                                        maximumEntries;
+    private final long                                       maximumStaleness;
+    private final long                                       maximumWeight;
+    private final float                                      refreshAhead;
+    private final AtomicLong                                 totalWeight = new AtomicLong(0L);
+    private final StripedCounter                             collections = new StripedCounter();
+    private final StripedCounter                             expirations = new StripedCounter();
+    private final StripedCounter                             hits = new StripedCounter();
+    private final StripedCounter                             loadCount = new StripedCounter();
+    private final StripedCounter                             loadFailures = new StripedCounter();
+    private final StripedCounter                             loadTime = new StripedCounter();
+    private final StripedCounter                             misses = new StripedCounter();
+    private final StripedCounter                             sizeEvictions = new StripedCounter();
+    private final Weigher<? super V>                         weigher;
+
+    private volatile long cacheStart;
+    private volatile long timeout;
+
+    CacheStore(@Nonnull String name, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeout, @Nonnull CacheOptions options, @Nonnull Weigher<? super V> weigher) {
+        File directory = options.getPersistenceDirectory();
+
+        this.file = (directory == null ? null : new CacheFile(directory, name));
+        this.level = level;
+        this.weigher = weigher;
+        this.maximumEntries = options.getMaximumEntries();
+        this.maximumWeight = options.getMaximumWeight();
+        this.maximumStaleness = options.getMaximumStaleness();
+        this.refreshAhead = options.getRefreshAhead();
+        setTimeout(timeout);
+        cacheStart = System.currentTimeMillis();
+    }
+
+    void clear() {
+        synchronized( evictionLock ) {
+            for( Entry<V> entry : entries.values() ) {
+                remove(entry);
+            }
+            if( file != null ) {
+                file.clear();
+            }
+            refreshBackoffs.clear();
+            cacheStart = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Writes any values still queued for the persistence file and releases it. The store remains usable and reopens
+     * the file when it next needs it.
+     */
+    void close() {
+        if( file != null ) {
+            file.close();
+        }
+    }
+
+    @Nullable V get(@Nonnull ProviderContext ctx) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = lookup(getKey(ctx), now);
+
+        V value = null;
+
+        if( entry != null && entry.created + timeout >= now ) {
+            value = touch(entry);
+        }
+        if( value == null ) {
+            misses.increment();
+        }
+        else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    @Nullable V getOrLoad(@Nonnull ProviderContext ctx, @Nonnull CacheLoader<V> loader) throws CloudException, InternalException {
+        String key = getKey(ctx);
+        long now = System.currentTimeMillis();
+        Entry<V> entry = lookup(key, now);
+
+        if( entry != null ) {
+            V value = touch(entry);
+
+            if( value != null ) {
+                long age = now - entry.created;
+
+                hits.increment();
+                // lookup() already dropped anything older than timeout + maximumStaleness
+                if( age > timeout || (refreshAhead > 0f && age >= (long)(timeout * refreshAhead)) ) {
+                    refresh(key, ctx, loader);
+                }
+                return value;
+            }
+        }
+        misses.increment();
+        while( true ) {
+            FutureTask<V> task = newLoad(ctx, loader);
+            FutureTask<V> current = loads.putIfAbsent(key, task);
+
+            if( current != null ) {
+                try {
+                    return await(current);
+                }
+                catch( CancellationException e ) {
+                    // a background refresh was rejected by the refresh pool, so load it ourselves
+                    continue;
+                }
+            }
+            try {
+                task.run();
+                return await(task);
+            }
+            finally {
+                loads.remove(key, task);
+            }
+        }
+    }
+
+    @Nonnull CacheLevel getCacheLevel() {
+        return level;
+    }
+
+    @Nonnegative int getEntryCount() {
+        return entries.size();
+    }
+
+    @Nonnull String getKey(@Nonnull ProviderContext ctx) {
+        StringBuilder key = new StringBuilder();
+
+        key.append(ctx.getCloud().getEndpoint());
+        switch( level ) {
+            case REGION: key.append(SEPARATOR).append(ctx.getRegionId()); break;
+            case CLOUD_ACCOUNT: key.append(SEPARATOR).append(ctx.getAccountNumber()); break;
+            case REGION_ACCOUNT: key.append(SEPARATOR).append(ctx.getRegionId()).append(SEPARATOR).append(ctx.getAccountNumber()); break;
+            default: break;
+        }
+        return key.toString();
+    }
+
+    long getNextTimeout() {
+        return (cacheStart + timeout);
+    }
+
+    @Nonnegative long getTimeout() {
+        return timeout;
+    }
+
+    @Nonnull CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.sum(), misses.sum(), loadCount.sum(), loadFailures.sum(), loadTime.sum(), expirations.sum(), sizeEvictions.sum(), collections.sum(), entries.size(), totalWeight.get());
+    }
+
+    @Nonnegative long getTotalWeight() {
+        return totalWeight.get();
+    }
+
+    void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        loadCount.reset();
+        loadFailures.reset();
+        loadTime.reset();
+        expirations.reset();
+        sizeEvictions.reset();
+        collections.reset();
+    }
+
+    void put(@Nonnull ProviderContext ctx, @Nonnull V value) {
+        Entry<V> entry = new Entry<V>(getKey(ctx), value, weigh(value), System.currentTimeMillis());
+        Entry<V> old = entries.put(entry.key, entry);
+
+        refreshBackoffs.remove(entry.key);
+
+        totalWeight.addAndGet(entry.weight);
+        if( old != null ) {
+            totalWeight.addAndGet(-old.weight);
+        }
+        if( isOverBounds() ) {
+            evict();
+        }
+        if( file != null ) {
+            file.write(entry.key, entry.created, value);
+        }
+    }
+
+    void setTimeout(@Nonnull TimePeriod<?> timeout) {
+        //noinspection unchecked
+        this.timeout = ((TimePeriod<Millisecond>)timeout.convertTo(TimePeriod.MILLISECOND)).longValue();
+    }
+
+    private @Nullable Entry<V> lookup(@Nonnull String key, long now) {
+        if( now > (cacheStart + CalendarWrapper.DAY) ) {
+            synchronized( evictionLock ) {
+                if( now > (cacheStart + CalendarWrapper.DAY) ) {
+                    clear();
+                }
+            }
+            return null;
+        }
+        Entry<V> entry = entries.get(key);
+
+        if( entry != null ) {
+            if( entry.created + timeout + maximumStaleness < now ) {
+                if( remove(entry) ) {
+                    expirations.increment();
+                }
+                return null;
+            }
+            if( entry.value.get() != null ) {
+                return entry;
+            }
+            if( remove(entry) ) {
+                collections.increment();
+            }
+        }
+        return restore(key, now);
+    }
+
+    private @Nonnull FutureTask<V> newLoad(@Nonnull final ProviderContext ctx, @Nonnull final CacheLoader<V> loader) {
+        return new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                long start = System.nanoTime();
+                V value;
+
+                try {
+                    value = loader.load(ctx);
+                }
+                catch( Exception e ) {
+                    loadFailures.increment();
+                    throw e;
+                }
+                finally {
+                    loadTime.add(System.nanoTime() - start);
+                }
+                loadCount.increment();
+                if( value != null ) {
+                    put(ctx, value);
+                }
+                return value;
+            }
+        });
+    }
+
+    private void refresh(@Nonnull final String key, @Nonnull ProviderContext ctx, @Nonnull CacheLoader<V> loader) {
+        if( loads.containsKey(key) ) {
+            return;
+        }
+        RefreshBackoff backoff = refreshBackoffs.get(key);
+
+        if( backoff != null && backoff.retryAt > System.currentTimeMillis() ) {
+            return;
+        }
+        final FutureTask<V> task = newLoad(ctx, loader);
+
+        if( loads.putIfAbsent(key, task) != null ) {
+            return;
+        }
+        try {
+            refreshPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                        task.get();
+                        refreshBackoffs.remove(key);
+                    }
+                    catch( ExecutionException e ) {
+                        RefreshBackoff previous = refreshBackoffs.get(key);
+                        long delay = (previous == null ? MINIMUM_REFRESH_BACKOFF : Math.min(MAXIMUM_REFRESH_BACKOFF, previous.delay * 2));
+
+                        refreshBackoffs.put(key, new RefreshBackoff(delay, System.currentTimeMillis()));
+                        logger.warn("Background refresh of " + key.replace(SEPARATOR, '/') + " failed, not retrying for " + delay + "ms: " + e.getCause().getMessage());
+                    }
+                    catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        loads.remove(key, task);
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            loads.remove(key, task);
+            task.cancel(false);
+        }
+    }
+
+    private @Nullable Entry<V> restore(@Nonnull String key, long now) {
+        if( file == null ) {
+            return null;
+        }
+        CacheFile.Stored stored = file.read(key, now - timeout - maximumStaleness);
+
+        if( stored == null ) {
+            return null;
+        }
+        //noinspection unchecked
+        V value = (V)stored.value;
+        Entry<V> entry = new Entry<V>(key, value, weigh(value), stored.created);
+        Entry<V> current = entries.putIfAbsent(key, entry);
+
+        if( current != null ) {
+            return current;
+        }
+        totalWeight.addAndGet(entry.weight);
+        if( isOverBounds() ) {
+            evict();
+        }
+        return entry;
+    }
+
+    private @Nullable V touch(@Nonnull Entry<V> entry) {
+        V value = entry.value.get();
+
+        if( value != null ) {
+            entry.lastAccess = System.nanoTime();
+        }
+        return value;
+    }
+
+    private @Nullable V await(@Nonnull FutureTask<V> task) throws CloudException, InternalException {
+        try {
+            return task.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while waiting for a cache load", e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            else if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            else if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            else if( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
+    private void evict() {
+        synchronized( evictionLock ) {
+            while( isOverBounds() ) {
+                Entry<V> oldest = null;
+                Iterator<Map.Entry<String,Entry<V>>> it = entries.entrySet().iterator();
+
+                while( it.hasNext() ) {
+                    Entry<V> candidate = it.next().getValue();
+
+                    if( candidate.value.get() == null ) {
+                        if( remove(candidate) ) {
+                            collections.increment();
+                        }
+                    }
+                    else if( oldest == null || candidate.lastAccess < oldest.lastAccess ) {
+                        oldest = candidate;
+                    }
+                }
+                if( oldest == null ) {
+                    return;
+                }
+                if( isOverBounds() && remove(oldest) ) {
+                    sizeEvictions.increment();
+                }
+            }
+        }
+    }
+
+    private long weigh(@Nonnull V value) {
+        return (maximumWeight > 0L ? weigher.getWeight(value) : 0L);
+    }
+
+    private boolean isOverBounds() {
+        return ((maximumEntries > 0 && entries.size() > maximumEntries) || (maximumWeight > 0L && totalWeight.get() > maximumWeight));
+    }
+
+    private boolean remove(@Nonnull Entry<V> entry) {
+        if( entries.remove(entry.key, entry) ) {
+            totalWeight.addAndGet(-entry.weight);
+            return true;
+        }
+        return false;
+    }
+}
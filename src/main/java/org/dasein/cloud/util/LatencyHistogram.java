@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-memory latency histogram in the style of HdrHistogram. Values are nanoseconds and are counted in
+ * log-linear buckets: exact below 32ns and within roughly 3% of the recorded value above it, up to about two
+ * minutes, beyond which everything lands in the last bucket. Samples are kept in one-minute slots so that
+ * statistics can be read over a sliding window of up to {@link #MAXIMUM_WINDOW} minutes.
+ * @version 2014.11 initial version
+ * @version 2014.11 public for use by the requester
+ * @since 2014.11
+ */
+public final class LatencyHistogram {
+    static public final int MAXIMUM_WINDOW = 15;
+
+    static private final int  SUB_BITS   = 5;
+    static private final int  SUB_COUNT  = 1 << SUB_BITS;
+    static private final int  HALF_COUNT = SUB_COUNT / 2;
+    static private final int  MAX_SHIFT  = 32;
+    static private final int  BUCKETS    = SUB_COUNT + MAX_SHIFT * HALF_COUNT;
+    static private final long ORIGIN     = System.nanoTime();
+    static private final long SLOT_NANOS = 60L * 1000000000L;
+
+    static private final class Slot {
+        final long            period;
+        final AtomicLongArray counts  = new AtomicLongArray(BUCKETS);
+        final AtomicLong      maximum = new AtomicLong(0L);
+
+        Slot(long period) { this.period = period; }
+    }
+
+    static int indexOf(long value) {
+        if( value < SUB_COUNT ) {
+            return (int)Math.max(0L, value);
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS + 1;
+
+        if( shift > MAX_SHIFT ) {
+            return BUCKETS - 1;
+        }
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int)((value >>> shift) - HALF_COUNT);
+    }
+
+    /**
+     * @param index a bucket index
+     * @return the value in the middle of the range of values counted in the specified bucket
+     */
+    static long valueOf(int index) {
+        if( index < SUB_COUNT ) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long low = ((long)(HALF_COUNT + (index - SUB_COUNT) % HALF_COUNT)) << shift;
+
+        return low + ((1L << shift) >>> 1);
+    }
+
+    private final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<Slot>(MAXIMUM_WINDOW);
+
+    /**
+     * @param windowInMinutes the number of most recent minutes to cover, from 1 to {@link #MAXIMUM_WINDOW}
+     * @return the statistics for the latencies recorded in the window
+     */
+    public @Nonnull LatencyStatistics getStatistics(@Nonnegative int windowInMinutes) {
+        return getStatistics(windowInMinutes, System.nanoTime());
+    }
+
+    @Nonnull LatencyStatistics getStatistics(@Nonnegative int windowInMinutes, long now) {
+        long current = getPeriod(now);
+        long[] counts = new long[BUCKETS];
+        long maximum = 0L;
+
+        windowInMinutes = Math.max(1, Math.min(MAXIMUM_WINDOW, windowInMinutes));
+        for( int i=0; i<MAXIMUM_WINDOW; i++ ) {
+            Slot slot = slots.get(i);
+
+            if( slot != null && slot.period <= current && slot.period > current - windowInMinutes ) {
+                for( int j=0; j<BUCKETS; j++ ) {
+                    counts[j] += slot.counts.get(j);
+                }
+                maximum = Math.max(maximum, slot.maximum.get());
+            }
+        }
+        return new LatencyStatistics(counts, maximum, windowInMinutes);
+    }
+
+    /**
+     * Records one latency.
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(@Nonnegative long nanos) {
+        record(nanos, System.nanoTime());
+    }
+
+    void record(@Nonnegative long nanos, long now) {
+        long period = getPeriod(now);
+        int i = (int)(period % MAXIMUM_WINDOW);
+        Slot slot = slots.get(i);
+
+        while( slot == null || slot.period != period ) {
+            if( slot != null && slot.period > period ) {
+                return;
+            }
+            Slot s = new Slot(period);
+
+            if( slots.compareAndSet(i, slot, s) ) {
+                slot = s;
+                break;
+            }
+            slot = slots.get(i);
+        }
+        slot.counts.incrementAndGet(indexOf(nanos));
+
+        long max = slot.maximum.get();
+
+        while( nanos > max && !slot.maximum.compareAndSet(max, nanos) ) {
+            max = slot.maximum.get();
+        }
+    }
+
+    private long getPeriod(long now) {
+        return Math.max(0L, now - ORIGIN) / SLOT_NANOS;
+    }
+}
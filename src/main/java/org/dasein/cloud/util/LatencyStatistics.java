@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A snapshot of the latencies recorded by {@link APITrace} for an API call or operation over a sliding window.
+ * Percentiles are accurate to within about 3% of the recorded values. All values are in nanoseconds.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class LatencyStatistics {
+    private long[] counts;
+    private long   count;
+    private long   maximum;
+    private int    windowInMinutes;
+
+    LatencyStatistics(@Nonnull long[] counts, long maximum, int windowInMinutes) {
+        this.counts = counts;
+        this.maximum = maximum;
+        this.windowInMinutes = windowInMinutes;
+        for( long c : counts ) {
+            count += c;
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded in the window
+     */
+    public @Nonnegative long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the highest latency recorded in the window, or 0 if nothing was recorded
+     */
+    public @Nonnegative long getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return the median latency in the window
+     */
+    public @Nonnegative long getP50() {
+        return getValueAtPercentile(50d);
+    }
+
+    /**
+     * @return the 90th percentile latency in the window
+     */
+    public @Nonnegative long getP90() {
+        return getValueAtPercentile(90d);
+    }
+
+    /**
+     * @return the 99th percentile latency in the window
+     */
+    public @Nonnegative long getP99() {
+        return getValueAtPercentile(99d);
+    }
+
+    /**
+     * Provides the latency at or below which the specified percentage of recorded latencies fall.
+     * @param percentile a percentile between 0 and 100
+     * @return the latency at the specified percentile, or 0 if nothing was recorded
+     */
+    public @Nonnegative long getValueAtPercentile(double percentile) {
+        if( count == 0L ) {
+            return 0L;
+        }
+        long target = Math.max(1L, (long)Math.ceil(Math.max(0d, Math.min(100d, percentile)) / 100d * count));
+        long seen = 0L;
+
+        for( int i=0; i<counts.length; i++ ) {
+            seen += counts[i];
+            if( seen >= target ) {
+                return Math.min(LatencyHistogram.valueOf(i), maximum);
+            }
+        }
+        return maximum;
+    }
+
+    /**
+     * @return the number of minutes covered by these statistics
+     */
+    public @Nonnegative int getWindowInMinutes() {
+        return windowInMinutes;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "[count=" + count + ",p50=" + getP50() + ",p90=" + getP90() + ",p99=" + getP99() + ",max=" + maximum + ",window=" + windowInMinutes + "m]";
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.dc.Region;
+import org.dasein.util.Jiterator;
+import org.dasein.util.JiteratorPopulator;
+import org.dasein.util.PopulatorThread;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the same operation against several regions of a cloud at once, for example to list the virtual machines in
+ * every region of an account. Each region gets its own connected {@link CloudProvider}, derived from the caller's
+ * context with {@link ProviderContext#copy(String)}. Regions run on a shared, bounded pool, and each cloud endpoint
+ * has at most <code>regionConcurrency</code> regions in progress. Results are returned in the order the regions
+ * complete. A region that fails is reported in its {@link RegionResult} and does not affect the others.
+ * <pre>
+ *     for( RegionFanOut.RegionResult&lt;VirtualMachine&gt; result : RegionFanOut.execute(provider, null, new RegionFanOut.RegionTask&lt;VirtualMachine&gt;() {
+ *         public Iterable&lt;VirtualMachine&gt; call(CloudProvider regionProvider) throws CloudException, InternalException {
+ *             return regionProvider.getComputeServices().getVirtualMachineSupport().listVirtualMachines();
+ *         }
+ *     }) ) {
+ *         ...
+ *     }
+ * </pre>
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public final class RegionFanOut {
+    /**
+     * The name of the custom context property holding the highest number of regions of one cloud endpoint that are
+     * worked on at once (default 8).
+     */
+    static public final String REGION_CONCURRENCY = "regionConcurrency";
+
+    static private final int FAN_OUT_THREADS = Math.max(1, Integer.getInteger("dasein.fanOutThreads", 32));
+
+    static private final ThreadPoolExecutor fanOutPool = new ThreadPoolExecutor(FAN_OUT_THREADS, FAN_OUT_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Region Fan-out " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private final ConcurrentHashMap<String,Semaphore> endpointPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    static {
+        fanOutPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The operation to be run in each region.
+     * @param <T> the type of item the operation lists
+     */
+    public interface RegionTask<T> {
+        /**
+         * Runs the operation in a single region. The items returned are read before the regional provider is closed.
+         * @param regionProvider a provider connected to the region
+         * @return the items found in the region, or <code>null</code> for none
+         * @throws CloudException an error occurred with the cloud provider
+         * @throws InternalException an error occurred within Dasein Cloud
+         */
+        public @Nullable Iterable<T> call(@Nonnull CloudProvider regionProvider) throws CloudException, InternalException;
+    }
+
+    /**
+     * The outcome of running a {@link RegionTask} in one region.
+     * @param <T> the type of item the operation lists
+     */
+    static public final class RegionResult<T> {
+        private final String    regionId;
+        private final List<T>   items;
+        private final Exception error;
+
+        private RegionResult(@Nonnull String regionId, @Nullable List<T> items, @Nullable Exception error) {
+            this.regionId = regionId;
+            this.items = items;
+            this.error = error;
+        }
+
+        /**
+         * @return the error that caused the operation to fail in this region, if it failed
+         */
+        public @Nullable Exception getError() {
+            return error;
+        }
+
+        /**
+         * @return the items found in the region, empty if the operation failed
+         */
+        public @Nonnull List<T> getItems() {
+            if( items == null ) {
+                return Collections.emptyList();
+            }
+            return items;
+        }
+
+        /**
+         * @return the region in which the operation ran
+         */
+        public @Nonnull String getRegionId() {
+            return regionId;
+        }
+
+        /**
+         * @return true if the operation completed in this region
+         */
+        public boolean isSuccessful() {
+            return (error == null);
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return regionId + (error == null ? " " + getItems().size() + " items" : " failed: " + error.getMessage());
+        }
+    }
+
+    /**
+     * Runs an operation in several regions at once.
+     * @param provider a provider connected to the cloud account; its context is copied for each region
+     * @param regionIds the regions in which to run the operation, or <code>null</code> for all regions in the cloud
+     * @param task the operation to run in each region
+     * @param <T> the type of item the operation lists
+     * @return the outcome for each region in the order the regions complete
+     * @throws CloudException an error occurred with the cloud provider listing the regions
+     * @throws InternalException the provider is not connected or an error occurred listing the regions
+     */
+    static public @Nonnull <T> Iterable<RegionResult<T>> execute(@Nonnull CloudProvider provider, @Nullable Collection<String> regionIds, @Nonnull final RegionTask<T> task) throws CloudException, InternalException {
+        final ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new InternalException("The provider is not connected");
+        }
+        if( regionIds == null ) {
+            regionIds = new ArrayList<String>();
+            for( Region region : provider.getDataCenterServices().listRegions() ) {
+                regionIds.add(region.getProviderRegionId());
+            }
+        }
+        final LinkedList<String> pending = new LinkedList<String>(new LinkedHashSet<String>(regionIds));
+        final Semaphore permits = getPermits(ctx);
+
+        // regions are handed to the pool as permits for the endpoint free up and their results are pushed
+        // to the iterator in the order they complete
+        PopulatorThread<RegionResult<T>> populator = new PopulatorThread<RegionResult<T>>(new JiteratorPopulator<RegionResult<T>>() {
+            @Override
+            public void populate(@Nonnull Jiterator<RegionResult<T>> iterator) throws Exception {
+                ExecutorCompletionService<RegionResult<T>> completion = new ExecutorCompletionService<RegionResult<T>>(fanOutPool);
+                int inFlight = 0;
+
+                while( !pending.isEmpty() || inFlight > 0 ) {
+                    if( inFlight == 0 ) {
+                        permits.acquire();
+                        submit(completion, ctx, pending.removeFirst(), task, permits);
+                        inFlight++;
+                    }
+                    while( !pending.isEmpty() && permits.tryAcquire() ) {
+                        submit(completion, ctx, pending.removeFirst(), task, permits);
+                        inFlight++;
+                    }
+                    iterator.push(completion.take().get());
+                    inFlight--;
+                }
+            }
+        });
+
+        populator.populate();
+        return populator.getResult();
+    }
+
+    static private @Nonnull Semaphore getPermits(@Nonnull ProviderContext ctx) {
+        String key = ctx.getCloud().getEndpoint();
+        Semaphore permits = endpointPermits.get(key);
+
+        if( permits == null ) {
+            int concurrency = 8;
+            String value = ctx.getCustomProperties().getProperty(REGION_CONCURRENCY);
+
+            if( value != null ) {
+                try {
+                    concurrency = Math.max(1, Integer.parseInt(value.trim()));
+                }
+                catch( NumberFormatException ignore ) {
+                    // use the default
+                }
+            }
+            permits = new Semaphore(concurrency);
+            Semaphore p = endpointPermits.putIfAbsent(key, permits);
+
+            if( p != null ) {
+                permits = p;
+            }
+        }
+        return permits;
+    }
+
+    static private <T> void submit(@Nonnull ExecutorCompletionService<RegionResult<T>> completion, @Nonnull final ProviderContext ctx, @Nonnull final String regionId, @Nonnull final RegionTask<T> task, @Nonnull final Semaphore permits) {
+        try {
+            completion.submit(new Callable<RegionResult<T>>() {
+                @Override
+                public RegionResult<T> call() {
+                    try {
+                        CloudProvider regionProvider = ctx.copy(regionId).connect();
+
+                        try {
+                            List<T> items = new ArrayList<T>();
+                            Iterable<T> found = task.call(regionProvider);
+
+                            if( found != null ) {
+                                for( T item : found ) {
+                                    items.add(item);
+                                }
+                            }
+                            return new RegionResult<T>(regionId, items, null);
+                        }
+                        finally {
+                            regionProvider.close();
+                        }
+                    }
+                    catch( Exception e ) {
+                        return new RegionResult<T>(regionId, null, e);
+                    }
+                    finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        catch( RuntimeException e ) {
+            permits.release();
+            throw e;
+        }
+    }
+}
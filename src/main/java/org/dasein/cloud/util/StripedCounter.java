@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads updates across several cache-line padded cells chosen by thread so that many threads
+ * can increment it without contending on a single atomic. Reads sum the cells and are therefore more expensive
+ * than writes, which suits statistics that are updated on every call but only read by monitoring.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+final class StripedCounter {
+    static private final int PADDING = 8;
+    static private final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1));
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void add(long value) {
+        cells.addAndGet(((int)Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, value);
+    }
+
+    void increment() {
+        add(1L);
+    }
+
+    void reset() {
+        for( int i=0; i<STRIPES; i++ ) {
+            cells.set(i * PADDING, 0L);
+        }
+    }
+
+    long sum() {
+        long sum = 0L;
+
+        for( int i=0; i<STRIPES; i++ ) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * The compiled form of the tag criteria accepted by {@link org.dasein.cloud.CloudProvider#matchesTags(Map, String, String, Map)},
+ * for filters that check many resources against the same criteria. The criteria are copied and lower-cased once when
+ * the matcher is constructed, criteria on ordinary tags are checked before the more expensive case-insensitive checks
+ * of <code>Name</code> and <code>Description</code>, and a resource's name and description are only lower-cased when
+ * those criteria are present.
+ * Matching is otherwise identical to <code>matchesTags()</code>.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public final class TagMatcher {
+    private final String[] keys;
+    private final String[] values;
+    private final int      ordinary;
+
+    /**
+     * Compiles tag criteria.
+     * @param valuesToMatch the tag values to match by tag name, where <code>Name</code> and <code>Description</code> also
+     *                      match the resource name and description
+     */
+    public TagMatcher(@Nullable Map<String,String> valuesToMatch) {
+        ArrayList<String> k = new ArrayList<String>();
+        ArrayList<String> v = new ArrayList<String>();
+        int count = 0;
+
+        if( valuesToMatch != null ) {
+            for( Map.Entry<String,String> entry : valuesToMatch.entrySet() ) {
+                String key = entry.getKey();
+                String value = (entry.getValue() == null ? null : entry.getValue().toLowerCase());
+
+                if( key.equals("Name") || key.equals("Description") ) {
+                    k.add(key);
+                    v.add(value);
+                }
+                else {
+                    k.add(count, key);
+                    v.add(count, value);
+                    count++;
+                }
+            }
+        }
+        keys = k.toArray(new String[k.size()]);
+        values = v.toArray(new String[v.size()]);
+        ordinary = count;
+    }
+
+    /**
+     * @return true if there are no criteria, so that every resource matches
+     */
+    public boolean isEmpty() {
+        return (keys.length == 0);
+    }
+
+    /**
+     * Matches a resource against the criteria.
+     * @param currentValues the tags of the resource
+     * @param name the name of the resource
+     * @param description the description of the resource
+     * @return true if the resource matches all criteria
+     */
+    public boolean matches(@Nonnull Map<String, ?> currentValues, @Nonnull String name, @Nonnull String description) {
+        for( int i=0; i<ordinary; i++ ) {
+            String v = values[i];
+            Object t = currentValues.get(keys[i]);
+
+            if( t == null && v == null ) {
+                continue;
+            }
+            if( t == null || v == null || !t.toString().contains(v) ) {
+                return false;
+            }
+        }
+        for( int i=ordinary; i<keys.length; i++ ) {
+            String v = values[i];
+
+            if( v == null ) {
+                return false;
+            }
+            Object t = currentValues.get(keys[i]);
+            String text;
+
+            if( keys[i].equals("Name") ) {
+                text = name.toLowerCase();
+            }
+            else {
+                text = description.toLowerCase();
+            }
+            if( !text.contains(v) && (t == null || !t.toString().toLowerCase().contains(v)) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
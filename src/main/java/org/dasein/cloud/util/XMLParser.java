@@ -19,56 +19,140 @@
 
 package org.dasein.cloud.util;
 
+import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A special class to minimize the issues associated with synchronization bugs in Xerces. It sucks that we have to do this,
  * but it has to be done.
+ * <p>
+ * Document builders are pooled, never shared between threads, and at most <code>dasein.xml.poolSize</code> (a system
+ * property, default 32) idle builders are kept. Drivers that only need a few values from a large response should
+ * prefer {@link #stream(InputStream, ElementHandler)}, which reads the response without building a DOM.
+ * </p>
  * <p>Created by George Reese: 2/21/13 10:16 AM</p>
  * @author George Reese
  * @version 2013.04
+ * @version 2014.11 bounded lock-free pool with metrics, StAX streaming
  * @since 2013.04
  */
 public class XMLParser {
+    static private final Logger logger = Logger.getLogger(XMLParser.class);
+
     static public class DBPair {
         public DocumentBuilderFactory factory;
         public DocumentBuilder builder;
 
         public void release() {
-            builder.reset();
-            synchronized( xercesSucksWorkaround ) {
-                xercesSucksWorkaround.push(this);
+            try {
+                builder.reset();
+            }
+            catch( UnsupportedOperationException e ) {
+                discarded.incrementAndGet();
+                return;
+            }
+            if( idle.incrementAndGet() > MAXIMUM_IDLE ) {
+                idle.decrementAndGet();
+                discarded.incrementAndGet();
+                return;
             }
+            xercesSucksWorkaround.offer(this);
         }
     }
 
-    static private final Stack<DBPair> xercesSucksWorkaround = new Stack<DBPair>();
+    /**
+     * Receives the elements of a document read by {@link #stream(InputStream, ElementHandler)}.
+     */
+    static public interface ElementHandler {
+        /**
+         * Called at the start of every element. The handler may read the attributes of the element from the reader, or
+         * its text with {@link XMLStreamReader#getElementText()}, but should not otherwise move the reader.
+         * @param path the local names of the enclosing elements and of this element separated by slashes, such as
+         *             <code>DescribeInstancesResponse/reservationSet/item</code>
+         * @param reader the reader, positioned at the start of the element
+         * @return true to continue reading the document, false to stop
+         * @throws XMLStreamException an error occurred reading the element
+         */
+        boolean startElement(@Nonnull String path, @Nonnull XMLStreamReader reader) throws XMLStreamException;
+    }
+
+    static private final int MAXIMUM_IDLE = Math.max(0, Integer.getInteger("dasein.xml.poolSize", 32));
+
+    static private final ConcurrentLinkedQueue<DBPair> xercesSucksWorkaround = new ConcurrentLinkedQueue<DBPair>();
+    static private final AtomicInteger                 idle                  = new AtomicInteger(0);
+    static private final AtomicLong                    created               = new AtomicLong(0L);
+    static private final AtomicLong                    reused                = new AtomicLong(0L);
+    static private final AtomicLong                    discarded             = new AtomicLong(0L);
+
+    static private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
 
     static public @Nonnull DBPair getCachedDocumentBuilder() throws ParserConfigurationException {
-        synchronized( xercesSucksWorkaround ) {
-            if( !xercesSucksWorkaround.isEmpty() ) {
-                return xercesSucksWorkaround.pop();
-            }
+        DBPair pair = xercesSucksWorkaround.poll();
+
+        if( pair != null ) {
+            idle.decrementAndGet();
+            reused.incrementAndGet();
+            return pair;
         }
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         DocumentBuilder builder = dbf.newDocumentBuilder();
 
-        DBPair pair = new DBPair();
-
+        pair = new DBPair();
         pair.factory = dbf;
         pair.builder = builder;
+        created.incrementAndGet();
         return pair;
     }
 
+    /**
+     * @return the number of document builders created because none was idle in the pool
+     */
+    static public @Nonnegative long getBuildersCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return the number of document builders dropped on release because the pool was full or they could not be reset
+     */
+    static public @Nonnegative long getBuildersDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the number of times an idle document builder was taken from the pool
+     */
+    static public @Nonnegative long getBuildersReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return the number of idle document builders in the pool
+     */
+    static public @Nonnegative int getIdleBuilders() {
+        return Math.max(0, idle.get());
+    }
+
     static public Document parse(@Nonnull InputStream input) throws ParserConfigurationException, IOException, SAXException {
         DBPair pair = getCachedDocumentBuilder();
 
@@ -82,4 +166,73 @@ public class XMLParser {
             pair.release();
         }
     }
+
+    /**
+     * Reads a document element by element without building a DOM, passing the start of every element to the
+     * specified handler. DTDs and external entities are not processed. The input is closed when reading completes,
+     * whether or not the handler stopped early.
+     * <pre>
+     *     final ArrayList&lt;String&gt; ids = new ArrayList&lt;String&gt;();
+     *
+     *     XMLParser.stream(input, new XMLParser.ElementHandler() {
+     *         public boolean startElement(String path, XMLStreamReader reader) throws XMLStreamException {
+     *             if( path.endsWith("/instancesSet/item/instanceId") ) {
+     *                 ids.add(reader.getElementText());
+     *             }
+     *             return true;
+     *         }
+     *     });
+     * </pre>
+     * @param input the document
+     * @param handler receives the elements of the document
+     * @throws IOException the document could not be read or is not well-formed XML
+     */
+    static public void stream(@Nonnull InputStream input, @Nonnull ElementHandler handler) throws IOException {
+        XMLStreamReader reader = null;
+
+        try {
+            StringBuilder path = new StringBuilder();
+            int[] lengths = new int[16];
+            int depth = 0;
+
+            // factories are not guaranteed to be thread-safe; readers created from them are used by one thread only
+            synchronized( inputFactory ) {
+                reader = inputFactory.createXMLStreamReader(input);
+            }
+            while( reader.hasNext() ) {
+                int event = reader.next();
+
+                if( event == XMLStreamConstants.START_ELEMENT ) {
+                    if( depth == lengths.length ) {
+                        int[] tmp = new int[depth * 2];
+
+                        System.arraycopy(lengths, 0, tmp, 0, depth);
+                        lengths = tmp;
+                    }
+                    lengths[depth++] = path.length();
+                    if( path.length() > 0 ) {
+                        path.append('/');
+                    }
+                    path.append(reader.getLocalName());
+                    if( !handler.startElement(path.toString(), reader) ) {
+                        return;
+                    }
+                    event = reader.getEventType();
+                }
+                if( event == XMLStreamConstants.END_ELEMENT && depth > 0 ) {
+                    path.setLength(lengths[--depth]);
+                }
+            }
+        }
+        catch( XMLStreamException e ) {
+            throw new IOException("Unable to read XML: " + e.getMessage(), e);
+        }
+        finally {
+            if( reader != null ) {
+                try { reader.close(); }
+                catch( XMLStreamException e ) { logger.warn("Unable to close XML reader: " + e.getMessage()); }
+            }
+            input.close();
+        }
+    }
 }
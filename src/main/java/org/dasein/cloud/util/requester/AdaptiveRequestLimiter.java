@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default {@link RequestLimiter}, which limits requests separately for every endpoint, account, and API action.
+ * The action is the value of an <code>Action</code> query parameter when the request has one, as with the query APIs
+ * of AWS and its imitators, or the HTTP method otherwise. Two limits apply to each:
+ * <ul>
+ *     <li>an optional token bucket that caps the sustained request rate while allowing short bursts</li>
+ *     <li>an adaptive limit on concurrent requests that grows by one for every window of successful requests and is
+ *     halved whenever the provider reports throttling (additive increase, multiplicative decrease)</li>
+ * </ul>
+ * <p>
+ * Limits are configured through the custom properties of the provider context:
+ * </p>
+ * <ul>
+ *     <li>requestRate - the sustained number of requests per second (default unlimited)</li>
+ *     <li>requestBurst - the number of requests that may be sent at once after a quiet period (default the rate)</li>
+ *     <li>requestConcurrency - the highest number of concurrent requests (default 64)</li>
+ *     <li>requestMinConcurrency - the lowest the concurrency limit may fall when throttled (default 1)</li>
+ *     <li>requestLimitTimeout - the seconds to wait for a permit before failing with a throttling error (default 120)</li>
+ * </ul>
+ * @version 2014.11 initial version
+ * @version 2014.11 tokens refunded for requests that never got a slot
+ * @since 2014.11
+ */
+public class AdaptiveRequestLimiter implements RequestLimiter {
+    static private final Logger logger = Logger.getLogger(AdaptiveRequestLimiter.class);
+
+    static public final String RATE            = "requestRate";
+    static public final String BURST           = "requestBurst";
+    static public final String CONCURRENCY     = "requestConcurrency";
+    static public final String MIN_CONCURRENCY = "requestMinConcurrency";
+    static public final String TIMEOUT         = "requestLimitTimeout";
+
+    /**
+     * Throttling responses that arrive within this many milliseconds of a decrease are treated as part of the same
+     * burst and do not shrink the limit again.
+     */
+    static private final long DECREASE_INTERVAL = 1000L;
+
+    static private final class Limit implements Permit {
+        final double rate;
+        final double burst;
+        final double maxConcurrency;
+        final double minConcurrency;
+        final long   timeout;
+
+        double concurrency;
+        int    inFlight;
+        long   lastDecrease;
+        double tokens;
+        long   lastRefill = System.nanoTime();
+
+        Limit(double rate, double burst, double maxConcurrency, double minConcurrency, long timeout) {
+            this.rate = rate;
+            this.burst = burst;
+            this.maxConcurrency = maxConcurrency;
+            this.minConcurrency = minConcurrency;
+            this.timeout = timeout;
+            this.concurrency = maxConcurrency;
+            this.tokens = burst;
+        }
+
+        @Override
+        public synchronized void release(@Nullable CloudErrorType error) {
+            inFlight--;
+            if( error == null ) {
+                concurrency = Math.min(maxConcurrency, concurrency + 1d/concurrency);
+            }
+            else if( error.equals(CloudErrorType.THROTTLING) ) {
+                long now = System.currentTimeMillis();
+
+                if( now - lastDecrease > DECREASE_INTERVAL ) {
+                    lastDecrease = now;
+                    concurrency = Math.max(minConcurrency, concurrency / 2d);
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Throttled; reducing concurrency limit to " + (int)concurrency);
+                    }
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * Reserves a token, going into debt if none is available.
+         * @return the number of nanoseconds to wait before the reserved token is earned
+         */
+        synchronized long reserve() {
+            if( rate <= 0d ) {
+                return 0L;
+            }
+            long now = System.nanoTime();
+
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000000000d);
+            lastRefill = now;
+            tokens -= 1d;
+            return (tokens >= 0d ? 0L : (long)(-tokens / rate * 1000000000d));
+        }
+
+        /**
+         * Gives back a token taken by {@link #reserve()} for a request that was never sent.
+         */
+        synchronized void refund() {
+            if( rate <= 0d ) {
+                return;
+            }
+            tokens = Math.min(burst, tokens + 1d);
+        }
+
+        synchronized void enter(long deadline) throws InterruptedException, CloudException {
+            while( inFlight >= (int)concurrency ) {
+                long wait = deadline - System.currentTimeMillis();
+
+                if( wait <= 0L ) {
+                    throw new CloudException(CloudErrorType.THROTTLING, 0, null, "Timed out waiting for one of " + (int)concurrency + " concurrent request slots");
+                }
+                wait(wait);
+            }
+            inFlight++;
+        }
+    }
+
+    static @Nonnull String getAction(@Nonnull HttpUriRequest request) {
+        String query = request.getURI().getRawQuery();
+
+        if( query != null ) {
+            for( String parameter : query.split("&") ) {
+                if( parameter.regionMatches(true, 0, "Action=", 0, 7) ) {
+                    return parameter.substring(7);
+                }
+            }
+        }
+        return request.getMethod();
+    }
+
+    static private double getDouble(@Nullable Properties properties, @Nonnull String name, double defaultValue) {
+        String value = (properties == null ? null : properties.getProperty(name));
+
+        if( value != null ) {
+            try {
+                return Double.parseDouble(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    private final ConcurrentHashMap<String,Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+    @Override
+    public @Nonnull Permit acquire(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request) throws CloudException {
+        Limit limit = getLimit(provider, request);
+        long deadline = System.currentTimeMillis() + limit.timeout;
+
+        long wait = limit.reserve();
+        boolean entered = false;
+
+        try {
+            if( wait > 0L ) {
+                if( wait / 1000000L > limit.timeout ) {
+                    throw new CloudException(CloudErrorType.THROTTLING, 0, null, "Request rate of " + limit.rate + "/s exceeded");
+                }
+                Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+            }
+            limit.enter(deadline);
+            entered = true;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting to send request", e);
+        }
+        finally {
+            if( !entered ) {
+                limit.refund();
+            }
+        }
+        return limit;
+    }
+
+    private @Nonnull Limit getLimit(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request) {
+        ProviderContext ctx = provider.getContext();
+        URI uri = request.getURI();
+        String key = uri.getHost() + ":" + uri.getPort() + "/" + (ctx == null ? "" : ctx.getAccountNumber()) + "/" + getAction(request);
+        Limit limit = limits.get(key);
+
+        if( limit == null ) {
+            Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+            double rate = getDouble(properties, RATE, 0d);
+            double maxConcurrency = Math.max(1d, getDouble(properties, CONCURRENCY, 64d));
+
+            limit = new Limit(rate, Math.max(1d, getDouble(properties, BURST, rate)), maxConcurrency,
+                    Math.max(1d, Math.min(maxConcurrency, getDouble(properties, MIN_CONCURRENCY, 1d))),
+                    (long)(getDouble(properties, TIMEOUT, 120d) * 1000L));
+            Limit l = limits.putIfAbsent(key, limit);
+
+            if( l != null ) {
+                limit = l;
+            }
+        }
+        return limit;
+    }
+}
@@ -26,6 +26,18 @@ import org.dasein.cloud.CloudErrorType;
  * Created by Vlad_Munthiu on 11/20/2014.
  */
 public class CloudResponseException extends ClientProtocolException {
+    static public final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Classifies an unsuccessful HTTP status code. Only 429 Too Many Requests is recognized as throttling; everything
+     * else is reported as a general error and left to the driver to interpret.
+     * @param httpCode the HTTP status code of the response
+     * @return the error type for the status code
+     */
+    static public CloudErrorType getErrorType(int httpCode) {
+        return (httpCode == SC_TOO_MANY_REQUESTS ? CloudErrorType.THROTTLING : CloudErrorType.GENERAL);
+    }
+
     private CloudErrorType errorType;
     private int            httpCode;
     private String         providerCode;
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Makes a GET conditional on the validators (<code>ETag</code> and <code>Last-Modified</code>) of the last response
+ * to the same request, and answers a <code>304 Not Modified</code> with the result read from that response instead
+ * of downloading and deserializing it again. Validators and results are remembered per account, request URI, and
+ * result type in a bounded store shared by all providers; results are softly referenced so that they give way
+ * under memory pressure.
+ * @version 2014.11 initial version
+ * @version 2014.11 caller validators left alone
+ * @since 2014.11
+ */
+final class ConditionalResponseHandler<T> implements ResponseHandler<T> {
+    static private final int MAXIMUM_ENTRIES = 1000;
+
+    static private final class Validated {
+        final String                 etag;
+        final String                 lastModified;
+        final SoftReference<Object>  result;
+
+        Validated(@Nullable String etag, @Nullable String lastModified, @Nullable Object result) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.result = new SoftReference<Object>(result);
+        }
+    }
+
+    static private final Map<String,Validated> store = new LinkedHashMap<String, Validated>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Validated> eldest) {
+            return size() > MAXIMUM_ENTRIES;
+        }
+    };
+
+    /**
+     * Forgets all remembered validators and results.
+     */
+    static void clear() {
+        synchronized( store ) {
+            store.clear();
+        }
+    }
+
+    /**
+     * Identifies the type of result produced by a response handler so that requests to the same URI that read the
+     * response differently do not share results.
+     * @param handler the response handler
+     * @return the result type of the handler, or <code>null</code> if its results cannot be told apart
+     */
+    static @Nullable String getResultType(@Nonnull ResponseHandler<?> handler) {
+        if( handler instanceof DaseinResponseHandler ) {
+            return ((DaseinResponseHandler<?>)handler).getResultType();
+        }
+        if( handler instanceof DaseinResponseHandlerWithMapper ) {
+            return ((DaseinResponseHandlerWithMapper<?,?>)handler).getResultType();
+        }
+        return null;
+    }
+
+    private final ResponseHandler<T> handler;
+    private final HttpUriRequest     request;
+    private final String             key;
+    private final Object             cached;
+
+    /**
+     * Prepares a conditional GET, adding the validators of the last response, if any, to the request. A request that
+     * already carries validators of its own is left alone, and a <code>304</code> in answer to it goes to the handler.
+     * @param provider the provider making the request
+     * @param request the GET request
+     * @param handler reads a modified response
+     * @param resultType the result type of the handler
+     */
+    ConditionalResponseHandler(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request, @Nonnull ResponseHandler<T> handler, @Nonnull String resultType) {
+        ProviderContext ctx = provider.getContext();
+        Validated v;
+
+        this.handler = handler;
+        this.request = request;
+        this.key = (ctx == null ? "" : ctx.getAccountNumber()) + " " + request.getURI() + " " + resultType;
+        if( request.containsHeader("If-None-Match") || request.containsHeader("If-Modified-Since") ) {
+            v = null;
+        }
+        else {
+            synchronized( store ) {
+                v = store.get(key);
+            }
+        }
+        this.cached = (v == null ? null : v.result.get());
+        if( cached != null ) {
+            if( v.etag != null ) {
+                request.setHeader("If-None-Match", v.etag);
+            }
+            if( v.lastModified != null ) {
+                request.setHeader("If-Modified-Since", v.lastModified);
+            }
+        }
+    }
+
+    /**
+     * Removes the validators added to the request, so that a retry of the same request starts out as the caller made
+     * it and picks up whatever is remembered by then.
+     */
+    void done() {
+        if( cached != null ) {
+            request.removeHeaders("If-None-Match");
+            request.removeHeaders("If-Modified-Since");
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T handleResponse(HttpResponse httpResponse) throws IOException {
+        if( httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cached != null ) {
+            EntityUtils.consume(httpResponse.getEntity());
+            return (T)cached;
+        }
+        T result = handler.handleResponse(httpResponse);
+        Header etag = httpResponse.getFirstHeader("ETag");
+        Header lastModified = httpResponse.getFirstHeader("Last-Modified");
+
+        if( result != null && (etag != null || lastModified != null) ) {
+            Validated v = new Validated(etag == null ? null : etag.getValue(), lastModified == null ? null : lastModified.getValue(), result);
+
+            synchronized( store ) {
+                store.put(key, v);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,500 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps pooled HTTP clients per {@link CloudProvider} so that requests made through {@link DaseinRequestExecutor}
+ * reuse open connections instead of paying for a new TCP connection and TLS handshake on every call. A pooled client
+ * is built from a builder created by an {@link HttpClientBuilderFactory}, with the connection limits, keep-alive,
+ * compression and proxy settings below applied to that builder, and is shared by all requests made with an equal
+ * factory. A provider keeps at most {@value #MAX_CLIENTS_PER_PROVIDER} pooled clients, retiring the least recently
+ * used. Requests made with a plain {@link HttpClientBuilder} get a client of their own, built from the builder as the
+ * driver configured it apart from the proxy settings, and closed once the response has been read.
+ * <p>
+ * Requests started with {@link DaseinRequestExecutor#executeInBackground()} go through pooled non-blocking clients
+ * instead (see {@link #getAsyncClient(CloudProvider, HttpAsyncClientBuilderFactory)}). Each has its own bounded
+ * connection pool served by a few I/O threads, so that thousands of requests may be in flight without a thread
+ * waiting on each of them. Non-blocking clients count towards the clients kept for a provider.
+ * </p>
+ * <p>
+ * Clients handed out by {@link #getClient(CloudProvider, HttpClientBuilderFactory)},
+ * {@link #getClient(CloudProvider, HttpClientBuilder)} and
+ * {@link #getAsyncClient(CloudProvider, HttpAsyncClientBuilderFactory)} are leased and must be handed back through
+ * <code>returnClient</code> once the response has been read. A pooled client that is retired because
+ * the provider was connected to a different context or because it was evicted is closed only after the last lease on
+ * it has been returned. All pooled clients of a provider are closed when the provider is closed.
+ * </p>
+ * <p>
+ * Pool settings are read from the custom properties of the provider context, falling back to system properties:
+ * </p>
+ * <ul>
+ *     <li>httpMaxConnections - the maximum number of open connections (default 100)</li>
+ *     <li>httpMaxConnectionsPerRoute - the maximum number of open connections to a single host (default 20)</li>
+ *     <li>httpIdleTimeout - seconds after which an unused connection is closed (default 60)</li>
+ *     <li>httpKeepAlive - seconds to keep a connection open when the server does not say (default 30)</li>
+ *     <li>httpIoThreads - the number of I/O threads of a non-blocking client (default the number of processors)</li>
+ *     <li>httpCompression - whether to ask for gzip or deflate compressed responses, which are decompressed
+ *     transparently (default true)</li>
+ *     <li>proxyHost/proxyPort - an HTTP proxy through which all requests are routed</li>
+ * </ul>
+ * @version 2014.11 initial version
+ * @version 2014.11 compression setting
+ * @version 2014.11 clients keyed by builder settings and leased
+ * @version 2014.11 clients keyed by builder factory
+ * @version 2014.11 non-blocking clients
+ * @since 2014.11
+ */
+public final class DaseinHttpClientPool {
+    static private final Logger logger = Logger.getLogger(DaseinHttpClientPool.class);
+
+    static public final String MAX_CONNECTIONS           = "httpMaxConnections";
+    static public final String MAX_CONNECTIONS_PER_ROUTE = "httpMaxConnectionsPerRoute";
+    static public final String IDLE_TIMEOUT              = "httpIdleTimeout";
+    static public final String KEEP_ALIVE                = "httpKeepAlive";
+    static public final String COMPRESSION               = "httpCompression";
+    static public final String IO_THREADS                = "httpIoThreads";
+
+    static public final int MAX_CLIENTS_PER_PROVIDER = 8;
+
+    static private final long SWEEP_INTERVAL = 5L;
+
+    static private final class PooledClient {
+        final ProviderContext                     context;
+        final Object                              factory;
+        final Closeable                           client;
+        final PoolingNHttpClientConnectionManager connections;
+        final long                                idleTimeout;
+        int                                       leases;
+        boolean                                   retired;
+
+        PooledClient(@Nullable ProviderContext context, @Nullable Object factory, @Nonnull Closeable client, @Nullable PoolingNHttpClientConnectionManager connections, long idleTimeout) {
+            this.context = context;
+            this.factory = factory;
+            this.client = client;
+            this.connections = connections;
+            this.idleTimeout = idleTimeout;
+        }
+
+        boolean matches(@Nullable ProviderContext ctx, @Nonnull Object f, boolean nonBlocking) {
+            // a factory may build both kinds of client, which are pooled separately
+            return (context == ctx && nonBlocking == (connections != null) && f.equals(factory));
+        }
+    }
+
+    /**
+     * Builds the non-blocking clients for background requests made without a factory of their own.
+     */
+    static private final HttpAsyncClientBuilderFactory DEFAULT_ASYNC_FACTORY = new HttpAsyncClientBuilderFactory() {
+        @Override
+        public @Nonnull HttpAsyncClientBuilder newAsyncBuilder() {
+            return HttpAsyncClients.custom();
+        }
+    };
+
+    static private final ThreadFactory ioThreadFactory = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Dasein HTTP I/O " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    static private final Map<CloudProvider,List<PooledClient>> clients = new WeakHashMap<CloudProvider, List<PooledClient>>();
+    static private final Map<Closeable,PooledClient>           leased  = new IdentityHashMap<Closeable, PooledClient>();
+
+    static private ScheduledExecutorService sweeper;
+
+    /**
+     * Leases the pooled client for the specified provider and factory, building it from a new builder created by the
+     * factory if the provider does not yet have a client for an equal factory. The returned client is shared and must
+     * not be closed by the caller; hand it back through {@link #returnClient(CloseableHttpClient)} instead.
+     * @param provider the provider on whose behalf requests are being made
+     * @param factory the factory for the builder used to configure a new client
+     * @return the pooled client for the provider
+     */
+    static public @Nonnull CloseableHttpClient getClient(@Nonnull CloudProvider provider, @Nonnull HttpClientBuilderFactory factory) {
+        return (CloseableHttpClient)lease(provider, factory, false).client;
+    }
+
+    /**
+     * Leases the pooled non-blocking client for the specified provider and factory, building and starting it from a
+     * new builder created by the factory if the provider does not yet have one for an equal factory. Without a factory,
+     * the provider's non-blocking client with only the pool settings is leased. The returned client is shared and must
+     * not be closed by the caller; hand it back through {@link #returnClient(CloseableHttpAsyncClient)} once the
+     * response has arrived instead.
+     * @param provider the provider on whose behalf requests are being made
+     * @param factory the factory for the builder used to configure a new client, or <code>null</code> for the default
+     * @return the pooled non-blocking client for the provider
+     * @throws IllegalStateException the I/O reactor of a new client could not be started
+     */
+    static public @Nonnull CloseableHttpAsyncClient getAsyncClient(@Nonnull CloudProvider provider, @Nullable HttpAsyncClientBuilderFactory factory) {
+        return (CloseableHttpAsyncClient)lease(provider, factory == null ? DEFAULT_ASYNC_FACTORY : factory, true).client;
+    }
+
+    static private @Nonnull PooledClient lease(@Nonnull CloudProvider provider, @Nonnull Object factory, boolean nonBlocking) {
+        ProviderContext ctx = provider.getContext();
+        ArrayList<PooledClient> stale = new ArrayList<PooledClient>();
+        PooledClient pooled = null;
+
+        try {
+            synchronized( clients ) {
+                List<PooledClient> list = clients.get(provider);
+
+                if( list == null ) {
+                    list = new ArrayList<PooledClient>();
+                    clients.put(provider, list);
+                }
+                for( Iterator<PooledClient> it = list.iterator(); it.hasNext(); ) {
+                    PooledClient p = it.next();
+
+                    if( p.context != ctx ) {
+                        it.remove();
+                        retire(p, stale);
+                    }
+                    else if( pooled == null && p.matches(ctx, factory, nonBlocking) ) {
+                        it.remove();
+                        pooled = p;
+                    }
+                }
+                if( pooled == null ) {
+                    if( list.size() >= MAX_CLIENTS_PER_PROVIDER ) {
+                        retire(list.remove(0), stale);
+                    }
+                    pooled = (nonBlocking ? buildNonBlocking(ctx, (HttpAsyncClientBuilderFactory)factory) : build(ctx, (HttpClientBuilderFactory)factory));
+                    if( sweeper == null ) {
+                        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                            @Override
+                            public Thread newThread(@Nonnull Runnable r) {
+                                Thread t = new Thread(r);
+
+                                t.setName("Dasein HTTP Connection Sweeper");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+                        sweeper.scheduleWithFixedDelay(new Runnable() {
+                            @Override
+                            public void run() {
+                                sweep();
+                            }
+                        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+                    }
+                }
+                // most recently used last
+                list.add(pooled);
+                pooled.leases++;
+                leased.put(pooled.client, pooled);
+            }
+        }
+        finally {
+            for( PooledClient p : stale ) {
+                close(p);
+            }
+        }
+        return pooled;
+    }
+
+    /**
+     * Leases a client of its own for a single request, built from the specified builder. Apart from routing requests
+     * through the configured proxy, the builder is used as the driver configured it; the pool settings do not apply.
+     * The client is closed when it is handed back through {@link #returnClient(CloseableHttpClient)}.
+     * @param provider the provider on whose behalf the request is being made
+     * @param builder the builder configured by the driver
+     * @return a client for a single request
+     */
+    static public @Nonnull CloseableHttpClient getClient(@Nonnull CloudProvider provider, @Nonnull HttpClientBuilder builder) {
+        ProviderContext ctx = provider.getContext();
+        HttpHost proxy = getProxy(ctx == null ? null : ctx.getCustomProperties());
+
+        if( proxy != null ) {
+            builder.setRoutePlanner(new DefaultProxyRoutePlanner(proxy));
+        }
+        PooledClient single = new PooledClient(ctx, null, builder.build(), null, 0L);
+
+        single.retired = true;
+        single.leases = 1;
+        synchronized( clients ) {
+            leased.put(single.client, single);
+        }
+        return (CloseableHttpClient)single.client;
+    }
+
+    /**
+     * Hands back a client leased through {@link #getClient(CloudProvider, HttpClientBuilderFactory)} or
+     * {@link #getClient(CloudProvider, HttpClientBuilder)}. A retired or single-request client is closed once its last
+     * lease has been returned.
+     * @param client the client that is no longer in use by the caller
+     */
+    static public void returnClient(@Nonnull CloseableHttpClient client) {
+        returnLease(client);
+    }
+
+    /**
+     * Hands back a client leased through {@link #getAsyncClient(CloudProvider, HttpAsyncClientBuilderFactory)}. A
+     * retired client is closed once its last lease has been returned.
+     * @param client the client that is no longer in use by the caller
+     */
+    static public void returnClient(@Nonnull CloseableHttpAsyncClient client) {
+        returnLease(client);
+    }
+
+    static private void returnLease(@Nonnull Closeable client) {
+        PooledClient pooled;
+
+        synchronized( clients ) {
+            pooled = leased.get(client);
+            if( pooled == null ) {
+                return;
+            }
+            pooled.leases--;
+            if( !pooled.retired || pooled.leases > 0 ) {
+                return;
+            }
+            leased.remove(client);
+        }
+        close(pooled);
+    }
+
+    /**
+     * Closes all pooled clients for the specified provider along with their open connections, whether or not they
+     * are still leased, since the provider is being closed.
+     * @param provider the provider being closed
+     */
+    static public void release(@Nonnull CloudProvider provider) {
+        List<PooledClient> pooled;
+
+        synchronized( clients ) {
+            pooled = clients.remove(provider);
+            if( pooled != null ) {
+                for( PooledClient p : pooled ) {
+                    leased.remove(p.client);
+                }
+            }
+        }
+        if( pooled != null ) {
+            for( PooledClient p : pooled ) {
+                close(p);
+            }
+        }
+    }
+
+    /**
+     * Marks a client removed from its provider's list as retired, queueing it to be closed right away if nobody
+     * holds a lease on it. Must be called while holding the lock on {@link #clients}.
+     */
+    static private void retire(@Nonnull PooledClient pooled, @Nonnull List<PooledClient> stale) {
+        pooled.retired = true;
+        if( pooled.leases <= 0 ) {
+            leased.remove(pooled.client);
+            stale.add(pooled);
+        }
+    }
+
+    static private @Nonnull PooledClient build(@Nullable ProviderContext ctx, @Nonnull HttpClientBuilderFactory factory) {
+        Properties custom = (ctx == null ? null : ctx.getCustomProperties());
+        long keepAlive = getLong(custom, KEEP_ALIVE, 30L) * 1000L;
+        long idleTimeout = getLong(custom, IDLE_TIMEOUT, 60L);
+        HttpHost proxy = getProxy(custom);
+        // the builder is the pool's own, so the pool settings are applied to it directly
+        HttpClientBuilder builder = factory.newBuilder();
+
+        builder.setMaxConnTotal((int)getLong(custom, MAX_CONNECTIONS, 100L));
+        builder.setMaxConnPerRoute((int)getLong(custom, MAX_CONNECTIONS_PER_ROUTE, 20L));
+        builder.setKeepAliveStrategy(getKeepAliveStrategy(keepAlive));
+        if( "false".equalsIgnoreCase(getProperty(custom, COMPRESSION)) ) {
+            builder.disableContentCompression();
+        }
+        if( proxy != null ) {
+            builder.setRoutePlanner(new DefaultProxyRoutePlanner(proxy));
+        }
+        return new PooledClient(ctx, factory, builder.build(), null, idleTimeout);
+    }
+
+    static private @Nonnull PooledClient buildNonBlocking(@Nullable ProviderContext ctx, @Nonnull HttpAsyncClientBuilderFactory factory) {
+        Properties custom = (ctx == null ? null : ctx.getCustomProperties());
+        long keepAlive = getLong(custom, KEEP_ALIVE, 30L) * 1000L;
+        long idleTimeout = getLong(custom, IDLE_TIMEOUT, 60L);
+        long ioThreads = getLong(custom, IO_THREADS, 0L);
+        HttpHost proxy = getProxy(custom);
+        IOReactorConfig.Builder config = IOReactorConfig.custom();
+        PoolingNHttpClientConnectionManager connections;
+
+        if( ioThreads > 0L ) {
+            config.setIoThreadCount((int)ioThreads);
+        }
+        try {
+            connections = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(config.build(), ioThreadFactory));
+        }
+        catch( IOReactorException e ) {
+            throw new IllegalStateException("Unable to start an I/O reactor: " + e.getMessage(), e);
+        }
+        connections.setMaxTotal((int)getLong(custom, MAX_CONNECTIONS, 100L));
+        connections.setDefaultMaxPerRoute((int)getLong(custom, MAX_CONNECTIONS_PER_ROUTE, 20L));
+        // the builder is the pool's own, so the pool settings are applied to it directly
+        HttpAsyncClientBuilder builder = factory.newAsyncBuilder();
+
+        builder.setConnectionManager(connections);
+        builder.setThreadFactory(ioThreadFactory);
+        builder.setKeepAliveStrategy(getKeepAliveStrategy(keepAlive));
+        // the non-blocking client does not negotiate compression itself; the executor decompresses responses
+        if( !"false".equalsIgnoreCase(getProperty(custom, COMPRESSION)) ) {
+            builder.addInterceptorLast(new RequestAcceptEncoding());
+        }
+        if( proxy != null ) {
+            builder.setProxy(proxy);
+        }
+        CloseableHttpAsyncClient client = builder.build();
+
+        client.start();
+        return new PooledClient(ctx, factory, client, connections, idleTimeout);
+    }
+
+    static private @Nonnull ConnectionKeepAliveStrategy getKeepAliveStrategy(final long keepAlive) {
+        return new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy strategy = DefaultConnectionKeepAliveStrategy.INSTANCE;
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = strategy.getKeepAliveDuration(response, context);
+
+                return (duration > 0L ? duration : keepAlive);
+            }
+        };
+    }
+
+    static private @Nullable HttpHost getProxy(@Nullable Properties custom) {
+        Properties proxy = custom;
+
+        if( proxy == null || proxy.getProperty("proxyHost") == null || proxy.getProperty("proxyPort") == null ) {
+            proxy = System.getProperties();
+        }
+        String proxyHost = proxy.getProperty("proxyHost");
+        String proxyPort = proxy.getProperty("proxyPort");
+
+        if( proxyHost != null && proxyPort != null && proxyPort.length() > 0 ) {
+            return new HttpHost(proxyHost, Integer.parseInt(proxyPort));
+        }
+        return null;
+    }
+
+    static private void close(@Nonnull PooledClient pooled) {
+        try {
+            pooled.client.close();
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to close pooled HTTP client: " + e.getMessage());
+        }
+    }
+
+    static private long getLong(@Nullable Properties custom, @Nonnull String name, long defaultValue) {
+        String value = getProperty(custom, name);
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static private @Nullable String getProperty(@Nullable Properties custom, @Nonnull String name) {
+        String value = (custom == null ? null : custom.getProperty(name));
+
+        return (value == null ? System.getProperty(name) : value);
+    }
+
+    @SuppressWarnings("deprecation")
+    static private void sweep() {
+        ArrayList<PooledClient> pooled = new ArrayList<PooledClient>();
+
+        synchronized( clients ) {
+            for( List<PooledClient> list : clients.values() ) {
+                pooled.addAll(list);
+            }
+            for( PooledClient p : leased.values() ) {
+                // single-request clients have no factory and are closed as soon as they are returned
+                if( p.retired && p.factory != null ) {
+                    pooled.add(p);
+                }
+            }
+        }
+        for( PooledClient p : pooled ) {
+            try {
+                if( p.connections != null ) {
+                    p.connections.closeExpiredConnections();
+                    p.connections.closeIdleConnections(p.idleTimeout, TimeUnit.SECONDS);
+                }
+                else {
+                    ((CloseableHttpClient)p.client).getConnectionManager().closeExpiredConnections();
+                    ((CloseableHttpClient)p.client).getConnectionManager().closeIdleConnections(p.idleTimeout, TimeUnit.SECONDS);
+                }
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to sweep idle HTTP connections: " + t.getMessage());
+            }
+        }
+    }
+
+    private DaseinHttpClientPool() { }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Receives the outcome of a request started with {@link DaseinRequestExecutor#executeInBackground()}.
+ * Callbacks run on a shared pool of callback threads, or on the registering thread if the request had already
+ * completed. They may wait for other requests, but each callback that does holds a thread while it waits.
+ * @param <T> the type of the response
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public interface DaseinRequestCallback<T> {
+    /**
+     * Called when the request failed or was cancelled.
+     * @param error the cause of the failure
+     */
+    public void onFailure(@Nonnull CloudException error);
+
+    /**
+     * Called when the request completed successfully.
+     * @param result the processed response
+     */
+    public void onSuccess(@Nullable T result);
+}
@@ -19,97 +19,363 @@
 
 package org.dasein.cloud.util.requester;
 
-import org.apache.http.HttpHost;
-import org.apache.http.client.ClientProtocolException;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.protocol.BasicHttpContext;
+import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.requester.fluent.Requester;
 
-import java.util.Properties;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
  /**
  * @author Vlad Munthiu
  */
 
 public class DaseinRequestExecutor<T> implements Requester<T> {
+    static private volatile RequestLimiter requestLimiter = new AdaptiveRequestLimiter();
+
+    /**
+     * @return the limiter consulted before every request is sent
+     */
+    static public RequestLimiter getRequestLimiter() {
+        return requestLimiter;
+    }
+
+    /**
+     * Replaces the limiter consulted before every request is sent.
+     * @param limiter the new limiter
+     */
+    static public void setRequestLimiter(RequestLimiter limiter) {
+        requestLimiter = limiter;
+    }
+
+    static private CloudException toCloudException(Exception e) {
+        if( e instanceof CloudResponseException ) {
+            CloudResponseException r = (CloudResponseException)e;
+
+            return new CloudException(r.getErrorType(), r.getHttpCode(), r.getProviderCode(), r.getMessage());
+        }
+        if( e instanceof IOException ) {
+            return new CloudException(CloudErrorType.COMMUNICATION, 0, null, String.valueOf(e.getMessage()), e);
+        }
+        return new CloudException(e.getMessage());
+    }
+
     private CloudProvider provider;
     private HttpClientBuilder httpClientBuilder;
+    private HttpClientBuilderFactory clientFactory;
     private HttpUriRequest httpUriRequest;
     private ResponseHandler<T> responseHandler;
+    private RetryPolicy retryPolicy;
+    private boolean conditional;
+    private boolean coalesce;
+    private String apiCall;
 
     public DaseinRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpUriRequest httpUriRequest, ResponseHandler<T> responseHandler){
+        this(provider, httpClientBuilder, httpUriRequest, responseHandler, null);
+    }
+
+    public DaseinRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpUriRequest httpUriRequest, ResponseHandler<T> responseHandler, RetryPolicy retryPolicy){
+        this(provider, httpClientBuilder, httpUriRequest, responseHandler, retryPolicy, false);
+    }
+
+    /**
+     * @param conditional true to make GET requests conditional on the validators of the last response to the same
+     *                    request and reuse its result when the response is not modified
+     */
+    public DaseinRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpUriRequest httpUriRequest, ResponseHandler<T> responseHandler, RetryPolicy retryPolicy, boolean conditional){
+        this(provider, httpClientBuilder, httpUriRequest, responseHandler, retryPolicy, conditional, false);
+    }
+
+    /**
+     * @param coalesce true to let this request share the response of an identical request already in flight; only
+     *                 for requests without side effects
+     */
+    public DaseinRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpUriRequest httpUriRequest, ResponseHandler<T> responseHandler, RetryPolicy retryPolicy, boolean conditional, boolean coalesce){
+        this(provider, httpClientBuilder, null, httpUriRequest, responseHandler, retryPolicy, conditional, coalesce);
+    }
+
+    /**
+     * Constructs an executor that sends its request through the client pooled for the specified factory (see
+     * {@link DaseinHttpClientPool#getClient(CloudProvider, HttpClientBuilderFactory)}).
+     */
+    public DaseinRequestExecutor(CloudProvider provider, HttpClientBuilderFactory clientFactory, HttpUriRequest httpUriRequest, ResponseHandler<T> responseHandler, RetryPolicy retryPolicy, boolean conditional, boolean coalesce){
+        this(provider, null, clientFactory, httpUriRequest, responseHandler, retryPolicy, conditional, coalesce);
+    }
+
+    private DaseinRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpClientBuilderFactory clientFactory, HttpUriRequest httpUriRequest, ResponseHandler<T> responseHandler, RetryPolicy retryPolicy, boolean conditional, boolean coalesce){
         this.provider = provider;
         this.httpClientBuilder = httpClientBuilder;
+        this.clientFactory = clientFactory;
         this.httpUriRequest = httpUriRequest;
         this.responseHandler = responseHandler;
+        this.retryPolicy = retryPolicy;
+        this.conditional = conditional;
+        this.coalesce = coalesce;
+        this.apiCall = APITrace.getCurrentAPICall();
     }
 
     public T execute() throws CloudException {
-        HttpProxyConfig httpProxyConfig = getHttpProxyConfigData();
-        if(httpProxyConfig != null){
-            HttpHost proxy = new HttpHost(httpProxyConfig.getHost(), httpProxyConfig.getPort());
-            DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxy);
-            httpClientBuilder.setRoutePlanner(routePlanner);
+        String key = (this.coalesce ? RequestCoalescer.getKey(this.provider, this.httpUriRequest, this.responseHandler) : null);
+
+        if( key == null ) {
+            return executeWithRetries();
         }
+        return RequestCoalescer.execute(key, new Callable<T>() {
+            @Override
+            public T call() throws CloudException {
+                return executeWithRetries();
+            }
+        });
+    }
 
-        try {
-            CloseableHttpClient httpClient = this.httpClientBuilder.build();
-            try {
-                return httpClient.execute(this.httpUriRequest, this.responseHandler);
+    private T executeWithRetries() throws CloudException {
+        if( this.retryPolicy == null ) {
+            return executeOnce(this.httpUriRequest);
+        }
+        return this.retryPolicy.execute(this.provider, this.httpUriRequest, new RetryPolicy.Attempt<T>() {
+            @Override
+            public T execute(HttpUriRequest request) throws CloudException {
+                return executeOnce(request);
             }
-            finally{
-                httpClient.close();
+        });
+    }
+
+    private T executeOnce(HttpUriRequest request) throws CloudException {
+        RequestLimiter.Permit permit = requestLimiter.acquire(this.provider, request);
+        CloudErrorType error = CloudErrorType.COMMUNICATION;
+        ResponseHandler<T> handler = this.responseHandler;
+        ConditionalResponseHandler<T> conditionalHandler = null;
+
+        if( this.conditional && "GET".equals(request.getMethod()) ) {
+            String resultType = ConditionalResponseHandler.getResultType(handler);
+
+            if( resultType != null ) {
+                conditionalHandler = new ConditionalResponseHandler<T>(this.provider, request, handler, resultType);
+                handler = conditionalHandler;
             }
+        }
+        CloseableHttpClient httpClient = null;
+
+        try {
+            httpClient = (this.clientFactory == null ? DaseinHttpClientPool.getClient(this.provider, this.httpClientBuilder) : DaseinHttpClientPool.getClient(this.provider, this.clientFactory));
+            T result = httpClient.execute(request, timed(handler));
+
+            error = null;
+            return result;
         } catch (CloudResponseException e){
-            throw new CloudException(e.getErrorType(), e.getHttpCode(), e.getProviderCode(), e.getMessage());
+            error = e.getErrorType();
+            throw toCloudException(e);
         } catch (Exception e) {
-            throw new CloudException(e.getMessage());
+            throw toCloudException(e);
+        } finally {
+            permit.release(error);
+            if( conditionalHandler != null ) {
+                conditionalHandler.done();
+            }
+            if( httpClient != null ) {
+                DaseinHttpClientPool.returnClient(httpClient);
+            }
+        }
+    }
+
+    /**
+     * Wraps a response handler so that the time until the response arrives is recorded as the latency of the API call
+     * traced when this executor was built, leaving out the time spent reading and parsing the response.
+     */
+    private ResponseHandler<T> timed(final ResponseHandler<T> handler) {
+        if( this.apiCall == null ) {
+            return handler;
         }
+        final long start = System.nanoTime();
+
+        return new ResponseHandler<T>() {
+            @Override
+            public T handleResponse(HttpResponse response) throws IOException {
+                APITrace.recordAPILatency(provider, apiCall, System.nanoTime() - start);
+                return handler.handleResponse(response);
+            }
+        };
     }
 
-    private HttpProxyConfig getHttpProxyConfigData()
-    {
-        Properties p = provider.getContext().getCustomProperties();
+    /**
+     * Starts sending the request through a pooled non-blocking client and returns without waiting for the response,
+     * which is processed on an I/O thread of the client once it has arrived (see {@link DaseinRequestFuture}). The
+     * request is paced by the request limiter, retried under the retry policy, made conditional and coalesced like one
+     * sent by {@link #execute()}, but it is never hedged. The calling thread may still wait for a permit from the request
+     * limiter. The non-blocking client is built from the factory of this executor if the factory also implements
+     * {@link HttpAsyncClientBuilderFactory}, and has only the pool settings otherwise.
+     * @return the pending result of the request
+     */
+    public DaseinRequestFuture<T> executeInBackground() {
+        String key;
+
+        try {
+            key = (this.coalesce ? RequestCoalescer.getKey(this.provider, this.httpUriRequest, this.responseHandler) : null);
+        }
+        catch( CloudException e ) {
+            DaseinRequestFuture<T> future = new DaseinRequestFuture<T>();
+
+            future.failed(e);
+            return future;
+        }
+        if( key == null ) {
+            DaseinRequestFuture<T> future = new DaseinRequestFuture<T>();
 
-        HttpProxyConfig httpProxyConfig = null;
-        if( p != null && p.getProperty("proxyHost") != null && p.getProperty("proxyPort") != null) {
-            if(p.getProperty("proxyPort").length() > 0) {
-                httpProxyConfig = new HttpProxyConfig(p.getProperty("proxyHost"), Integer.parseInt(p.getProperty("proxyPort")));
+            new Exchange(future).send();
+            return future;
+        }
+        return RequestCoalescer.submit(key, new RequestCoalescer.BackgroundCall<T>() {
+            @Override
+            public void start(@Nonnull DaseinRequestFuture<T> future) {
+                new Exchange(future).send();
             }
+        });
+    }
+
+    /**
+     * Sends the request of a background execution through a non-blocking client, one attempt at a time, and completes
+     * the future of the execution with the outcome of the last attempt.
+     */
+    private final class Exchange implements FutureCallback<HttpResponse> {
+        private final DaseinRequestFuture<T>  future;
+        private final AtomicLong              budget;
+        private int                           attempt;
+        private CloseableHttpAsyncClient      client;
+        private ConditionalResponseHandler<T> conditionalHandler;
+        private ResponseHandler<T>            handler;
+        private RequestLimiter.Permit         permit;
+
+        Exchange(@Nonnull DaseinRequestFuture<T> future) {
+            this.future = future;
+            this.budget = (retryPolicy == null ? null : retryPolicy.begin(provider, httpUriRequest));
         }
-        else {
-            p = System.getProperties();
-            if (p != null && p.getProperty("proxyHost") != null && p.getProperty("proxyPort") != null) {
-                if (p.getProperty("proxyPort").length() > 0) {
-                    httpProxyConfig = new HttpProxyConfig(p.getProperty("proxyHost"), Integer.parseInt(p.getProperty("proxyPort")));
+
+        void send() {
+            attempt++;
+            if( future.isDone() ) {
+                // cancelled while waiting to be retried
+                return;
+            }
+            try {
+                permit = requestLimiter.acquire(provider, httpUriRequest);
+            }
+            catch( CloudException e ) {
+                retryOrFail(e);
+                return;
+            }
+            handler = responseHandler;
+            conditionalHandler = null;
+            if( conditional && "GET".equals(httpUriRequest.getMethod()) ) {
+                String resultType = ConditionalResponseHandler.getResultType(handler);
+
+                if( resultType != null ) {
+                    conditionalHandler = new ConditionalResponseHandler<T>(provider, httpUriRequest, handler, resultType);
+                    handler = conditionalHandler;
                 }
             }
+            try {
+                client = DaseinHttpClientPool.getAsyncClient(provider, clientFactory instanceof HttpAsyncClientBuilderFactory ? (HttpAsyncClientBuilderFactory)clientFactory : null);
+
+                final long start = System.nanoTime();
+
+                future.setExchange(client.execute(HttpAsyncMethods.create(httpUriRequest), new BasicAsyncResponseConsumer() {
+                    @Override
+                    protected void onResponseReceived(HttpResponse response) throws IOException {
+                        if( apiCall != null ) {
+                            APITrace.recordAPILatency(provider, apiCall, System.nanoTime() - start);
+                        }
+                        super.onResponseReceived(response);
+                    }
+                }, this));
+            }
+            catch( RuntimeException e ) {
+                failed(e);
+            }
         }
-        return httpProxyConfig;
-    }
 
-    private class HttpProxyConfig
-    {
-        private String host;
-        private Integer port;
+        @Override
+        public void completed(HttpResponse response) {
+            CloudErrorType error = CloudErrorType.COMMUNICATION;
+            CloudException failure = null;
+            T result = null;
 
-        public HttpProxyConfig(String host, Integer port)
-        {
-            this.host = host;
-            this.port = port;
+            try {
+                // the non-blocking client leaves compressed responses as they are
+                new ResponseContentEncoding().process(response, new BasicHttpContext());
+                result = handler.handleResponse(response);
+                error = null;
+            }
+            catch( CloudResponseException e ) {
+                error = e.getErrorType();
+                failure = toCloudException(e);
+            }
+            catch( Exception e ) {
+                failure = toCloudException(e);
+            }
+            finally {
+                release(error);
+            }
+            if( failure == null ) {
+                future.completed(result);
+            }
+            else {
+                retryOrFail(failure);
+            }
         }
 
-        public String getHost() {
-            return host;
+        @Override
+        public void failed(Exception e) {
+            release(CloudErrorType.COMMUNICATION);
+            retryOrFail(toCloudException(e));
         }
 
-        public Integer getPort() {
-            return port;
+        @Override
+        public void cancelled() {
+            release(null);
+            // a no-op if the future was cancelled, which is what cancelled the exchange unless the client was closed
+            future.failed(new CloudException("Request was aborted"));
+        }
+
+        private void release(@Nullable CloudErrorType error) {
+            permit.release(error);
+            if( conditionalHandler != null ) {
+                conditionalHandler.done();
+            }
+            if( client != null ) {
+                DaseinHttpClientPool.returnClient(client);
+                client = null;
+            }
+        }
+
+        private void retryOrFail(@Nonnull CloudException error) {
+            long delay = (budget == null ? -1L : retryPolicy.getRetryDelay(budget, httpUriRequest, attempt, error));
+
+            if( delay < 0L || future.isDone() ) {
+                future.failed(error);
+                return;
+            }
+            DaseinRequestFuture.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, delay);
         }
     }
 }
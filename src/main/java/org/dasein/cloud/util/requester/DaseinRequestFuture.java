@@ -0,0 +1,320 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending result of a request started with {@link DaseinRequestExecutor#executeInBackground()}. The request is
+ * sent through a pooled non-blocking client (see
+ * {@link DaseinHttpClientPool#getAsyncClient(CloudProvider, HttpAsyncClientBuilderFactory)}), so no thread waits on it
+ * while it is in flight. Its response is processed on one of the client's I/O threads once it has arrived in full, and
+ * retries are sent once their delay has passed, without a thread waiting in the meantime either.
+ * <p>
+ * Callbacks are called on a shared pool of callback threads rather than on the I/O threads, so that a callback may
+ * wait for another request without holding up the threads that complete it. Waiting through {@link #get()},
+ * {@link #get(long, TimeUnit)} or {@link #getResult()} blocks only the waiting thread, and a timed wait gives up once
+ * its timeout has passed. Cancelling the future aborts the request.
+ * </p>
+ * @param <T> the type of the response
+ * @version 2014.11 initial version
+ * @version 2014.11 completed by non-blocking requests
+ * @since 2014.11
+ */
+public class DaseinRequestFuture<T> implements Future<T> {
+    static private final Logger logger = Logger.getLogger(DaseinRequestFuture.class);
+
+    static private final ThreadPoolExecutor callbackPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Dasein Request Callback " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Dasein Request Timer");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Runs a task on the callback threads once the specified delay has passed, as when retrying a request.
+     * @param task the task to run
+     * @param delay the delay in milliseconds
+     */
+    static void schedule(@Nonnull final Runnable task, long delay) {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callbackPool.execute(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    static private @Nonnull CloudException toCloudException(@Nonnull Throwable t) {
+        if( t instanceof CloudException ) {
+            return (CloudException)t;
+        }
+        return new CloudException(t.getMessage() == null ? t.getClass().getName() : t.getMessage(), t);
+    }
+
+    private ArrayList<DaseinRequestCallback<T>> callbacks = new ArrayList<DaseinRequestCallback<T>>();
+    private boolean                              cancelled;
+    private boolean                              done;
+    private Throwable                            error;
+    private Future<?>                            exchange;
+    private T                                    result;
+
+    DaseinRequestFuture() { }
+
+    /**
+     * Registers a callback to be told the outcome of the request. If the request has already completed, the callback
+     * is called immediately on the calling thread.
+     * @param callback the callback to register
+     * @return this future
+     */
+    public @Nonnull DaseinRequestFuture<T> addCallback(@Nonnull DaseinRequestCallback<T> callback) {
+        synchronized( this ) {
+            if( callbacks != null ) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        notifyCallback(callback);
+        return this;
+    }
+
+    /**
+     * Cancels the request, aborting the exchange in progress, if any.
+     * @param mayInterruptIfRunning ignored, since no thread runs the request
+     * @return true if the request had not already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Future<?> current;
+
+        synchronized( this ) {
+            if( done ) {
+                return false;
+            }
+            cancelled = true;
+            done = true;
+            current = exchange;
+            notifyAll();
+        }
+        if( current != null ) {
+            current.cancel(true);
+        }
+        done();
+        return true;
+    }
+
+    /**
+     * Completes the request with its processed response.
+     * @param result the processed response
+     * @return true if the request had not already completed or been cancelled
+     */
+    boolean completed(@Nullable T result) {
+        synchronized( this ) {
+            if( done ) {
+                return false;
+            }
+            this.result = result;
+            done = true;
+            notifyAll();
+        }
+        done();
+        return true;
+    }
+
+    /**
+     * Completes the request with a failure.
+     * @param error the cause of the failure
+     * @return true if the request had not already completed or been cancelled
+     */
+    boolean failed(@Nonnull Throwable error) {
+        synchronized( this ) {
+            if( done ) {
+                return false;
+            }
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+        done();
+        return true;
+    }
+
+    /**
+     * Records the exchange currently sending the request, so that cancelling the request aborts it.
+     * @param exchange the exchange in progress
+     */
+    void setExchange(@Nonnull Future<?> exchange) {
+        synchronized( this ) {
+            // an exchange that completed before it was recorded may already have been followed by a retry
+            if( exchange.isDone() ) {
+                return;
+            }
+            if( !cancelled ) {
+                this.exchange = exchange;
+                return;
+            }
+        }
+        exchange.cancel(true);
+    }
+
+    private void done() {
+        final ArrayList<DaseinRequestCallback<T>> list;
+
+        synchronized( this ) {
+            list = callbacks;
+            callbacks = null;
+        }
+        if( list.isEmpty() ) {
+            return;
+        }
+        callbackPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                for( DaseinRequestCallback<T> callback : list ) {
+                    notifyCallback(callback);
+                }
+            }
+        });
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized( this ) {
+            while( !done ) {
+                wait();
+            }
+            return report();
+        }
+    }
+
+    @Override
+    public T get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized( this ) {
+            while( !done ) {
+                long remaining = deadline - System.nanoTime();
+
+                if( remaining <= 0L ) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return report();
+        }
+    }
+
+    /**
+     * Waits for the request to complete and provides its result, reporting failures the same way
+     * {@link org.dasein.cloud.util.requester.fluent.Requester#execute()} does.
+     * @return the processed response
+     * @throws CloudException the request failed, was cancelled, or the wait was interrupted
+     */
+    public @Nullable T getResult() throws CloudException {
+        try {
+            return get();
+        }
+        catch( ExecutionException e ) {
+            throw toCloudException(e.getCause() == null ? e : e.getCause());
+        }
+        catch( CancellationException e ) {
+            throw new CloudException("Request was cancelled", e);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for request", e);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private void notifyCallback(@Nonnull DaseinRequestCallback<T> callback) {
+        T result;
+
+        try {
+            result = getResult();
+        }
+        catch( CloudException e ) {
+            try {
+                callback.onFailure(e);
+            }
+            catch( Throwable t ) {
+                logger.warn("Request callback failed: " + t.getMessage(), t);
+            }
+            return;
+        }
+        try {
+            callback.onSuccess(result);
+        }
+        catch( Throwable t ) {
+            logger.warn("Request callback failed: " + t.getMessage(), t);
+        }
+    }
+
+    private T report() throws ExecutionException {
+        if( cancelled ) {
+            throw new CancellationException();
+        }
+        if( error != null ) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
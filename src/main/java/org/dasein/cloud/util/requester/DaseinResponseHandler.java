@@ -24,7 +24,6 @@ import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.util.EntityUtils;
-import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.util.requester.streamprocessors.StreamProcessor;
 
@@ -48,11 +47,15 @@ public class DaseinResponseHandler<T> implements ResponseHandler<T> {
         if( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK
                 && httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED
                 && httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_ACCEPTED ) {
-            throw new CloudResponseException(CloudErrorType.GENERAL, httpResponse.getStatusLine().getStatusCode(),
+            throw new CloudResponseException(CloudResponseException.getErrorType(httpResponse.getStatusLine().getStatusCode()), httpResponse.getStatusLine().getStatusCode(),
                     httpResponse.getStatusLine().getReasonPhrase(), EntityUtils.toString(httpResponse.getEntity()));
         }
         else {
             return (T) processor.read(httpResponse.getEntity().getContent(), classType);
         }
     }
+
+    String getResultType() {
+        return processor.getClass().getName() + ":" + classType.getName();
+    }
  }
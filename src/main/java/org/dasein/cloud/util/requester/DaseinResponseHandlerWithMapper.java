@@ -24,11 +24,13 @@ import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.util.EntityUtils;
-import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.util.requester.streamprocessors.StreamProcessor;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
 
  /**
  * @author Vlad Munthiu
@@ -50,7 +52,7 @@ public class DaseinResponseHandlerWithMapper<T, V> implements ResponseHandler<V>
         if( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK
                 && httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED
                 && httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_ACCEPTED ) {
-            throw new CloudResponseException(CloudErrorType.GENERAL, httpResponse.getStatusLine().getStatusCode(),
+            throw new CloudResponseException(CloudResponseException.getErrorType(httpResponse.getStatusLine().getStatusCode()), httpResponse.getStatusLine().getStatusCode(),
                     httpResponse.getStatusLine().getReasonPhrase(), EntityUtils.toString(httpResponse.getEntity()));
         }
         else {
@@ -61,4 +63,37 @@ public class DaseinResponseHandlerWithMapper<T, V> implements ResponseHandler<V>
             return mapper.mapFrom(responseObject);
         }
     }
+
+    /**
+     * Identifies the results of this handler for conditional GETs and coalescing. Two mappers of the same class only
+     * map alike if the class keeps no state of its own, so the results of a mapper with instance fields (including an
+     * anonymous or inner class holding on to its enclosing instance) are never shared.
+     * @return the result type, or <code>null</code> if results of this handler must not be shared
+     */
+    String getResultType() {
+        if( !isStateless(mapper.getClass()) ) {
+            return null;
+        }
+        return processor.getClass().getName() + ":" + classType.getName() + ":" + mapper.getClass().getName();
+    }
+
+    static private final ConcurrentHashMap<Class<?>,Boolean> stateless = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    static private boolean isStateless(Class<?> type) {
+        Boolean b = stateless.get(type);
+
+        if( b == null ) {
+            b = Boolean.TRUE;
+            for( Class<?> c = type; c != null && c != Object.class && b; c = c.getSuperclass() ) {
+                for( Field field : c.getDeclaredFields() ) {
+                    if( !Modifier.isStatic(field.getModifiers()) ) {
+                        b = Boolean.FALSE;
+                        break;
+                    }
+                }
+            }
+            stateless.put(type, b);
+        }
+        return b;
+    }
  }
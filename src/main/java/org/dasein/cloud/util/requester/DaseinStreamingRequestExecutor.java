@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.util.requester.fluent.Requester;
+import org.dasein.cloud.util.requester.streamprocessors.StreamToIteratorProcessor;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Executes a request whose response is a listing and hands the response back as a {@link DaseinStreamingResponse}
+ * instead of reading it in full. Unlike {@link DaseinRequestExecutor}, the connection stays checked out of the pool
+ * after this method returns, until the listing has been read or closed.
+ * @version 2014.11 initial version
+ * @version 2014.11 retry policies
+ * @version 2014.11 request permit held until the response is closed
+ * @since 2014.11
+ */
+public class DaseinStreamingRequestExecutor<T, V> implements Requester<DaseinStreamingResponse<T,V>> {
+    private CloudProvider provider;
+    private HttpClientBuilder httpClientBuilder;
+    private HttpClientBuilderFactory clientFactory;
+    private HttpUriRequest httpUriRequest;
+    private StreamToIteratorProcessor<T> processor;
+    private DriverToCoreMapper<T,V> mapper;
+    private Class<T> elementType;
+    private RetryPolicy retryPolicy;
+    private String apiCall;
+
+    public DaseinStreamingRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpUriRequest httpUriRequest,
+                                          StreamToIteratorProcessor<T> processor, DriverToCoreMapper<T,V> mapper, Class<T> elementType) {
+        this(provider, httpClientBuilder, httpUriRequest, processor, mapper, elementType, null);
+    }
+
+    /**
+     * Constructs an executor that retries according to the specified policy. Only failures that occur before the
+     * listing is handed back are retried; hedging does not apply to streamed responses.
+     */
+    public DaseinStreamingRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpUriRequest httpUriRequest,
+                                          StreamToIteratorProcessor<T> processor, DriverToCoreMapper<T,V> mapper, Class<T> elementType,
+                                          RetryPolicy retryPolicy) {
+        this(provider, httpClientBuilder, null, httpUriRequest, processor, mapper, elementType, retryPolicy);
+    }
+
+    /**
+     * Constructs an executor that sends its request through the client pooled for the specified factory (see
+     * {@link DaseinHttpClientPool#getClient(CloudProvider, HttpClientBuilderFactory)}).
+     */
+    public DaseinStreamingRequestExecutor(CloudProvider provider, HttpClientBuilderFactory clientFactory, HttpUriRequest httpUriRequest,
+                                          StreamToIteratorProcessor<T> processor, DriverToCoreMapper<T,V> mapper, Class<T> elementType,
+                                          RetryPolicy retryPolicy) {
+        this(provider, null, clientFactory, httpUriRequest, processor, mapper, elementType, retryPolicy);
+    }
+
+    private DaseinStreamingRequestExecutor(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpClientBuilderFactory clientFactory,
+                                           HttpUriRequest httpUriRequest, StreamToIteratorProcessor<T> processor, DriverToCoreMapper<T,V> mapper,
+                                           Class<T> elementType, RetryPolicy retryPolicy) {
+        this.provider = provider;
+        this.httpClientBuilder = httpClientBuilder;
+        this.clientFactory = clientFactory;
+        this.httpUriRequest = httpUriRequest;
+        this.processor = processor;
+        this.mapper = mapper;
+        this.elementType = elementType;
+        this.retryPolicy = retryPolicy;
+        this.apiCall = APITrace.getCurrentAPICall();
+    }
+
+    public DaseinStreamingResponse<T,V> execute() throws CloudException {
+        if( this.retryPolicy == null ) {
+            return executeOnce(this.httpUriRequest);
+        }
+        return this.retryPolicy.execute(this.provider, this.httpUriRequest, new RetryPolicy.Attempt<DaseinStreamingResponse<T,V>>() {
+            @Override
+            public DaseinStreamingResponse<T,V> execute(HttpUriRequest request) throws CloudException {
+                return executeOnce(request);
+            }
+        }, false);
+    }
+
+    private DaseinStreamingResponse<T,V> executeOnce(HttpUriRequest request) throws CloudException {
+        RequestLimiter.Permit permit = DaseinRequestExecutor.getRequestLimiter().acquire(this.provider, request);
+        CloudErrorType error = CloudErrorType.COMMUNICATION;
+        CloseableHttpResponse response = null;
+        CloseableHttpClient httpClient = null;
+
+        try {
+            httpClient = (this.clientFactory == null ? DaseinHttpClientPool.getClient(this.provider, this.httpClientBuilder) : DaseinHttpClientPool.getClient(this.provider, this.clientFactory));
+            long start = System.nanoTime();
+
+            response = httpClient.execute(request);
+            if( this.apiCall != null ) {
+                APITrace.recordAPILatency(this.provider, this.apiCall, System.nanoTime() - start);
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+
+            if( status != HttpStatus.SC_OK && status != HttpStatus.SC_CREATED && status != HttpStatus.SC_ACCEPTED ) {
+                error = CloudResponseException.getErrorType(status);
+                throw new CloudException(error, status, response.getStatusLine().getReasonPhrase(),
+                        entity == null ? "" : EntityUtils.toString(entity));
+            }
+            if( entity == null ) {
+                error = null;
+                return new DaseinStreamingResponse<T, V>(null, Collections.<T>emptyList().iterator(), this.mapper);
+            }
+            final RequestLimiter.Permit heldPermit = permit;
+            final CloseableHttpClient leasedClient = httpClient;
+            // the request is in flight until the listing has been read, so the permit is held until the response is closed
+            DaseinStreamingResponse<T,V> result = new DaseinStreamingResponse<T, V>(response, this.processor.read(entity.getContent(), this.elementType), this.mapper, new Runnable() {
+                @Override
+                public void run() {
+                    heldPermit.release(null);
+                    DaseinHttpClientPool.returnClient(leasedClient);
+                }
+            });
+
+            // a body that cannot be parsed leaves error as COMMUNICATION for the limiter
+            error = null;
+            response = null;
+            httpClient = null;
+            permit = null;
+            return result;
+        } catch (CloudException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new CloudException(CloudErrorType.COMMUNICATION, 0, null, String.valueOf(e.getMessage()), e);
+        } catch (Exception e) {
+            throw new CloudException(e.getMessage());
+        } finally {
+            if( permit != null ) {
+                permit.release(error);
+            }
+            if( response != null ) {
+                try { response.close(); }
+                catch( Exception ignore ) { /* ignore */ }
+            }
+            if( httpClient != null ) {
+                DaseinHttpClientPool.returnClient(httpClient);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A listing read lazily from an open HTTP response. Elements are parsed and mapped one at a time as the listing is
+ * iterated, and the connection goes back to the pool once the last element has been read. The listing may be
+ * iterated only once; callers that stop early should {@link #close()} it so that the connection is released.
+ * @param <T> the driver type parsed from the response
+ * @param <V> the Dasein Cloud type each element is mapped to
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class DaseinStreamingResponse<T, V> implements Iterable<V>, Closeable {
+    static private final Logger logger = Logger.getLogger(DaseinStreamingResponse.class);
+
+    private CloseableHttpResponse   response;
+    private Iterator<T>             elements;
+    private DriverToCoreMapper<T,V> mapper;
+    private boolean                 iterated;
+    private Runnable                onRelease;
+
+    DaseinStreamingResponse(@Nullable CloseableHttpResponse response, @Nonnull Iterator<T> elements, @Nonnull DriverToCoreMapper<T,V> mapper) {
+        this(response, elements, mapper, null);
+    }
+
+    /**
+     * @param onRelease run once after the response has been closed, to hand back whatever the open response held on to
+     */
+    DaseinStreamingResponse(@Nullable CloseableHttpResponse response, @Nonnull Iterator<T> elements, @Nonnull DriverToCoreMapper<T,V> mapper, @Nullable Runnable onRelease) {
+        this.response = response;
+        this.elements = elements;
+        this.mapper = mapper;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * Releases the underlying connection. A listing that was not read to the end closes its connection rather than
+     * reading the rest of the response just to return it to the pool.
+     */
+    @Override
+    public void close() {
+        release(false);
+    }
+
+    private synchronized void release(boolean exhausted) {
+        if( response != null ) {
+            try {
+                if( exhausted ) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                }
+                response.close();
+            }
+            catch( IOException e ) {
+                logger.warn("Unable to close streaming response: " + e.getMessage());
+            }
+            response = null;
+        }
+        if( onRelease != null ) {
+            Runnable r = onRelease;
+
+            onRelease = null;
+            r.run();
+        }
+    }
+
+    @Override
+    public synchronized @Nonnull Iterator<V> iterator() {
+        if( iterated ) {
+            throw new IllegalStateException("A streaming response may only be iterated once");
+        }
+        iterated = true;
+        return new Iterator<V>() {
+            private V next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while( next == null && elements.hasNext() ) {
+                        T element = elements.next();
+
+                        if( element != null ) {
+                            next = mapper.mapFrom(element);
+                        }
+                    }
+                }
+                catch( RuntimeException e ) {
+                    release(false);
+                    throw e;
+                }
+                if( next == null ) {
+                    release(true);
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public V next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                V v = next;
+
+                next = null;
+                return v;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
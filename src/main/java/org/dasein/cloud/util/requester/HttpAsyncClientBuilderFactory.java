@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Creates the builders from which {@link DaseinHttpClientPool} builds pooled non-blocking clients for requests started
+ * with {@link DaseinRequestExecutor#executeInBackground()}. A driver whose {@link HttpClientBuilderFactory} configures
+ * SSL, credentials or interceptors should implement this interface on the same factory with the same settings, since
+ * background requests made with any other factory, or with a plain builder, go through a client that has only the
+ * pool settings. The pooled non-blocking client is shared by all background requests made with an equal factory.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public interface HttpAsyncClientBuilderFactory {
+    /**
+     * Creates a builder carrying the driver's settings. The pool applies its connection manager, keep-alive, compression
+     * and proxy settings to the builder, so a new builder must be returned from every call.
+     * @return a new builder for a pooled non-blocking client
+     */
+    public @Nonnull HttpAsyncClientBuilder newAsyncBuilder();
+}
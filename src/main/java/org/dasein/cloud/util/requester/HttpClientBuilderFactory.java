@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.impl.client.HttpClientBuilder;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Creates the HTTP client builders from which {@link DaseinHttpClientPool} builds pooled clients. A factory stands for
+ * one client configuration (SSL context, credentials, interceptors, user agent, and so on) and is also the key under
+ * which the pooled client is shared, so drivers should keep one factory per configuration, or implement
+ * {@link Object#equals(Object)} and {@link Object#hashCode()}, rather than create a new factory for every request.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public interface HttpClientBuilderFactory {
+    /**
+     * Creates a builder carrying the driver's settings. The pool applies its connection limits, keep-alive and proxy
+     * settings to the builder, so a new builder must be returned from every call.
+     * @return a new builder for a pooled client
+     */
+    public @Nonnull HttpClientBuilder newBuilder();
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Lets concurrent identical requests share a single call to the cloud. The first thread to make a request runs it
+ * while any other thread making the same request in the meantime waits for and receives the same result, or the same
+ * failure. Requests are identical when their method, URI, body, account, and result type match; requests whose
+ * results are mapped by a mapper with state of its own have no result type and are never coalesced (see
+ * {@link DaseinResponseHandlerWithMapper#getResultType()}). Nothing is kept once the call completes; a request made
+ * after that is sent again. Requests started in the background share calls with requests made in the foreground in
+ * either direction, without a thread waiting on the shared call.
+ * @version 2014.11 initial version
+ * @version 2014.11 stateful mappers not coalesced
+ * @version 2014.11 background requests
+ * @since 2014.11
+ */
+final class RequestCoalescer {
+    /**
+     * Starts a call made in the background, completing the specified future with its outcome.
+     * @param <T> the type of the result
+     */
+    static interface BackgroundCall<T> {
+        void start(@Nonnull DaseinRequestFuture<T> future);
+    }
+
+    static private final ConcurrentHashMap<String,DaseinRequestFuture<?>> calls = new ConcurrentHashMap<String, DaseinRequestFuture<?>>();
+
+    /**
+     * Identifies a request for the purposes of coalescing.
+     * @param provider the provider making the request
+     * @param request the request
+     * @param handler reads the response
+     * @return the key identifying the request, or <code>null</code> if the request cannot be coalesced because its
+     * result type cannot be determined or its body cannot be read without consuming it
+     * @throws CloudException the body of the request could not be read
+     */
+    static @Nullable String getKey(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request, @Nonnull ResponseHandler<?> handler) throws CloudException {
+        String resultType = ConditionalResponseHandler.getResultType(handler);
+
+        if( resultType == null ) {
+            return null;
+        }
+        ProviderContext ctx = provider.getContext();
+        StringBuilder key = new StringBuilder();
+
+        key.append(ctx == null ? "" : ctx.getAccountNumber()).append(' ');
+        key.append(request.getMethod()).append(' ').append(request.getURI()).append(' ');
+        if( request instanceof HttpEntityEnclosingRequest ) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
+
+            if( entity != null ) {
+                if( !entity.isRepeatable() ) {
+                    return null;
+                }
+                key.append(digest(entity));
+            }
+        }
+        return key.append(' ').append(resultType).toString();
+    }
+
+    /**
+     * Executes a call unless an identical one is already in flight, in which case its result is awaited instead.
+     * @param key the key identifying the call
+     * @param call the call
+     * @param <T> the type of the result
+     * @return the result of the call
+     * @throws CloudException the call failed
+     */
+    static <T> T execute(@Nonnull String key, @Nonnull Callable<T> call) throws CloudException {
+        DaseinRequestFuture<T> future = new DaseinRequestFuture<T>();
+        DaseinRequestFuture<T> current = claim(key, future);
+
+        if( current != null ) {
+            return await(current);
+        }
+        try {
+            future.completed(call.call());
+        }
+        catch( Throwable t ) {
+            future.failed(t);
+        }
+        finally {
+            calls.remove(key, future);
+        }
+        return await(future);
+    }
+
+    /**
+     * Starts a call in the background unless an identical one is already in flight, in which case the returned future
+     * completes with its outcome instead. The call is shared, so cancelling the returned future does not abort it.
+     * @param key the key identifying the call
+     * @param call starts the call
+     * @param <T> the type of the result
+     * @return the pending result of the call
+     */
+    static <T> DaseinRequestFuture<T> submit(@Nonnull final String key, @Nonnull BackgroundCall<T> call) {
+        final DaseinRequestFuture<T> shared = new DaseinRequestFuture<T>();
+        DaseinRequestFuture<T> current = claim(key, shared);
+        final DaseinRequestFuture<T> future = new DaseinRequestFuture<T>();
+
+        if( current == null ) {
+            current = shared;
+            shared.addCallback(new DaseinRequestCallback<T>() {
+                @Override
+                public void onFailure(@Nonnull CloudException error) {
+                    calls.remove(key, shared);
+                }
+
+                @Override
+                public void onSuccess(@Nullable T result) {
+                    calls.remove(key, shared);
+                }
+            });
+            call.start(shared);
+        }
+        current.addCallback(new DaseinRequestCallback<T>() {
+            @Override
+            public void onFailure(@Nonnull CloudException error) {
+                future.failed(error);
+            }
+
+            @Override
+            public void onSuccess(@Nullable T result) {
+                future.completed(result);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Registers a call as the one in flight for its key, unless another call is in flight already. A call that has
+     * completed but not yet been removed does not count.
+     * @return the call already in flight, or <code>null</code> if the specified call was registered
+     */
+    @SuppressWarnings("unchecked")
+    static private @Nullable <T> DaseinRequestFuture<T> claim(@Nonnull String key, @Nonnull DaseinRequestFuture<T> future) {
+        while( true ) {
+            DaseinRequestFuture<T> current = (DaseinRequestFuture<T>)calls.putIfAbsent(key, future);
+
+            if( current == null || !current.isDone() ) {
+                return current;
+            }
+            if( calls.replace(key, current, future) ) {
+                return null;
+            }
+        }
+    }
+
+    static private <T> T await(@Nonnull Future<T> task) throws CloudException {
+        try {
+            return task.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for an identical request", e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            else if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            else if( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            throw new CloudException(cause);
+        }
+    }
+
+    static private @Nonnull String digest(@Nonnull HttpEntity entity) throws CloudException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            InputStream in = entity.getContent();
+            byte[] buffer = new byte[4096];
+            int count;
+
+            try {
+                while( (count = in.read(buffer)) != -1 ) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            finally {
+                in.close();
+            }
+            StringBuilder hex = new StringBuilder();
+
+            for( byte b : digest.digest() ) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new CloudException(e);
+        }
+        catch( IOException e ) {
+            throw new CloudException("Unable to read request body: " + e.getMessage(), e);
+        }
+    }
+
+    private RequestCoalescer() { }
+}
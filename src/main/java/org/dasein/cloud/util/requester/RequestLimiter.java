@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Decides when a request may be sent to a cloud provider. {@link DaseinRequestExecutor} asks for a permit before
+ * sending each request and hands it back with the outcome once the response has arrived, which lets an implementation
+ * pace requests and adapt to the provider pushing back. The default implementation is {@link AdaptiveRequestLimiter};
+ * another may be installed with {@link DaseinRequestExecutor#setRequestLimiter(RequestLimiter)}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public interface RequestLimiter {
+    /**
+     * A permission to send one request, which must be released exactly once.
+     */
+    public interface Permit {
+        /**
+         * Returns the permit along with the outcome of the request.
+         * @param error the type of error returned by the provider, or <code>null</code> if the request succeeded
+         */
+        public void release(@Nullable CloudErrorType error);
+    }
+
+    /**
+     * Waits until the specified request may be sent.
+     * @param provider the provider on whose behalf the request is being made
+     * @param request the request about to be sent
+     * @return a permit to send the request
+     * @throws CloudException no permit could be granted in a reasonable time
+     */
+    public @Nonnull Permit acquire(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request) throws CloudException;
+}
@@ -0,0 +1,554 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.LatencyHistogram;
+import org.dasein.cloud.util.LatencyStatistics;
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Declares how a request made through {@link org.dasein.cloud.util.requester.fluent.DaseinRequest} recovers from
+ * transient failures. A failed attempt is retried when its {@link CloudErrorType} or HTTP status code is one of
+ * the retryable ones, after an exponentially growing delay with full jitter so that clients that failed together do
+ * not retry together. Idempotent requests (GET, HEAD, OPTIONS, PUT and DELETE) are retried on any retryable
+ * failure; other requests only when the provider reports throttling, since the request was then refused rather
+ * than partially carried out. Requests with a body that cannot be sent twice are never retried.
+ * <p>
+ * Retries are paid for from a budget shared by all requests to the same endpoint and account. Every request adds
+ * a fraction of a retry to the budget (10% by default) and every retry takes a whole one out, so that an outage
+ * does not multiply the load on a struggling provider. A small reserve allows retries before any requests have
+ * been made.
+ * </p>
+ * <p>
+ * GET requests may optionally be hedged: when an attempt has not completed after the specified percentile of recent
+ * latencies for the same endpoint and action, a second copy is sent and whichever completes first wins, the other
+ * being aborted. Hedges are paid for from the same budget. Requests started in the background are retried like any
+ * other, but never hedged.
+ * </p>
+ * <pre>
+ *     String result = new DaseinRequest(provider, httpClientBuilder, request)
+ *             .withRetryPolicy(RetryPolicy.getInstance().withMaximumAttempts(5).withHedging(95d))
+ *             .execute();
+ * </pre>
+ * @version 2014.11 initial version
+ * @version 2014.11 retries of background requests
+ * @since 2014.11
+ */
+public class RetryPolicy {
+    static private final Logger logger = Logger.getLogger(RetryPolicy.class);
+
+    /**
+     * The number of retries available to an endpoint and account before any requests have been made, and the most
+     * the budget may accumulate.
+     */
+    static private final long BUDGET_RESERVE       = 10L;
+    static private final long BUDGET_SCALE         = 1000L;
+    static private final long HEDGE_MINIMUM_DELAY  = 20L;
+    static private final long HEDGE_MINIMUM_SAMPLES = 20L;
+    static private final int  HEDGE_THREADS        = 64;
+    static private final int  HEDGE_WINDOW         = 5;
+
+    static private final ConcurrentHashMap<String,AtomicLong>       budgets   = new ConcurrentHashMap<String, AtomicLong>();
+    static private final ConcurrentHashMap<String,LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    static private final Random                                     random    = new Random();
+
+    static private final ThreadPoolExecutor hedgePool = new ThreadPoolExecutor(0, HEDGE_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Hedged Request " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * A single attempt at sending a request and reading its response.
+     * @param <T> the type of the response
+     */
+    static interface Attempt<T> {
+        T execute(@Nonnull HttpUriRequest request) throws CloudException;
+    }
+
+    /**
+     * Constructs a policy of up to 3 attempts with delays starting at 100 milliseconds and capped at 10 seconds,
+     * retrying communication failures, throttling, and HTTP codes 429, 500, 502, 503 and 504, without hedging.
+     * @return the default retry policy
+     */
+    static public @Nonnull RetryPolicy getInstance() {
+        return new RetryPolicy();
+    }
+
+    private int                     maximumAttempts = 3;
+    private long                    initialBackoff  = 100L;
+    private long                    maximumBackoff  = 10000L;
+    private EnumSet<CloudErrorType> retryableErrors = EnumSet.of(CloudErrorType.COMMUNICATION, CloudErrorType.THROTTLING);
+    private int[]                   retryableCodes  = new int[] { 429, 500, 502, 503, 504 };
+    private double                  budgetRatio     = 0.1d;
+    private double                  hedgePercentile;
+
+    private RetryPolicy() { }
+
+    /**
+     * @return the fraction of a retry each request adds to the retry budget
+     */
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * @return the percentile of recent latencies after which a GET is hedged, 0 meaning never
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return the delay in milliseconds before the first retry, before jitter
+     */
+    public @Nonnegative long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * @return the highest number of attempts made for one request, including the first
+     */
+    public @Nonnegative int getMaximumAttempts() {
+        return maximumAttempts;
+    }
+
+    /**
+     * @return the longest delay in milliseconds between attempts, before jitter
+     */
+    public @Nonnegative long getMaximumBackoff() {
+        return maximumBackoff;
+    }
+
+    /**
+     * Determines whether a failure is one this policy retries, regardless of the request that caused it.
+     * @param error the failure
+     * @return true if the error type or HTTP code of the failure is retryable
+     */
+    public boolean isRetryable(@Nonnull CloudException error) {
+        if( retryableErrors.contains(error.getErrorType()) ) {
+            return true;
+        }
+        for( int code : retryableCodes ) {
+            if( code == error.getHttpCode() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the delays between attempts. The delay before the nth retry is a random value between 0 and
+     * <code>initial * 2^(n-1)</code>, capped at <code>maximum</code>.
+     * @param initial the delay before the first retry, before jitter
+     * @param maximum the longest delay between attempts, before jitter
+     * @return this
+     */
+    public @Nonnull RetryPolicy withBackoff(@Nonnull TimePeriod<?> initial, @Nonnull TimePeriod<?> maximum) {
+        //noinspection unchecked
+        this.initialBackoff = Math.max(1L, ((TimePeriod<Millisecond>)initial.convertTo(TimePeriod.MILLISECOND)).longValue());
+        //noinspection unchecked
+        this.maximumBackoff = Math.max(initialBackoff, ((TimePeriod<Millisecond>)maximum.convertTo(TimePeriod.MILLISECOND)).longValue());
+        return this;
+    }
+
+    /**
+     * Sets the fraction of a retry each request adds to the retry budget of its endpoint and account, which
+     * bounds retries and hedges to roughly that fraction of all requests once the reserve is spent.
+     * @param ratio the fraction of a retry earned by each request, 0 allowing only the reserve
+     * @return this
+     */
+    public @Nonnull RetryPolicy withRetryBudget(double ratio) {
+        if( ratio < 0d ) {
+            throw new IllegalArgumentException("Retry budget ratio may not be negative: " + ratio);
+        }
+        this.budgetRatio = ratio;
+        return this;
+    }
+
+    /**
+     * Sends a second copy of GET requests that have not completed after the specified percentile of the latencies
+     * recorded over the last few minutes for the same endpoint and action. No hedge is sent until enough
+     * latencies have been recorded.
+     * @param percentile the percentile of recent latencies after which to hedge, e.g. 95; 0 turns hedging off
+     * @return this
+     */
+    public @Nonnull RetryPolicy withHedging(double percentile) {
+        if( percentile < 0d || percentile >= 100d ) {
+            throw new IllegalArgumentException("Hedging percentile must be at least 0 and less than 100: " + percentile);
+        }
+        this.hedgePercentile = percentile;
+        return this;
+    }
+
+    /**
+     * @param maximumAttempts the highest number of attempts made for one request, including the first; 1 disables retries
+     * @return this
+     */
+    public @Nonnull RetryPolicy withMaximumAttempts(@Nonnegative int maximumAttempts) {
+        this.maximumAttempts = Math.max(1, maximumAttempts);
+        return this;
+    }
+
+    /**
+     * Replaces the HTTP status codes that are retried whatever error type they map to.
+     * @param codes the retryable HTTP status codes
+     * @return this
+     */
+    public @Nonnull RetryPolicy withRetryableHttpCodes(@Nonnull int ... codes) {
+        this.retryableCodes = Arrays.copyOf(codes, codes.length);
+        return this;
+    }
+
+    /**
+     * Replaces the error types that are retried.
+     * @param types the retryable error types
+     * @return this
+     */
+    public @Nonnull RetryPolicy withRetryableErrors(@Nonnull CloudErrorType ... types) {
+        EnumSet<CloudErrorType> errors = EnumSet.noneOf(CloudErrorType.class);
+
+        errors.addAll(Arrays.asList(types));
+        this.retryableErrors = errors;
+        return this;
+    }
+
+    /**
+     * Executes a request under this policy.
+     * @param provider the provider making the request
+     * @param request the request
+     * @param attempt sends the request and reads its response
+     * @param <T> the type of the response
+     * @return the response of the first successful attempt
+     * @throws CloudException the failure of the last attempt
+     */
+    <T> T execute(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request, @Nonnull Attempt<T> attempt) throws CloudException {
+        return execute(provider, request, attempt, true);
+    }
+
+    /**
+     * Executes a request under this policy.
+     * @param provider the provider making the request
+     * @param request the request
+     * @param attempt sends the request and reads its response
+     * @param hedgeable false if the request may not be hedged whatever the policy, as when its response is streamed
+     * @param <T> the type of the response
+     * @return the response of the first successful attempt
+     * @throws CloudException the failure of the last attempt
+     */
+    <T> T execute(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request, @Nonnull Attempt<T> attempt, boolean hedgeable) throws CloudException {
+        AtomicLong budget = begin(provider, request);
+        LatencyHistogram histogram = (hedgeable && "GET".equals(request.getMethod()) ? getLatencies(request) : null);
+
+        for( int i=1; ; i++ ) {
+            try {
+                if( histogram != null ) {
+                    return hedge(request, attempt, histogram, budget);
+                }
+                return attempt.execute(request);
+            }
+            catch( CloudException e ) {
+                long delay = getRetryDelay(budget, request, i, e);
+
+                if( delay < 0L ) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(delay);
+                }
+                catch( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                if( request instanceof HttpRequestBase ) {
+                    ((HttpRequestBase)request).reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a request under this policy, adding its share to the retry budget of its endpoint and account. Requests
+     * started in the background are retried through {@link #getRetryDelay(AtomicLong, HttpUriRequest, int, CloudException)}
+     * without a thread waiting out the delay, and are never hedged.
+     * @param provider the provider making the request
+     * @param request the request
+     * @return the budget from which retries of the request are paid
+     */
+    @Nonnull AtomicLong begin(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request) {
+        AtomicLong budget = getBudget(provider, request);
+
+        deposit(budget, (long)(budgetRatio * BUDGET_SCALE));
+        return budget;
+    }
+
+    /**
+     * Decides whether a failed attempt is retried, paying for the retry from the budget if it is.
+     * @param budget the budget returned by {@link #begin(CloudProvider, HttpUriRequest)} for the request
+     * @param request the request
+     * @param attempt the number of the attempt that failed, starting at 1
+     * @param error the failure of the attempt
+     * @return the delay in milliseconds before the next attempt, or -1 if the failure is final
+     */
+    long getRetryDelay(@Nonnull AtomicLong budget, @Nonnull HttpUriRequest request, @Nonnegative int attempt, @Nonnull CloudException error) {
+        String method = request.getMethod();
+        boolean idempotent = ("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) || "PUT".equals(method) || "DELETE".equals(method));
+        boolean repeatable = !(request instanceof HttpEntityEnclosingRequest)
+                || ((HttpEntityEnclosingRequest)request).getEntity() == null
+                || ((HttpEntityEnclosingRequest)request).getEntity().isRepeatable();
+
+        if( attempt >= maximumAttempts || !repeatable || !isRetryable(error) ) {
+            return -1L;
+        }
+        if( !idempotent && !CloudErrorType.THROTTLING.equals(error.getErrorType()) ) {
+            return -1L;
+        }
+        if( !withdraw(budget) ) {
+            logger.warn("Retry budget exhausted for " + request.getURI().getHost() + "; not retrying " + method + " after: " + error.getMessage());
+            return -1L;
+        }
+        long delay = getBackoff(attempt);
+
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Retrying " + method + " " + request.getURI() + " in " + delay + "ms after attempt " + attempt + " failed: " + error.getMessage());
+        }
+        return delay;
+    }
+
+    /**
+     * @param retry the number of the retry, starting at 1
+     * @return a random delay in milliseconds between 0 and the exponential backoff for the retry
+     */
+    long getBackoff(@Nonnegative int retry) {
+        long ceiling = initialBackoff << Math.min(retry - 1, 30);
+
+        if( ceiling <= 0L || ceiling > maximumBackoff ) {
+            ceiling = maximumBackoff;
+        }
+        synchronized( random ) {
+            return (long)(random.nextDouble() * (ceiling + 1));
+        }
+    }
+
+    private <T> T hedge(@Nonnull final HttpUriRequest request, @Nonnull final Attempt<T> attempt, @Nonnull final LatencyHistogram histogram, @Nonnull AtomicLong budget) throws CloudException {
+        long delay = 0L;
+
+        if( hedgePercentile > 0d ) {
+            LatencyStatistics statistics = histogram.getStatistics(HEDGE_WINDOW);
+
+            if( statistics.getCount() >= HEDGE_MINIMUM_SAMPLES ) {
+                delay = Math.max(HEDGE_MINIMUM_DELAY, statistics.getValueAtPercentile(hedgePercentile) / 1000000L);
+            }
+        }
+        if( delay == 0L || !(request instanceof HttpRequestBase) ) {
+            return timed(request, attempt, histogram);
+        }
+        final HttpUriRequest pristine;
+
+        try {
+            // copied before the first attempt adds headers of its own, such as conditional GET validators, which
+            // the hedge would otherwise mistake for ones set by the caller
+            pristine = (HttpUriRequest)((HttpRequestBase)request).clone();
+        }
+        catch( CloneNotSupportedException e ) {
+            return timed(request, attempt, histogram);
+        }
+        ExecutorCompletionService<T> completion = new ExecutorCompletionService<T>(hedgePool);
+        Future<T> primary;
+
+        try {
+            primary = completion.submit(new Callable<T>() {
+                @Override
+                public T call() throws CloudException {
+                    return timed(request, attempt, histogram);
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            return timed(request, attempt, histogram);
+        }
+        HttpUriRequest copy = null;
+        Future<T> secondary = null;
+
+        try {
+            Future<T> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+
+            if( done == null && withdraw(budget) ) {
+                try {
+                    copy = pristine;
+                    secondary = completion.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws CloudException {
+                            return timed(pristine, attempt, histogram);
+                        }
+                    });
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Hedging GET " + request.getURI() + " after " + delay + "ms");
+                    }
+                }
+                catch( RejectedExecutionException e ) {
+                    copy = null;
+                }
+            }
+            if( done == null ) {
+                done = completion.take();
+            }
+            try {
+                T result = done.get();
+
+                if( done != primary ) {
+                    request.abort();
+                }
+                else if( copy != null ) {
+                    copy.abort();
+                }
+                return result;
+            }
+            catch( ExecutionException e ) {
+                if( secondary == null ) {
+                    throw e;
+                }
+                // one attempt failed; the outcome of the other decides
+                Future<T> other = (done == primary ? secondary : primary);
+
+                try {
+                    return other.get();
+                }
+                catch( ExecutionException ignore ) {
+                    throw (done == primary ? e : ignore);
+                }
+            }
+        }
+        catch( ExecutionException e ) {
+            if( e.getCause() instanceof CloudException ) {
+                throw (CloudException)e.getCause();
+            }
+            throw new CloudException(e.getCause() == null ? e : e.getCause());
+        }
+        catch( InterruptedException e ) {
+            request.abort();
+            if( copy != null ) {
+                copy.abort();
+            }
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for a response", e);
+        }
+    }
+
+    private @Nonnull AtomicLong getBudget(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request) {
+        ProviderContext ctx = provider.getContext();
+        URI uri = request.getURI();
+        String key = uri.getHost() + ":" + uri.getPort() + "/" + (ctx == null ? "" : ctx.getAccountNumber());
+        AtomicLong budget = budgets.get(key);
+
+        if( budget == null ) {
+            budget = new AtomicLong(BUDGET_RESERVE * BUDGET_SCALE);
+            AtomicLong b = budgets.putIfAbsent(key, budget);
+
+            if( b != null ) {
+                budget = b;
+            }
+        }
+        return budget;
+    }
+
+    private @Nonnull LatencyHistogram getLatencies(@Nonnull HttpUriRequest request) {
+        URI uri = request.getURI();
+        String key = uri.getHost() + ":" + uri.getPort() + "/" + AdaptiveRequestLimiter.getAction(request);
+        LatencyHistogram histogram = latencies.get(key);
+
+        if( histogram == null ) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram h = latencies.putIfAbsent(key, histogram);
+
+            if( h != null ) {
+                histogram = h;
+            }
+        }
+        return histogram;
+    }
+
+    static private void deposit(@Nonnull AtomicLong budget, long amount) {
+        while( true ) {
+            long current = budget.get();
+            long next = Math.min(BUDGET_RESERVE * BUDGET_SCALE, current + amount);
+
+            if( next == current || budget.compareAndSet(current, next) ) {
+                return;
+            }
+        }
+    }
+
+    static private @Nullable <T> T timed(@Nonnull HttpUriRequest request, @Nonnull Attempt<T> attempt, @Nonnull LatencyHistogram histogram) throws CloudException {
+        long start = System.nanoTime();
+        T result = attempt.execute(request);
+
+        histogram.record(System.nanoTime() - start);
+        return result;
+    }
+
+    static private boolean withdraw(@Nonnull AtomicLong budget) {
+        while( true ) {
+            long current = budget.get();
+
+            if( current < BUDGET_SCALE ) {
+                return false;
+            }
+            if( budget.compareAndSet(current, current - BUDGET_SCALE) ) {
+                return true;
+            }
+        }
+    }
+}
@@ -43,7 +43,7 @@ public abstract class DaseinEntity<T> extends AbstractHttpEntity implements Clon
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        return true;
     }
 
     @Override
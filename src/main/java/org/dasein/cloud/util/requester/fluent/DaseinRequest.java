@@ -19,6 +19,7 @@
 
 package org.dasein.cloud.util.requester.fluent;
 
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.dasein.cloud.CloudException;
@@ -45,13 +46,17 @@ public class DaseinRequest implements CompositeRequester {
 
     private CloudProvider provider;
     private HttpClientBuilder httpClientBuilder;
+    private HttpClientBuilderFactory clientFactory;
     private HttpUriRequest httpUriRequestBuilder;
+    private RetryPolicy retryPolicy;
+    private boolean conditional;
+    private boolean coalesce;
 
     /**
      * Constructs a new DaseinRequest instance, ready to execute http calls to a specified Uri.
      *
      * @param provider the current CloudProvider instance
-     * @param httpClientBuilder
+     * @param httpClientBuilder the builder for the HTTP client, from which a client is built for this request alone
      * @param httpUriRequestBuilder
     **/
     public DaseinRequest(CloudProvider provider, HttpClientBuilder httpClientBuilder, HttpUriRequest httpUriRequestBuilder){
@@ -60,6 +65,77 @@ public class DaseinRequest implements CompositeRequester {
         this.httpUriRequestBuilder = httpUriRequestBuilder;
     }
 
+    /**
+     * Constructs a new DaseinRequest instance that sends its request through the pooled HTTP client for the provider
+     * and factory, reusing open connections across requests (see {@link DaseinHttpClientPool}).
+     *
+     * <code>
+     *     String result = new DaseinRequest(cloudProvider, clientFactory, httpUriRequestBuilder).execute();
+     * </code>
+     *
+     * @param provider the current CloudProvider instance
+     * @param clientFactory the factory for the builder of the pooled client, which is also the key of the pooled client
+     * @param httpUriRequestBuilder
+     **/
+    public DaseinRequest(CloudProvider provider, HttpClientBuilderFactory clientFactory, HttpUriRequest httpUriRequestBuilder){
+        this.provider = provider;
+        this.clientFactory = clientFactory;
+        this.httpUriRequestBuilder = httpUriRequestBuilder;
+    }
+
+    /**
+     * Retries the request according to the specified policy when it fails, and optionally hedges it if it is a GET.
+     * Without a policy, a request is attempted once.
+     *
+     * <code>
+     *     String result = new DaseinRequest(cloudProvider, httpClientBuilder, httpUriRequestBuilder).withRetryPolicy(RetryPolicy.getInstance()).execute();
+     * </code>
+     *
+     * @param retryPolicy the policy to apply to the request
+     * @return this
+     **/
+    public DaseinRequest withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Makes a GET conditional on the ETag and Last-Modified validators of the last response to the same URI for the
+     * same account, so that an unchanged resource is answered with 304 Not Modified and the result read from the
+     * earlier response is returned without downloading or deserializing it again. Results are shared between
+     * callers and should not be modified. Results mapped by a {@link DriverToCoreMapper} are only remembered if the
+     * mapper class has no instance fields, and a request that already carries its own validators is sent as it is.
+     * Does not apply to streaming processors.
+     *
+     * <code>
+     *     DaseinDriverType result = new DaseinRequest(cloudProvider, httpClientBuilder, httpUriRequestBuilder).withConditionalGet().withJsonProcessor(DaseinDriverType.class).execute();
+     * </code>
+     *
+     * @return this
+     **/
+    public DaseinRequest withConditionalGet() {
+        this.conditional = true;
+        return this;
+    }
+
+    /**
+     * Lets this request share the response of an identical request, with the same method, URI, body, and account,
+     * that another thread is already waiting on, instead of sending it again. All threads sharing a response receive
+     * the same result, which should not be modified. Only requests without side effects should be coalesced. Requests
+     * mapped by a {@link DriverToCoreMapper} are only coalesced if the mapper class has no instance fields. Does not
+     * apply to streaming processors.
+     *
+     * <code>
+     *     DaseinDriverType result = new DaseinRequest(cloudProvider, httpClientBuilder, httpUriRequestBuilder).withCoalescing().withJsonProcessor(DaseinDriverType.class).execute();
+     * </code>
+     *
+     * @return this
+     **/
+    public DaseinRequest withCoalescing() {
+        this.coalesce = true;
+        return this;
+    }
+
     /**
      * Constructs a instance of a DaseinRequestExecutor with a XML stream processor that, once the HTTP request has been
      * finished, will perform a deserialization of the XML response into the specified type T.
@@ -72,9 +148,8 @@ public class DaseinRequest implements CompositeRequester {
      * @return an instance of the classType type representing the response XML
     **/
     @Override
-    public <T> Requester<T> withXmlProcessor(Class<T> classType) {
-        return new DaseinRequestExecutor<T>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
-                new DaseinResponseHandler<T>(new XmlStreamToObjectProcessor(), classType));
+    public <T> DaseinRequestExecutor<T> withXmlProcessor(Class<T> classType) {
+        return newExecutor(new DaseinResponseHandler<T>(new XmlStreamToObjectProcessor(), classType));
     }
 
     /**
@@ -98,9 +173,8 @@ public class DaseinRequest implements CompositeRequester {
      * @return an instance of the V type which should be a Dasien Core type.
      **/
     @Override
-    public <T, V> Requester<V> withXmlProcessor(DriverToCoreMapper<T, V> mapper, Class<T> classType) {
-        return new DaseinRequestExecutor<V>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
-                new DaseinResponseHandlerWithMapper<T, V>(new XmlStreamToObjectProcessor(), mapper, classType));
+    public <T, V> DaseinRequestExecutor<V> withXmlProcessor(DriverToCoreMapper<T, V> mapper, Class<T> classType) {
+        return newExecutor(new DaseinResponseHandlerWithMapper<T, V>(new XmlStreamToObjectProcessor(), mapper, classType));
     }
 
     /**
@@ -115,9 +189,8 @@ public class DaseinRequest implements CompositeRequester {
      * @return an instance of the classType type representing the response JSON
      **/
     @Override
-    public <T> Requester<T> withJsonProcessor(Class<T> classType) {
-        return new DaseinRequestExecutor<T>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
-                new DaseinResponseHandler<T>(new JsonStreamToObjectProcessor(), classType));
+    public <T> DaseinRequestExecutor<T> withJsonProcessor(Class<T> classType) {
+        return newExecutor(new DaseinResponseHandler<T>(new JsonStreamToObjectProcessor(), classType));
     }
 
     /**
@@ -141,9 +214,8 @@ public class DaseinRequest implements CompositeRequester {
      * @return an instance of the V type which should be a Dasien Core type.
      **/
     @Override
-    public <T, V> Requester<V> withJsonProcessor(DriverToCoreMapper<T, V> mapper, Class<T> classType) {
-        return new DaseinRequestExecutor<V>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
-                new DaseinResponseHandlerWithMapper<T, V>(new JsonStreamToObjectProcessor(), mapper, classType));
+    public <T, V> DaseinRequestExecutor<V> withJsonProcessor(DriverToCoreMapper<T, V> mapper, Class<T> classType) {
+        return newExecutor(new DaseinResponseHandlerWithMapper<T, V>(new JsonStreamToObjectProcessor(), mapper, classType));
     }
 
     /**
@@ -156,8 +228,7 @@ public class DaseinRequest implements CompositeRequester {
     **/
     @Override
     public <T> DaseinRequestExecutor<Document> withDocumentProcessor() {
-        return new DaseinRequestExecutor<Document>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
-                new DaseinResponseHandler<Document>(new StreamToDocumentProcessor(), Document.class));
+        return newExecutor(new DaseinResponseHandler<Document>(new StreamToDocumentProcessor(), Document.class));
     }
 
     /**
@@ -170,8 +241,42 @@ public class DaseinRequest implements CompositeRequester {
      **/
     @Override
     public <T> DaseinRequestExecutor<JSONObject> withJSONObjectProcessor() {
-        return new DaseinRequestExecutor<JSONObject>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
-                new DaseinResponseHandler<JSONObject>(new StreamToJSONObjectProcessor(), JSONObject.class));
+        return newExecutor(new DaseinResponseHandler<JSONObject>(new StreamToJSONObjectProcessor(), JSONObject.class));
+    }
+
+    /**
+     * Constructs a instance of a DaseinStreamingRequestExecutor that, once the HTTP response starts arriving, hands
+     * back the elements of the first JSON array in the response one at a time, each deserialized into the type T and
+     * mapped to a Dasein Core type V as it is read. Only one element is held in memory at a time, which suits large
+     * listings. The result may be iterated once and should be closed if it is not read to the end.
+     *
+     * <code>
+     *     for( DaseinCoreType vm : new DaseinRequest(cloudProvider, httpClientBuilder, httpUriRequestBuilder)
+     *              .withStreamingJsonProcessor(mapper, DaseinDriverType.class).execute() ) {
+     *         //use vm
+     *     }
+     * </code>
+     *
+     * @param mapper an implementation of DriverToCoreMapper<T, V> interface applied to each element
+     * @param elementType the type of each element in the listing
+     * @return a lazily read listing of V elements
+     **/
+    public <T, V> DaseinStreamingRequestExecutor<T, V> withStreamingJsonProcessor(DriverToCoreMapper<T, V> mapper, Class<T> elementType) {
+        return newStreamingExecutor(new JsonStreamToIteratorProcessor<T>(), mapper, elementType);
+    }
+
+    /**
+     * Constructs a instance of a DaseinStreamingRequestExecutor that, once the HTTP response starts arriving, hands
+     * back each XML element matching the root element name of type T one at a time, unmarshalled into T and mapped
+     * to a Dasein Core type V as it is read. Only one element is held in memory at a time, which suits large
+     * listings. The result may be iterated once and should be closed if it is not read to the end.
+     *
+     * @param mapper an implementation of DriverToCoreMapper<T, V> interface applied to each element
+     * @param elementType the JAXB type of each element in the listing
+     * @return a lazily read listing of V elements
+     **/
+    public <T, V> DaseinStreamingRequestExecutor<T, V> withStreamingXmlProcessor(DriverToCoreMapper<T, V> mapper, Class<T> elementType) {
+        return newStreamingExecutor(new XmlStreamToIteratorProcessor<T>(), mapper, elementType);
     }
 
     /**
@@ -185,7 +290,40 @@ public class DaseinRequest implements CompositeRequester {
     **/
     @Override
     public String execute() throws CloudException {
-        return new DaseinRequestExecutor<String>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
-                new DaseinResponseHandler<String>(new StreamToStringProcessor(), String.class)).execute();
+        return newExecutor(new DaseinResponseHandler<String>(new StreamToStringProcessor(), String.class)).execute();
+    }
+
+    /**
+     * Starts executing a HTTP request using a string processor for the response through a pooled non-blocking client,
+     * without waiting for the response (see {@link DaseinRequestExecutor#executeInBackground()}). Drivers whose client
+     * factory configures the client should also implement {@link HttpAsyncClientBuilderFactory} on it.
+     *
+     * <code>
+     *     DaseinRequestFuture&lt;String&gt; pending = new DaseinRequest(cloudProvider, httpClientBuilder, httpUriRequestBuilder).executeInBackground();
+     *     String result = pending.getResult();
+     * </code>
+     *
+     * @return the pending string response of the current HTTP call.
+     **/
+    public DaseinRequestFuture<String> executeInBackground() {
+        return newExecutor(new DaseinResponseHandler<String>(new StreamToStringProcessor(), String.class)).executeInBackground();
+    }
+
+    private <T> DaseinRequestExecutor<T> newExecutor(ResponseHandler<T> responseHandler) {
+        if( this.clientFactory != null ) {
+            return new DaseinRequestExecutor<T>(this.provider, this.clientFactory, this.httpUriRequestBuilder,
+                    responseHandler, this.retryPolicy, this.conditional, this.coalesce);
+        }
+        return new DaseinRequestExecutor<T>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
+                responseHandler, this.retryPolicy, this.conditional, this.coalesce);
+    }
+
+    private <T, V> DaseinStreamingRequestExecutor<T, V> newStreamingExecutor(StreamToIteratorProcessor<T> processor, DriverToCoreMapper<T, V> mapper, Class<T> elementType) {
+        if( this.clientFactory != null ) {
+            return new DaseinStreamingRequestExecutor<T, V>(this.provider, this.clientFactory, this.httpUriRequestBuilder,
+                    processor, mapper, elementType, this.retryPolicy);
+        }
+        return new DaseinStreamingRequestExecutor<T, V>(this.provider, this.httpClientBuilder, this.httpUriRequestBuilder,
+                processor, mapper, elementType, this.retryPolicy);
     }
 }
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester.streamprocessors;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the elements of a JSON array with a Jackson {@link JsonParser}. By default the first array in the document
+ * is streamed, which suits both a bare top-level array and the usual <code>{"servers": [ ... ]}</code> wrapper; a
+ * field name may be given when the response contains other arrays ahead of the listing.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class JsonStreamToIteratorProcessor<T> implements StreamToIteratorProcessor<T> {
+    private String arrayName;
+
+    public JsonStreamToIteratorProcessor() { }
+
+    /**
+     * @param arrayName the name of the field holding the array to stream, or <code>null</code> for the first array
+     */
+    public JsonStreamToIteratorProcessor(@Nullable String arrayName) {
+        this.arrayName = arrayName;
+    }
+
+    @Override
+    public @Nonnull Iterator<T> read(@Nonnull InputStream inputStream, @Nonnull Class<T> elementType) throws IOException {
+        final JsonParser parser = JsonStreamToObjectProcessor.getMapper().getFactory().createParser(inputStream);
+        final ObjectReader reader = JsonStreamToObjectProcessor.getReader(elementType);
+        JsonToken token;
+
+        while( (token = parser.nextToken()) != null ) {
+            if( token == JsonToken.START_ARRAY && (arrayName == null || arrayName.equals(parser.getCurrentName())) ) {
+                break;
+            }
+        }
+        final boolean found = (token != null);
+
+        return new Iterator<T>() {
+            private boolean done = !found;
+            private boolean advanced;
+
+            @Override
+            public boolean hasNext() {
+                if( !done && !advanced ) {
+                    try {
+                        JsonToken t = parser.nextToken();
+
+                        if( t == null || t == JsonToken.END_ARRAY ) {
+                            done = true;
+                            parser.close();
+                        }
+                        else {
+                            advanced = true;
+                        }
+                    }
+                    catch( IOException e ) {
+                        throw new RuntimeException("Error reading response input stream", e);
+                    }
+                }
+                return !done;
+            }
+
+            @Override
+            public T next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                advanced = false;
+                try {
+                    return reader.readValue(parser);
+                }
+                catch( IOException e ) {
+                    throw new RuntimeException("Error deserializing response input stream into dasein object", e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
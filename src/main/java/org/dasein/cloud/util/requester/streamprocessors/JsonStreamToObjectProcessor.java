@@ -19,22 +19,48 @@
 
 package org.dasein.cloud.util.requester.streamprocessors;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.dasein.cloud.util.requester.streamprocessors.StreamProcessor;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
  /**
+ * Reads and writes JSON with Jackson. A single {@link ObjectMapper} is shared by all instances, and the
+ * {@link ObjectReader} for each target type is built once and reused, since both are thread-safe and far more
+ * expensive to construct than the parsing they do.
  * @author Vlad Munthiu
+ * @version 2014.11 shared mapper and cached readers
  */
 public class JsonStreamToObjectProcessor<T> implements StreamProcessor<T> {
+    static private final ObjectMapper                            mapper  = new ObjectMapper();
+    static private final ObjectWriter                            writer  = mapper.writer();
+    static private final ConcurrentHashMap<Class<?>,ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    static @Nonnull ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    static @Nonnull ObjectReader getReader(@Nonnull Class<?> classType) {
+        ObjectReader reader = readers.get(classType);
+
+        if( reader == null ) {
+            reader = mapper.reader(classType);
+            ObjectReader r = readers.putIfAbsent(classType, reader);
+
+            if( r != null ) {
+                reader = r;
+            }
+        }
+        return reader;
+    }
+
     public @Nullable T read(InputStream inputStream, Class<T> classType){
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            return objectMapper.readValue(inputStream, classType);
+            return getReader(classType).readValue(inputStream);
         } catch (Exception ex) {
             throw new RuntimeException("Error deserializing response input stream into dasein object", ex);
         }
@@ -42,8 +68,7 @@ public class JsonStreamToObjectProcessor<T> implements StreamProcessor<T> {
 
     public @Nullable String write(T object){
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            return objectMapper.writeValueAsString(object);
+            return writer.writeValueAsString(object);
         } catch (Exception ex) {
             throw new RuntimeException("Error serializing dasein object into string", ex);
         }
@@ -19,14 +19,12 @@
 
 package org.dasein.cloud.util.requester.streamprocessors;
 
+import org.dasein.cloud.util.XMLParser;
 import org.dasein.cloud.util.requester.streamprocessors.StreamProcessor;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import javax.annotation.Nullable;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -42,9 +40,7 @@ public class StreamToDocumentProcessor implements StreamProcessor<Document> {
     @Override
     public Document read(InputStream inputStream, Class<Document> classType) throws IOException {
         try {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            return documentBuilder.parse(inputStream);
+            return XMLParser.parse(inputStream);
         } catch (Exception e) {
             throw new IOException(e.getMessage());
         }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester.streamprocessors;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * The streaming counterpart of {@link StreamProcessor} for responses that list many elements. Instead of reading the
+ * whole response into one object, it hands back an iterator that parses one element at a time as it is consumed, so
+ * only the current element is ever held in memory. The stream must stay open until the iterator is exhausted.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public interface StreamToIteratorProcessor<T> {
+    /**
+     * Starts parsing a response stream into a sequence of elements.
+     * @param inputStream the response stream, which remains owned by the caller
+     * @param elementType the type of each element in the listing
+     * @return an iterator that parses the next element from the stream each time it is advanced
+     * @throws IOException the stream could not be read up to the first element
+     */
+    @Nonnull Iterator<T> read(@Nonnull InputStream inputStream, @Nonnull Class<T> elementType) throws IOException;
+}
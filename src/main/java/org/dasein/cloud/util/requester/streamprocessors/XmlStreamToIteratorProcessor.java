@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester.streamprocessors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams repeated XML elements with StAX, unmarshalling each one with JAXB as it is reached. Elements are matched by
+ * local name, which defaults to the {@link XmlRootElement} name of the element type or, failing that, its simple class
+ * name with a lower case first letter.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class XmlStreamToIteratorProcessor<T> implements StreamToIteratorProcessor<T> {
+    static private final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    static private @Nonnull String getElementName(@Nonnull Class<?> elementType) {
+        XmlRootElement root = elementType.getAnnotation(XmlRootElement.class);
+
+        if( root != null && !root.name().equals("##default") ) {
+            return root.name();
+        }
+        String name = elementType.getSimpleName();
+
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private String elementName;
+
+    public XmlStreamToIteratorProcessor() { }
+
+    /**
+     * @param elementName the local name of the elements to stream, or <code>null</code> to derive it from the element type
+     */
+    public XmlStreamToIteratorProcessor(@Nullable String elementName) {
+        this.elementName = elementName;
+    }
+
+    @Override
+    public @Nonnull Iterator<T> read(@Nonnull InputStream inputStream, @Nonnull final Class<T> elementType) throws IOException {
+        final String name = (elementName == null ? getElementName(elementType) : elementName);
+        final XMLStreamReader reader;
+        final Unmarshaller unmarshaller;
+
+        try {
+            synchronized( factory ) {
+                reader = factory.createXMLStreamReader(inputStream);
+            }
+            unmarshaller = XmlStreamToObjectProcessor.getContext(elementType).createUnmarshaller();
+        }
+        catch( XMLStreamException e ) {
+            throw new IOException(e.getMessage());
+        }
+        catch( JAXBException e ) {
+            throw new IOException(e.getMessage());
+        }
+        return new Iterator<T>() {
+            private boolean done;
+            private boolean advanced;
+
+            @Override
+            public boolean hasNext() {
+                if( !done && !advanced ) {
+                    try {
+                        while( reader.hasNext() ) {
+                            if( reader.getEventType() == XMLStreamConstants.START_ELEMENT && name.equals(reader.getLocalName()) ) {
+                                advanced = true;
+                                return true;
+                            }
+                            reader.next();
+                        }
+                        done = true;
+                        reader.close();
+                    }
+                    catch( XMLStreamException e ) {
+                        throw new RuntimeException("Error reading response input stream", e);
+                    }
+                }
+                return !done;
+            }
+
+            @Override
+            public T next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                advanced = false;
+                try {
+                    return unmarshaller.unmarshal(reader, elementType).getValue();
+                }
+                catch( JAXBException e ) {
+                    throw new RuntimeException("Error deserializing response input stream into dasein object", e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
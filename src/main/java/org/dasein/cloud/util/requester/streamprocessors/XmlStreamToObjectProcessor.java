@@ -19,24 +19,81 @@
 
 package org.dasein.cloud.util.requester.streamprocessors;
 
-import org.dasein.cloud.util.requester.streamprocessors.StreamProcessor;
-
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
  /**
+ * Reads and writes XML with JAXB. The {@link JAXBContext} for each type is created once and shared, as it is
+ * thread-safe and expensive to build. Unmarshallers and marshallers are not thread-safe, so each thread keeps its
+ * own for every type it has handled.
  * @author Vlad Munthiu
+ * @version 2014.11 cached contexts and per-thread unmarshallers and marshallers
  */
 public class XmlStreamToObjectProcessor<T> implements StreamProcessor<T> {
+    static private final ConcurrentHashMap<Class<?>,JAXBContext> contexts = new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+    static private final ThreadLocal<Map<Class<?>,Marshaller>> marshallers = new ThreadLocal<Map<Class<?>,Marshaller>>() {
+        @Override
+        protected Map<Class<?>,Marshaller> initialValue() {
+            return new HashMap<Class<?>, Marshaller>();
+        }
+    };
+
+    static private final ThreadLocal<Map<Class<?>,Unmarshaller>> unmarshallers = new ThreadLocal<Map<Class<?>,Unmarshaller>>() {
+        @Override
+        protected Map<Class<?>,Unmarshaller> initialValue() {
+            return new HashMap<Class<?>, Unmarshaller>();
+        }
+    };
+
+    static @Nonnull JAXBContext getContext(@Nonnull Class<?> classType) throws JAXBException {
+        JAXBContext context = contexts.get(classType);
+
+        if( context == null ) {
+            context = JAXBContext.newInstance(classType);
+            JAXBContext c = contexts.putIfAbsent(classType, context);
+
+            if( c != null ) {
+                context = c;
+            }
+        }
+        return context;
+    }
+
+    static private @Nonnull Marshaller getMarshaller(@Nonnull Class<?> classType) throws JAXBException {
+        Map<Class<?>,Marshaller> map = marshallers.get();
+        Marshaller m = map.get(classType);
+
+        if( m == null ) {
+            m = getContext(classType).createMarshaller();
+            map.put(classType, m);
+        }
+        return m;
+    }
+
+    static @Nonnull Unmarshaller getUnmarshaller(@Nonnull Class<?> classType) throws JAXBException {
+        Map<Class<?>,Unmarshaller> map = unmarshallers.get();
+        Unmarshaller u = map.get(classType);
+
+        if( u == null ) {
+            u = getContext(classType).createUnmarshaller();
+            map.put(classType, u);
+        }
+        return u;
+    }
+
     public @Nullable T read(InputStream inputStream, Class<T> classType){
         try {
-            JAXBContext context = JAXBContext.newInstance(classType);
-            Unmarshaller u = context.createUnmarshaller();
-            return (T)u.unmarshal(inputStream);
+            return (T)getUnmarshaller(classType).unmarshal(inputStream);
         } catch (Exception ex) {
             throw new RuntimeException("Error deserializing response input stream into dasein object", ex);
         }
@@ -45,10 +102,8 @@ public class XmlStreamToObjectProcessor<T> implements StreamProcessor<T> {
     public @Nullable String write(T object) {
         try {
             StringWriter stringWriter = new StringWriter();
-            JAXBContext jc = JAXBContext.newInstance(object.getClass());
-            Marshaller m = jc.createMarshaller();
-            m.marshal(object, stringWriter);
 
+            getMarshaller(object.getClass()).marshal(object, stringWriter);
             return stringWriter.toString();
         }
         catch (Exception ex){
@@ -0,0 +1,564 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the default implementations in {@link AbstractVMSupport}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class AbstractVMSupportTest {
+    static private int testNumber = 0;
+
+    static class TestVMSupport extends AbstractVMSupport<CloudProvider> {
+        final AtomicInteger inFlight    = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+        final List<String>  launched    = Collections.synchronizedList(new ArrayList<String>());
+        int                 failures;
+
+        TestVMSupport(CloudProvider provider) {
+            super(provider);
+        }
+
+        @Override
+        public @Nonnull VirtualMachineCapabilities getCapabilities() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isSubscribed() {
+            return true;
+        }
+
+        @Override
+        public @Nonnull VirtualMachine launch( @Nonnull VMLaunchOptions withLaunchOptions ) throws CloudException {
+            int current = inFlight.incrementAndGet();
+
+            try {
+                while( true ) {
+                    int max = maxInFlight.get();
+
+                    if( current <= max || maxInFlight.compareAndSet(max, current) ) {
+                        break;
+                    }
+                }
+                try { Thread.sleep(20L); }
+                catch( InterruptedException ignore ) { /* ignore */ }
+                synchronized( this ) {
+                    if( failures > 0 ) {
+                        failures--;
+                        throw new CloudException("Launch failed");
+                    }
+                }
+                VirtualMachine vm = new VirtualMachine();
+
+                vm.setProviderVirtualMachineId("vm-" + withLaunchOptions.getFriendlyName());
+                launched.add(withLaunchOptions.getHostName());
+                return vm;
+            }
+            finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void terminate( @Nonnull String vmId, String explanation ) {
+            // nothing to terminate
+        }
+    }
+
+    static class BatchVMSupport extends TestVMSupport {
+        final List<String> hostNames = new ArrayList<String>();
+        int                batches;
+
+        BatchVMSupport(CloudProvider provider) {
+            super(provider);
+        }
+
+        @Override
+        protected Iterable<VMLaunchResult> launchBatch( @Nonnull VMLaunchOptions withLaunchOptions, MachineImage image, @Nonnull List<VMLaunchOptions> instances ) {
+            List<VMLaunchResult> results = new ArrayList<VMLaunchResult>();
+
+            batches++;
+            for( int i=0; i<instances.size(); i++ ) {
+                hostNames.add(instances.get(i).getHostName());
+                if( i == 1 ) {
+                    results.add(VMLaunchResult.getFailure(i + 1, new CloudException("Insufficient capacity")));
+                }
+                else {
+                    results.add(VMLaunchResult.getSuccess(i + 1, "batch-" + (i + 1)));
+                }
+            }
+            return results;
+        }
+    }
+
+    static class StatusVMSupport extends TestVMSupport {
+        final Map<String,VmState> states = new ConcurrentHashMap<String, VmState>();
+        final AtomicInteger       sweeps = new AtomicInteger(0);
+        final List<String>        stopped = Collections.synchronizedList(new ArrayList<String>());
+
+        StatusVMSupport(CloudProvider provider) {
+            super(provider);
+        }
+
+        @Override
+        public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() {
+            List<ResourceStatus> status = new ArrayList<ResourceStatus>();
+
+            sweeps.incrementAndGet();
+            for( Map.Entry<String,VmState> entry : states.entrySet() ) {
+                status.add(new ResourceStatus(entry.getKey(), entry.getValue()));
+            }
+            return status;
+        }
+
+        @Override
+        public void stop( @Nonnull String vmId, boolean force ) {
+            stopped.add(vmId + (force ? ":force" : ""));
+            states.put(vmId, VmState.STOPPED);
+        }
+    }
+
+    static class ListingVMSupport extends TestVMSupport {
+        final List<VirtualMachine> vms = Collections.synchronizedList(new ArrayList<VirtualMachine>());
+        final AtomicInteger        listings = new AtomicInteger(0);
+
+        ListingVMSupport(CloudProvider provider) {
+            super(provider);
+        }
+
+        @Override
+        public @Nonnull Iterable<VirtualMachine> listVirtualMachines() {
+            listings.incrementAndGet();
+            return new ArrayList<VirtualMachine>(vms);
+        }
+
+        VirtualMachine add(String vmId, VmState state, String vlanId) {
+            VirtualMachine vm = new VirtualMachine();
+
+            vm.setProviderVirtualMachineId(vmId);
+            vm.setCurrentState(state);
+            vm.setProviderVlanId(vlanId);
+            vms.add(vm);
+            return vm;
+        }
+    }
+
+    private CloudProvider provider;
+
+    private CloudProvider connect(String ... properties) throws CloudException, InternalException {
+        ProviderContext.Value<?>[] values = new ProviderContext.Value<?>[properties.length / 2];
+
+        testNumber++;
+        for( int i=0; i<values.length; i++ ) {
+            values[i] = new ProviderContext.Value<String>(properties[i*2], properties[i*2+1]);
+        }
+        Cloud cloud = Cloud.register("VM Provider " + testNumber, "VM Cloud " + testNumber, "https://vm.example.com/" + testNumber, TestNewCloudProvider.class);
+
+        return cloud.createContext("account", "region1", values).connect();
+    }
+
+    @Before
+    public void setUp() throws CloudException, InternalException {
+        provider = connect();
+    }
+
+    @Test
+    public void verifyLaunchMany() throws CloudException, InternalException {
+        TestVMSupport support = new TestVMSupport(provider);
+        HashSet<String> ids = new HashSet<String>();
+
+        for( String id : support.launchMany(VMLaunchOptions.getInstance("small", "img-1", "web", "web", "web server"), 25) ) {
+            ids.add(id);
+        }
+        assertEquals(25, ids.size());
+        assertTrue(ids.contains("vm-web-1"));
+        assertTrue(ids.contains("vm-web-25"));
+        assertEquals(25, new HashSet<String>(support.launched).size());
+    }
+
+    @Test
+    public void verifyLaunchConcurrencyCapped() throws CloudException, InternalException {
+        TestVMSupport support = new TestVMSupport(connect(AbstractVMSupport.LAUNCH_CONCURRENCY, "3"));
+        int count = 0;
+
+        for( String ignore : support.launchMany(VMLaunchOptions.getInstance("small", "img-1", "web", "web", "web server"), 12) ) {
+            count++;
+        }
+        assertEquals(12, count);
+        assertTrue("Too many concurrent launches: " + support.maxInFlight.get(), support.maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void verifyPartialFailure() throws CloudException, InternalException {
+        TestVMSupport support = new TestVMSupport(provider);
+        int count = 0;
+
+        support.failures = 2;
+        for( String ignore : support.launchMany(VMLaunchOptions.getInstance("small", "img-1", "web", "web", "web server"), 5) ) {
+            count++;
+        }
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void verifyTotalFailure() throws CloudException, InternalException {
+        TestVMSupport support = new TestVMSupport(provider);
+
+        support.failures = 3;
+        try {
+            for( String ignore : support.launchMany(VMLaunchOptions.getInstance("small", "img-1", "web", "web", "web server"), 3) ) {
+                fail("A launch succeeded");
+            }
+            fail("No error was raised");
+        }
+        catch( RuntimeException expected ) {
+            // the populator reports the failure to the iterating thread
+        }
+    }
+
+    @Test
+    public void verifyParallelResults() throws CloudException, InternalException {
+        TestVMSupport support = new TestVMSupport(provider);
+        HashSet<Integer> indexes = new HashSet<Integer>();
+        int failed = 0;
+
+        support.failures = 1;
+        for( VMLaunchResult result : support.launchManyWithResults(VMLaunchOptions.getInstance("small", "img-1", "web", "web", "web server"), 4) ) {
+            indexes.add(result.getIndex());
+            if( !result.isSuccessful() ) {
+                failed++;
+                assertEquals("Launch failed", result.getError().getMessage());
+            }
+            else {
+                assertEquals("vm-web-" + result.getIndex(), result.getProviderVirtualMachineId());
+            }
+        }
+        assertEquals(1, failed);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3, 4)), indexes);
+    }
+
+    @Test
+    public void verifyParallelLaunchesGetImage() throws CloudException, InternalException {
+        final AtomicInteger imageLaunches = new AtomicInteger(0);
+        TestVMSupport support = new TestVMSupport(provider) {
+            @Override
+            protected @Nonnull VirtualMachine launch( @Nonnull VMLaunchOptions withLaunchOptions, MachineImage image ) throws CloudException, InternalException {
+                imageLaunches.incrementAndGet();
+                return super.launch(withLaunchOptions, image);
+            }
+        };
+
+        assertEquals(4, count(support.launchMany(VMLaunchOptions.getInstance("small", "img-1", "web", "web", "web server"), 4)));
+        assertEquals(4, imageLaunches.get());
+    }
+
+    @Test
+    public void verifyBatchLaunch() throws CloudException, InternalException {
+        BatchVMSupport support = new BatchVMSupport(provider);
+        List<String> ids = new ArrayList<String>();
+
+        for( String id : support.launchMany(VMLaunchOptions.getInstance("small", "img-1", "web", "web", "web server"), 3) ) {
+            ids.add(id);
+        }
+        assertEquals(Arrays.asList("batch-1", "batch-3"), ids);
+        assertEquals(1, support.batches);
+        assertEquals(3, support.hostNames.size());
+        assertEquals(0, support.launched.size());
+    }
+
+    @Test
+    public void verifyWatcherSharesSweeps() throws Exception {
+        StatusVMSupport support = new StatusVMSupport(provider);
+        VmStateWatcher watcher = new VmStateWatcher(10L, 40L);
+        List<Future<VmState>> futures = new ArrayList<Future<VmState>>();
+
+        for( int i=0; i<100; i++ ) {
+            support.states.put("vm-" + i, VmState.STOPPING);
+            futures.add(watcher.watch(support, "vm-" + i, VmState.STOPPED, VmState.TERMINATED));
+        }
+        assertEquals(100, watcher.getWatchedCount());
+        Thread.sleep(100L);
+        for( int i=0; i<100; i++ ) {
+            support.states.put("vm-" + i, (i % 2 == 0 ? VmState.STOPPED : VmState.TERMINATED));
+        }
+        for( int i=0; i<100; i++ ) {
+            assertEquals(i % 2 == 0 ? VmState.STOPPED : VmState.TERMINATED, futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertTrue("Too many sweeps: " + support.sweeps.get(), support.sweeps.get() < 20);
+        assertEquals(0, watcher.getWatchedCount());
+    }
+
+    @Test
+    public void verifyWatcherMissingVM() throws Exception {
+        StatusVMSupport support = new StatusVMSupport(provider);
+        VmStateWatcher watcher = new VmStateWatcher(10L, 40L);
+
+        assertNull(watcher.watch(support, "vm-missing", VmState.STOPPED).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void verifyWatcherOutlivesClosedProvider() throws Exception {
+        CloudProvider closed = connect();
+        StatusVMSupport closedSupport = new StatusVMSupport(closed);
+        StatusVMSupport support = new StatusVMSupport(provider);
+        VmStateWatcher watcher = new VmStateWatcher(10L, 40L);
+
+        support.states.put("vm-1", VmState.STOPPING);
+        Future<VmState> first = watcher.watch(closedSupport, "vm-1", VmState.STOPPED);
+        Future<VmState> second = watcher.watch(support, "vm-1", VmState.STOPPED);
+
+        closed.close();
+        Thread.sleep(100L);
+        support.states.put("vm-1", VmState.STOPPED);
+        assertEquals(VmState.STOPPED, second.get(5, TimeUnit.SECONDS));
+        assertTrue(first.isCancelled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyWatcherRejectsNoTargets() {
+        new VmStateWatcher(10L, 40L).watch(new StatusVMSupport(provider), "vm-1");
+    }
+
+    @Test
+    public void verifyStopWaitsForState() throws CloudException, InternalException {
+        StatusVMSupport support = new StatusVMSupport(provider);
+
+        support.states.put("vm-1", VmState.RUNNING);
+        support.stop("vm-1");
+        assertEquals(Arrays.asList("vm-1"), support.stopped);
+        assertTrue(support.sweeps.get() > 0);
+    }
+
+    @Test
+    public void verifyIndexedLookup() throws CloudException, InternalException {
+        provider = connect(AbstractVMSupport.VM_INDEX_TIMEOUT, "30");
+        ListingVMSupport support = new ListingVMSupport(provider);
+
+        for( int i=0; i<20; i++ ) {
+            support.add("vm-" + i, (i < 5 ? VmState.STOPPED : VmState.RUNNING), "vlan-" + (i % 2)).setTag("role", "web");
+        }
+        for( int i=0; i<20; i++ ) {
+            assertEquals("vm-" + i, support.getVirtualMachine("vm-" + i).getProviderVirtualMachineId());
+        }
+        assertEquals(1, support.listings.get());
+
+        VirtualMachineIndex.Snapshot snapshot = VirtualMachineIndex.getInstance(provider.getContext()).getSnapshot();
+
+        assertNotNull(snapshot);
+        assertEquals(5, count(snapshot.listVirtualMachines(VmState.STOPPED)));
+        assertEquals(10, count(snapshot.listVirtualMachinesInVlan("vlan-1")));
+        assertEquals(20, count(snapshot.listVirtualMachinesWithTag("role")));
+
+        VirtualMachineIndex.getInstance(provider.getContext()).invalidate("vm-1");
+        assertNull(snapshot.getVirtualMachine("vm-1"));
+        assertEquals(4, count(snapshot.listVirtualMachines(VmState.STOPPED)));
+        assertEquals(9, count(snapshot.listVirtualMachinesInVlan("vlan-1")));
+        assertEquals(19, count(snapshot.listVirtualMachines()));
+    }
+
+    @Test
+    public void verifyIndexMissesNewVM() throws CloudException, InternalException {
+        provider = connect(AbstractVMSupport.VM_INDEX_TIMEOUT, "30");
+        ListingVMSupport support = new ListingVMSupport(provider);
+
+        support.add("vm-1", VmState.RUNNING, null);
+        assertNotNull(support.getVirtualMachine("vm-1"));
+        support.add("vm-2", VmState.PENDING, null);
+        assertNotNull(support.getVirtualMachine("vm-2"));
+        assertNull(support.getVirtualMachine("vm-3"));
+        assertEquals(3, support.listings.get());
+    }
+
+    @Test
+    public void verifyIndexInvalidation() throws CloudException, InternalException {
+        provider = connect(AbstractVMSupport.VM_INDEX_TIMEOUT, "30");
+        ListingVMSupport support = new ListingVMSupport(provider);
+
+        support.add("vm-1", VmState.RUNNING, null);
+        support.add("vm-2", VmState.RUNNING, null);
+        assertEquals(VmState.RUNNING, support.getVirtualMachine("vm-1").getCurrentState());
+        support.vms.get(0).setCurrentState(VmState.TERMINATED);
+        support.terminate("vm-1");
+        assertEquals(VmState.TERMINATED, support.getVirtualMachine("vm-1").getCurrentState());
+        assertEquals(2, support.listings.get());
+        assertNotNull(support.getVirtualMachine("vm-2"));
+        assertEquals(2, support.listings.get());
+    }
+
+    @Test
+    public void verifyIndexDisabledByDefault() throws CloudException, InternalException {
+        ListingVMSupport support = new ListingVMSupport(provider);
+
+        support.add("vm-1", VmState.STOPPED, null);
+        assertEquals(VmState.STOPPED, support.getVirtualMachine("vm-1").getCurrentState());
+        support.vms.get(0).setCurrentState(VmState.RUNNING);
+        assertEquals(VmState.RUNNING, support.getVirtualMachine("vm-1").getCurrentState());
+        assertEquals(2, support.listings.get());
+    }
+
+    @Test
+    public void verifyIndexDisabled() throws CloudException, InternalException {
+        ListingVMSupport support = new ListingVMSupport(connect(AbstractVMSupport.VM_INDEX_TIMEOUT, "0"));
+
+        support.add("vm-1", VmState.RUNNING, null);
+        support.getVirtualMachine("vm-1");
+        support.getVirtualMachine("vm-1");
+        assertEquals(2, support.listings.get());
+    }
+
+    @Test
+    public void verifyDefaultVMStatus() throws CloudException, InternalException {
+        ListingVMSupport support = new ListingVMSupport(provider);
+
+        support.add("vm-1", VmState.RUNNING, null).setProviderVmStatus(VmStatus.IMPAIRED);
+        support.add("vm-2", VmState.RUNNING, null).setProviderVmStatus(VmStatus.OK);
+        support.add("vm-3", VmState.RUNNING, null);
+
+        List<String> ids = new ArrayList<String>();
+
+        for( VirtualMachineStatus status : support.getVMStatus("vm-1", "vm-3") ) {
+            ids.add(status.getProviderVirtualMachineId());
+            if( status.getProviderVirtualMachineId().equals("vm-3") ) {
+                assertEquals(VmStatus.STATUS_UNAVAILABLE, status.getProviderVmStatus());
+            }
+        }
+        assertEquals(Arrays.asList("vm-1", "vm-3"), ids);
+        ids.clear();
+        for( VirtualMachineStatus status : support.getVMStatus(VmStatusFilterOptions.getInstance().matchingAny().withVmStatuses(EnumSet.of(VmStatus.IMPAIRED))) ) {
+            ids.add(status.getProviderVirtualMachineId());
+        }
+        assertEquals(Arrays.asList("vm-1"), ids);
+        assertEquals(3, count(support.getVMStatus()));
+    }
+
+    @Test
+    public void verifyVMStatusMatchingAll() throws CloudException, InternalException {
+        ListingVMSupport support = new ListingVMSupport(provider);
+
+        support.add("vm-1", VmState.RUNNING, null).setProviderVmStatus(VmStatus.IMPAIRED);
+        support.add("vm-2", VmState.RUNNING, null).setProviderVmStatus(VmStatus.OK);
+        support.add("vm-3", VmState.RUNNING, null).setProviderHostStatus(VmStatus.IMPAIRED);
+
+        List<String> ids = new ArrayList<String>();
+
+        for( VirtualMachineStatus status : support.getVMStatus(VmStatusFilterOptions.getInstance().withVmStatuses(EnumSet.of(VmStatus.IMPAIRED))) ) {
+            ids.add(status.getProviderVirtualMachineId());
+        }
+        assertEquals(Arrays.asList("vm-1", "vm-3"), ids);
+        ids.clear();
+        for( VirtualMachineStatus status : support.getVMStatus(VmStatusFilterOptions.getInstance().withVmIds("vm-2", "vm-3").withVmStatuses(EnumSet.of(VmStatus.IMPAIRED))) ) {
+            ids.add(status.getProviderVirtualMachineId());
+        }
+        assertEquals(Arrays.asList("vm-3"), ids);
+        ids.clear();
+        for( VirtualMachineStatus status : support.getVMStatus(VmStatusFilterOptions.getInstance().matchingAny().withVmIds("vm-2").withVmStatuses(EnumSet.of(VmStatus.IMPAIRED))) ) {
+            ids.add(status.getProviderVirtualMachineId());
+        }
+        assertEquals(Arrays.asList("vm-1", "vm-2", "vm-3"), ids);
+    }
+
+    @Test
+    public void verifyStatusChanges() throws CloudException, InternalException {
+        StatusVMSupport support = new StatusVMSupport(provider);
+
+        for( int i=0; i<10; i++ ) {
+            support.states.put("vm-" + i, VmState.RUNNING);
+        }
+        VirtualMachineStatusChanges changes = support.listVirtualMachineStatusChanges(null);
+
+        assertTrue(changes.isFullListing());
+        assertEquals(10, changes.getChangedStatus().size());
+
+        changes = support.listVirtualMachineStatusChanges(changes.getToken());
+        assertFalse(changes.isFullListing());
+        assertEquals(0, changes.getChangedStatus().size());
+
+        support.states.put("vm-3", VmState.STOPPED);
+        support.states.remove("vm-4");
+        support.states.put("vm-10", VmState.PENDING);
+        String token = changes.getToken();
+
+        changes = support.listVirtualMachineStatusChanges(token);
+        assertEquals(2, changes.getChangedStatus().size());
+        assertEquals(Arrays.asList("vm-4"), new ArrayList<String>(changes.getRemovedVirtualMachineIds()));
+
+        assertEquals(2, support.listVirtualMachineStatusChanges(token).getChangedStatus().size());
+        assertTrue(support.listVirtualMachineStatusChanges("unknown").isFullListing());
+    }
+
+    @Test
+    public void verifyStatusChangesWithoutState() throws CloudException, InternalException {
+        ListingVMSupport support = new ListingVMSupport(connect(AbstractVMSupport.VM_INDEX_TIMEOUT, "0"));
+
+        support.add("vm-1", null, null);
+        support.add("vm-2", VmState.RUNNING, null);
+
+        VirtualMachineStatusChanges changes = support.listVirtualMachineStatusChanges(null);
+
+        assertEquals(2, changes.getChangedStatus().size());
+        changes = support.listVirtualMachineStatusChanges(changes.getToken());
+        assertEquals(0, changes.getChangedStatus().size());
+
+        support.vms.get(0).setCurrentState(VmState.RUNNING);
+        support.vms.get(1).setCurrentState(null);
+        assertEquals(2, support.listVirtualMachineStatusChanges(changes.getToken()).getChangedStatus().size());
+    }
+
+    private int count(Iterable<?> items) {
+        int count = 0;
+
+        for( Object ignore : items ) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.dasein.cloud.CloudProvider;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the matching of virtual machines and images by {@link VMFilterOptions} and {@link ImageFilterOptions}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class FilterOptionsTest {
+    private VirtualMachine vm(String name, String description, String ... tags) {
+        VirtualMachine vm = new VirtualMachine();
+
+        vm.setName(name);
+        vm.setDescription(description);
+        vm.setLifecycle(VirtualMachineLifecycle.NORMAL);
+        for( int i=0; i<tags.length; i+=2 ) {
+            vm.addTag(tags[i], tags[i+1]);
+        }
+        return vm;
+    }
+
+    private Map<String,String> tags(String ... pairs) {
+        HashMap<String,String> tags = new HashMap<String, String>();
+
+        for( int i=0; i<pairs.length; i+=2 ) {
+            tags.put(pairs[i], pairs[i+1]);
+        }
+        return tags;
+    }
+
+    @Test
+    public void verifyRegex() {
+        VMFilterOptions options = VMFilterOptions.getInstance("web-[0-9]+");
+
+        assertTrue(options.matches(vm("web-1", "front end")));
+        assertTrue(options.matches(vm("server", "db", "role", "web-22")));
+        assertFalse(options.matches(vm("db-1", "web server")));
+        options.matchingRegex("db-.*");
+        assertTrue(options.matches(vm("db-1", "web server")));
+        assertFalse(options.matches(vm("web-1", "front end")));
+    }
+
+    @Test
+    public void verifyTags() {
+        VMFilterOptions options = VMFilterOptions.getInstance().withTags(tags("Name", "WEB", "env", "prod"));
+
+        assertTrue(options.matches(vm("my-web-server", "x", "env", "production")));
+        assertFalse(options.matches(vm("my-web-server", "x", "env", "PRODUCTION")));
+        assertFalse(options.matches(vm("my-db-server", "x", "env", "production")));
+        assertTrue(options.matches(vm("server", "x", "Name", "Web Tier", "env", "prod")));
+        options.withTags(tags("env", "dev"));
+        assertFalse(options.matches(vm("my-web-server", "x", "env", "production")));
+    }
+
+    @Test
+    public void verifyMatchesAny() {
+        VMFilterOptions options = VMFilterOptions.getInstance(true, "nothing").withTags(tags("Description", "api")).withLifecycles(VirtualMachineLifecycle.SPOT);
+
+        assertTrue(options.matches(vm("server", "The API server")));
+        assertFalse(options.matches(vm("server", "The web server")));
+        assertFalse(options.matchingAll().matches(vm("server", "The API server")));
+    }
+
+    @Test
+    public void verifyImageFilter() {
+        MachineImage image = MachineImage.getInstance("owner", "region", "ami-123", ImageClass.MACHINE, MachineImageState.ACTIVE, "Ubuntu 14.04", "Ubuntu server", Architecture.I64, Platform.UBUNTU);
+
+        image.setTag("team", "platform");
+        assertTrue(ImageFilterOptions.getInstance("ami-[0-9]+").matches(image));
+        assertTrue(ImageFilterOptions.getInstance("Ubuntu.*").withTags(tags("team", "plat")).matches(image));
+        assertFalse(ImageFilterOptions.getInstance("Ubuntu.*").withTags(tags("team", "web")).matches(image));
+        assertFalse(ImageFilterOptions.getInstance().withArchitecture(Architecture.I32).withTags(tags("team", "plat")).matches(image));
+        assertTrue(ImageFilterOptions.getInstance(true).withArchitecture(Architecture.I32).withTags(tags("team", "plat")).matches(image));
+    }
+
+    @Test
+    public void verifyMatchesTagsUnchanged() {
+        Map<String,String> current = tags("Name", "Alpha", "env", "prod");
+
+        assertTrue(CloudProvider.matchesTags(current, "x", "y", null));
+        assertTrue(CloudProvider.matchesTags(current, "x", "y", tags("Name", "alp")));
+        assertTrue(CloudProvider.matchesTags(current, "x", "y", tags("env", "Prod")));
+        assertFalse(CloudProvider.matchesTags(current, "x", "y", tags("env", "Prod", "Description", null)));
+        assertTrue(CloudProvider.matchesTags(current, "x", "y", tags("missing", null)));
+        assertFalse(CloudProvider.matchesTags(current, "x", "y", tags("missing", "value")));
+        assertTrue(CloudProvider.matchesTags(current, "Beta", "Gamma", tags("Description", "GAM", "Name", "bet")));
+    }
+}
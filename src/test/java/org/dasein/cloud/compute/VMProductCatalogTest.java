@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.compute;
+
+import org.dasein.cloud.InternalException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the indexing of vmproducts resources by {@link VMProductCatalog}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class VMProductCatalogTest {
+    static private final String RESOURCE = "/org/dasein/cloud/compute/vmproducts.json";
+
+    private List<String> ids(Iterable<VirtualMachineProduct> products) {
+        List<String> ids = new ArrayList<String>();
+
+        for( VirtualMachineProduct prd : products ) {
+            ids.add(prd.getProviderProductId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void verifyCatalogShared() throws InternalException {
+        VMProductCatalog catalog = VMProductCatalog.getInstance(RESOURCE, "Test", "Catalog");
+
+        assertSame(catalog, VMProductCatalog.getInstance(RESOURCE, "test", "catalog"));
+        assertSame(catalog.getProducts(Architecture.I64, "region1"), catalog.getProducts(Architecture.I64, "region1"));
+    }
+
+    @Test
+    public void verifyArchitectureAndRegion() throws InternalException {
+        VMProductCatalog catalog = VMProductCatalog.getInstance(RESOURCE, "Test", "Catalog");
+
+        assertEquals(Arrays.asList("small", "any", "small"), ids(catalog.getProducts(Architecture.I32, "region1")));
+        assertEquals(Arrays.asList("small", "large", "any", "small"), ids(catalog.getProducts(Architecture.I64, "region1")));
+        assertEquals(Arrays.asList("small", "any", "small"), ids(catalog.getProducts(Architecture.I64, "region2")));
+        assertEquals(Arrays.asList("small", "large", "any", "small"), ids(catalog.getProducts(null, "region1")));
+    }
+
+    @Test
+    public void verifyLookupById() throws InternalException {
+        VMProductCatalog catalog = VMProductCatalog.getInstance(RESOURCE, "Test", "Catalog");
+        List<Architecture> i32 = Arrays.asList(Architecture.I32);
+        List<Architecture> all = Arrays.asList(Architecture.I32, Architecture.I64);
+
+        VirtualMachineProduct prd = catalog.getProduct("small", "region1", i32);
+
+        assertNotNull(prd);
+        assertEquals("Small", prd.getName());
+        assertEquals(8192, catalog.getProduct("large", "region1", all).getRamSize().intValue());
+        assertNull(catalog.getProduct("large", "region1", i32));
+        assertNull(catalog.getProduct("large", "region2", all));
+        assertNotNull(catalog.getProduct("any", "region2", i32));
+        assertNull(catalog.getProduct("missing", "region1", all));
+    }
+
+    @Test
+    public void verifyDefaultProductSet() throws InternalException {
+        VMProductCatalog catalog = VMProductCatalog.getInstance(RESOURCE, "Other", "Cloud");
+
+        assertEquals(Arrays.asList("default.small"), ids(catalog.getProducts(null, null)));
+    }
+
+    @Test
+    public void verifyFallbackResource() throws InternalException {
+        VMProductCatalog catalog = VMProductCatalog.getInstance("/org/dasein/cloud/missing/vmproducts.json", "Test", "Catalog");
+
+        assertNotNull(catalog.getProduct("t1.micro", null, Arrays.asList(Architecture.I64)));
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the counting done by {@link APITrace}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class APITraceTest {
+    private CloudProvider one;
+    private CloudProvider two;
+    private Level         level;
+
+    @Before
+    public void setUp() throws CloudException, InternalException {
+        Cloud cloud = Cloud.register("Trace Provider", "Trace Cloud", "https://trace.example.com", TestNewCloudProvider.class);
+
+        one = cloud.createContext("one", "region1").connect();
+        two = cloud.createContext("two.x", "region1").connect();
+        level = Logger.getLogger(APITrace.class).getLevel();
+        Logger.getLogger(APITrace.class).setLevel(Level.DEBUG);
+        APITrace.reset();
+    }
+
+    @After
+    public void tearDown() {
+        APITrace.reset();
+        Logger.getLogger(APITrace.class).setLevel(level);
+    }
+
+    @Test
+    public void verifyRolledUpCounts() {
+        String provider = one.getProviderName();
+        String cloud = one.getCloudName();
+
+        APITrace.begin(one, "listThings");
+        APITrace.trace(one, "DescribeThings");
+        APITrace.trace(one, "DescribeThings");
+        APITrace.begin(one, "getThing");
+        APITrace.trace(one, "DescribeThing");
+        APITrace.end();
+        APITrace.end();
+        APITrace.begin(two, "listThings");
+        APITrace.trace(two, "DescribeThings");
+        APITrace.end();
+
+        assertEquals(4L, APITrace.getAPICount());
+        assertEquals(4L, APITrace.getAPICount(provider));
+        assertEquals(4L, APITrace.getAPICount(provider, cloud));
+        assertEquals(3L, APITrace.getAPICount(provider, cloud, "one"));
+        assertEquals(1L, APITrace.getAPICount(provider, cloud, "two.x"));
+        assertEquals(2L, APITrace.getAPICount(provider, cloud, "one", "DescribeThings"));
+        assertEquals(0L, APITrace.getAPICount(provider, cloud, "one", "Describe"));
+        assertEquals(3L, APITrace.getAPICountAcrossAccounts(provider, cloud, "DescribeThings"));
+        assertEquals(3L, APITrace.getOperationCount());
+        assertEquals(2L, APITrace.getOperationCountAcrossAccounts(provider, cloud, "listThings"));
+        assertEquals(1L, APITrace.getOperationCount(provider, cloud, "one", "getThing"));
+        assertEquals(3L, APITrace.getAPICountForOperation(provider, cloud, "one", "listThings"));
+        assertEquals(1L, APITrace.getAPICountForOperation(provider, cloud, "one", "getThing"));
+        assertEquals(0L, APITrace.getAPICount("nobody"));
+    }
+
+    @Test
+    public void verifyListings() {
+        APITrace.trace(one, "DescribeThings");
+        APITrace.trace(two, "DescribeOther");
+        APITrace.begin(two, "listThings");
+        APITrace.end();
+
+        String provider = APITrace.listProviders()[0];
+        String cloud = APITrace.listClouds(provider)[0];
+
+        assertEquals(1, APITrace.listProviders().length);
+        assertEquals(Arrays.asList("one", "two_x"), Arrays.asList(APITrace.listAccounts(provider, cloud)));
+        assertEquals(Arrays.asList("DescribeOther", "DescribeThings"), Arrays.asList(APITrace.listApis(provider, cloud)));
+        assertEquals(Arrays.asList("listThings"), Arrays.asList(APITrace.listOperations(provider, cloud)));
+    }
+
+    @Test
+    public void verifyLatencies() throws InterruptedException {
+        assertNull("No API call outside an operation", APITrace.getCurrentAPICall());
+        APITrace.begin(one, "listThings");
+        APITrace.trace(one, "DescribeThings");
+        assertEquals("DescribeThings", APITrace.getCurrentAPICall());
+        APITrace.recordAPILatency(one, APITrace.getCurrentAPICall(), 5000000L);
+        Thread.sleep(20L);
+        APITrace.trace(one, "DescribeMore");
+        APITrace.end();
+
+        LatencyStatistics operation = APITrace.getOperationLatency(one.getProviderName(), one.getCloudName(), "listThings", 1);
+        LatencyStatistics call = APITrace.getAPILatency(one.getProviderName(), one.getCloudName(), "DescribeThings", 1);
+
+        assertEquals(1L, operation.getCount());
+        assertTrue(operation.getMaximum() >= 20000000L);
+        assertEquals(1L, call.getCount());
+        assertTrue("Only the reported call time should be recorded", call.getP50() >= 4500000L && call.getP50() <= 5500000L);
+        assertEquals("Time between traces is not API latency", 0L, APITrace.getAPILatency(one.getProviderName(), one.getCloudName(), "DescribeMore", 1).getCount());
+        assertEquals(0L, APITrace.getAPILatency(one.getProviderName(), one.getCloudName(), "Unknown", 1).getCount());
+    }
+
+    @Test
+    public void verifyReset() {
+        APITrace.trace(one, "DescribeThings");
+        APITrace.reset();
+        assertEquals(0L, APITrace.getAPICount());
+        assertEquals(0, APITrace.listProviders().length);
+        APITrace.trace(one, "DescribeThings");
+        assertEquals(1L, APITrace.getAPICount(one.getProviderName(), one.getCloudName(), "one"));
+    }
+}
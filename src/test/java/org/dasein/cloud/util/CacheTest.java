@@ -0,0 +1,379 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the context-sensitive caching behavior of {@link Cache} and {@link SingletonCache}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class CacheTest {
+    static private int testNumber = 0;
+
+    private CloudProvider   provider;
+    private ProviderContext regionOne;
+    private ProviderContext regionTwo;
+    private ProviderContext otherAccount;
+    private String          cacheName;
+
+    @Before
+    public void setUp() throws CloudException, InternalException {
+        testNumber++;
+        cacheName = "test" + testNumber;
+
+        Cloud cloud = Cloud.register("Cache Provider " + testNumber, "Cache Cloud " + testNumber, "https://cache.example.com/" + testNumber, TestNewCloudProvider.class);
+
+        regionOne = cloud.createContext("account", "region1");
+        regionTwo = cloud.createContext("account", "region2");
+        otherAccount = cloud.createContext("other", "region1");
+        provider = regionOne.connect();
+    }
+
+    @Test
+    public void verifyRegionLevelSeparation() {
+        Cache<String> cache = Cache.getInstance(provider, cacheName, String.class, CacheLevel.REGION);
+
+        cache.put(regionOne, Arrays.asList("a", "b"));
+        assertNotNull("Cached items are missing for the context in which they were cached", cache.get(regionOne));
+        assertNotNull("Region-level items should be shared across accounts", cache.get(otherAccount));
+        assertNull("Region-level items should not be shared across regions", cache.get(regionTwo));
+    }
+
+    @Test
+    public void verifyRegionAccountLevelSeparation() {
+        Cache<String> cache = Cache.getInstance(provider, cacheName, String.class, CacheLevel.REGION_ACCOUNT);
+
+        cache.put(regionOne, Arrays.asList("a"));
+        assertNotNull("Cached items are missing for the context in which they were cached", cache.get(regionOne));
+        assertNull("Region/account items should not be shared across accounts", cache.get(otherAccount));
+        assertNull("Region/account items should not be shared across regions", cache.get(regionTwo));
+    }
+
+    @Test
+    public void verifySameInstance() {
+        Cache<String> a = Cache.getInstance(provider, cacheName, String.class, CacheLevel.CLOUD);
+        Cache<String> b = Cache.getInstance(provider, cacheName, String.class, CacheLevel.CLOUD);
+
+        assertSame("The same cache name should return the same cache", a, b);
+    }
+
+    @Test
+    public void verifyEntryBound() {
+        CacheOptions options = CacheOptions.getInstance().withMaximumEntries(2);
+        Cache<String> cache = Cache.getInstance(provider, cacheName, String.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), options);
+
+        cache.put(regionOne, Collections.singletonList("1"));
+        cache.put(regionTwo, Collections.singletonList("2"));
+        cache.get(regionOne);
+        cache.put(otherAccount, Collections.singletonList("3"));
+        assertNotNull("The most recently read entry should survive eviction", cache.get(regionOne));
+        assertNull("The least recently used entry should have been evicted", cache.get(regionTwo));
+        assertNotNull("The newest entry should be present", cache.get(otherAccount));
+    }
+
+    @Test
+    public void verifyWeightBound() {
+        CacheOptions options = CacheOptions.getInstance().withMaximumWeight(3);
+        Cache<String> cache = Cache.getInstance(provider, cacheName, String.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), options);
+
+        cache.put(regionOne, Arrays.asList("a", "b"));
+        cache.put(regionTwo, Arrays.asList("c", "d"));
+        assertNull("The older entry should have been evicted to honor the weight bound", cache.get(regionOne));
+        assertNotNull("The newer entry should be present", cache.get(regionTwo));
+    }
+
+    @Test
+    public void verifySingleton() {
+        SingletonCache<String> cache = SingletonCache.getInstance(provider, cacheName, CacheLevel.CLOUD_ACCOUNT);
+
+        cache.put(regionOne, "token");
+        assertEquals("Cloud/account items should be shared across regions", "token", cache.get(regionTwo));
+        assertNull("Cloud/account items should not be shared across accounts", cache.get(otherAccount));
+        cache.clear();
+        assertNull("The cache was not cleared", cache.get(regionOne));
+    }
+
+    @Test
+    public void verifyConcurrentMissesLoadOnce() throws Exception {
+        final Cache<String> cache = Cache.getInstance(provider, cacheName, String.class, CacheLevel.REGION_ACCOUNT);
+        final AtomicInteger loads = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CacheLoader<Iterable<String>> loader = new CacheLoader<Iterable<String>>() {
+            @Override
+            public Iterable<String> load(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+                loads.incrementAndGet();
+                try { Thread.sleep(200L); }
+                catch( InterruptedException ignore ) { }
+                return Collections.singletonList("loaded");
+            }
+        };
+        final List<Iterable<String>> results = Collections.synchronizedList(new ArrayList<Iterable<String>>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<8; i++ ) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        results.add(cache.getOrLoad(regionOne, loader));
+                    }
+                    catch( Throwable t ) {
+                        errors.add(t);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for( Thread t : threads ) {
+            t.join();
+        }
+        assertEquals("Worker threads failed: " + errors, 0, errors.size());
+        assertEquals("Concurrent misses should result in a single load", 1, loads.get());
+        assertEquals("Every caller should receive a result", 8, results.size());
+        for( Iterable<String> result : results ) {
+            assertEquals("Callers did not receive the loaded value", "loaded", result.iterator().next());
+        }
+        assertNotNull("The loaded value was not cached", cache.get(regionOne));
+    }
+
+    @Test
+    public void verifyLoadFailurePropagates() throws Exception {
+        SingletonCache<String> cache = SingletonCache.getInstance(provider, cacheName, CacheLevel.CLOUD);
+
+        try {
+            cache.getOrLoad(regionOne, new CacheLoader<String>() {
+                @Override
+                public String load(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+                    throw new CloudException("failed");
+                }
+            });
+            fail("The loader exception was not propagated");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        assertNull("A failed load should not be cached", cache.get(regionOne));
+        assertEquals("A later load should be attempted after a failure", "ok", cache.getOrLoad(regionOne, new CacheLoader<String>() {
+            @Override
+            public String load(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+                return "ok";
+            }
+        }));
+    }
+
+    @Test
+    public void verifyStaleWhileRevalidate() throws Exception {
+        CacheOptions options = CacheOptions.getInstance().withStaleWhileRevalidate(new TimePeriod<Hour>(1, TimePeriod.HOUR));
+        SingletonCache<String> cache = SingletonCache.getInstance(provider, cacheName, CacheLevel.CLOUD, new TimePeriod<Millisecond>(100, TimePeriod.MILLISECOND), options);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+
+        cache.put(regionOne, "old");
+        Thread.sleep(150L);
+        assertNull("Plain reads should never return expired values", cache.get(regionOne));
+        assertEquals("The stale value should be served while refreshing", "old", cache.getOrLoad(regionOne, new CacheLoader<String>() {
+            @Override
+            public String load(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+                refreshed.countDown();
+                return "new";
+            }
+        }));
+        refreshed.await();
+        for( int i=0; i<50 && !"new".equals(cache.get(regionOne)); i++ ) {
+            Thread.sleep(10L);
+        }
+        assertEquals("The background refresh did not update the cache", "new", cache.get(regionOne));
+    }
+
+    @Test
+    public void verifyRefreshAhead() throws Exception {
+        CacheOptions options = CacheOptions.getInstance().withRefreshAhead(0.5f);
+        SingletonCache<String> cache = SingletonCache.getInstance(provider, cacheName, CacheLevel.CLOUD, new TimePeriod<Millisecond>(400, TimePeriod.MILLISECOND), options);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        CacheLoader<String> loader = new CacheLoader<String>() {
+            @Override
+            public String load(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+                refreshed.countDown();
+                return "new";
+            }
+        };
+
+        cache.put(regionOne, "old");
+        assertEquals("A young value should not be refreshed", "old", cache.getOrLoad(regionOne, loader));
+        assertEquals("No refresh should have started", 1L, refreshed.getCount());
+        Thread.sleep(250L);
+        assertEquals("The current value should be served while refreshing ahead", "old", cache.getOrLoad(regionOne, loader));
+        refreshed.await();
+        for( int i=0; i<50 && !"new".equals(cache.get(regionOne)); i++ ) {
+            Thread.sleep(10L);
+        }
+        assertEquals("The refresh ahead did not update the cache", "new", cache.get(regionOne));
+    }
+
+    @Test
+    public void verifyFailedRefreshBacksOff() throws Exception {
+        CacheOptions options = CacheOptions.getInstance().withStaleWhileRevalidate(new TimePeriod<Hour>(1, TimePeriod.HOUR));
+        SingletonCache<String> cache = SingletonCache.getInstance(provider, cacheName, CacheLevel.CLOUD, new TimePeriod<Millisecond>(50, TimePeriod.MILLISECOND), options);
+        final AtomicInteger attempts = new AtomicInteger(0);
+        CacheLoader<String> loader = new CacheLoader<String>() {
+            @Override
+            public String load(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+                attempts.incrementAndGet();
+                throw new CloudException("failed");
+            }
+        };
+
+        cache.put(regionOne, "old");
+        Thread.sleep(100L);
+        for( int i=0; i<20; i++ ) {
+            assertEquals("old", cache.getOrLoad(regionOne, loader));
+            Thread.sleep(10L);
+        }
+        assertEquals("A failed refresh should not be retried on every hit", 1, attempts.get());
+    }
+
+    @Test
+    public void verifyStatistics() throws Exception {
+        Cache<String> cache = Cache.getInstance(provider, cacheName, String.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), CacheOptions.getInstance().withMaximumWeight(100));
+        CacheLoader<Iterable<String>> loader = new CacheLoader<Iterable<String>>() {
+            @Override
+            public Iterable<String> load(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+                return Arrays.asList("a", "b", "c");
+            }
+        };
+
+        assertNull("Nothing should be cached yet", cache.get(regionOne));
+        cache.getOrLoad(regionOne, loader);
+        cache.getOrLoad(regionOne, loader);
+        cache.get(regionOne);
+
+        CacheStatistics stats = cache.getStatistics();
+
+        assertEquals("Hit count does not match", 2L, stats.getHitCount());
+        assertEquals("Miss count does not match", 2L, stats.getMissCount());
+        assertEquals("Load count does not match", 1L, stats.getLoadCount());
+        assertEquals("Entry count does not match", 1L, stats.getEntryCount());
+        assertEquals("Weight does not match the number of cached items", 3L, stats.getEstimatedWeight());
+
+        CacheManager manager = new CacheManager();
+        String name = provider.getClass().getName() + "." + cacheName;
+
+        assertEquals("The cache manager is not reporting the same hit count", 2L, manager.getHitCount(name));
+        manager.resetStatistics(name);
+        assertEquals("Statistics were not reset", 0L, manager.getHitCount(name));
+    }
+
+    @Test
+    public void verifyPersistenceSurvivesRestart() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "dasein-cache-test-" + System.nanoTime());
+        CacheOptions options = CacheOptions.getInstance().withPersistence(directory);
+        CacheStore.Weigher<Object> weigher = new CacheStore.Weigher<Object>() {
+            @Override
+            public long getWeight(@Nonnull Object value) {
+                return 1L;
+            }
+        };
+        TimePeriod<Hour> hour = new TimePeriod<Hour>(1, TimePeriod.HOUR);
+
+        try {
+            CacheStore<ArrayList<String>> before = new CacheStore<ArrayList<String>>(cacheName, CacheLevel.REGION_ACCOUNT, hour, options, weigher);
+
+            before.put(regionOne, new ArrayList<String>(Arrays.asList("a", "b")));
+            before.put(regionTwo, new ArrayList<String>(Arrays.asList("c")));
+            before.put(regionOne, new ArrayList<String>(Arrays.asList("d")));
+            before.close();
+
+            CacheStore<ArrayList<String>> after = new CacheStore<ArrayList<String>>(cacheName, CacheLevel.REGION_ACCOUNT, hour, options, weigher);
+
+            assertEquals("The latest value was not restored from disk", Arrays.asList("d"), after.get(regionOne));
+            assertEquals("The second value was not restored from disk", Arrays.asList("c"), after.get(regionTwo));
+            assertNull("Nothing was stored for this context", after.get(otherAccount));
+            after.clear();
+            after.close();
+
+            CacheStore<ArrayList<String>> cleared = new CacheStore<ArrayList<String>>(cacheName, CacheLevel.REGION_ACCOUNT, hour, options, weigher);
+
+            assertNull("Clearing the cache should clear the file", cleared.get(regionOne));
+            cleared.close();
+        }
+        finally {
+            File[] files = directory.listFiles();
+
+            if( files != null ) {
+                for( File f : files ) {
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void verifyStreamedListNotConsumed() {
+        final AtomicInteger reads = new AtomicInteger(0);
+        Iterable<String> streamed = new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                reads.incrementAndGet();
+                return Arrays.asList("a", "b").iterator();
+            }
+        };
+        Cache<String> bounded = Cache.getInstance(provider, cacheName + ".bounded", String.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), CacheOptions.getInstance().withMaximumWeight(10));
+        Cache<String> unbounded = Cache.getInstance(provider, cacheName, String.class, CacheLevel.REGION_ACCOUNT);
+
+        bounded.put(regionOne, streamed);
+        unbounded.put(regionOne, streamed);
+        assertEquals("A cached iterable was read while being weighed", 0, reads.get());
+        assertEquals(1L, bounded.getStatistics().getEstimatedWeight());
+        assertEquals(0L, unbounded.getStatistics().getEstimatedWeight());
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the bucketing and sliding window of {@link LatencyHistogram}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class LatencyHistogramTest {
+    static private final long MINUTE = 60L * 1000000000L;
+
+    @Test
+    public void verifyBucketPrecision() {
+        for( long value = 1L; value < (1L << 36); value = value * 3 + 7 ) {
+            long estimate = LatencyHistogram.valueOf(LatencyHistogram.indexOf(value));
+
+            assertTrue("Estimate " + estimate + " too far from " + value, Math.abs(estimate - value) <= value * 0.04d);
+        }
+        for( int i=1; i<2000; i++ ) {
+            assertTrue(LatencyHistogram.indexOf(i) >= LatencyHistogram.indexOf(i - 1));
+        }
+    }
+
+    @Test
+    public void verifyPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long now = System.nanoTime();
+
+        for( long i=1; i<=1000; i++ ) {
+            histogram.record(i * 1000L, now);
+        }
+        LatencyStatistics statistics = histogram.getStatistics(1, now);
+
+        assertEquals(1000L, statistics.getCount());
+        assertEquals(1000000L, statistics.getMaximum());
+        assertEquals(500000d, statistics.getP50(), 500000d * 0.04d);
+        assertEquals(900000d, statistics.getP90(), 900000d * 0.04d);
+        assertEquals(990000d, statistics.getP99(), 990000d * 0.04d);
+        assertEquals(0L, new LatencyHistogram().getStatistics(1, now).getP99());
+    }
+
+    @Test
+    public void verifySlidingWindow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long now = System.nanoTime();
+
+        histogram.record(5000L, now);
+        histogram.record(7000L, now + 2 * MINUTE);
+        assertEquals(1L, histogram.getStatistics(1, now + 2 * MINUTE).getCount());
+        assertEquals(7000L, histogram.getStatistics(1, now + 2 * MINUTE).getMaximum());
+        assertEquals(2L, histogram.getStatistics(3, now + 2 * MINUTE).getCount());
+        assertEquals(1L, histogram.getStatistics(15, now + 16 * MINUTE).getCount());
+        histogram.record(9000L, now + 15 * MINUTE);
+        assertEquals(1L, histogram.getStatistics(1, now + 15 * MINUTE).getCount());
+        assertEquals(2L, histogram.getStatistics(15, now + 15 * MINUTE).getCount());
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests running operations across regions with {@link RegionFanOut}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class RegionFanOutTest {
+    static private int testNumber = 0;
+
+    private CloudProvider connect(String ... properties) throws CloudException, InternalException {
+        ProviderContext.Value<?>[] values = new ProviderContext.Value<?>[properties.length / 2];
+
+        testNumber++;
+        for( int i=0; i<values.length; i++ ) {
+            values[i] = new ProviderContext.Value<String>(properties[i*2], properties[i*2+1]);
+        }
+        Cloud cloud = Cloud.register("Fan-out Provider " + testNumber, "Fan-out Cloud " + testNumber, "https://fanout.example.com/" + testNumber, TestNewCloudProvider.class);
+
+        return cloud.createContext("account", "region1", values).connect();
+    }
+
+    @Test
+    public void verifyRegionsAndErrors() throws CloudException, InternalException {
+        CloudProvider provider = connect();
+        List<String> regions = Arrays.asList("region1", "region2", "region3", "bad", "region1");
+        Map<String,RegionFanOut.RegionResult<String>> results = new HashMap<String, RegionFanOut.RegionResult<String>>();
+
+        for( RegionFanOut.RegionResult<String> result : RegionFanOut.execute(provider, regions, new RegionFanOut.RegionTask<String>() {
+            @Override
+            public Iterable<String> call(@Nonnull CloudProvider regionProvider) throws CloudException {
+                String regionId = regionProvider.getContext().getRegionId();
+
+                if( regionId.equals("bad") ) {
+                    throw new CloudException("Region unavailable");
+                }
+                return Arrays.asList(regionId + "-a", regionId + "-b");
+            }
+        }) ) {
+            results.put(result.getRegionId(), result);
+        }
+        assertEquals(4, results.size());
+        assertEquals(Arrays.asList("region2-a", "region2-b"), results.get("region2").getItems());
+        assertTrue(results.get("region1").isSuccessful());
+        assertFalse(results.get("bad").isSuccessful());
+        assertEquals("Region unavailable", results.get("bad").getError().getMessage());
+        assertTrue(results.get("bad").getItems().isEmpty());
+    }
+
+    @Test
+    public void verifyEndpointConcurrency() throws CloudException, InternalException {
+        CloudProvider provider = connect(RegionFanOut.REGION_CONCURRENCY, "3");
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+        List<String> regions = new ArrayList<String>();
+
+        for( int i=0; i<12; i++ ) {
+            regions.add("region" + i);
+        }
+        HashSet<String> done = new HashSet<String>();
+
+        for( RegionFanOut.RegionResult<String> result : RegionFanOut.execute(provider, regions, new RegionFanOut.RegionTask<String>() {
+            @Override
+            public Iterable<String> call(@Nonnull CloudProvider regionProvider) {
+                int current = inFlight.incrementAndGet();
+
+                try {
+                    while( true ) {
+                        int max = maxInFlight.get();
+
+                        if( current <= max || maxInFlight.compareAndSet(max, current) ) {
+                            break;
+                        }
+                    }
+                    try { Thread.sleep(20L); }
+                    catch( InterruptedException ignore ) { /* ignore */ }
+                    return Collections.emptyList();
+                }
+                finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }) ) {
+            assertTrue(result.toString(), result.isSuccessful());
+            done.add(result.getRegionId());
+        }
+        assertEquals(12, done.size());
+        assertTrue("Too many regions at once: " + maxInFlight.get(), maxInFlight.get() <= 3);
+        assertTrue(maxInFlight.get() > 1);
+    }
+}
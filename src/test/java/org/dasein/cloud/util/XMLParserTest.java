@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the document builder pool and streaming API of {@link XMLParser}.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class XMLParserTest {
+    static private final String DOCUMENT = "<DescribeInstancesResponse><reservationSet>" +
+            "<item><instanceId>i-1</instanceId><state name=\"running\"/></item>" +
+            "<item><instanceId>i-2</instanceId><state name=\"stopped\"/></item>" +
+            "</reservationSet><requestId>r-1</requestId></DescribeInstancesResponse>";
+
+    private InputStream input() throws IOException {
+        return new ByteArrayInputStream(DOCUMENT.getBytes("utf-8"));
+    }
+
+    @Test
+    public void verifyBuildersReused() throws Exception {
+        Document doc = XMLParser.parse(input());
+
+        assertEquals("DescribeInstancesResponse", doc.getDocumentElement().getTagName());
+
+        long created = XMLParser.getBuildersCreated();
+        long reused = XMLParser.getBuildersReused();
+
+        for( int i=0; i<10; i++ ) {
+            XMLParser.parse(input());
+        }
+        assertEquals(created, XMLParser.getBuildersCreated());
+        assertEquals(reused + 10, XMLParser.getBuildersReused());
+        assertTrue(XMLParser.getIdleBuilders() >= 1);
+    }
+
+    @Test
+    public void verifyPoolBounded() throws Exception {
+        List<XMLParser.DBPair> pairs = new ArrayList<XMLParser.DBPair>();
+
+        for( int i=0; i<100; i++ ) {
+            pairs.add(XMLParser.getCachedDocumentBuilder());
+        }
+        long discarded = XMLParser.getBuildersDiscarded();
+
+        for( XMLParser.DBPair pair : pairs ) {
+            pair.release();
+        }
+        assertEquals(32, XMLParser.getIdleBuilders());
+        assertTrue(XMLParser.getBuildersDiscarded() - discarded >= 68);
+    }
+
+    @Test
+    public void verifyStreamPaths() throws IOException {
+        final List<String> ids = new ArrayList<String>();
+        final List<String> states = new ArrayList<String>();
+        final List<String> paths = new ArrayList<String>();
+
+        XMLParser.stream(input(), new XMLParser.ElementHandler() {
+            @Override
+            public boolean startElement(@Nonnull String path, @Nonnull XMLStreamReader reader) throws XMLStreamException {
+                paths.add(path);
+                if( path.endsWith("/item/instanceId") ) {
+                    ids.add(reader.getElementText());
+                }
+                else if( path.endsWith("/item/state") ) {
+                    states.add(reader.getAttributeValue(null, "name"));
+                }
+                return true;
+            }
+        });
+        assertEquals(Arrays.asList("i-1", "i-2"), ids);
+        assertEquals(Arrays.asList("running", "stopped"), states);
+        assertEquals("DescribeInstancesResponse/requestId", paths.get(paths.size() - 1));
+    }
+
+    @Test
+    public void verifyStreamStops() throws IOException {
+        final List<String> paths = new ArrayList<String>();
+
+        XMLParser.stream(input(), new XMLParser.ElementHandler() {
+            @Override
+            public boolean startElement(@Nonnull String path, @Nonnull XMLStreamReader reader) throws XMLStreamException {
+                paths.add(path);
+                return !path.endsWith("item");
+            }
+        });
+        assertEquals(Arrays.asList("DescribeInstancesResponse", "DescribeInstancesResponse/reservationSet", "DescribeInstancesResponse/reservationSet/item"), paths);
+    }
+
+    @Test
+    public void verifyMalformedStream() {
+        try {
+            XMLParser.stream(new ByteArrayInputStream("<a><b></a>".getBytes()), new XMLParser.ElementHandler() {
+                @Override
+                public boolean startElement(@Nonnull String path, @Nonnull XMLStreamReader reader) {
+                    return true;
+                }
+            });
+            fail("Malformed XML was read without error");
+        }
+        catch( IOException expected ) {
+            // expected
+        }
+    }
+}
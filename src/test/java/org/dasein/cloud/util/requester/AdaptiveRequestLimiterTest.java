@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import org.apache.http.client.methods.HttpGet;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the rate and concurrency limits applied by {@link AdaptiveRequestLimiter}.
+ * @version 2014.11 initial version
+ * @version 2014.11 token refunds
+ * @since 2014.11
+ */
+public class AdaptiveRequestLimiterTest {
+    static private int testNumber = 0;
+
+    private CloudProvider connect(String ... properties) throws CloudException, InternalException {
+        ProviderContext.Value<?>[] values = new ProviderContext.Value<?>[properties.length / 2];
+
+        testNumber++;
+        for( int i=0; i<values.length; i++ ) {
+            values[i] = new ProviderContext.Value<String>(properties[i*2], properties[i*2+1]);
+        }
+        Cloud cloud = Cloud.register("Limiter Provider " + testNumber, "Limiter Cloud " + testNumber, "https://limiter.example.com/" + testNumber, TestNewCloudProvider.class);
+
+        return cloud.createContext("account", "region1", values).connect();
+    }
+
+    @Test
+    public void verifyConcurrencyLimit() throws Exception {
+        final AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter();
+        final CloudProvider provider = connect(AdaptiveRequestLimiter.CONCURRENCY, "2");
+        final HttpGet request = new HttpGet("https://limiter.example.com/?Action=DescribeThings");
+        final CountDownLatch acquired = new CountDownLatch(1);
+        RequestLimiter.Permit one = limiter.acquire(provider, request);
+        RequestLimiter.Permit two = limiter.acquire(provider, request);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    limiter.acquire(provider, request).release(null);
+                    acquired.countDown();
+                }
+                catch( CloudException ignore ) {
+                    // the latch stays closed
+                }
+            }
+        };
+
+        t.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        limiter.acquire(provider, new HttpGet("https://limiter.example.com/?Action=DescribeOthers")).release(null);
+        one.release(null);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        two.release(null);
+    }
+
+    @Test
+    public void verifyThrottlingHalvesConcurrency() throws Exception {
+        AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter();
+        CloudProvider provider = connect(AdaptiveRequestLimiter.CONCURRENCY, "4", AdaptiveRequestLimiter.TIMEOUT, "0.2");
+        HttpGet request = new HttpGet("https://limiter.example.com/things");
+
+        limiter.acquire(provider, request).release(CloudErrorType.THROTTLING);
+
+        RequestLimiter.Permit one = limiter.acquire(provider, request);
+        RequestLimiter.Permit two = limiter.acquire(provider, request);
+
+        try {
+            limiter.acquire(provider, request);
+            fail("Concurrency limit was not reduced after throttling");
+        }
+        catch( CloudException e ) {
+            assertEquals(CloudErrorType.THROTTLING, e.getErrorType());
+        }
+        one.release(null);
+        two.release(null);
+    }
+
+    @Test
+    public void verifyRateLimit() throws Exception {
+        AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter();
+        CloudProvider provider = connect(AdaptiveRequestLimiter.RATE, "20", AdaptiveRequestLimiter.BURST, "1");
+        HttpGet request = new HttpGet("https://limiter.example.com/things");
+        long start = System.currentTimeMillis();
+
+        for( int i=0; i<6; i++ ) {
+            limiter.acquire(provider, request).release(null);
+        }
+        assertTrue(System.currentTimeMillis() - start >= 200L);
+    }
+
+    @Test
+    public void verifyTimedOutRequestsRefundTokens() throws Exception {
+        AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter();
+        CloudProvider provider = connect(AdaptiveRequestLimiter.RATE, "1", AdaptiveRequestLimiter.BURST, "2",
+                AdaptiveRequestLimiter.CONCURRENCY, "1", AdaptiveRequestLimiter.TIMEOUT, "0.1");
+        HttpGet request = new HttpGet("https://limiter.example.com/things");
+        RequestLimiter.Permit one = limiter.acquire(provider, request);
+
+        for( int i=0; i<2; i++ ) {
+            try {
+                limiter.acquire(provider, request);
+                fail("Concurrency limit was not enforced");
+            }
+            catch( CloudException e ) {
+                assertEquals(CloudErrorType.THROTTLING, e.getErrorType());
+            }
+        }
+        one.release(null);
+        // the requests that never got a slot gave their tokens back, so one is still available
+        limiter.acquire(provider, request).release(null);
+    }
+}
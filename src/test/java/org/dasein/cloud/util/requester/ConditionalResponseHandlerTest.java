@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.dasein.cloud.util.requester.fluent.DaseinRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests conditional GET requests made through {@link DaseinRequest#withConditionalGet()}.
+ * @version 2014.11 initial version
+ * @version 2014.11 mapped results and caller validators
+ * @since 2014.11
+ */
+public class ConditionalResponseHandlerTest {
+    static public class Thing {
+        public String name;
+    }
+
+    private final AtomicInteger modified    = new AtomicInteger(0);
+    private final AtomicInteger notModified = new AtomicInteger(0);
+
+    private CloudProvider provider;
+    private HttpServer    server;
+    private volatile String version = "\"v1\"";
+
+    @Before
+    public void setUp() throws CloudException, InternalException, IOException {
+        Cloud cloud = Cloud.register("Conditional Provider", "Conditional Cloud", "https://conditional.example.com", TestNewCloudProvider.class);
+
+        ConditionalResponseHandler.clear();
+        provider = cloud.createContext("account", "region1").connect();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String etag = version;
+
+                if( etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ) {
+                    notModified.incrementAndGet();
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = ("{\"name\":" + etag + "}").getBytes("utf-8");
+
+                modified.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        DaseinHttpClientPool.release(provider);
+        server.stop(0);
+    }
+
+    private DaseinRequest request() {
+        return new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/things/1"));
+    }
+
+    @Test
+    public void verifyNotModifiedReusesResult() throws CloudException {
+        Thing first = request().withConditionalGet().withJsonProcessor(Thing.class).execute();
+        Thing second = request().withConditionalGet().withJsonProcessor(Thing.class).execute();
+
+        assertEquals("v1", first.name);
+        assertSame(first, second);
+        assertEquals(1, modified.get());
+        assertEquals(1, notModified.get());
+    }
+
+    @Test
+    public void verifyModifiedResourceReread() throws CloudException {
+        assertEquals("v1", request().withConditionalGet().withJsonProcessor(Thing.class).execute().name);
+        version = "\"v2\"";
+        assertEquals("v2", request().withConditionalGet().withJsonProcessor(Thing.class).execute().name);
+        assertEquals(2, modified.get());
+        assertEquals(0, notModified.get());
+    }
+
+    @Test
+    public void verifyResultTypesKeptApart() throws CloudException {
+        assertEquals("v1", request().withConditionalGet().withJsonProcessor(Thing.class).execute().name);
+        assertEquals("{\"name\":\"v1\"}", request().withConditionalGet().execute());
+        assertEquals(2, modified.get());
+    }
+
+    @Test
+    public void verifyUnconditionalByDefault() throws CloudException {
+        request().withConditionalGet().withJsonProcessor(Thing.class).execute();
+        request().withJsonProcessor(Thing.class).execute();
+        assertEquals(2, modified.get());
+        assertEquals(0, notModified.get());
+    }
+
+    static public class Prefixer implements DriverToCoreMapper<Thing,String> {
+        private final String prefix;
+
+        public Prefixer(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public String mapFrom(Thing entity) {
+            return prefix + entity.name;
+        }
+    }
+
+    static public class Namer implements DriverToCoreMapper<Thing,String> {
+        @Override
+        public String mapFrom(Thing entity) {
+            return entity.name;
+        }
+    }
+
+    @Test
+    public void verifyStatelessMapperResultsShared() throws CloudException {
+        String first = request().withConditionalGet().withJsonProcessor(new Namer(), Thing.class).execute();
+
+        assertSame(first, request().withConditionalGet().withJsonProcessor(new Namer(), Thing.class).execute());
+        assertEquals(1, notModified.get());
+    }
+
+    @Test
+    public void verifyStatefulMapperResultsKeptApart() throws CloudException {
+        assertEquals("a:v1", request().withConditionalGet().withJsonProcessor(new Prefixer("a:"), Thing.class).execute());
+        assertEquals("b:v1", request().withConditionalGet().withJsonProcessor(new Prefixer("b:"), Thing.class).execute());
+        assertEquals(2, modified.get());
+        assertEquals(0, notModified.get());
+    }
+
+    @Test
+    public void verifyCallerValidatorsKept() throws CloudException {
+        HttpGet get = new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/things/1");
+
+        get.setHeader("If-None-Match", "\"v1\"");
+        try {
+            new DaseinRequest(provider, HttpClientBuilder.create(), get).withConditionalGet().withJsonProcessor(Thing.class).execute();
+            fail("A 304 in answer to the caller's own validators was not passed on");
+        }
+        catch( CloudException expected ) {
+            // the handler does not accept a 304
+        }
+        assertEquals(1, notModified.get());
+        assertEquals("\"v1\"", get.getFirstHeader("If-None-Match").getValue());
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.dasein.cloud.util.requester.fluent.DaseinRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the reuse of HTTP clients and connections by {@link DaseinHttpClientPool}.
+ * @version 2014.11 initial version
+ * @version 2014.11 compression
+ * @version 2014.11 clients per builder settings
+ * @version 2014.11 clients per builder factory
+ * @since 2014.11
+ */
+public class DaseinHttpClientPoolTest {
+    private CloudProvider provider;
+    private HttpServer    server;
+    private Set<Integer>  clientPorts;
+
+    @Before
+    public void setUp() throws CloudException, InternalException, IOException {
+        Cloud cloud = Cloud.register("Pool Provider", "Pool Cloud", "https://pool.example.com", TestNewCloudProvider.class);
+
+        provider = cloud.createContext("account", "region1").connect();
+        clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] body = "ok".getBytes("utf-8");
+
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                if( exchange.getRequestURI().getPath().startsWith("/gzip") && encoding != null && encoding.contains("gzip") ) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+
+                    gzip.write(body);
+                    gzip.close();
+                    body = compressed.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        DaseinHttpClientPool.release(provider);
+        server.stop(0);
+    }
+
+    static private class AgentFactory implements HttpClientBuilderFactory {
+        private final String agent;
+
+        AgentFactory(String agent) {
+            this.agent = agent;
+        }
+
+        @Override
+        public @Nonnull HttpClientBuilder newBuilder() {
+            return HttpClientBuilder.create().setUserAgent(agent);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof AgentFactory && agent.equals(((AgentFactory)other).agent));
+        }
+
+        @Override
+        public int hashCode() {
+            return agent.hashCode();
+        }
+    }
+
+    @Test
+    public void verifyConnectionReuse() throws CloudException {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+        for( int i=0; i<5; i++ ) {
+            assertEquals("ok", new DaseinRequest(provider, new AgentFactory("reuse"), new HttpGet(url)).execute());
+        }
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void verifySingleRequestClient() throws CloudException, IOException {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+        for( int i=0; i<3; i++ ) {
+            assertEquals("ok", new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url)).execute());
+        }
+        assertEquals(3, clientPorts.size());
+
+        CloseableHttpClient client = DaseinHttpClientPool.getClient(provider, HttpClientBuilder.create());
+
+        assertNotSame(client, DaseinHttpClientPool.getClient(provider, HttpClientBuilder.create()));
+        DaseinHttpClientPool.returnClient(client);
+        try {
+            client.execute(new HttpGet(url)).close();
+            fail("A single-request client was not closed when it was returned");
+        }
+        catch( IllegalStateException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void verifyClientPerProvider() throws CloudException, InternalException {
+        CloudProvider other = provider.getContext().getCloud().createContext("other", "region1").connect();
+        HttpClientBuilderFactory factory = new AgentFactory("provider");
+
+        try {
+            assertSame(DaseinHttpClientPool.getClient(provider, factory), DaseinHttpClientPool.getClient(provider, factory));
+            assertNotSame(DaseinHttpClientPool.getClient(provider, factory), DaseinHttpClientPool.getClient(other, factory));
+        }
+        finally {
+            DaseinHttpClientPool.release(other);
+        }
+    }
+
+    @Test
+    public void verifyClientPerFactory() {
+        CloseableHttpClient agentA = DaseinHttpClientPool.getClient(provider, new AgentFactory("a"));
+
+        assertSame(agentA, DaseinHttpClientPool.getClient(provider, new AgentFactory("a")));
+        assertNotSame(agentA, DaseinHttpClientPool.getClient(provider, new AgentFactory("b")));
+    }
+
+    @Test
+    public void verifyLeasedClientSurvivesEviction() throws CloudException {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        CloseableHttpClient leased = DaseinHttpClientPool.getClient(provider, new AgentFactory("leased"));
+
+        for( int i=0; i<DaseinHttpClientPool.MAX_CLIENTS_PER_PROVIDER; i++ ) {
+            assertEquals("ok", new DaseinRequest(provider, new AgentFactory("agent" + i), new HttpGet(url)).execute());
+        }
+        assertNotSame(leased, DaseinHttpClientPool.getClient(provider, new AgentFactory("leased")));
+        try {
+            CloseableHttpResponse response = leased.execute(new HttpGet(url));
+
+            try {
+                assertEquals(200, response.getStatusLine().getStatusCode());
+            }
+            finally {
+                response.close();
+            }
+        }
+        catch( Exception e ) {
+            fail("Evicted client was closed while leased: " + e.getMessage());
+        }
+        DaseinHttpClientPool.returnClient(leased);
+    }
+
+    @Test
+    public void verifyCompressedResponse() throws CloudException {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/gzip";
+
+        assertEquals("ok", new DaseinRequest(provider, new AgentFactory("gzip"), new HttpGet(url)).execute());
+    }
+}
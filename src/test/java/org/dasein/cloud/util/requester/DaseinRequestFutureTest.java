@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.dasein.cloud.util.requester.fluent.DaseinRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests background execution of requests through {@link DaseinRequest#executeInBackground()}.
+ * @version 2014.11 initial version
+ * @version 2014.11 waits from callbacks
+ * @version 2014.11 non-blocking requests
+ * @since 2014.11
+ */
+public class DaseinRequestFutureTest {
+    static private final int IN_FLIGHT = 200;
+
+    private CountDownLatch arrivals;
+    private CloudProvider  provider;
+    private HttpServer     server;
+
+    @Before
+    public void setUp() throws CloudException, InternalException, IOException {
+        Cloud cloud = Cloud.register("Async Provider", "Async Cloud", "https://async.example.com", TestNewCloudProvider.class);
+
+        provider = cloud.createContext("account", "region1",
+                new ProviderContext.Value<String>(DaseinHttpClientPool.MAX_CONNECTIONS, String.valueOf(IN_FLIGHT)),
+                new ProviderContext.Value<String>(DaseinHttpClientPool.MAX_CONNECTIONS_PER_ROUTE, String.valueOf(IN_FLIGHT)),
+                new ProviderContext.Value<String>(DaseinHttpClientPool.IO_THREADS, "2"),
+                new ProviderContext.Value<String>(AdaptiveRequestLimiter.CONCURRENCY, String.valueOf(IN_FLIGHT)),
+                new ProviderContext.Value<String>(AdaptiveRequestLimiter.MIN_CONCURRENCY, String.valueOf(IN_FLIGHT))).connect();
+        arrivals = new CountDownLatch(IN_FLIGHT);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = path.getBytes("utf-8");
+
+                try {
+                    if( path.startsWith("/slow") ) {
+                        Thread.sleep(2000L);
+                    }
+                    else if( path.startsWith("/held") ) {
+                        // answers only once all held requests are in flight at the same time
+                        arrivals.countDown();
+                        arrivals.await(20, TimeUnit.SECONDS);
+                    }
+                }
+                catch( InterruptedException ignore ) {
+                    // answer now
+                }
+
+                exchange.sendResponseHeaders(path.startsWith("/error") ? 500 : 200, body.length);
+                OutputStream out = exchange.getResponseBody();
+
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        DaseinHttpClientPool.release(provider);
+        server.stop(0);
+    }
+
+    private DaseinRequest request(String path) {
+        return new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + path));
+    }
+
+    @Test
+    public void verifyConcurrentRequests() throws CloudException {
+        List<DaseinRequestFuture<String>> futures = new ArrayList<DaseinRequestFuture<String>>();
+
+        for( int i=0; i<50; i++ ) {
+            futures.add(request("/item" + i).executeInBackground());
+        }
+        for( int i=0; i<50; i++ ) {
+            assertEquals("/item" + i, futures.get(i).getResult());
+        }
+    }
+
+    @Test
+    public void verifyCallbacks() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        DaseinRequestCallback<String> callback = new DaseinRequestCallback<String>() {
+            @Override
+            public void onFailure(@Nonnull CloudException error) {
+                if( error.getHttpCode() == 500 ) {
+                    failures.incrementAndGet();
+                }
+                latch.countDown();
+            }
+
+            @Override
+            public void onSuccess(@Nullable String result) {
+                if( "/ok".equals(result) ) {
+                    successes.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+
+        request("/ok").executeInBackground().addCallback(callback);
+        request("/error").executeInBackground().addCallback(callback);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, successes.get());
+        assertEquals(1, failures.get());
+    }
+
+    @Test
+    public void verifyFailure() {
+        try {
+            request("/error").executeInBackground().getResult();
+            fail("An error response did not raise an exception");
+        }
+        catch( CloudException e ) {
+            assertEquals(500, e.getHttpCode());
+        }
+    }
+
+    @Test
+    public void verifyWaitFromCallback() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> results = new ArrayList<String>();
+
+        request("/outer").executeInBackground().addCallback(new DaseinRequestCallback<String>() {
+            @Override
+            public void onFailure(@Nonnull CloudException error) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onSuccess(@Nullable String result) {
+                try {
+                    results.add(result);
+                    results.add(request("/inner").executeInBackground().getResult());
+                }
+                catch( CloudException ignore ) {
+                    // reported by the missing result
+                }
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("/outer", "/inner"), results);
+    }
+
+    @Test
+    public void verifyRequestsInFlightTogether() throws CloudException, InterruptedException, ExecutionException, TimeoutException {
+        List<DaseinRequestFuture<String>> futures = new ArrayList<DaseinRequestFuture<String>>();
+        long start = System.currentTimeMillis();
+
+        for( int i=0; i<IN_FLIGHT; i++ ) {
+            futures.add(request("/held" + i).executeInBackground());
+        }
+        for( int i=0; i<IN_FLIGHT; i++ ) {
+            assertEquals("/held" + i, futures.get(i).get(30, TimeUnit.SECONDS));
+        }
+        // the server gives up holding requests after 20 seconds
+        assertTrue("Requests were not all in flight together", System.currentTimeMillis() - start < 10000L);
+    }
+
+    @Test
+    public void verifyTimedWait() throws CloudException {
+        DaseinRequestFuture<String> future = request("/slow").executeInBackground();
+        long start = System.currentTimeMillis();
+
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("A slow request completed within the timeout");
+        }
+        catch( TimeoutException expected ) {
+            assertTrue("Timed wait outlasted its timeout", System.currentTimeMillis() - start < 1000L);
+        }
+        catch( Exception e ) {
+            fail("Timed wait failed: " + e.getMessage());
+        }
+        assertEquals("/slow", future.getResult());
+    }
+
+    @Test
+    public void verifyCancel() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        DaseinRequestFuture<String> future = request("/slow").executeInBackground().addCallback(new DaseinRequestCallback<String>() {
+            @Override
+            public void onFailure(@Nonnull CloudException error) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onSuccess(@Nullable String result) {
+                // not expected
+            }
+        });
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        try {
+            future.getResult();
+            fail("A cancelled request provided a result");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.dasein.cloud.util.requester.fluent.DaseinRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the streaming JSON and XML listings produced by {@link DaseinRequest}.
+ * @version 2014.11 initial version
+ * @version 2014.11 permits held while streaming
+ * @since 2014.11
+ */
+public class DaseinStreamingRequestTest {
+    @XmlRootElement(name = "server")
+    static public class Server {
+        public String id;
+    }
+
+    static private final DriverToCoreMapper<Server,String> mapper = new DriverToCoreMapper<Server, String>() {
+        @Override
+        public String mapFrom(Server entity) {
+            return ("skip".equals(entity.id) ? null : entity.id);
+        }
+    };
+
+    private CloudProvider provider;
+    private HttpServer    server;
+
+    private void serve(String path, final int status, final String body) {
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] bytes = body.getBytes("utf-8");
+
+                exchange.sendResponseHeaders(status, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+
+                out.write(bytes);
+                out.close();
+            }
+        });
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private List<String> list(Iterable<String> items) {
+        List<String> list = new ArrayList<String>();
+
+        for( String item : items ) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    @Before
+    public void setUp() throws CloudException, InternalException, IOException {
+        Cloud cloud = Cloud.register("Streaming Provider", "Streaming Cloud", "https://streaming.example.com", TestNewCloudProvider.class);
+
+        provider = cloud.createContext("account", "region1").connect();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serve("/json", 200, "{\"meta\":{\"count\":3},\"servers\":[{\"id\":\"a\"},{\"id\":\"skip\"},{\"id\":\"b\"},{\"id\":\"c\"}]}");
+        serve("/xml", 200, "<?xml version=\"1.0\"?><response><servers><server><id>a</id></server><server><id>b</id></server></servers></response>");
+        serve("/empty", 200, "[]");
+        serve("/error", 503, "unavailable");
+        serve("/malformed", 200, "{\"servers\" tru");
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        DaseinHttpClientPool.release(provider);
+        server.stop(0);
+    }
+
+    @Test
+    public void verifyJsonListing() throws CloudException {
+        DaseinStreamingResponse<Server,String> response = new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/json")))
+                .withStreamingJsonProcessor(mapper, Server.class).execute();
+
+        assertEquals(Arrays.asList("a", "b", "c"), list(response));
+        try {
+            response.iterator();
+            fail("A streaming response was iterated twice");
+        }
+        catch( IllegalStateException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void verifyXmlListing() throws CloudException {
+        assertEquals(Arrays.asList("a", "b"), list(new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/xml")))
+                .withStreamingXmlProcessor(mapper, Server.class).execute()));
+    }
+
+    @Test
+    public void verifyEmptyListing() throws CloudException {
+        assertEquals(0, list(new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/empty")))
+                .withStreamingJsonProcessor(mapper, Server.class).execute()).size());
+    }
+
+    @Test
+    public void verifyErrorResponse() {
+        try {
+            new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/error"))).withStreamingJsonProcessor(mapper, Server.class).execute();
+            fail("An error response did not raise an exception");
+        }
+        catch( CloudException e ) {
+            assertEquals(503, e.getHttpCode());
+        }
+    }
+
+    @Test
+    public void verifyEarlyClose() throws CloudException {
+        for( int i=0; i<30; i++ ) {
+            DaseinStreamingResponse<Server,String> response = new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/json")))
+                    .withStreamingJsonProcessor(mapper, Server.class).execute();
+
+            assertEquals("a", response.iterator().next());
+            response.close();
+        }
+    }
+
+    @Test
+    public void verifyPermitHeldUntilClosed() throws CloudException {
+        final AtomicInteger held = new AtomicInteger();
+        RequestLimiter limiter = DaseinRequestExecutor.getRequestLimiter();
+
+        DaseinRequestExecutor.setRequestLimiter(new RequestLimiter() {
+            @Override
+            public @Nonnull Permit acquire(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request) {
+                held.incrementAndGet();
+                return new Permit() {
+                    @Override
+                    public void release(@Nullable CloudErrorType error) {
+                        held.decrementAndGet();
+                    }
+                };
+            }
+        });
+        try {
+            DaseinStreamingResponse<Server,String> response = new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/json")))
+                    .withStreamingJsonProcessor(mapper, Server.class).execute();
+
+            assertEquals(1, held.get());
+            assertEquals("a", response.iterator().next());
+            assertEquals(1, held.get());
+            response.close();
+            assertEquals(0, held.get());
+            response.close();
+            assertEquals(0, held.get());
+        }
+        finally {
+            DaseinRequestExecutor.setRequestLimiter(limiter);
+        }
+    }
+
+    @Test
+    public void verifyMalformedBodyReportedAsFailure() {
+        final List<CloudErrorType> released = new ArrayList<CloudErrorType>();
+        RequestLimiter limiter = DaseinRequestExecutor.getRequestLimiter();
+
+        DaseinRequestExecutor.setRequestLimiter(new RequestLimiter() {
+            @Override
+            public @Nonnull Permit acquire(@Nonnull CloudProvider provider, @Nonnull HttpUriRequest request) {
+                return new Permit() {
+                    @Override
+                    public void release(@Nullable CloudErrorType error) {
+                        released.add(error);
+                    }
+                };
+            }
+        });
+        try {
+            new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/malformed"))).withStreamingJsonProcessor(mapper, Server.class).execute();
+            fail("A malformed response did not raise an exception");
+        }
+        catch( CloudException expected ) {
+            assertEquals(Arrays.asList(CloudErrorType.COMMUNICATION), released);
+        }
+        finally {
+            DaseinRequestExecutor.setRequestLimiter(limiter);
+        }
+    }
+}
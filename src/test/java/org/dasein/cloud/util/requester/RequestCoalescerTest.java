@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.dasein.cloud.util.requester.fluent.DaseinRequest;
+import org.dasein.cloud.util.requester.streamprocessors.JsonStreamToObjectProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the sharing of responses between identical concurrent requests made through
+ * {@link DaseinRequest#withCoalescing()}.
+ * @version 2014.11 initial version
+ * @version 2014.11 mapped results
+ * @since 2014.11
+ */
+public class RequestCoalescerTest {
+    static private final int THREADS = 10;
+
+    private final AtomicInteger calls = new AtomicInteger(0);
+
+    private CloudProvider provider;
+    private HttpServer    server;
+
+    @Before
+    public void setUp() throws CloudException, InternalException, IOException {
+        Cloud cloud = Cloud.register("Coalescing Provider", "Coalescing Cloud", "https://coalescing.example.com", TestNewCloudProvider.class);
+
+        provider = cloud.createContext("account", "region1").connect();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(THREADS));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = ("response " + calls.incrementAndGet()).getBytes("utf-8");
+
+                try { Thread.sleep(500L); }
+                catch( InterruptedException ignore ) { /* ignore */ }
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        DaseinHttpClientPool.release(provider);
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private List<String> executeConcurrently(final boolean coalesce, final HttpUriRequest ... requests) throws InterruptedException {
+        final List<String> results = new ArrayList<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( final HttpUriRequest request : requests ) {
+            Thread t = new Thread() {
+                public void run() {
+                    DaseinRequest r = new DaseinRequest(provider, HttpClientBuilder.create(), request);
+
+                    try {
+                        String result = (coalesce ? r.withCoalescing() : r).execute();
+
+                        synchronized( results ) {
+                            results.add(result);
+                        }
+                    }
+                    catch( CloudException ignore ) {
+                        // the result is missing
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        return results;
+    }
+
+    @Test
+    public void verifyIdenticalRequestsShareResponse() throws InterruptedException {
+        HttpUriRequest[] requests = new HttpUriRequest[THREADS];
+
+        for( int i=0; i<THREADS; i++ ) {
+            requests[i] = new HttpGet(url("/things"));
+        }
+        List<String> results = executeConcurrently(true, requests);
+
+        assertEquals(THREADS, results.size());
+        assertEquals(1, calls.get());
+        for( String result : results ) {
+            assertEquals("response 1", result);
+        }
+    }
+
+    @Test
+    public void verifyNotCoalescedByDefault() throws InterruptedException {
+        HttpUriRequest[] requests = new HttpUriRequest[THREADS];
+
+        for( int i=0; i<THREADS; i++ ) {
+            requests[i] = new HttpGet(url("/things"));
+        }
+        assertEquals(THREADS, executeConcurrently(false, requests).size());
+        assertEquals(THREADS, calls.get());
+    }
+
+    @Test
+    public void verifyDifferentBodiesNotCoalesced() throws Exception {
+        HttpPost first = new HttpPost(url("/query"));
+        HttpPost second = new HttpPost(url("/query"));
+        HttpPost third = new HttpPost(url("/query"));
+
+        first.setEntity(new StringEntity("Action=DescribeThings"));
+        second.setEntity(new StringEntity("Action=DescribeOthers"));
+        third.setEntity(new StringEntity("Action=DescribeThings"));
+        assertEquals(3, executeConcurrently(true, first, second, third).size());
+        assertEquals(2, calls.get());
+    }
+
+    static public class Thing {
+        public String name;
+    }
+
+    static public class Prefixer implements DriverToCoreMapper<Thing,String> {
+        private final String prefix;
+
+        public Prefixer(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public String mapFrom(Thing entity) {
+            return prefix + entity.name;
+        }
+    }
+
+    static public class Namer implements DriverToCoreMapper<Thing,String> {
+        @Override
+        public String mapFrom(Thing entity) {
+            return entity.name;
+        }
+    }
+
+    @Test
+    public void verifyStatefulMappersNotCoalesced() throws CloudException {
+        HttpGet request = new HttpGet(url("/things"));
+        JsonStreamToObjectProcessor<Thing> processor = new JsonStreamToObjectProcessor<Thing>();
+
+        assertNull(RequestCoalescer.getKey(provider, request, new DaseinResponseHandlerWithMapper<Thing,String>(processor, new Prefixer("a:"), Thing.class)));
+        assertEquals(RequestCoalescer.getKey(provider, request, new DaseinResponseHandlerWithMapper<Thing,String>(processor, new Namer(), Thing.class)),
+                RequestCoalescer.getKey(provider, request, new DaseinResponseHandlerWithMapper<Thing,String>(processor, new Namer(), Thing.class)));
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.test.TestNewCloudProvider;
+import org.dasein.cloud.util.requester.fluent.DaseinRequest;
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests retries and hedging of requests under a {@link RetryPolicy}.
+ * @version 2014.11 initial version
+ * @version 2014.11 hedged conditional GET
+ * @since 2014.11
+ */
+public class RetryPolicyTest {
+    private final ConcurrentHashMap<String,AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private CloudProvider provider;
+    private HttpServer    server;
+
+    @Before
+    public void setUp() throws CloudException, InternalException, IOException {
+        Cloud cloud = Cloud.register("Retry Provider", "Retry Cloud", "https://retry.example.com", TestNewCloudProvider.class);
+
+        provider = cloud.createContext("account", "region1").connect();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                int call = getCalls(path).incrementAndGet();
+                int status = 200;
+
+                if( path.startsWith("/flaky") && call < 3 ) {
+                    status = 503;
+                }
+                else if( path.startsWith("/down") ) {
+                    status = 503;
+                }
+                else if( path.startsWith("/error") ) {
+                    status = 500;
+                }
+                else if( path.startsWith("/throttled") && call < 2 ) {
+                    status = 429;
+                }
+                else if( path.startsWith("/stall") && call == 1 ) {
+                    try { Thread.sleep(3000L); }
+                    catch( InterruptedException ignore ) { /* ignore */ }
+                }
+                else if( path.startsWith("/etag") ) {
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    if( call == 2 ) {
+                        try { Thread.sleep(3000L); }
+                        catch( InterruptedException ignore ) { /* ignore */ }
+                    }
+                    if( "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ) {
+                        exchange.sendResponseHeaders(304, -1);
+                        exchange.close();
+                        return;
+                    }
+                }
+                byte[] body = path.getBytes("utf-8");
+
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        DaseinHttpClientPool.release(provider);
+        server.stop(0);
+    }
+
+    private AtomicInteger getCalls(String path) {
+        calls.putIfAbsent(path, new AtomicInteger(0));
+        return calls.get(path);
+    }
+
+    private RetryPolicy policy() {
+        return RetryPolicy.getInstance().withBackoff(new TimePeriod<Millisecond>(1, TimePeriod.MILLISECOND), new TimePeriod<Millisecond>(5, TimePeriod.MILLISECOND));
+    }
+
+    private DaseinRequest request(HttpUriRequest request, RetryPolicy policy) {
+        return new DaseinRequest(provider, HttpClientBuilder.create(), request).withRetryPolicy(policy);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    public void verifyBackoffBounds() {
+        RetryPolicy policy = RetryPolicy.getInstance().withBackoff(new TimePeriod<Millisecond>(100, TimePeriod.MILLISECOND), new TimePeriod<Millisecond>(1000, TimePeriod.MILLISECOND));
+
+        for( int i=0; i<100; i++ ) {
+            long first = policy.getBackoff(1);
+            long tenth = policy.getBackoff(10);
+
+            assertTrue("First backoff out of range: " + first, first >= 0L && first <= 100L);
+            assertTrue("Tenth backoff out of range: " + tenth, tenth >= 0L && tenth <= 1000L);
+        }
+    }
+
+    @Test
+    public void verifyTransientFailureRetried() throws CloudException {
+        assertEquals("/flaky", request(new HttpGet(url("/flaky")), policy()).execute());
+        assertEquals(3, getCalls("/flaky").get());
+    }
+
+    @Test
+    public void verifyAttemptsLimited() {
+        try {
+            request(new HttpGet(url("/down")), policy().withMaximumAttempts(2)).execute();
+            fail("Request to a failing server succeeded");
+        }
+        catch( CloudException e ) {
+            assertEquals(503, e.getHttpCode());
+        }
+        assertEquals(2, getCalls("/down").get());
+    }
+
+    @Test
+    public void verifyNoPolicyNoRetry() {
+        try {
+            new DaseinRequest(provider, HttpClientBuilder.create(), new HttpGet(url("/flaky"))).execute();
+            fail("Request to a failing server succeeded");
+        }
+        catch( CloudException e ) {
+            assertEquals(503, e.getHttpCode());
+        }
+        assertEquals(1, getCalls("/flaky").get());
+    }
+
+    @Test
+    public void verifyPostNotRetriedOnServerError() {
+        try {
+            request(new HttpPost(url("/error")), policy()).execute();
+            fail("Request to a failing server succeeded");
+        }
+        catch( CloudException e ) {
+            assertEquals(500, e.getHttpCode());
+        }
+        assertEquals(1, getCalls("/error").get());
+    }
+
+    @Test
+    public void verifyPostRetriedWhenThrottled() throws CloudException {
+        assertEquals("/throttled", request(new HttpPost(url("/throttled")), policy()).execute());
+        assertEquals(2, getCalls("/throttled").get());
+    }
+
+    @Test
+    public void verifyCommunicationFailureRetried() throws CloudException {
+        int port = server.getAddress().getPort();
+
+        server.stop(0);
+        try {
+            request(new HttpGet("http://127.0.0.1:" + port + "/gone"), policy()).execute();
+            fail("Request to a stopped server succeeded");
+        }
+        catch( CloudException e ) {
+            assertEquals(CloudErrorType.COMMUNICATION, e.getErrorType());
+        }
+    }
+
+    @Test
+    public void verifyRetryBudget() {
+        try {
+            request(new HttpGet(url("/down")), policy().withMaximumAttempts(100).withRetryBudget(0d)).execute();
+            fail("Request to a failing server succeeded");
+        }
+        catch( CloudException e ) {
+            assertEquals(503, e.getHttpCode());
+        }
+        // the first attempt plus the reserve of ten retries
+        assertEquals(11, getCalls("/down").get());
+    }
+
+    @Test
+    public void verifySlowRequestHedged() throws CloudException {
+        RetryPolicy policy = policy().withHedging(95d);
+
+        for( int i=0; i<25; i++ ) {
+            assertEquals("/fast", request(new HttpGet(url("/fast")), policy).execute());
+        }
+        long start = System.currentTimeMillis();
+
+        assertEquals("/stall", request(new HttpGet(url("/stall")), policy).execute());
+        assertTrue("Hedged request was not answered early", System.currentTimeMillis() - start < 2000L);
+        assertEquals(2, getCalls("/stall").get());
+    }
+
+    @Test
+    public void verifyConditionalGetHedged() throws CloudException {
+        RetryPolicy policy = policy().withHedging(95d);
+
+        ConditionalResponseHandler.clear();
+        for( int i=0; i<25; i++ ) {
+            assertEquals("/fast", request(new HttpGet(url("/fast")), policy).execute());
+        }
+        assertEquals("/etag", request(new HttpGet(url("/etag")), policy).withConditionalGet().execute());
+
+        long start = System.currentTimeMillis();
+
+        // the stalled request and its hedge both carry the remembered validator, and the hedge's 304 is answered
+        // with the remembered result
+        assertEquals("/etag", request(new HttpGet(url("/etag")), policy).withConditionalGet().execute());
+        assertTrue("Hedged conditional request was not answered early", System.currentTimeMillis() - start < 2000L);
+        assertEquals(3, getCalls("/etag").get());
+    }
+}
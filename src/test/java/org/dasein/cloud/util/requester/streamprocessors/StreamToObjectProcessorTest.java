@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2009-2014 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.util.requester.streamprocessors;
+
+import org.junit.Test;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the JSON and XML object processors round-trip objects correctly when their cached mappers, readers,
+ * and unmarshallers are used from many threads.
+ * @version 2014.11 initial version
+ * @since 2014.11
+ */
+public class StreamToObjectProcessorTest {
+    @XmlRootElement(name = "thing")
+    static public class Thing {
+        public String name;
+        public int    size;
+
+        public Thing() { }
+
+        public Thing(String name, int size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private void roundTrip(final StreamProcessor<Thing> processor) throws InterruptedException {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+
+        for( int i=0; i<threads.length; i++ ) {
+            final int id = i;
+
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for( int j=0; j<50; j++ ) {
+                            String text = processor.write(new Thing("thing-" + id + "-" + j, j));
+                            Thing thing = processor.read(new ByteArrayInputStream(text.getBytes("utf-8")), Thing.class);
+
+                            assertEquals("thing-" + id + "-" + j, thing.name);
+                            assertEquals(j, thing.size);
+                        }
+                    }
+                    catch( Throwable t ) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        assertTrue("Errors: " + errors, errors.isEmpty());
+    }
+
+    @Test
+    public void verifyJsonRoundTrip() throws InterruptedException, UnsupportedEncodingException {
+        roundTrip(new JsonStreamToObjectProcessor<Thing>());
+        assertEquals("a", new JsonStreamToObjectProcessor<Thing>().read(new ByteArrayInputStream("{\"name\":\"a\",\"size\":1}".getBytes("utf-8")), Thing.class).name);
+    }
+
+    @Test
+    public void verifyXmlRoundTrip() throws InterruptedException {
+        roundTrip(new XmlStreamToObjectProcessor<Thing>());
+    }
+}